@@ -9,6 +9,7 @@
 package com.oracle.iot.client.device;
 
 import com.oracle.iot.client.impl.device.ActivationManager;
+import com.oracle.iot.client.impl.device.DevicePolicyManager;
 import com.oracle.iot.client.impl.device.IndirectActivationRequest;
 import com.oracle.iot.client.impl.device.IndirectActivationResponse;
 import com.oracle.iot.client.trust.TrustException;
@@ -290,7 +291,16 @@ public class GatewayDevice extends DirectlyConnectedDevice {
 //        getLogger().info(
 //            "indirectActivationResponse: Endpoint state is: " +
 //            indirectActivationResponse.getEndpointState());
-        return indirectActivationResponse.getEndpointId();
+        final String endpointId = indirectActivationResponse.getEndpointId();
+
+        // Let the policy manager look up the policies of the registered
+        // devices together when the first of them needs one.
+        final DevicePolicyManager devicePolicyManager = DevicePolicyManager.getDevicePolicyManager(this);
+        if (devicePolicyManager != null && endpointId != null) {
+            devicePolicyManager.indirectlyConnectedDeviceRegistered(getEndpointId(), endpointId, deviceModelSet);
+        }
+
+        return endpointId;
     }
     private static final Logger LOGGER = Logger.getLogger("oracle.iot.client");
     private static Logger getLogger() { return LOGGER; }   
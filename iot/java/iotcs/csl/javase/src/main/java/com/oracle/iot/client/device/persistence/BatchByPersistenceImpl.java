@@ -26,7 +26,7 @@ public class BatchByPersistenceImpl extends BatchByPersistence {
     public BatchByPersistenceImpl(MessagePersistence messagePersistence) {
         super();
         this.messageCollection = new ArrayList<Message>(1);
-        this.delegate = (MessagePersistenceImpl)messagePersistence;
+        this.delegate = (MessageTables)messagePersistence;
 
         if (!this.delegate.tableExists("BATCH_BY")) {
             this.delegate.createTable("BATCH_BY");
@@ -61,6 +61,6 @@ public class BatchByPersistenceImpl extends BatchByPersistence {
         return this.delegate.load("BATCH_BY", endpointId);
     }
 
-    private final MessagePersistenceImpl delegate;
+    private final MessageTables delegate;
     private final Collection<Message> messageCollection;
 }
@@ -0,0 +1,350 @@
+/*
+ * Copyright (c) 2018, Oracle and/or its affiliates.  All rights reserved.
+ *
+ * This software is dual-licensed to you under the MIT License (MIT) and
+ * the Universal Permissive License (UPL).  See the LICENSE file in the root
+ * directory for license terms.  You may choose either license, or both.
+ */
+
+package com.oracle.iot.client.device.persistence;
+
+import com.oracle.iot.client.message.Message;
+
+import java.io.ByteArrayInputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.sql.DataSource;
+
+/**
+ * The {@link PersistenceMetaData#MESSAGE_ENGINE_JDBC_BATCHED} engine behind
+ * {@link MessagePersistenceImpl}.
+ * <p>
+ * Saves and deletes are queued, and the first thread to find no commit in
+ * progress writes every queued operation in one transaction on one
+ * connection. Each statement is prepared once for that transaction and
+ * closed with it. Inserts are sent with {@code executeBatch}. Deletes use
+ * {@code WHERE UUID IN (...)}.
+ * Callers block until their operation has been committed, the same as
+ * with the default engine.
+ */
+final class BatchingMessageStore {
+
+    // The number of parameters in each DELETE ... WHERE UUID IN (...)
+    // statement. A partial chunk is padded by repeating the last UUID.
+    private static final int[] DELETE_CHUNK_SIZES = { 64, 8, 1 };
+
+    private final DataSource dataSource;
+
+    // Operations waiting to be committed, and whether a thread is
+    // committing. Guarded by the lock on pending.
+    private final LinkedList<Operation> pending = new LinkedList<Operation>();
+    private boolean committing;
+
+    BatchingMessageStore(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    void save(String tableName, Collection<Message> messages, String endpointId) {
+        if (messages == null || messages.isEmpty()) {
+            return;
+        }
+        execute(new Operation(true, tableName, messages, endpointId));
+    }
+
+    void delete(String tableName, Collection<Message> messages) {
+        if (messages == null || messages.isEmpty()) {
+            return;
+        }
+        execute(new Operation(false, tableName, messages, null));
+    }
+
+    List<Message> load(String tableName, String endpointId) {
+        Connection connection = null;
+        PreparedStatement ps = null;
+        ResultSet resultSet = null;
+        try {
+            connection = openConnection();
+            ps = connection.prepareStatement(
+                    "SELECT * FROM " + tableName + " WHERE ENDPOINT_ID = ? ORDER BY timestamp");
+            ps.setString(1, endpointId);
+            resultSet = ps.executeQuery();
+            return MessagePersistenceImpl.readMessages(resultSet);
+        } catch (SQLException e) {
+            getLogger().log(Level.WARNING, "SQL exception during loading messages from database.", e);
+        } finally {
+            if (resultSet != null) {
+                try {
+                    resultSet.close();
+                } catch (SQLException ignored) {}
+            }
+            if (ps != null) {
+                try {
+                    ps.close();
+                } catch (SQLException ignored) {}
+            }
+            close(connection);
+        }
+        return Collections.emptyList();
+    }
+
+    List<Message> loadPage(String tableName, String endpointId,
+                           long afterEventTime, String afterClientId, int limit) {
+        Connection connection = null;
+        PreparedStatement ps = null;
+        ResultSet resultSet = null;
+        try {
+            connection = openConnection();
+            ps = connection.prepareStatement(
+                    MessagePersistenceImpl.pageStatement(tableName, afterClientId == null));
+            resultSet = MessagePersistenceImpl.executePageQuery(ps, endpointId, afterEventTime, afterClientId, limit);
+            return MessagePersistenceImpl.readMessages(resultSet);
+        } catch (SQLException e) {
+            getLogger().log(Level.WARNING, "SQL exception during loading messages from database.", e);
+        } finally {
+            if (resultSet != null) {
+                try {
+                    resultSet.close();
+                } catch (SQLException ignored) {}
+            }
+            if (ps != null) {
+                try {
+                    ps.close();
+                } catch (SQLException ignored) {}
+            }
+            close(connection);
+        }
+        return Collections.emptyList();
+    }
+
+    /*
+     * Queue the operation and wait for it to be committed. If no other
+     * thread is committing, this thread commits everything that is queued.
+     */
+    private void execute(Operation operation) {
+        List<Operation> group = null;
+        boolean interrupted = false;
+        synchronized (pending) {
+            pending.add(operation);
+            while (!operation.done) {
+                if (!committing) {
+                    committing = true;
+                    group = new ArrayList<Operation>(pending);
+                    pending.clear();
+                    break;
+                }
+                try {
+                    pending.wait();
+                } catch (InterruptedException e) {
+                    // The caller expects the operation to be complete
+                    // on return, so keep waiting.
+                    interrupted = true;
+                }
+            }
+        }
+
+        if (group != null) {
+            try {
+                commit(group);
+            } finally {
+                synchronized (pending) {
+                    for (Operation op : group) {
+                        op.done = true;
+                    }
+                    committing = false;
+                    pending.notifyAll();
+                }
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void commit(List<Operation> group) {
+        Connection connection = null;
+        // Statements by SQL, prepared on this connection for this group.
+        final Map<String, PreparedStatement> statements = new HashMap<String, PreparedStatement>();
+        try {
+            connection = openConnection();
+            connection.setAutoCommit(false);
+            if (!commit(connection, statements, group) && group.size() > 1) {
+                // Don't let one bad operation fail the others.
+                for (Operation operation : group) {
+                    commit(connection, statements, Collections.singletonList(operation));
+                }
+            }
+        } catch (SQLException e) {
+            getLogger().log(Level.WARNING, "SQL exception during saving or deleting messages.", e);
+        } finally {
+            for (PreparedStatement ps : statements.values()) {
+                try {
+                    ps.close();
+                } catch (SQLException ignored) {}
+            }
+            if (connection != null) {
+                try {
+                    connection.setAutoCommit(true);
+                } catch (SQLException e) {
+                    getLogger().log(Level.FINE, "Cannot restore auto-commit.", e);
+                }
+            }
+            close(connection);
+        }
+    }
+
+    /*
+     * Returns false if the transaction was rolled back.
+     */
+    private boolean commit(Connection connection, Map<String, PreparedStatement> statements,
+                           List<Operation> group) {
+        try {
+            for (Operation operation : group) {
+                if (operation.isSave()) {
+                    insert(connection, statements, operation);
+                } else {
+                    delete(connection, statements, operation);
+                }
+            }
+            connection.commit();
+            return true;
+        } catch (SQLException e) {
+            // If there is more than one operation, each is retried on its own
+            // and any failure is logged then.
+            getLogger().log(group.size() > 1 ? Level.FINE : Level.WARNING,
+                    group.size() == 1 && !group.get(0).isSave()
+                    ? "SQL exception during deleting messages from database."
+                    : "SQL exception during saving messages to database.", e);
+            try {
+                connection.rollback();
+            } catch (SQLException e1) {
+                getLogger().log(Level.WARNING, "Cannot rollback transaction.", e1);
+            }
+            return false;
+        }
+    }
+
+    private void insert(Connection connection, Map<String, PreparedStatement> statements,
+                        Operation operation) throws SQLException {
+        final PreparedStatement ps = prepare(connection, statements,
+                "INSERT INTO " + operation.tableName + " VALUES (?, ?, ?, ?)");
+        for (Message message : operation.messages) {
+            if (message == null) {
+                continue;
+            }
+
+            final byte[] blob = MessageCodec.encode(message);
+
+            ps.setLong(1, message.getEventTime());
+            ps.setString(2, message.getClientId());
+            ps.setString(3, operation.endpointId);
+            ps.setBlob(4, new ByteArrayInputStream(blob));
+            ps.addBatch();
+        }
+        ps.executeBatch();
+    }
+
+    private void delete(Connection connection, Map<String, PreparedStatement> statements,
+                        Operation operation) throws SQLException {
+        final List<String> uuids = new ArrayList<String>(operation.messages.size());
+        for (Message message : operation.messages) {
+            if (message != null) {
+                uuids.add(message.getClientId());
+            }
+        }
+
+        int index = 0;
+        while (index < uuids.size()) {
+            final int remaining = uuids.size() - index;
+            int chunkSize = DELETE_CHUNK_SIZES[0];
+            for (int size : DELETE_CHUNK_SIZES) {
+                if (size >= remaining) {
+                    chunkSize = size;
+                }
+            }
+            final PreparedStatement ps = prepare(connection, statements,
+                    deleteStatement(operation.tableName, chunkSize));
+            for (int n = 0; n < chunkSize; n++) {
+                ps.setString(n + 1, uuids.get(Math.min(index + n, uuids.size() - 1)));
+            }
+            ps.executeUpdate();
+            index += chunkSize;
+        }
+    }
+
+    private static String deleteStatement(String tableName, int parameterCount) {
+        final StringBuilder sql = new StringBuilder("DELETE FROM ")
+                .append(tableName)
+                .append(" WHERE uuid IN (?");
+        for (int n = 1; n < parameterCount; n++) {
+            sql.append(", ?");
+        }
+        return sql.append(')').toString();
+    }
+
+    /*
+     * Get the statement for the SQL from statements, preparing it
+     * on the connection the first time.
+     */
+    private static PreparedStatement prepare(Connection connection, Map<String, PreparedStatement> statements,
+                                             String sql) throws SQLException {
+        PreparedStatement ps = statements.get(sql);
+        if (ps == null) {
+            ps = connection.prepareStatement(sql);
+            statements.put(sql, ps);
+        }
+        return ps;
+    }
+
+    private Connection openConnection() throws SQLException {
+        final Connection connection = dataSource.getConnection();
+        connection.setTransactionIsolation(PersistenceMetaData.getIsolationLevel(connection));
+        return connection;
+    }
+
+    private static void close(Connection connection) {
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                getLogger().log(Level.FINE, "Cannot close connection.", e);
+            }
+        }
+    }
+
+    /*
+     * A save or a delete of some messages.
+     */
+    private static final class Operation {
+        private final boolean save;
+        private final String tableName;
+        private final Collection<Message> messages;
+        private final String endpointId;
+        private boolean done;
+
+        private Operation(boolean save, String tableName, Collection<Message> messages, String endpointId) {
+            this.save = save;
+            this.tableName = tableName;
+            this.messages = messages;
+            this.endpointId = endpointId;
+        }
+
+        private boolean isSave() {
+            return save;
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger("oracle.iot.client");
+    private static Logger getLogger() { return LOGGER; }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) 2018, Oracle and/or its affiliates.  All rights reserved.
+ *
+ * This software is dual-licensed to you under the MIT License (MIT) and
+ * the Universal Permissive License (UPL).  See the LICENSE file in the root
+ * directory for license terms.  You may choose either license, or both.
+ */
+
+package com.oracle.iot.client.device.persistence;
+
+import com.oracle.iot.client.message.Message;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Support for persisting messages for guaranteed delivery in append-only,
+ * memory-mapped journal files instead of a database. This implementation
+ * is used when {@link PersistenceMetaData#getMessageEngine()} is
+ * {@link PersistenceMetaData#MESSAGE_ENGINE_JOURNAL}.
+ * <p>
+ * Each table has its own {@link MessageJournal} in a directory named for
+ * the table, under {@code <db_name>_journal} in the
+ * {@link PersistenceMetaData#getLocalStorageDirectory() local storage directory}.
+ * A daemon thread compacts the journals in the background.
+ * <p>
+ * The size of a journal segment file defaults to 4 MB and can be set with
+ * the property {@code com.oracle.iot.client.device.persistence.journal_segment_size}.
+ */
+public class JournalMessagePersistence extends MessagePersistence implements MessageTables {
+
+    private static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+    private static final int SEGMENT_SIZE =
+            Integer.getInteger("com.oracle.iot.client.device.persistence.journal_segment_size",
+                    DEFAULT_SEGMENT_SIZE);
+
+    // How often the compaction thread checks the journals, in milliseconds.
+    private static final long COMPACTION_INTERVAL = 30000L;
+
+    private final File directory;
+
+    // Journals by table name. Guarded by the lock on journals.
+    private final Map<String, MessageJournal> journals = new HashMap<String, MessageJournal>();
+
+    private final Object compactionLock = new Object();
+    private boolean compactionRequested;
+
+    /**
+     * Create a journal-backed implementation of MessagePersistence.
+     * @param context an application context, typically a {@code android.content.Context}, or {@code null}
+     */
+    public JournalMessagePersistence(Object context) {
+        super();
+        this.directory = new File(PersistenceMetaData.getLocalStorageDirectory(),
+                PersistenceMetaData.getDBName() + "_journal");
+
+        if (PersistenceMetaData.isPersistenceEnabled()) {
+            final Thread compactor = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    compactJournals();
+                }
+            }, "MessageJournalCompactor");
+            compactor.setDaemon(true);
+            compactor.start();
+        }
+    }
+
+    @Override
+    public void save(Collection<Message> messages, String endpointId) {
+        save("MESSAGES", messages, endpointId);
+    }
+
+    @Override
+    public void delete(Collection<Message> messages) {
+        delete("MESSAGES", messages);
+    }
+
+    @Override
+    public List<Message> load(String endpointId) {
+        return load("MESSAGES", endpointId);
+    }
+
+    @Override
+    protected List<Message> loadPage(String endpointId, long afterEventTime, String afterClientId, int limit) {
+        if (!PersistenceMetaData.isPersistenceEnabled()) {
+            return Collections.emptyList();
+        }
+        final MessageJournal journal = getJournal("MESSAGES");
+        if (journal != null) {
+            try {
+                return journal.loadPage(endpointId, afterEventTime, afterClientId, limit);
+            } catch (IOException e) {
+                getLogger().log(Level.WARNING, "I/O exception during loading messages from journal.", e);
+            }
+        }
+        return Collections.emptyList();
+    }
+
+    @Override
+    public boolean tableExists(String tableName) {
+        return new File(directory, tableName.toUpperCase(Locale.ROOT)).isDirectory();
+    }
+
+    @Override
+    public void createTable(String tableName) {
+        getJournal(tableName);
+    }
+
+    @Override
+    public void save(String tableName, Collection<Message> messages, String endpointId) {
+        if (!PersistenceMetaData.isPersistenceEnabled() || messages == null || messages.isEmpty()) {
+            return;
+        }
+        if (endpointId == null) {
+            getLogger().log(Level.WARNING, "Cannot save messages without an endpoint id.");
+            return;
+        }
+        final MessageJournal journal = getJournal(tableName);
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.save(messages, endpointId);
+        } catch (IOException e) {
+            getLogger().log(Level.WARNING, "I/O exception during saving messages to journal.", e);
+        }
+    }
+
+    @Override
+    public void delete(String tableName, Collection<Message> messages) {
+        if (!PersistenceMetaData.isPersistenceEnabled() || messages == null || messages.isEmpty()) {
+            return;
+        }
+        final MessageJournal journal = getJournal(tableName);
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.delete(messages);
+        } catch (IOException e) {
+            getLogger().log(Level.WARNING, "I/O exception during deleting messages from journal.", e);
+        }
+        synchronized (compactionLock) {
+            compactionRequested = true;
+            compactionLock.notify();
+        }
+    }
+
+    @Override
+    public List<Message> load(String tableName, String endpointId) {
+        if (!PersistenceMetaData.isPersistenceEnabled()) {
+            return null;
+        }
+        final MessageJournal journal = getJournal(tableName);
+        if (journal != null) {
+            try {
+                return journal.load(endpointId);
+            } catch (IOException e) {
+                getLogger().log(Level.WARNING, "I/O exception during loading messages from journal.", e);
+            }
+        }
+        return Collections.emptyList();
+    }
+
+    /*
+     * Open the journal for the table the first time it is needed.
+     * Returns null if it can't be opened.
+     */
+    private MessageJournal getJournal(String tableName) {
+        final String name = tableName.toUpperCase(Locale.ROOT);
+        synchronized (journals) {
+            MessageJournal journal = journals.get(name);
+            if (journal == null) {
+                try {
+                    journal = new MessageJournal(new File(directory, name), SEGMENT_SIZE);
+                    journals.put(name, journal);
+                } catch (IOException e) {
+                    getLogger().log(Level.WARNING, "I/O exception during opening journal for " + name + ".", e);
+                }
+            }
+            return journal;
+        }
+    }
+
+    /*
+     * Body of the compaction thread. Compaction runs after deletes, but
+     * no more often than COMPACTION_INTERVAL.
+     */
+    private void compactJournals() {
+        while (true) {
+            synchronized (compactionLock) {
+                try {
+                    compactionLock.wait(COMPACTION_INTERVAL);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (!compactionRequested) {
+                    continue;
+                }
+                compactionRequested = false;
+            }
+
+            final List<MessageJournal> list;
+            synchronized (journals) {
+                list = new ArrayList<MessageJournal>(journals.values());
+            }
+            for (MessageJournal journal : list) {
+                try {
+                    final int removed = journal.compact();
+                    if (removed > 0 && getLogger().isLoggable(Level.FINEST)) {
+                        getLogger().log(Level.FINEST, "Compacted " + removed + " journal segments.");
+                    }
+                } catch (IOException e) {
+                    getLogger().log(Level.WARNING, "I/O exception during compacting journal.", e);
+                }
+            }
+
+            try {
+                Thread.sleep(COMPACTION_INTERVAL);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger("oracle.iot.client");
+    private static Logger getLogger() { return LOGGER; }
+}
@@ -0,0 +1,740 @@
+/*
+ * Copyright (c) 2018, Oracle and/or its affiliates.  All rights reserved.
+ *
+ * This software is dual-licensed to you under the MIT License (MIT) and
+ * the Universal Permissive License (UPL).  See the LICENSE file in the root
+ * directory for license terms.  You may choose either license, or both.
+ */
+
+package com.oracle.iot.client.device.persistence;
+
+import com.oracle.iot.client.message.AlertMessage;
+import com.oracle.iot.client.message.DataItem;
+import com.oracle.iot.client.message.DataMessage;
+import com.oracle.iot.client.message.Message;
+import com.oracle.iot.client.message.MessageParsingException;
+import com.oracle.iot.client.message.MessageProperties;
+import com.oracle.iot.client.message.RequestMessage;
+import com.oracle.iot.client.message.Resource;
+import com.oracle.iot.client.message.ResourceMessage;
+import com.oracle.iot.client.message.ResponseMessage;
+import com.oracle.iot.client.message.StatusCode;
+
+import java.math.BigDecimal;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes a {@link Message} to the bytes that are persisted for it, and
+ * decodes them again.
+ * <p>
+ * Messages are written in a binary format unless
+ * {@link PersistenceMetaData#getMessageFormat()} is
+ * {@link PersistenceMetaData#MESSAGE_FORMAT_JSON}. Either way, {@link #decode}
+ * reads both formats, so rows written as JSON by earlier versions of the
+ * library can still be loaded. Binary data starts with {@link #MAGIC}, a
+ * byte that never occurs in UTF-8, followed by a version byte.
+ * <p>
+ * In version 1, integers are unsigned LEB128 varints, or zig-zag varints if
+ * they may be negative. Times after the event time are written as the
+ * difference from it. A string is written as a varint {@code n}:
+ * <ul>
+ *     <li>{@code 0} for {@code null},</li>
+ *     <li>an odd {@code n} for a reference to entry {@code n >>> 1} of the
+ *     dictionary,</li>
+ *     <li>an even {@code n} for {@code (n >>> 1) - 1} UTF-8 bytes, which are
+ *     then added to the dictionary.</li>
+ * </ul>
+ * The dictionary starts with {@link #STATIC_DICTIONARY}, so enum names and
+ * common attribute names take one byte, and a string that is repeated in a
+ * message, such as an endpoint id, is only written once. A format URN is
+ * written as two strings, split at its last colon, so that suffixes such
+ * as {@code ":attributes"} come from the dictionary. Data item values keep
+ * their type, and a double with an integral value is written as a varint.
+ */
+final class MessageCodec {
+
+    /**
+     * The first byte of a binary encoded message. 0xC0 is not valid
+     * anywhere in UTF-8, so it can't be the start of a JSON row.
+     */
+    static final byte MAGIC = (byte) 0xC0;
+
+    /**
+     * The version of the binary format that is written.
+     */
+    static final byte VERSION = 1;
+
+    /*
+     * Strings that every encoding starts with in its dictionary. The index
+     * of an entry is part of the format, so entries may only be appended,
+     * and only with a new VERSION.
+     */
+    private static final String[] STATIC_DICTIONARY = {
+            "",
+            // Message.Priority
+            "LOWEST", "LOW", "MEDIUM", "HIGH", "HIGHEST",
+            // Message.Reliability
+            "NO_GUARANTEE", "BEST_EFFORT", "GUARANTEED_DELIVERY",
+            // Message.Direction
+            "FROM_DEVICE", "TO_DEVICE",
+            // AlertMessage.Severity, less LOW
+            "NORMAL", "SIGNIFICANT", "CRITICAL",
+            // ResourceMessage.Type, Resource.Status and Resource.Method
+            "UPDATE", "DELETE", "RECONCILIATION", "ADDED", "REMOVED",
+            "GET", "POST", "PUT", "PATCH",
+            // Format suffixes, diagnostics, headers and request methods
+            ":attributes", Message.DIAG_CREATED_TIME, Message.DIAG_CLIENT_ADDRESS,
+            "content-type", "application/json", "get", "post", "put", "delete",
+    };
+
+    private static final Map<String, Integer> STATIC_INDEX;
+    static {
+        STATIC_INDEX = new HashMap<String, Integer>();
+        for (int n = STATIC_DICTIONARY.length - 1; n >= 0; n--) {
+            STATIC_INDEX.put(STATIC_DICTIONARY[n], n);
+        }
+    }
+
+    // Message types.
+    private static final int TYPE_DATA = 1;
+    private static final int TYPE_ALERT = 2;
+    private static final int TYPE_REQUEST = 3;
+    private static final int TYPE_RESPONSE = 4;
+    private static final int TYPE_RESOURCE = 5;
+
+    // Bits of the flags that follow the event time.
+    private static final int HAS_RECEIVED_TIME = 0x1;
+    private static final int HAS_SENT_TIME = 0x2;
+    private static final int HAS_DIAGNOSTICS = 0x4;
+
+    // Value tags of data items and diagnostics.
+    private static final int VALUE_STRING = 0;
+    private static final int VALUE_TRUE = 1;
+    private static final int VALUE_FALSE = 2;
+    private static final int VALUE_INTEGRAL_DOUBLE = 3;
+    private static final int VALUE_DOUBLE = 4;
+    private static final int VALUE_INTEGER = 5;
+    private static final int VALUE_LONG = 6;
+    private static final int VALUE_FLOAT = 7;
+    private static final int VALUE_DECIMAL = 8;
+
+    private static final long NEGATIVE_ZERO_BITS = Double.doubleToRawLongBits(-0.0d);
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final boolean WRITE_JSON =
+            PersistenceMetaData.MESSAGE_FORMAT_JSON.equals(PersistenceMetaData.getMessageFormat());
+
+    /**
+     * Get the bytes to persist for the message.
+     * @param message the message to encode
+     * @return the encoded message
+     */
+    static byte[] encode(Message message) {
+        if (WRITE_JSON) {
+            return message.toJson().toString().getBytes(UTF_8);
+        }
+        return new Encoder().encode(message);
+    }
+
+    /**
+     * Get the message from persisted bytes, which may be binary or JSON.
+     * @param bytes the bytes from {@link #encode}
+     * @return the message, or {@code null} if JSON bytes hold no message
+     * @throws MessageParsingException if the bytes cannot be decoded
+     */
+    static Message decode(byte[] bytes) {
+        if (bytes == null) {
+            throw new MessageParsingException("message.byteArray.null");
+        }
+        if (bytes.length == 0 || bytes[0] != MAGIC) {
+            final List<Message> list = Message.fromJson(bytes);
+            return list.isEmpty() ? null : list.get(0);
+        }
+        try {
+            return new Decoder(bytes).decode();
+        } catch (MessageParsingException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            // Truncated data, or a value the builders reject.
+            throw new MessageParsingException("message.parsing.unknown", e);
+        }
+    }
+
+    private static final class Encoder {
+
+        private byte[] buf = new byte[256];
+        private int count;
+
+        // Strings written in this message, by dictionary index.
+        private final Map<String, Integer> dictionary = new HashMap<String, Integer>();
+
+        byte[] encode(Message message) {
+            writeByte(MAGIC);
+            writeByte(VERSION);
+            switch (message.getType()) {
+                case DATA:
+                    writeByte(TYPE_DATA);
+                    writeCommon(message);
+                    final DataMessage dataMessage = (DataMessage) message;
+                    writeFormat(dataMessage.getFormat());
+                    writeItems(dataMessage.getDataItems());
+                    break;
+                case ALERT:
+                    writeByte(TYPE_ALERT);
+                    writeCommon(message);
+                    final AlertMessage alertMessage = (AlertMessage) message;
+                    writeFormat(alertMessage.getFormat());
+                    writeString(alertMessage.getDescription());
+                    writeString(alertMessage.getSeverity().name());
+                    writeItems(alertMessage.getDataItems());
+                    break;
+                case REQUEST:
+                    writeByte(TYPE_REQUEST);
+                    writeCommon(message);
+                    final RequestMessage requestMessage = (RequestMessage) message;
+                    writeString(requestMessage.getMethod());
+                    writeString(requestMessage.getURL());
+                    writeHeaders(requestMessage.getHeaders());
+                    final Map<String, String> params = requestMessage.getParams();
+                    writeVarLong(params.size());
+                    for (Map.Entry<String, String> param : params.entrySet()) {
+                        writeString(param.getKey());
+                        writeString(param.getValue());
+                    }
+                    writeBytes(requestMessage.getBody());
+                    break;
+                case RESPONSE:
+                    writeByte(TYPE_RESPONSE);
+                    writeCommon(message);
+                    final ResponseMessage responseMessage = (ResponseMessage) message;
+                    writeSignedVarLong(responseMessage.getStatusCode().getCode());
+                    writeString(responseMessage.getURL());
+                    writeString(responseMessage.getRequestId());
+                    writeHeaders(responseMessage.getHeaders());
+                    writeBytes(responseMessage.getBody());
+                    break;
+                case RESOURCE:
+                    writeByte(TYPE_RESOURCE);
+                    writeCommon(message);
+                    writeResources((ResourceMessage) message);
+                    break;
+                default:
+                    throw new MessageParsingException("message.type.wrong");
+            }
+            return Arrays.copyOf(buf, count);
+        }
+
+        private void writeCommon(Message message) {
+            writeString(message.getId());
+            writeString(message.getClientId());
+            writeString(message.getSource());
+            writeString(message.getDestination());
+            writeString(message.getSender());
+            writeString(message.getPriority().name());
+            writeString(message.getReliability().name());
+            writeString(message.getDirection() != null ? message.getDirection().name() : null);
+
+            final long eventTime = message.getEventTime();
+            final Long receivedTime = message.getReceivedTime();
+            final Long sentTime = message.getSentTime();
+            final Map<String, Object> diagnostics = message.getDiagnostics();
+            writeSignedVarLong(eventTime);
+            writeByte((receivedTime != null ? HAS_RECEIVED_TIME : 0)
+                    | (sentTime != null ? HAS_SENT_TIME : 0)
+                    | (diagnostics != null ? HAS_DIAGNOSTICS : 0));
+            if (receivedTime != null) {
+                writeSignedVarLong(receivedTime - eventTime);
+            }
+            if (sentTime != null) {
+                writeSignedVarLong(sentTime - eventTime);
+            }
+
+            final Map<String, List<String>> properties = message.getProperties().getAllProperties();
+            writeVarLong(properties.size());
+            for (Map.Entry<String, List<String>> property : properties.entrySet()) {
+                writeString(property.getKey());
+                writeStrings(property.getValue());
+            }
+
+            if (diagnostics != null) {
+                writeVarLong(diagnostics.size());
+                for (Map.Entry<String, Object> diagnostic : diagnostics.entrySet()) {
+                    writeString(diagnostic.getKey());
+                    writeDiagnosticValue(diagnostic.getValue());
+                }
+            }
+        }
+
+        private void writeDiagnosticValue(Object value) {
+            if (value instanceof Boolean) {
+                writeByte((Boolean) value ? VALUE_TRUE : VALUE_FALSE);
+            } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+                writeByte(VALUE_INTEGER);
+                writeSignedVarLong(((Number) value).intValue());
+            } else if (value instanceof Long) {
+                writeByte(VALUE_LONG);
+                writeSignedVarLong((Long) value);
+            } else if (value instanceof Double) {
+                writeByte(VALUE_DOUBLE);
+                writeFixedLong(Double.doubleToRawLongBits((Double) value));
+            } else if (value instanceof Float) {
+                writeByte(VALUE_FLOAT);
+                writeFixedLong(Float.floatToRawIntBits((Float) value));
+            } else if (value instanceof Number) {
+                writeByte(VALUE_DECIMAL);
+                writeString(value.toString());
+            } else {
+                // Message.MessageBuilder.fromJson treats anything else as a string.
+                writeByte(VALUE_STRING);
+                writeString(value != null ? value.toString() : null);
+            }
+        }
+
+        private void writeItems(List<DataItem<?>> items) {
+            writeVarLong(items.size());
+            for (DataItem<?> item : items) {
+                writeString(item.getKey());
+                final Object value = item.getValue();
+                switch (item.getType()) {
+                    case BOOLEAN:
+                        writeByte((Boolean) value ? VALUE_TRUE : VALUE_FALSE);
+                        break;
+                    case DOUBLE:
+                        final double d = (Double) value;
+                        final long l = (long) d;
+                        if (l == d && Double.doubleToRawLongBits(d) != NEGATIVE_ZERO_BITS) {
+                            writeByte(VALUE_INTEGRAL_DOUBLE);
+                            writeSignedVarLong(l);
+                        } else {
+                            writeByte(VALUE_DOUBLE);
+                            writeFixedLong(Double.doubleToRawLongBits(d));
+                        }
+                        break;
+                    case STRING:
+                    default:
+                        writeByte(VALUE_STRING);
+                        writeString((String) value);
+                        break;
+                }
+            }
+        }
+
+        private void writeHeaders(Map<String, List<String>> headers) {
+            writeVarLong(headers.size());
+            for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+                writeString(header.getKey());
+                writeStrings(header.getValue());
+            }
+        }
+
+        private void writeResources(ResourceMessage message) {
+            writeString(message.getMessageType().name());
+            writeString(message.getEndpointName());
+            writeString(message.getReconciliationMark());
+            final List<Resource> resources = message.getResources();
+            writeVarLong(resources.size());
+            for (Resource resource : resources) {
+                writeString(resource.getEndpointName());
+                writeString(resource.getName());
+                writeString(resource.getPath());
+                writeString(resource.getStatus() != null ? resource.getStatus().name() : null);
+                final List<Resource.Method> methods = resource.getMethods();
+                if (methods == null) {
+                    writeVarLong(0);
+                } else {
+                    writeVarLong(methods.size() + 1);
+                    for (Resource.Method method : methods) {
+                        writeString(method.name());
+                    }
+                }
+            }
+        }
+
+        private void writeFormat(String format) {
+            final int colon = format != null ? format.lastIndexOf(':') : -1;
+            if (colon < 0) {
+                writeString(format);
+                writeString(null);
+            } else {
+                writeString(format.substring(0, colon));
+                writeString(format.substring(colon));
+            }
+        }
+
+        private void writeStrings(List<String> values) {
+            writeVarLong(values.size());
+            for (String value : values) {
+                writeString(value);
+            }
+        }
+
+        private void writeString(String value) {
+            if (value == null) {
+                writeVarLong(0);
+                return;
+            }
+            Integer index = STATIC_INDEX.get(value);
+            if (index == null) {
+                index = dictionary.get(value);
+            }
+            if (index != null) {
+                writeVarLong(((long) index << 1) | 1);
+                return;
+            }
+            dictionary.put(value, STATIC_DICTIONARY.length + dictionary.size());
+            final byte[] bytes = value.getBytes(UTF_8);
+            writeVarLong((bytes.length + 1L) << 1);
+            write(bytes);
+        }
+
+        private void writeBytes(byte[] bytes) {
+            writeVarLong(bytes.length);
+            write(bytes);
+        }
+
+        private void writeSignedVarLong(long value) {
+            writeVarLong((value << 1) ^ (value >> 63));
+        }
+
+        private void writeVarLong(long value) {
+            ensureCapacity(10);
+            while ((value & ~0x7FL) != 0) {
+                buf[count++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buf[count++] = (byte) value;
+        }
+
+        private void writeFixedLong(long value) {
+            ensureCapacity(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                buf[count++] = (byte) (value >>> shift);
+            }
+        }
+
+        private void writeByte(int value) {
+            ensureCapacity(1);
+            buf[count++] = (byte) value;
+        }
+
+        private void write(byte[] bytes) {
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, buf, count, bytes.length);
+            count += bytes.length;
+        }
+
+        private void ensureCapacity(int n) {
+            if (count + n > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length << 1, count + n));
+            }
+        }
+    }
+
+    private static final class Decoder {
+
+        private final byte[] buf;
+        private int pos;
+
+        // Strings read from this message, after the static dictionary.
+        private final List<String> dictionary = new ArrayList<String>();
+
+        Decoder(byte[] buf) {
+            this.buf = buf;
+        }
+
+        Message decode() {
+            pos = 1;
+            final int version = readByte();
+            if (version < 1 || version > VERSION) {
+                throw new MessageParsingException("message.parsing.unknown");
+            }
+            final int type = readByte();
+            switch (type) {
+                case TYPE_DATA: {
+                    final DataMessage.Builder builder = new DataMessage.Builder();
+                    readCommon(builder);
+                    builder.format(readFormat());
+                    builder.dataItems(readItems());
+                    return builder.build();
+                }
+                case TYPE_ALERT: {
+                    final AlertMessage.Builder builder = new AlertMessage.Builder();
+                    readCommon(builder);
+                    builder.format(readFormat());
+                    builder.description(readString());
+                    builder.severity(AlertMessage.Severity.valueOf(readString()));
+                    builder.dataItems(readItems());
+                    return builder.build();
+                }
+                case TYPE_REQUEST: {
+                    final RequestMessage.Builder builder = new RequestMessage.Builder();
+                    readCommon(builder);
+                    builder.method(readString());
+                    builder.url(readString());
+                    for (int n = readCount(); n > 0; n--) {
+                        builder.header(readString(), readStrings());
+                    }
+                    for (int n = readCount(); n > 0; n--) {
+                        builder.param(readString(), readString());
+                    }
+                    builder.body(readBytes());
+                    return builder.build();
+                }
+                case TYPE_RESPONSE: {
+                    final ResponseMessage.Builder builder = new ResponseMessage.Builder();
+                    readCommon(builder);
+                    builder.statusCode(StatusCode.valueOf((int) readSignedVarLong()));
+                    builder.url(readString());
+                    builder.requestId(readString());
+                    for (int n = readCount(); n > 0; n--) {
+                        builder.header(readString(), readStrings());
+                    }
+                    builder.body(readBytes());
+                    return builder.build();
+                }
+                case TYPE_RESOURCE: {
+                    final ResourceMessage.Builder builder = new ResourceMessage.Builder();
+                    readCommon(builder);
+                    readResources(builder);
+                    return builder.build();
+                }
+                default:
+                    throw new MessageParsingException("message.type.wrong");
+            }
+        }
+
+        private void readCommon(Message.MessageBuilder<?> builder) {
+            builder.id(readString());
+            builder.clientId(readString());
+            builder.source(readString());
+            builder.destination(readString());
+            builder.sender(readString());
+            builder.priority(Message.Priority.valueOf(readString()));
+            builder.reliability(Message.Reliability.valueOf(readString()));
+            final String direction = readString();
+            if (direction != null) {
+                builder.direction(Message.Direction.valueOf(direction));
+            }
+
+            final long eventTime = readSignedVarLong();
+            builder.eventTime(eventTime);
+            final int flags = readByte();
+            if ((flags & HAS_RECEIVED_TIME) != 0) {
+                builder.receivedTime(eventTime + readSignedVarLong());
+            }
+            if ((flags & HAS_SENT_TIME) != 0) {
+                builder.sentTime(eventTime + readSignedVarLong());
+            }
+
+            final MessageProperties.Builder properties = new MessageProperties.Builder();
+            for (int n = readCount(); n > 0; n--) {
+                properties.addValues(readString(), readStrings());
+            }
+            builder.properties(properties.build());
+
+            if ((flags & HAS_DIAGNOSTICS) != 0) {
+                for (int n = readCount(); n > 0; n--) {
+                    final String name = readString();
+                    builder.diagnostic(name, readDiagnosticValue());
+                }
+            }
+        }
+
+        private Object readDiagnosticValue() {
+            final int tag = readByte();
+            switch (tag) {
+                case VALUE_TRUE:
+                    return Boolean.TRUE;
+                case VALUE_FALSE:
+                    return Boolean.FALSE;
+                case VALUE_INTEGER:
+                    return Integer.valueOf((int) readSignedVarLong());
+                case VALUE_LONG:
+                    return Long.valueOf(readSignedVarLong());
+                case VALUE_DOUBLE:
+                    return Double.valueOf(Double.longBitsToDouble(readFixedLong()));
+                case VALUE_FLOAT:
+                    return Float.valueOf(Float.intBitsToFloat((int) readFixedLong()));
+                case VALUE_DECIMAL:
+                    return new BigDecimal(readString());
+                case VALUE_STRING:
+                    return readString();
+                default:
+                    throw new MessageParsingException("message.parsing.unknown");
+            }
+        }
+
+        private List<DataItem<?>> readItems() {
+            final int size = readCount();
+            final List<DataItem<?>> items = new ArrayList<DataItem<?>>(size);
+            for (int n = 0; n < size; n++) {
+                final String key = readString();
+                final int tag = readByte();
+                switch (tag) {
+                    case VALUE_TRUE:
+                        items.add(new DataItem<Boolean>(key, true));
+                        break;
+                    case VALUE_FALSE:
+                        items.add(new DataItem<Boolean>(key, false));
+                        break;
+                    case VALUE_INTEGRAL_DOUBLE:
+                        items.add(new DataItem<Double>(key, (double) readSignedVarLong()));
+                        break;
+                    case VALUE_DOUBLE:
+                        items.add(new DataItem<Double>(key, Double.longBitsToDouble(readFixedLong())));
+                        break;
+                    case VALUE_STRING:
+                        items.add(new DataItem<String>(key, readString()));
+                        break;
+                    default:
+                        throw new MessageParsingException("message.parsing.unknown");
+                }
+            }
+            return items;
+        }
+
+        private void readResources(ResourceMessage.Builder builder) {
+            final ResourceMessage.Type type = ResourceMessage.Type.valueOf(readString());
+            builder.endpointName(readString());
+            builder.reconciliationMark(readString());
+
+            final int size = readCount();
+            final List<Resource> resources = new ArrayList<Resource>(size);
+            for (int n = 0; n < size; n++) {
+                final Resource.Builder resource = new Resource.Builder()
+                        .endpointName(readString())
+                        .name(readString())
+                        .path(readString());
+                final String status = readString();
+                if (status != null) {
+                    resource.status(Resource.Status.valueOf(status));
+                }
+                // The number of methods plus one, or 0 for null.
+                final long methods = readVarLong();
+                if (methods > 0) {
+                    final int count = checkLength(methods - 1);
+                    final List<Resource.Method> list = new ArrayList<Resource.Method>(count);
+                    for (int m = 0; m < count; m++) {
+                        list.add(Resource.Method.valueOf(readString()));
+                    }
+                    resource.methods(list);
+                }
+                resources.add(resource.build());
+            }
+
+            // The builder methods set the type as they add resources.
+            switch (type) {
+                case DELETE:
+                    builder.delete();
+                    for (Resource resource : resources) {
+                        builder.remove(resource);
+                    }
+                    break;
+                case RECONCILIATION:
+                    builder.resources(resources).reconcile();
+                    break;
+                case UPDATE:
+                default:
+                    builder.resources(resources);
+                    break;
+            }
+        }
+
+        private String readFormat() {
+            final String urn = readString();
+            final String suffix = readString();
+            return suffix == null ? urn : urn + suffix;
+        }
+
+        private List<String> readStrings() {
+            final int size = readCount();
+            if (size == 0) {
+                return Collections.emptyList();
+            }
+            final List<String> values = new ArrayList<String>(size);
+            for (int n = 0; n < size; n++) {
+                values.add(readString());
+            }
+            return values;
+        }
+
+        private String readString() {
+            final long n = readVarLong();
+            if (n == 0) {
+                return null;
+            }
+            if ((n & 1) != 0) {
+                final long index = n >>> 1;
+                if (index < STATIC_DICTIONARY.length) {
+                    return STATIC_DICTIONARY[(int) index];
+                }
+                return dictionary.get((int) (index - STATIC_DICTIONARY.length));
+            }
+            final int length = checkLength((n >>> 1) - 1);
+            final String value = new String(buf, pos, length, UTF_8);
+            pos += length;
+            dictionary.add(value);
+            return value;
+        }
+
+        private byte[] readBytes() {
+            final int length = checkLength(readVarLong());
+            final byte[] bytes = Arrays.copyOfRange(buf, pos, pos + length);
+            pos += length;
+            return bytes;
+        }
+
+        private int readCount() {
+            return checkLength(readVarLong());
+        }
+
+        /*
+         * A length or count can't be more than the bytes that are left.
+         */
+        private int checkLength(long length) {
+            if (length < 0 || length > buf.length - pos) {
+                throw new MessageParsingException("message.parsing.unknown");
+            }
+            return (int) length;
+        }
+
+        private long readSignedVarLong() {
+            final long value = readVarLong();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        private long readVarLong() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                final int b = buf[pos++];
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new MessageParsingException("message.parsing.unknown");
+        }
+
+        private long readFixedLong() {
+            long value = 0;
+            for (int n = 0; n < 8; n++) {
+                value = (value << 8) | (buf[pos++] & 0xFF);
+            }
+            return value;
+        }
+
+        private int readByte() {
+            return buf[pos++] & 0xFF;
+        }
+    }
+
+    /** static methods only, do not allow instantiation */
+    private MessageCodec() {}
+}
@@ -0,0 +1,714 @@
+/*
+ * Copyright (c) 2018, Oracle and/or its affiliates.  All rights reserved.
+ *
+ * This software is dual-licensed to you under the MIT License (MIT) and
+ * the Universal Permissive License (UPL).  See the LICENSE file in the root
+ * directory for license terms.  You may choose either license, or both.
+ */
+
+package com.oracle.iot.client.device.persistence;
+
+import com.oracle.iot.client.message.Message;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of saved and deleted messages, kept in a directory of
+ * segment files. Only the segment being appended to is memory-mapped.
+ * <p>
+ * A segment starts with an 8 byte header, the magic number and version.
+ * Each record that follows is
+ * <pre>
+ *     int   length of the body
+ *     int   CRC-32 of the body
+ *     body
+ * </pre>
+ * and a length of zero marks the end of the records in the segment. The
+ * body of a save record is
+ * <pre>
+ *     byte  SAVE
+ *     long  event time
+ *     long  sequence number
+ *     str   endpoint id
+ *     str   message client id (the UUID)
+ *     int   length of the message bytes
+ *     bytes the message, as encoded by {@link MessageCodec}
+ * </pre>
+ * and the body of a delete record (a tombstone) is
+ * <pre>
+ *     byte  DELETE
+ *     int   number of the segment that holds the save record
+ *     str   message client id
+ * </pre>
+ * where a str is an int length followed by that many UTF-8 bytes.
+ * <p>
+ * The index from client id and endpoint id to the save record is only kept
+ * in memory and is rebuilt from the segments when the journal is opened.
+ * Replay stops at the first record of a segment that is incomplete or
+ * fails its CRC, which is where a crash during an append leaves off.
+ * <p>
+ * {@link #compact()} rewrites the live save records, and the tombstones
+ * that still matter, from sealed segments that are mostly garbage into
+ * the active segment and deletes the old files.
+ * <p>
+ * The methods of this class are synchronized.
+ */
+final class MessageJournal {
+
+    private static final int MAGIC = 0x494F544A; // "IOTJ"
+    private static final int VERSION = 1;
+    private static final int SEGMENT_HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    private static final byte SAVE = 1;
+    private static final byte DELETE = 2;
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File directory;
+    private final int segmentSize;
+
+    // Segments by number, oldest first. The last is the active segment.
+    private final TreeMap<Integer, Segment> segments = new TreeMap<Integer, Segment>();
+    private Segment active;
+    private RandomAccessFile activeFile;
+    private MappedByteBuffer activeBuffer;
+
+    // Save records by message client id, and by endpoint id then client id.
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+    private final Map<String, Map<String, Entry>> endpoints = new HashMap<String, Map<String, Entry>>();
+
+    // Orders messages with the same event time in the order they were saved.
+    private long sequence;
+
+    private ByteBuffer scratch = ByteBuffer.allocate(4096);
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * Open the journal in the directory, creating the directory if needed,
+     * and replay the segments in it.
+     */
+    MessageJournal(File directory, int segmentSize) throws IOException {
+        this.directory = directory;
+        this.segmentSize = Math.max(segmentSize, 64 * 1024);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        recover();
+    }
+
+    /**
+     * Append save records for the messages and force them to disk.
+     */
+    synchronized void save(Collection<Message> messages, String endpointId) throws IOException {
+        boolean appended = false;
+        for (Message message : messages) {
+            if (message == null || message.getClientId() == null) {
+                continue;
+            }
+            final byte[] bytes = MessageCodec.encode(message);
+            final byte[] endpoint = endpointId.getBytes(UTF_8);
+            final byte[] uuid = message.getClientId().getBytes(UTF_8);
+
+            final long seq = sequence++;
+            final ByteBuffer body = body(1 + 8 + 8 + 4 + endpoint.length + 4 + uuid.length + 4 + bytes.length);
+            body.put(SAVE);
+            body.putLong(message.getEventTime());
+            body.putLong(seq);
+            putBytes(body, endpoint);
+            putBytes(body, uuid);
+            putBytes(body, bytes);
+            body.flip();
+
+            final int offset = append(body);
+            index(new Entry(message.getClientId(), endpointId, message.getEventTime(), seq,
+                    active.number, offset, RECORD_HEADER_SIZE + body.limit()));
+            appended = true;
+        }
+        if (appended) {
+            activeBuffer.force();
+        }
+    }
+
+    /**
+     * Append tombstones for the messages that are in the journal
+     * and force them to disk.
+     */
+    synchronized void delete(Collection<Message> messages) throws IOException {
+        boolean appended = false;
+        for (Message message : messages) {
+            if (message == null || message.getClientId() == null) {
+                continue;
+            }
+            final Entry entry = entries.get(message.getClientId());
+            if (entry == null) {
+                continue;
+            }
+            final byte[] uuid = entry.uuid.getBytes(UTF_8);
+            final ByteBuffer body = body(1 + 4 + 4 + uuid.length);
+            body.put(DELETE);
+            body.putInt(entry.segment);
+            putBytes(body, uuid);
+            body.flip();
+
+            append(body);
+            unindex(entry);
+            appended = true;
+        }
+        if (appended) {
+            activeBuffer.force();
+        }
+    }
+
+    /**
+     * Read the messages saved for the endpoint, oldest event time first.
+     */
+    synchronized List<Message> load(String endpointId) throws IOException {
+        final Map<String, Entry> byUuid = endpoints.get(endpointId);
+        if (byUuid == null || byUuid.isEmpty()) {
+            return new ArrayList<Message>();
+        }
+        final List<Entry> list = new ArrayList<Entry>(byUuid.values());
+        Collections.sort(list, ENTRY_ORDER);
+        return read(list);
+    }
+
+    /**
+     * Read up to limit messages saved for the endpoint that come after the
+     * event time and uuid, ordered by event time and then uuid. If the uuid
+     * is null, read from the first message.
+     */
+    synchronized List<Message> loadPage(String endpointId, long afterEventTime, String afterUuid, int limit)
+            throws IOException {
+        final Map<String, Entry> byUuid = endpoints.get(endpointId);
+        if (byUuid == null || byUuid.isEmpty()) {
+            return new ArrayList<Message>();
+        }
+        // Keep the limit smallest entries after the position, largest at the head.
+        final PriorityQueue<Entry> page =
+                new PriorityQueue<Entry>(Math.min(limit, byUuid.size()) + 1, Collections.reverseOrder(PAGE_ORDER));
+        for (Entry entry : byUuid.values()) {
+            if (afterUuid != null && comparePosition(entry, afterEventTime, afterUuid) <= 0) {
+                continue;
+            }
+            if (page.size() < limit) {
+                page.add(entry);
+            } else if (PAGE_ORDER.compare(entry, page.peek()) < 0) {
+                page.poll();
+                page.add(entry);
+            }
+        }
+        final List<Entry> list = new ArrayList<Entry>(page);
+        Collections.sort(list, PAGE_ORDER);
+        return read(list);
+    }
+
+    /*
+     * Read the messages for the entries, in order.
+     */
+    private List<Message> read(List<Entry> list) throws IOException {
+        final List<Message> messages = new ArrayList<Message>(list.size());
+        final Map<Integer, RandomAccessFile> files = new HashMap<Integer, RandomAccessFile>();
+        try {
+            for (Entry entry : list) {
+                RandomAccessFile file = files.get(entry.segment);
+                if (file == null) {
+                    file = new RandomAccessFile(segments.get(entry.segment).file, "r");
+                    files.put(entry.segment, file);
+                }
+                final ByteBuffer body = readBody(file.getChannel(), entry.offset, entry.length);
+                body.position(1 + 8 + 8);
+                skipBytes(body); // endpoint
+                skipBytes(body); // uuid
+                final int length = body.getInt();
+                final byte[] bytes = new byte[length];
+                body.get(bytes);
+                final Message message = MessageCodec.decode(bytes);
+                if (message != null) {
+                    messages.add(message);
+                }
+            }
+        } finally {
+            for (RandomAccessFile file : files.values()) {
+                try {
+                    file.close();
+                } catch (IOException ignored) {}
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * Rewrite sealed segments in which less than half of the bytes belong
+     * to live messages. Returns the number of segments removed.
+     */
+    synchronized int compact() throws IOException {
+        final List<Segment> candidates = new ArrayList<Segment>();
+        for (Segment segment : segments.values()) {
+            if (segment != active &&
+                    (long)segment.liveBytes * 2 < segment.end - SEGMENT_HEADER_SIZE) {
+                candidates.add(segment);
+            }
+        }
+
+        int removed = 0;
+        for (Segment segment : candidates) {
+            compact(segment);
+            removed += 1;
+        }
+        return removed;
+    }
+
+    /**
+     * Unmap the active segment. The journal cannot be used after this.
+     */
+    synchronized void close() {
+        if (activeBuffer != null) {
+            activeBuffer.force();
+            activeBuffer = null;
+        }
+        if (activeFile != null) {
+            try {
+                activeFile.close();
+            } catch (IOException ignored) {}
+            activeFile = null;
+        }
+    }
+
+    /*************************************************************************
+     *
+     * Segments
+     *
+     *************************************************************************/
+
+    private void compact(Segment segment) throws IOException {
+        final RandomAccessFile file = new RandomAccessFile(segment.file, "r");
+        try {
+            final FileChannel channel = file.getChannel();
+            int offset = SEGMENT_HEADER_SIZE;
+            while (offset < segment.end) {
+                final ByteBuffer body = readBody(channel, offset, -1);
+                if (body == null) {
+                    throw new IOException("Journal record at " + offset + " of " + segment.file + " is damaged");
+                }
+                final int length = RECORD_HEADER_SIZE + body.limit();
+                final byte type = body.get(0);
+                if (type == SAVE) {
+                    final String uuid = uuidOfSave(body);
+                    final Entry entry = entries.get(uuid);
+                    if (entry != null && entry.segment == segment.number && entry.offset == offset) {
+                        // Copy the record as is, the CRC doesn't change.
+                        final int newOffset = append(body);
+                        segment.liveBytes -= entry.length;
+                        entry.segment = active.number;
+                        entry.offset = newOffset;
+                        active.liveBytes += entry.length;
+                    }
+                } else if (type == DELETE) {
+                    // Keep the tombstone while the save record it cancels
+                    // might still be replayed.
+                    final int target = body.getInt(1);
+                    if (target != segment.number && segments.containsKey(target)) {
+                        append(body);
+                    }
+                }
+                offset += length;
+            }
+        } finally {
+            file.close();
+        }
+
+        // The copies must be on disk before the segment that has the
+        // originals is gone. A segment that was filled while copying
+        // was forced when the journal rolled to the next one.
+        if (activeBuffer != null) {
+            activeBuffer.force();
+        }
+        segments.remove(segment.number);
+        if (!segment.file.delete()) {
+            getLogger().log(Level.FINE, "Could not delete journal segment " + segment.file);
+        }
+    }
+
+    /*
+     * Append a record with the given body to the active segment,
+     * rolling to a new segment if it doesn't fit. Returns the offset
+     * of the record in the active segment.
+     */
+    private int append(ByteBuffer body) throws IOException {
+        final int length = RECORD_HEADER_SIZE + body.remaining();
+        // Leave room for the zero length that marks the end of the records.
+        if (active == null || active.end + length + 4 > activeBuffer.capacity()) {
+            roll(length + 4);
+        }
+
+        crc.reset();
+        crc.update(body.array(), body.arrayOffset() + body.position(), body.remaining());
+
+        final int offset = active.end;
+        activeBuffer.position(offset);
+        activeBuffer.putInt(body.remaining());
+        activeBuffer.putInt((int)crc.getValue());
+        activeBuffer.put(body);
+        if (activeBuffer.remaining() >= 4) {
+            activeBuffer.putInt(0);
+        }
+        active.end = offset + length;
+        return offset;
+    }
+
+    /*
+     * Seal the active segment and create a new one with room for
+     * at least minimum bytes of records.
+     */
+    private void roll(int minimum) throws IOException {
+        final int number = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+        if (active != null) {
+            seal();
+        }
+
+        final Segment segment = new Segment(number, segmentFile(number));
+        final RandomAccessFile file = new RandomAccessFile(segment.file, "rw");
+        final int size = Math.max(segmentSize, SEGMENT_HEADER_SIZE + minimum);
+        file.setLength(size);
+        activeBuffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        activeBuffer.putInt(0, MAGIC);
+        activeBuffer.putInt(4, VERSION);
+        activeBuffer.putInt(SEGMENT_HEADER_SIZE, 0);
+        activeFile = file;
+        segment.end = SEGMENT_HEADER_SIZE;
+        segments.put(number, segment);
+        active = segment;
+    }
+
+    private void seal() {
+        activeBuffer.force();
+        activeBuffer = null;
+        try {
+            // Give back the unused tail of the file. This can fail on
+            // platforms that don't allow a mapped file to be truncated.
+            activeFile.setLength(active.end);
+        } catch (IOException ignored) {
+        }
+        try {
+            activeFile.close();
+        } catch (IOException ignored) {}
+        activeFile = null;
+        active = null;
+    }
+
+    private void recover() throws IOException {
+        final File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+
+        final TreeMap<Integer, File> found = new TreeMap<Integer, File>();
+        if (files != null) {
+            for (File file : files) {
+                final String name = file.getName();
+                try {
+                    found.put(Integer.parseInt(name.substring(0, name.length() - SEGMENT_SUFFIX.length())), file);
+                } catch (NumberFormatException e) {
+                    getLogger().log(Level.WARNING, "Ignoring journal file " + file);
+                }
+            }
+        }
+
+        for (Map.Entry<Integer, File> entry : found.entrySet()) {
+            final Segment segment = new Segment(entry.getKey(), entry.getValue());
+            segments.put(segment.number, segment);
+            if (!replay(segment)) {
+                segments.remove(segment.number);
+            }
+        }
+
+        if (segments.isEmpty()) {
+            roll(0);
+        } else {
+            // Continue appending to the last segment.
+            final Segment last = segments.lastEntry().getValue();
+            final RandomAccessFile file = new RandomAccessFile(last.file, "rw");
+            final int size = (int)Math.max(file.length(), Math.max(segmentSize, last.end + 4));
+            if (file.length() < size) {
+                file.setLength(size);
+            }
+            activeBuffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            activeBuffer.putInt(last.end, 0);
+            activeFile = file;
+            active = last;
+        }
+    }
+
+    /*
+     * Returns false if the file is not a journal segment.
+     */
+    private boolean replay(Segment segment) throws IOException {
+        final RandomAccessFile file = new RandomAccessFile(segment.file, "r");
+        try {
+            final FileChannel channel = file.getChannel();
+            final long size = channel.size();
+            final ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_SIZE);
+            readFully(channel, header, 0);
+            header.flip();
+            if (header.remaining() < SEGMENT_HEADER_SIZE ||
+                    header.getInt() != MAGIC || header.getInt() != VERSION) {
+                getLogger().log(Level.WARNING, "Ignoring journal file " + segment.file);
+                return false;
+            }
+
+            int offset = SEGMENT_HEADER_SIZE;
+            while (offset + RECORD_HEADER_SIZE <= size) {
+                final ByteBuffer body = readBody(channel, offset, -1);
+                if (body == null) {
+                    break;
+                }
+                final int length = RECORD_HEADER_SIZE + body.limit();
+                final byte type = body.get();
+                if (type == SAVE) {
+                    final long eventTime = body.getLong();
+                    final long seq = body.getLong();
+                    final String endpointId = getString(body);
+                    final String uuid = getString(body);
+                    index(new Entry(uuid, endpointId, eventTime, seq, segment.number, offset, length));
+                    if (seq >= sequence) {
+                        sequence = seq + 1;
+                    }
+                } else if (type == DELETE) {
+                    final int target = body.getInt();
+                    final Entry entry = entries.get(getString(body));
+                    if (entry != null && entry.segment == target) {
+                        unindex(entry);
+                    }
+                } else {
+                    break;
+                }
+                offset += length;
+            }
+            segment.end = offset;
+            return true;
+        } finally {
+            file.close();
+        }
+    }
+
+    private File segmentFile(int number) {
+        return new File(directory, String.format("%010d", number) + SEGMENT_SUFFIX);
+    }
+
+    /*************************************************************************
+     *
+     * Index
+     *
+     *************************************************************************/
+
+    private void index(Entry entry) {
+        final Entry previous = entries.put(entry.uuid, entry);
+        if (previous != null) {
+            removeFromEndpoint(previous);
+            release(previous);
+        }
+        Map<String, Entry> byUuid = endpoints.get(entry.endpointId);
+        if (byUuid == null) {
+            byUuid = new HashMap<String, Entry>();
+            endpoints.put(entry.endpointId, byUuid);
+        }
+        byUuid.put(entry.uuid, entry);
+        segments.get(entry.segment).liveBytes += entry.length;
+    }
+
+    private void unindex(Entry entry) {
+        entries.remove(entry.uuid);
+        removeFromEndpoint(entry);
+        release(entry);
+    }
+
+    private void removeFromEndpoint(Entry entry) {
+        final Map<String, Entry> byUuid = endpoints.get(entry.endpointId);
+        if (byUuid != null) {
+            byUuid.remove(entry.uuid);
+            if (byUuid.isEmpty()) {
+                endpoints.remove(entry.endpointId);
+            }
+        }
+    }
+
+    private void release(Entry entry) {
+        final Segment segment = segments.get(entry.segment);
+        if (segment != null) {
+            segment.liveBytes -= entry.length;
+        }
+    }
+
+    /*************************************************************************
+     *
+     * Encoding
+     *
+     *************************************************************************/
+
+    private ByteBuffer body(int size) {
+        if (scratch.capacity() < size) {
+            scratch = ByteBuffer.allocate(Math.max(size, scratch.capacity() * 2));
+        }
+        scratch.clear();
+        return scratch;
+    }
+
+    private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static void skipBytes(ByteBuffer buffer) {
+        final int length = buffer.getInt();
+        buffer.position(buffer.position() + length);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        final int length = buffer.getInt();
+        final String string = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, UTF_8);
+        buffer.position(buffer.position() + length);
+        return string;
+    }
+
+    private static String uuidOfSave(ByteBuffer body) {
+        final ByteBuffer buffer = body.duplicate();
+        buffer.position(1 + 8 + 8);
+        skipBytes(buffer);
+        return getString(buffer);
+    }
+
+    /*
+     * Read and check the body of the record at offset. If expectedLength is
+     * not -1, it is the length of the whole record. Returns null if there
+     * is no complete, intact record at offset.
+     */
+    private ByteBuffer readBody(FileChannel channel, int offset, int expectedLength) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        readFully(channel, header, offset);
+        if (header.position() < RECORD_HEADER_SIZE) {
+            return null;
+        }
+        header.flip();
+        final int length = header.getInt();
+        final int checksum = header.getInt();
+        if (length <= 0 || offset + RECORD_HEADER_SIZE + (long)length > channel.size() ||
+                (expectedLength != -1 && expectedLength != RECORD_HEADER_SIZE + length)) {
+            if (expectedLength != -1) {
+                throw new IOException("Journal record at " + offset + " is damaged");
+            }
+            return null;
+        }
+
+        final ByteBuffer body = ByteBuffer.allocate(length);
+        readFully(channel, body, offset + RECORD_HEADER_SIZE);
+        body.flip();
+        crc.reset();
+        crc.update(body.array(), 0, length);
+        if ((int)crc.getValue() != checksum) {
+            if (expectedLength != -1) {
+                throw new IOException("Journal record at " + offset + " is damaged");
+            }
+            return null;
+        }
+        return body;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            final int n = channel.read(buffer, position);
+            if (n < 0) {
+                break;
+            }
+            position += n;
+        }
+    }
+
+    /*
+     * Oldest event time first, then in the order saved.
+     */
+    private static final Comparator<Entry> ENTRY_ORDER = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry o1, Entry o2) {
+            if (o1.eventTime != o2.eventTime) {
+                return o1.eventTime < o2.eventTime ? -1 : 1;
+            }
+            return o1.sequence < o2.sequence ? -1 : (o1.sequence == o2.sequence ? 0 : 1);
+        }
+    };
+
+    private static final Comparator<Entry> PAGE_ORDER = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry o1, Entry o2) {
+            return comparePosition(o1, o2.eventTime, o2.uuid);
+        }
+    };
+
+    private static int comparePosition(Entry entry, long eventTime, String uuid) {
+        if (entry.eventTime != eventTime) {
+            return entry.eventTime < eventTime ? -1 : 1;
+        }
+        return entry.uuid.compareTo(uuid);
+    }
+
+    private static final class Segment {
+        private final int number;
+        private final File file;
+        // The offset just past the last record.
+        private int end;
+        // Bytes of save records that are still in the index.
+        private int liveBytes;
+
+        private Segment(int number, File file) {
+            this.number = number;
+            this.file = file;
+        }
+    }
+
+    private static final class Entry {
+        private final String uuid;
+        private final String endpointId;
+        private final long eventTime;
+        private final long sequence;
+        private int segment;
+        private int offset;
+        private final int length;
+
+        private Entry(String uuid, String endpointId, long eventTime, long sequence,
+                      int segment, int offset, int length) {
+            this.uuid = uuid;
+            this.endpointId = endpointId;
+            this.eventTime = eventTime;
+            this.sequence = sequence;
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger("oracle.iot.client");
+    private static Logger getLogger() { return LOGGER; }
+}
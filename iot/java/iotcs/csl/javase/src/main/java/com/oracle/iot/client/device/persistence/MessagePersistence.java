@@ -10,8 +10,13 @@ package com.oracle.iot.client.device.persistence;
 
 import com.oracle.iot.client.message.Message;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 
 /**
  * Support for persisting messages for guaranteed delivery.
@@ -34,7 +39,9 @@ public abstract class MessagePersistence {
                 if (instance == null) {
                     try {
                         instance = MessagePersistence.messagePersistence =
-                                new MessagePersistenceImpl(context);
+                                PersistenceMetaData.MESSAGE_ENGINE_JOURNAL.equals(PersistenceMetaData.getMessageEngine())
+                                        ? new JournalMessagePersistence(context)
+                                        : new MessagePersistenceImpl(context);
                     } catch (Exception e) {
                         // TODO: try-catch here is because unit tests on Android give Stub! on SQLite
                         instance = null;
@@ -83,6 +90,117 @@ public abstract class MessagePersistence {
      */
     public abstract List<Message> load(String endpointId);
 
+    /**
+     * Get an iterator over the persisted messages that belong to the subsystem identified by
+     * endpointId. The messages are ordered by event time, then by client id, and are loaded
+     * from disk at most {@code pageSize} at a time, so the number of messages held in memory
+     * does not depend on how many are persisted. Messages may be deleted while iterating.
+     * Messages that are saved while iterating may or may not be returned.
+     *
+     * @param endpointId Id of the subsystem that the caller want to load messages for
+     * @param pageSize the maximum number of messages to load at once
+     * @return An iterator over the messages that were persisted for given subsystem,
+     *         which does not support {@code remove}
+     */
+    public Iterator<Message> iterator(String endpointId, int pageSize) {
+        return new PageIterator(endpointId, pageSize > 0 ? pageSize : 1);
+    }
+
+    /**
+     * Loads up to {@code limit} persisted messages that belong to the subsystem identified by
+     * endpointId and that come after the given event time and client id, in the order of
+     * {@link #iterator(String, int)}. This is used by {@link #iterator(String, int)} and should
+     * be overridden by implementations. This implementation calls {@link #load(String)} and
+     * sorts and filters the result.
+     *
+     * @param endpointId Id of the subsystem that the caller want to load messages for
+     * @param afterEventTime the event time of the last message of the previous page
+     * @param afterClientId the client id of the last message of the previous page,
+     *                      or {@code null} to load the first page
+     * @param limit the maximum number of messages to load
+     * @return The messages, never {@code null} and without {@code null} elements
+     */
+    protected List<Message> loadPage(String endpointId, long afterEventTime, String afterClientId, int limit) {
+        final List<Message> all = load(endpointId);
+        if (all == null || all.isEmpty()) {
+            return Collections.emptyList();
+        }
+        final List<Message> sorted = new ArrayList<Message>(all.size());
+        for (Message message : all) {
+            if (message != null
+                    && (afterClientId == null || compare(message, afterEventTime, afterClientId) > 0)) {
+                sorted.add(message);
+            }
+        }
+        Collections.sort(sorted, PAGE_ORDER);
+        return sorted.size() > limit ? sorted.subList(0, limit) : sorted;
+    }
+
+    /*
+     * Compare the message to the position given by an event time and client id.
+     */
+    private static int compare(Message message, long eventTime, String clientId) {
+        final long messageTime = message.getEventTime();
+        if (messageTime != eventTime) {
+            return messageTime < eventTime ? -1 : 1;
+        }
+        return message.getClientId().compareTo(clientId);
+    }
+
+    private static final Comparator<Message> PAGE_ORDER = new Comparator<Message>() {
+        @Override
+        public int compare(Message m1, Message m2) {
+            return MessagePersistence.compare(m1, m2.getEventTime(), m2.getClientId());
+        }
+    };
+
+    /*
+     * Iterates over the messages of an endpoint, using the last message
+     * returned as the position from which to load the next page.
+     */
+    private final class PageIterator implements Iterator<Message> {
+        private final String endpointId;
+        private final int pageSize;
+        private List<Message> page = Collections.emptyList();
+        private int index;
+        private boolean lastPage;
+        private long lastEventTime;
+        private String lastClientId;
+
+        private PageIterator(String endpointId, int pageSize) {
+            this.endpointId = endpointId;
+            this.pageSize = pageSize;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (index == page.size() && !lastPage) {
+                page = loadPage(endpointId, lastEventTime, lastClientId, pageSize);
+                index = 0;
+                lastPage = page.size() < pageSize;
+                if (!page.isEmpty()) {
+                    final Message last = page.get(page.size() - 1);
+                    lastEventTime = last.getEventTime();
+                    lastClientId = last.getClientId();
+                }
+            }
+            return index < page.size();
+        }
+
+        @Override
+        public Message next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return page.get(index++);
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
     /**
      * Base class constructor for implementations
      */
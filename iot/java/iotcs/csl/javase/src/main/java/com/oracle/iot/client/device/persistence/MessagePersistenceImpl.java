@@ -10,7 +10,6 @@ package com.oracle.iot.client.device.persistence;
 
 import com.oracle.iot.client.message.Message;
 import java.io.ByteArrayInputStream;
-import java.io.UnsupportedEncodingException;
 import java.sql.Blob;
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
@@ -31,10 +30,13 @@ import javax.sql.DataSource;
 /**
  * Support for persisting messages for guaranteed delivery.
  */
-public class MessagePersistenceImpl extends MessagePersistence {
+public class MessagePersistenceImpl extends MessagePersistence implements MessageTables {
 
     final DataSource dataSource;
 
+    // Not null if the MESSAGE_ENGINE_JDBC_BATCHED engine is used.
+    private final BatchingMessageStore batchingStore;
+
     /**
      * Create an implementation of MessagePersistence.
      * @param context an application context, typically a {@code android.content.Context}, or {@code null}
@@ -61,13 +63,21 @@ public class MessagePersistenceImpl extends MessagePersistence {
                 createTable("MESSAGES");
             }
 
+            if (dataSource != null &&
+                    PersistenceMetaData.MESSAGE_ENGINE_JDBC_BATCHED.equals(PersistenceMetaData.getMessageEngine())) {
+                this.batchingStore = new BatchingMessageStore(dataSource);
+            } else {
+                this.batchingStore = null;
+            }
+
         } else {
             this.dataSource = null;
+            this.batchingStore = null;
         }
     }
 
-    // this method is package private because of testing
-    boolean tableExists(String tableName) {
+    @Override
+    public boolean tableExists(String tableName) {
         Connection connection = null;
         ResultSet resultSet = null;
         try {
@@ -90,8 +100,8 @@ public class MessagePersistenceImpl extends MessagePersistence {
         return false;
     }
 
-    // this method is package private because of testing
-    void createTable(String tableName) {
+    @Override
+    public void createTable(String tableName) {
         Connection connection = null;
         Statement createStmt = null;
         try {
@@ -137,10 +147,19 @@ public class MessagePersistenceImpl extends MessagePersistence {
         save("MESSAGES", messages, endpointId);
     }
 
-    /* package */ synchronized void save(String tableName, Collection<Message> messages, String endpointId) {
+    @Override
+    public void save(String tableName, Collection<Message> messages, String endpointId) {
         if (!PersistenceMetaData.isPersistenceEnabled()) {
             return;
         }
+        if (batchingStore != null) {
+            batchingStore.save(tableName, messages, endpointId);
+            return;
+        }
+        saveEach(tableName, messages, endpointId);
+    }
+
+    private synchronized void saveEach(String tableName, Collection<Message> messages, String endpointId) {
         Connection connection = null;
         PreparedStatement ps = null;
         try {
@@ -150,14 +169,7 @@ public class MessagePersistenceImpl extends MessagePersistence {
             ps = connection.prepareStatement("INSERT INTO " + tableName + " VALUES (?, ?, ?, ?)");
             for (Message message : messages) {
 
-                final byte[] blob;
-                try {
-                    blob = message.toJson().toString().getBytes("UTF-8");
-                } catch (UnsupportedEncodingException cannot_happen) {
-                    // Cannot happen. UTF-8 is a required encoding
-                    // Throw runtime exception to make compiler happy
-                    throw new RuntimeException(cannot_happen);
-                }
+                final byte[] blob = MessageCodec.encode(message);
 
                 ps.setLong(1, message.getEventTime());
                 ps.setString(2, message.getClientId());
@@ -186,10 +198,18 @@ public class MessagePersistenceImpl extends MessagePersistence {
     }
 
     // Package
-    synchronized void save(String tableName, Message message, String endpointId) {
+    void save(String tableName, Message message, String endpointId) {
         if (!PersistenceMetaData.isPersistenceEnabled()) {
             return;
         }
+        if (batchingStore != null) {
+            batchingStore.save(tableName, Collections.singletonList(message), endpointId);
+            return;
+        }
+        saveOne(tableName, message, endpointId);
+    }
+
+    private synchronized void saveOne(String tableName, Message message, String endpointId) {
         Connection connection = null;
         PreparedStatement ps = null;
         try {
@@ -198,14 +218,7 @@ public class MessagePersistenceImpl extends MessagePersistence {
             connection.setAutoCommit(false);
             ps = connection.prepareStatement("INSERT INTO " + tableName + " VALUES (?, ?, ?, ?)");
 
-            final byte[] blob;
-            try {
-                blob = message.toJson().toString().getBytes("UTF-8");
-            } catch (UnsupportedEncodingException cannot_happen) {
-                // Cannot happen. UTF-8 is a required encoding
-                // Throw runtime exception to make compiler happy
-                throw new RuntimeException(cannot_happen);
-            }
+            final byte[] blob = MessageCodec.encode(message);
 
             ps.setLong(1, message.getEventTime());
             ps.setString(2, message.getClientId());
@@ -236,10 +249,19 @@ public class MessagePersistenceImpl extends MessagePersistence {
         delete("MESSAGES", messages);
     }
 
-    /* package */ synchronized void delete(String tableName, Collection<Message> messages) {
+    @Override
+    public void delete(String tableName, Collection<Message> messages) {
         if (!PersistenceMetaData.isPersistenceEnabled()) {
             return;
         }
+        if (batchingStore != null) {
+            batchingStore.delete(tableName, messages);
+            return;
+        }
+        deleteEach(tableName, messages);
+    }
+
+    private synchronized void deleteEach(String tableName, Collection<Message> messages) {
         Connection connection = null;
         PreparedStatement ps = null;
         try {
@@ -274,32 +296,70 @@ public class MessagePersistenceImpl extends MessagePersistence {
         return load("MESSAGES", endpointId);
     }
 
-    /* package */ synchronized List<Message> load(String tableName, String endpointId) {
+    @Override
+    public List<Message> load(String tableName, String endpointId) {
 
         if (!PersistenceMetaData.isPersistenceEnabled()) {
             return null;
         }
+        if (batchingStore != null) {
+            return batchingStore.load(tableName, endpointId);
+        }
+        return loadAll(tableName, endpointId);
+    }
+
+    @Override
+    protected List<Message> loadPage(String endpointId, long afterEventTime, String afterClientId, int limit) {
+        if (!PersistenceMetaData.isPersistenceEnabled()) {
+            return Collections.emptyList();
+        }
+        if (batchingStore != null) {
+            return batchingStore.loadPage("MESSAGES", endpointId, afterEventTime, afterClientId, limit);
+        }
+        return loadPageOnce("MESSAGES", endpointId, afterEventTime, afterClientId, limit);
+    }
+
+    private synchronized List<Message> loadAll(String tableName, String endpointId) {
         Connection connection = null;
         PreparedStatement ps = null;
         ResultSet resultSet = null;
         try {
             connection = dataSource.getConnection();
             connection.setTransactionIsolation(PersistenceMetaData.getIsolationLevel(connection));
-            final List<Message> messages = new ArrayList<Message>();
             ps = connection.prepareStatement(
                     "SELECT * FROM " + tableName + " WHERE ENDPOINT_ID = ? ORDER BY timestamp"
             );
             ps.setString(1, endpointId);
             resultSet = ps.executeQuery();
-
-            while (resultSet.next()) {
-                final Blob blob = resultSet.getBlob(4);
-                final byte[] bytes = blob.getBytes(1, (int) blob.length());
-                final List<Message> list = Message.fromJson(bytes);
-                final Message message = list.isEmpty() ? null : list.get(0);
-                messages.add(message);
+            return readMessages(resultSet);
+        } catch (SQLException e) {
+            getLogger().log(Level.WARNING, "SQL exception during loading messages from database.", e);
+        } finally {
+            if (resultSet != null) {
+                try {
+                    resultSet.close();
+                } catch (SQLException ignored) {}
+            }
+            if (ps != null) {
+                try {
+                    ps.close();
+                } catch (SQLException ignored) {}
             }
-            return messages;
+        }
+        return Collections.emptyList();
+    }
+
+    private synchronized List<Message> loadPageOnce(String tableName, String endpointId,
+                                                    long afterEventTime, String afterClientId, int limit) {
+        Connection connection = null;
+        PreparedStatement ps = null;
+        ResultSet resultSet = null;
+        try {
+            connection = dataSource.getConnection();
+            connection.setTransactionIsolation(PersistenceMetaData.getIsolationLevel(connection));
+            ps = connection.prepareStatement(pageStatement(tableName, afterClientId == null));
+            resultSet = executePageQuery(ps, endpointId, afterEventTime, afterClientId, limit);
+            return readMessages(resultSet);
         } catch (SQLException e) {
             getLogger().log(Level.WARNING, "SQL exception during loading messages from database.", e);
         } finally {
@@ -317,6 +377,48 @@ public class MessagePersistenceImpl extends MessagePersistence {
         return Collections.emptyList();
     }
 
+    /*
+     * The query for a page of messages for MessagePersistence#loadPage. The
+     * first page has no position to start after.
+     */
+    // Package
+    static String pageStatement(String tableName, boolean firstPage) {
+        return "SELECT * FROM " + tableName + " WHERE ENDPOINT_ID = ?"
+                + (firstPage ? "" : " AND (TIMESTAMP > ? OR (TIMESTAMP = ? AND UUID > ?))")
+                + " ORDER BY TIMESTAMP, UUID";
+    }
+
+    // Package
+    static ResultSet executePageQuery(PreparedStatement ps, String endpointId,
+                                      long afterEventTime, String afterClientId, int limit)
+            throws SQLException {
+        ps.setString(1, endpointId);
+        if (afterClientId != null) {
+            ps.setLong(2, afterEventTime);
+            ps.setLong(3, afterEventTime);
+            ps.setString(4, afterClientId);
+        }
+        ps.setMaxRows(limit);
+        return ps.executeQuery();
+    }
+
+    /*
+     * Decode the MESSAGE column of each row. Rows that hold no message are skipped.
+     */
+    // Package
+    static List<Message> readMessages(ResultSet resultSet) throws SQLException {
+        final List<Message> messages = new ArrayList<Message>();
+        while (resultSet.next()) {
+            final Blob blob = resultSet.getBlob(4);
+            final byte[] bytes = blob.getBytes(1, (int) blob.length());
+            final Message message = MessageCodec.decode(bytes);
+            if (message != null) {
+                messages.add(message);
+            }
+        }
+        return messages;
+    }
+
     private static final Logger LOGGER = Logger.getLogger("oracle.iot.client");
     private static Logger getLogger() { return LOGGER; }
 
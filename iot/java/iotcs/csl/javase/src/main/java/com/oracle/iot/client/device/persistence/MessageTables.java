@@ -0,0 +1,32 @@
+/*
+ * Copyright (c) 2018, Oracle and/or its affiliates.  All rights reserved.
+ *
+ * This software is dual-licensed to you under the MIT License (MIT) and
+ * the Universal Permissive License (UPL).  See the LICENSE file in the root
+ * directory for license terms.  You may choose either license, or both.
+ */
+
+package com.oracle.iot.client.device.persistence;
+
+import com.oracle.iot.client.message.Message;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Access to tables other than the one for messages waiting to be sent,
+ * such as the one used by {@link BatchByPersistenceImpl}. Implemented by
+ * the {@link MessagePersistence} implementations in this package.
+ */
+/* package */ interface MessageTables {
+
+    boolean tableExists(String tableName);
+
+    void createTable(String tableName);
+
+    void save(String tableName, Collection<Message> messages, String endpointId);
+
+    void delete(String tableName, Collection<Message> messages);
+
+    List<Message> load(String tableName, String endpointId);
+}
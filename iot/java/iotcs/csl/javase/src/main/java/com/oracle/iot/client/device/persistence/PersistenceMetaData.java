@@ -50,6 +50,54 @@ public class PersistenceMetaData {
                 }
             });
 
+    /**
+     * The message persistence engine that opens a connection and prepares
+     * statements for each call, and commits each call on its own.
+     */
+    public static final String MESSAGE_ENGINE_JDBC = "jdbc";
+
+    /**
+     * The message persistence engine that keeps pooled connections with
+     * cached prepared statements, batches inserts, deletes with
+     * {@code WHERE UUID IN (...)}, and commits concurrent calls together.
+     */
+    public static final String MESSAGE_ENGINE_JDBC_BATCHED = "jdbc_batched";
+
+    /**
+     * The message persistence engine that appends to memory-mapped journal
+     * files, with deletes written as tombstones and compacted in the
+     * background, instead of using a database.
+     */
+    public static final String MESSAGE_ENGINE_JOURNAL = "journal";
+
+    private static final String MESSAGE_ENGINE =
+            AccessController.doPrivileged(new PrivilegedAction<String>() {
+                public String run() {
+                    return System.getProperty("com.oracle.iot.client.device.persistence.message_engine",
+                            MESSAGE_ENGINE_JDBC);
+                }
+            });
+
+    /**
+     * The format in which persisted messages are written: a compact,
+     * versioned binary encoding.
+     */
+    public static final String MESSAGE_FORMAT_BINARY = "binary";
+
+    /**
+     * The format in which persisted messages are written: the UTF-8 bytes
+     * of the message JSON, as written by earlier versions of the library.
+     */
+    public static final String MESSAGE_FORMAT_JSON = "json";
+
+    private static final String MESSAGE_FORMAT =
+            AccessController.doPrivileged(new PrivilegedAction<String>() {
+                public String run() {
+                    return System.getProperty("com.oracle.iot.client.device.persistence.message_format",
+                            MESSAGE_FORMAT_BINARY);
+                }
+            });
+
     private static final boolean PERSISTENCE_ENABLED =
             AccessController.doPrivileged(new PrivilegedAction<Boolean>() {
                 public Boolean run() {
@@ -128,6 +176,29 @@ public class PersistenceMetaData {
         return PERSISTENCE_ENABLED;
     }
 
+    /**
+     * Get the engine used to persist messages for guaranteed delivery.
+     * By default, the value is {@link #MESSAGE_ENGINE_JDBC}.
+     * This value can be set with the property {@code com.oracle.iot.client.device.persistence.message_engine}.
+     * An unrecognized value is treated as {@link #MESSAGE_ENGINE_JDBC}.
+     * @return the message persistence engine
+     */
+    public static String getMessageEngine() {
+        return MESSAGE_ENGINE;
+    }
+
+    /**
+     * Get the format in which messages are written when they are persisted.
+     * By default, the value is {@link #MESSAGE_FORMAT_BINARY}.
+     * This value can be set with the property {@code com.oracle.iot.client.device.persistence.message_format}.
+     * An unrecognized value is treated as {@link #MESSAGE_FORMAT_BINARY}.
+     * Messages written in either format can always be read.
+     * @return the persisted message format
+     */
+    public static String getMessageFormat() {
+        return MESSAGE_FORMAT;
+    }
+
     /** static methods only, do not allow instantiation */
     private PersistenceMetaData() {}
 }
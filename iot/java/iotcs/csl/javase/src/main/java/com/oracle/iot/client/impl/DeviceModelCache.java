@@ -0,0 +1,249 @@
+/*
+ * Copyright (c) 2018, Oracle and/or its affiliates.  All rights reserved.
+ *
+ * This software is dual-licensed to you under the MIT License (MIT) and
+ * the Universal Permissive License (UPL).  See the LICENSE file in the root
+ * directory for license terms.  You may choose either license, or both.
+ */
+
+package com.oracle.iot.client.impl;
+
+import oracle.iot.client.DeviceModel;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A process-wide cache of parsed device models, keyed by application id
+ * and device model URN.
+ * <p>
+ * A gateway that registers many devices of the same few device models gets
+ * each model once, rather than once per device. When several threads miss
+ * on the same model at the same time, one of them loads it and the others
+ * wait for that load. A {@link DeviceModel} is not modified once it is
+ * parsed, so it is shared.
+ * <p>
+ * The least recently used models are dropped when there are more than
+ * {@code oracle.iot.client.device_model_cache_size} models (default 64).
+ * If the size is 0, models are not cached. If
+ * {@code oracle.iot.client.device_model_cache_ttl} is greater than 0, a
+ * model older than that many milliseconds is loaded again. The loader is
+ * given the expired entry, so it can keep the parsed model if the model
+ * has not changed. A model that is not found is not cached.
+ */
+final class DeviceModelCache {
+
+    private static final int DEFAULT_CACHE_SIZE = 64;
+    private static final int CACHE_SIZE = Math.max(
+            Integer.getInteger("oracle.iot.client.device_model_cache_size", DEFAULT_CACHE_SIZE), 0);
+    private static final long TTL_NANOS = Math.max(
+            Long.getLong("oracle.iot.client.device_model_cache_ttl", 0L), 0L) * 1000000L;
+
+    // Guarded by the lock on CACHE.
+    @SuppressWarnings("serial")
+    private static final Map<Key, CachedModel> CACHE =
+            new LinkedHashMap<Key, CachedModel>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Key, CachedModel> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            };
+
+    // The loads in progress. Guarded by the lock on CACHE.
+    private static final Map<Key, FutureTask<CachedModel>> LOADING = new HashMap<Key, FutureTask<CachedModel>>();
+
+    private DeviceModelCache() {
+    }
+
+    /**
+     * Loads a device model on a cache miss.
+     */
+    interface Loader {
+        /**
+         * Load the device model.
+         * @param expired the entry that has expired, or {@code null}
+         * @return the entry for the model, which may be {@code expired} if
+         * the model has not changed, or {@code null} if the model is not found
+         * @throws IOException if the model cannot be read
+         * @throws GeneralSecurityException if the request for the model fails
+         */
+        CachedModel load(CachedModel expired) throws IOException, GeneralSecurityException;
+    }
+
+    /**
+     * A device model and what the loader needs to tell whether it has changed.
+     */
+    static final class CachedModel {
+
+        private final DeviceModel deviceModel;
+        private final String validator;
+        private final long loadedAt;
+
+        /**
+         * @param deviceModel the device model
+         * @param validator the ETag, or a digest of the model, or {@code null}
+         */
+        CachedModel(DeviceModel deviceModel, String validator) {
+            this.deviceModel = deviceModel;
+            this.validator = validator;
+            this.loadedAt = System.nanoTime();
+        }
+
+        DeviceModel getDeviceModel() {
+            return deviceModel;
+        }
+
+        String getValidator() {
+            return validator;
+        }
+
+        /**
+         * The same model with a new load time, for a model that has not changed.
+         * @return the new entry
+         */
+        CachedModel revalidated() {
+            return new CachedModel(deviceModel, validator);
+        }
+
+        private boolean isExpired(long now) {
+            return TTL_NANOS > 0 && now - loadedAt >= TTL_NANOS;
+        }
+    }
+
+    /**
+     * Get a device model from the cache, or load it.
+     * @param aid the IoT application identifier, or {@code null}
+     * @param urn the URN of the device model
+     * @param loader loads the model on a miss
+     * @return the device model, or {@code null} if it is not found
+     * @throws IOException from the loader
+     * @throws GeneralSecurityException from the loader
+     */
+    static DeviceModel get(String aid, String urn, final Loader loader)
+            throws IOException, GeneralSecurityException {
+
+        if (CACHE_SIZE == 0) {
+            final CachedModel entry = loader.load(null);
+            return entry != null ? entry.getDeviceModel() : null;
+        }
+
+        final Key key = new Key(aid, urn);
+        final FutureTask<CachedModel> task;
+        final boolean owner;
+        synchronized (CACHE) {
+            final CachedModel cached = CACHE.get(key);
+            if (cached != null && !cached.isExpired(System.nanoTime())) {
+                return cached.getDeviceModel();
+            }
+
+            final FutureTask<CachedModel> loading = LOADING.get(key);
+            if (loading != null) {
+                task = loading;
+                owner = false;
+            } else {
+                task = new FutureTask<CachedModel>(new Callable<CachedModel>() {
+                    @Override
+                    public CachedModel call() throws Exception {
+                        return loader.load(cached);
+                    }
+                });
+                LOADING.put(key, task);
+                owner = true;
+            }
+        }
+
+        if (owner) {
+            // Load on this thread. Other threads that miss wait for it.
+            try {
+                task.run();
+            } finally {
+                synchronized (CACHE) {
+                    LOADING.remove(key);
+                    final CachedModel entry = getNow(task);
+                    if (entry != null) {
+                        CACHE.put(key, entry);
+                    } else {
+                        CACHE.remove(key);
+                    }
+                }
+            }
+        }
+
+        final CachedModel entry = await(task);
+        return entry != null ? entry.getDeviceModel() : null;
+    }
+
+    // The result of a task that has run, or null if it failed.
+    private static CachedModel getNow(FutureTask<CachedModel> task) {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            // The task has run, so get() does not wait.
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            return null;
+        }
+    }
+
+    private static CachedModel await(FutureTask<CachedModel> task) throws IOException, GeneralSecurityException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return task.get();
+                } catch (InterruptedException e) {
+                    // The load is still in progress, so keep waiting.
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    final Throwable cause = e.getCause();
+                    if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    } else if (cause instanceof GeneralSecurityException) {
+                        throw (GeneralSecurityException) cause;
+                    } else if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    } else if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    throw new IOException(cause);
+                }
+            }
+        } finally {
+            if (interrupted) {
+                // Restore the interrupted status
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static final class Key {
+        private final String aid;
+        private final String urn;
+
+        private Key(String aid, String urn) {
+            this.aid = aid;
+            this.urn = urn;
+        }
+
+        @Override
+        public int hashCode() {
+            return urn.hashCode() * 31 + (aid != null ? aid.hashCode() : 0);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) return true;
+            if (obj == null || obj.getClass() != this.getClass()) return false;
+            final Key other = (Key) obj;
+            return this.urn.equals(other.urn)
+                    && (this.aid != null ? this.aid.equals(other.aid) : other.aid == null);
+        }
+    }
+}
@@ -12,6 +12,7 @@ import com.oracle.iot.client.TransportException;
 import com.oracle.iot.client.HttpResponse;
 import com.oracle.iot.client.RestApi;
 import com.oracle.iot.client.SecureConnection;
+import com.oracle.iot.client.impl.util.Base64;
 import com.oracle.iot.client.message.StatusCode;
 import oracle.iot.client.DeviceModel;
 import oracle.iot.client.enterprise.Filter;
@@ -19,18 +20,21 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.Reader;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URLEncoder;
 import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -128,19 +132,45 @@ public class DeviceModelFactory {
      *                                  the trusted assets store, or the
      *                                  private key is invalid
      */
-    public static DeviceModel getDeviceModel(String aid,
-            SecureConnection secureConnection, String urn)
+    public static DeviceModel getDeviceModel(final String aid,
+            final SecureConnection secureConnection, final String urn)
+            throws IOException, GeneralSecurityException {
+        return DeviceModelCache.get(aid, urn, new DeviceModelCache.Loader() {
+            @Override
+            public DeviceModelCache.CachedModel load(DeviceModelCache.CachedModel expired)
+                    throws IOException, GeneralSecurityException {
+                return loadDeviceModel(aid, secureConnection, urn, expired);
+            }
+        });
+    }
+
+    /*
+     * Read the device model from the local store, or get it from the server.
+     * If the model has the same ETag or digest as the model of the expired
+     * cache entry, the expired entry is returned again, and the model is not
+     * parsed or written to the local store.
+     */
+    private static DeviceModelCache.CachedModel loadDeviceModel(String aid,
+            SecureConnection secureConnection, String urn,
+            DeviceModelCache.CachedModel expired)
             throws IOException, GeneralSecurityException {
         String path = null;
 
         if (LOCAL_STORE != null) {
-            Reader reader = null;
+            InputStream inputStream = null;
             try {
                 String encoded = URLEncoder.encode(urn, "UTF-8");
                 path = LOCAL_STORE + File.separator + DM_PREFIX + encoded +
                         FILE_TYPE;
-                reader = new InputStreamReader(new FileInputStream(path), "UTF-8");
-                return DeviceModelParser.fromJson(reader);
+                inputStream = new FileInputStream(path);
+                final byte[] data = readFully(inputStream);
+                final String validator = digest(data);
+                if (expired != null && validator.equals(expired.getValidator())) {
+                    return expired.revalidated();
+                }
+                return new DeviceModelCache.CachedModel(
+                        DeviceModelParser.fromJson(new String(data, "UTF-8")),
+                        validator);
             } catch (JSONException e) {
                 getLogger().log(Level.SEVERE,e.getMessage());
                 throw new IOException(e);
@@ -151,8 +181,8 @@ public class DeviceModelFactory {
                 getLogger().log(Level.SEVERE,e.getMessage());
                 throw e;
             } finally {
-                if (reader != null) {
-                    try { reader.close(); }
+                if (inputStream != null) {
+                    try { inputStream.close(); }
                     catch (IOException ignored) {}
                 }
             }
@@ -188,14 +218,21 @@ public class DeviceModelFactory {
             throw new RuntimeException(e);
         }
 
-        byte[] data = getObject(secureConnection, uri);
-        if (data == null) {
+        HttpResponse response = getObject(secureConnection, uri);
+        if (response == null) {
             // Model not found
             return null;
         }
 
+        byte[] data = response.getData();
+        final String eTag = getETag(response);
+        final String validator = eTag != null ? eTag : digest(data);
+        if (expired != null && validator.equals(expired.getValidator())) {
+            // Unchanged, so keep the model that has already been parsed
+            return expired.revalidated();
+        }
+
         DeviceModel dm = null;
-        JSONObject devicePolicy = null;
         try {
             JSONObject object = new JSONObject(new String(data, "UTF-8"));
             if (aid != null) {
@@ -245,10 +282,10 @@ public class DeviceModelFactory {
             }
         }
 
-        return dm;
+        return dm != null ? new DeviceModelCache.CachedModel(dm, validator) : null;
     }
 
-    private static byte[] getObject(SecureConnection secureConnection, String uri)
+    private static HttpResponse getObject(SecureConnection secureConnection, String uri)
             throws IOException, GeneralSecurityException {
 
         HttpResponse res = secureConnection.get(uri);
@@ -267,7 +304,36 @@ public class DeviceModelFactory {
             throw new IOException("GET " + uri + " failed: no data received");
         }
 
-        return data;
+        return res;
+    }
+
+    private static String getETag(HttpResponse response) {
+        final Map<String, List<String>> headers = response.getHeaders();
+        if (headers == null) {
+            return null;
+        }
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            if ("ETag".equalsIgnoreCase(header.getKey())
+                    && header.getValue() != null
+                    && !header.getValue().isEmpty()) {
+                return header.getValue().get(0);
+            }
+        }
+        return null;
     }
-}
 
+    private static String digest(byte[] data) throws GeneralSecurityException {
+        final MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+        return Base64.getEncoder().encodeToString(messageDigest.digest(data));
+    }
+
+    private static byte[] readFully(InputStream inputStream) throws IOException {
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        int nread;
+        while ((nread = inputStream.read(buffer)) != -1) {
+            outputStream.write(buffer, 0, nread);
+        }
+        return outputStream.toByteArray();
+    }
+}
@@ -58,4 +58,11 @@ public interface DeviceAnalog {
      */
     void queueMessage(Message message); // TODO: this API doesn't really fit here, but needed for alertCondition
 
+    /**
+     * Get the in-process values of the attributes of the device; i.e., the
+     * values that are being passed along the policy pipelines.
+     * @return the in-process values
+     */
+    InProcessValues getInProcessValues();
+
 }
@@ -37,6 +37,7 @@ public final class DeviceAnalogImpl implements DeviceAnalog {
         this.deviceModel = deviceModel;
         this.endpointId = endpointId;
         attributeValueMap = new HashMap<String,Object>();
+        inProcessValues = new InProcessValues(deviceModel);
     }
 
     @Override
@@ -279,10 +280,17 @@ public final class DeviceAnalogImpl implements DeviceAnalog {
         }
     }
 
+    // DeviceAnalog API
+    @Override
+    public InProcessValues getInProcessValues() {
+        return inProcessValues;
+    }
+
     private final DirectlyConnectedDevice directlyConnectedDevice;
     private final DeviceModelImpl deviceModel;
     private final String endpointId;
     private final Map<String,Object> attributeValueMap;
+    private final InProcessValues inProcessValues;
 
     private static final Logger LOGGER = Logger.getLogger("oracle.iot.client");
     private static Logger getLogger() { return LOGGER; }
@@ -18,8 +18,7 @@ import com.oracle.iot.client.impl.util.Base64;
 import com.oracle.iot.client.impl.util.Pair;
 import com.oracle.iot.client.message.AlertMessage;
 import com.oracle.iot.client.message.Message;
-import com.oracle.iot.shared.Formula;
-import com.oracle.iot.shared.FormulaParser;
+import com.oracle.iot.shared.CompiledFormula;
 import com.oracle.iot.shared.ValueProvider;
 
 import javax.crypto.Mac;
@@ -32,11 +31,12 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Random;
-import java.util.Stack;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -45,8 +45,6 @@ import java.util.logging.Logger;
  */
 public abstract class DeviceFunction {
 
-    private static final Double ZERO = 0.0d;
-
     /**
      * The {@code apply} method is where the logic for the function is coded.
      * This method returns {@code true} if the conditions for the function have
@@ -144,27 +142,6 @@ public abstract class DeviceFunction {
         return POLICY_MAP.get(functionId);
     }
 
-    // A map of attribute-name -> in-process attribute value.
-    // The in-process value of an attribute is the value that is being
-    // passed along the pipeline; i.e., $(attribute) in a formula or condition
-    private static final Map<String,Object> inProcessValues = new HashMap<String,Object>();
-
-    private static String createInProcessMapKey(String endpointId, String deviceModelURN, String attribute) {
-        return endpointId.concat("/deviceModels/".concat(deviceModelURN.concat(":attributes/".concat(attribute))));
-    }
-
-    public static void putInProcessValue(String endpointId, String deviceModelURN, String attribute, Object value) {
-        inProcessValues.put(createInProcessMapKey(endpointId, deviceModelURN, attribute), value);
-    }
-
-    public static Object removeInProcessValue(String endpointId, String deviceModelURN, String attribute) {
-        return inProcessValues.remove(createInProcessMapKey(endpointId, deviceModelURN, attribute));
-    }
-
-    public static Object getInProcessValue(String endpointId, String deviceModelURN, String attribute) {
-        return inProcessValues.get(createInProcessMapKey(endpointId, deviceModelURN, attribute));
-    }
-
     //
     // Policy definitions
     //
@@ -180,17 +157,14 @@ public abstract class DeviceFunction {
 
                     data.put("filterCondition.value", value);
 
-                    FormulaParser.Node condition = (FormulaParser.Node) data.get("filterCondition.condition");
+                    CompiledFormula condition = (CompiledFormula) data.get("filterCondition.condition");
                     if (condition == null) {
                         final String str = (String)configuration.get("condition");
-                        List<FormulaParser.Token> tokens = FormulaParser.tokenize(str);
-                        Stack<FormulaParser.Node> stack = new Stack<FormulaParser.Node>();
-                        FormulaParser.parseConditionalOrExpression(stack, tokens, str, 0);
-                        condition = stack.pop();
+                        condition = FormulaCache.getCondition(str);
                         data.put("filterCondition.condition", condition);
                     }
 
-                    final Double computedValue = (Double)compute(condition, deviceAnalog);
+                    final double computedValue = condition.computeDouble(new ValueProviderImpl(deviceAnalog));
                     // For a filter condition, if the computation returns 0.0, meaning
                     // the condition evaluated to false, then we want to return 'true'
                     // because "filter" means out, not in.
@@ -270,202 +244,41 @@ public abstract class DeviceFunction {
             new DeviceFunction("mean") {
 
                 @Override
-                @SuppressWarnings({"unchecked"})
                 public boolean apply(DeviceAnalog deviceAnalog,
                                      String attribute,
                                      Map<String, ?> configuration,
                                      Map<String, Object> data,
                                      Object value) {
 
-                    // Handling slide:
                     //
-                    // Slide is how much the window moves after the
-                    // window expires. If there is a window of 5 seconds
-                    // with a slide of 2 seconds, then at the end of
-                    // 5 seconds, the window slides over by two seconds.
-                    // That means that the next window's worth of data
-                    // would include 3 seconds of data from the previous
-                    // window, and 2 seconds of new data.
-                    //
-                    // To handle this, we divide up the window into buckets.
-                    // Each bucket represents a period of time, such
-                    // that the time period is the greatest common factor
-                    // between the window and the slide. For example, if
-                    // the window is 60 seconds and the slide is 90
-                    // seconds, a bucket would span 30 seconds, and
-                    // there would be three buckets.
-                    //
-                    // When the window expires and the get method is called,
-                    // the return value of the mean policy function will
-                    // include the value and number of terms of bucket[0]
-                    // through bucket[n]. Then the buckets that don't
-                    // contribute to the next window are emptied (so to speak)
-                    // and the cycle continues.
-                    //
-                    // Best case is that the slide equal to the window.
-                    // In this case, there is only ever one bucket.
-                    // The worst case is when greatest common factor between
-                    // slide and window is small. In this case, you end up
-                    // with a lot of buckets, potentially one bucket per
-                    // slide time unit (e.g., 90 seconds, 90 buckets).
-                    // But this is no worse (memory wise) than keeping
-                    // an array of values and timestamps.
+                    // See SlidingWindow for details on handling slide
+                    // and what all this bucket stuff is about
                     //
-
                     final long now = System.currentTimeMillis();
 
-                    // windowStartTime is the time at which the first
-                    // call to apply was made for the current window
-                    // of time. We need to know when this window
-                    // started so that we can figure out what bucket
-                    // the data goes into.
-                    Long windowStartTime = (Long)data.get("mean.windowStartTime");
-                    if (windowStartTime == null) {
-                        windowStartTime = now;
-                        data.put("mean.windowStartTime", windowStartTime);
-                    }
-
-                    // The greatest common factor between the
-                    // window and the slide represents the greatest
-                    // amount of time that goes evenly into
-                    // both window and slide.
-                    final long window = getWindow(configuration);
-                    final long slide = getSlide(configuration, window);
-                    // Each bucket spans this amount of time.
-                    final long span = gcd(window, slide);
-
-                    Bucket<Double>[] buckets = (Bucket<Double>[])data.get("mean.buckets");
-                    if (buckets == null) {
-
-                        // The number of buckets is the window or span
-                        // (which ever is greater) divided
-                        // by the amount of time it spans. Thus, if
-                        // there is a 5 second window with a 2 second slide,
-                        // the greatest common factor is 1 second and we end
-                        // up with 5 buckets. But if the slide was 7 seconds,
-                        // you'd end up with 7 buckets. This lets us fill
-                        // up buckets without worrying about whether the
-                        // window is greater than, equal to, or less than
-                        // the slide.
-                        // Note: we add 1 so there is a bucket for when
-                        // a value comes in for the next window, but before
-                        // the window has been moved.
-                        final int numberOfBuckets = (int)(Math.max(slide,window) / span) + 1;
-                        buckets = new Bucket[numberOfBuckets];
-                        for (int i = 0; i<numberOfBuckets; i++) {
-                            buckets[i] = new Bucket(0d);
-                        }
-                        data.put("mean.buckets", buckets);
-                    }
-
-                    // bucketZero is the index of the zeroth bucket
-                    // in the buckets array. This allows the buckets array
-                    // to be treated as a circular buffer so we don't have
-                    // to move array elements when the window slides.
-                    Integer bucketZero = (Integer)data.get("mean.bucketZero");
-                    if (bucketZero == null) {
-                        bucketZero = 0;
-                        data.put("mean.bucketZero", bucketZero);
+                    SlidingWindow.Mean window = (SlidingWindow.Mean)data.get("mean.window");
+                    if (window == null || !window.isFor(configuration)) {
+                        window = new SlidingWindow.Mean(configuration, now);
+                        data.put("mean.window", window);
                     }
 
-                    // Which bucket are we working on is calculated
-                    // by the dividing the amount of time we are into
-                    // the window by the span of time represented by
-                    // one bucket. For example, say we have a 2 second
-                    // slide and a 10 second window giving us 5 buckets.
-                    // Say our window started at 20 seconds and the
-                    // value arrives at 25 seconds (5 seconds into the
-                    // window). The value, then should be added to the
-                    // third bucket (buckets[2]) since that bucket
-                    // represents the time from 4 seconds to 6 seconds
-                    // into the current window.
-                    final int bucketIndex = (int)((now - windowStartTime) / span);
-                    final int bucket = (bucketZero + bucketIndex) % buckets.length;
-
-                    // May throw ClassCastException
-                    Number number = (Number)value;
-
-                    buckets[bucket].value += number.doubleValue();
-                    buckets[bucket].terms += 1;
-
+                    // may throw ClassCastException
+                    window.add(now, ((Number)value).doubleValue());
                     return false;
                 }
 
                 @Override
-                @SuppressWarnings({"unchecked"})
                 public Object get(DeviceAnalog deviceAnalog,
                                   String attribute,
                                   Map<String, ?> configuration,
                                   Map<String, Object> data) {
 
-                    final Bucket<Double>[] buckets = (Bucket[])data.get("mean.buckets");
-                    if (buckets == null) {
+                    final SlidingWindow window = (SlidingWindow)data.get("mean.window");
+                    if (window == null) {
                         // must have called get before apply
                         return null;
                     }
-
-                    final Integer bucketZero = (Integer)data.get("mean.bucketZero");
-                    assert bucketZero != null;
-                    if (bucketZero == null) {
-                        // if buckets is not null, but bucketZero is,
-                        // something is wrong with our implementation
-                        return null;
-                    }
-
-                    // The greatest common factor between the
-                    // window and the slide represents the greatest
-                    // amount of time that goes evenly into
-                    // both window and slide.
-                    final long window = getWindow(configuration);
-                    final long slide = getSlide(configuration, window);
-
-                    // Each bucket spans this amount of time.
-                    final long span = gcd(window, slide);
-
-                    // The number of buckets that make up a window
-                    final int bucketsPerWindow = (int)(window / span);
-
-                    // The number of buckets that make up the slide
-                    final int bucketsPerSlide = (int)(slide / span);
-
-                    // update windowStartTime for the next window.
-                    // The new windowStartTime is just the current window
-                    // start time plus the slide.
-                    Long windowStartTime = (Long)data.get("mean.windowStartTime");
-                    assert windowStartTime != null;
-                    if (windowStartTime == null) {
-                        windowStartTime = System.currentTimeMillis();
-                    }
-                    data.put("mean.windowStartTime", windowStartTime + span * bucketsPerSlide);
-
-                    // update bucketZero index. bucketZero is the index
-                    // of the zeroth bucket in the circular buckets array.
-                    data.put("mean.bucketZero", (bucketZero + bucketsPerSlide) % buckets.length);
-
-                    double sum = 0;
-                    int terms = 0;
-
-                    // Loop through the number of buckets in the
-                    // window and sum them up.
-                    for (int i=0; i<bucketsPerWindow; i++) {
-                        final int index = (bucketZero + i) % buckets.length;
-                        Bucket<Double> bucket = buckets[index];
-                        sum += bucket.value;
-                        terms += bucket.terms;
-                    }
-
-                    // Now slide the window
-                    for (int i=0; i<bucketsPerSlide; i++) {
-                        Bucket bucket = buckets[(bucketZero + i) % buckets.length];
-                        bucket.value = 0d;
-                        bucket.terms = 0;
-                    }
-
-                    if ((Double.compare(sum, ZERO) == 0)
-                            || (terms == 0)) {
-                        return null;
-                    }
-                    return sum / terms;
+                    return window.get();
                 }
 
                 @Override
@@ -496,7 +309,6 @@ public abstract class DeviceFunction {
             new DeviceFunction("min") {
 
                 @Override
-                @SuppressWarnings({"unchecked"})
                 public boolean apply(DeviceAnalog deviceAnalog,
                                      String attribute,
                                      Map<String, ?> configuration,
@@ -504,99 +316,34 @@ public abstract class DeviceFunction {
                                      Object value) {
 
                     //
-                    // See DeviceFunction("mean") for details on handling slide
+                    // See SlidingWindow for details on handling slide
                     // and what all this bucket stuff is about
                     //
                     final long now = System.currentTimeMillis();
 
-                    Long windowStartTime = (Long)data.get("min.windowStartTime");
-                    if (windowStartTime == null) {
-                        windowStartTime = now;
-                        data.put("min.windowStartTime", windowStartTime);
-                    }
-
-                    final long window = getWindow(configuration);
-                    final long slide = getSlide(configuration, window);
-                    final long span = gcd(window, slide);
-
-                    Bucket<Number>[] buckets = (Bucket<Number>[])data.get("min.buckets");
-                    if (buckets == null) {
-                        final int numberOfBuckets = (int)(Math.min(slide,window) / span) + 1;
-                        buckets = new Bucket[numberOfBuckets];
-                        for (int i = 0; i<numberOfBuckets; i++) {
-                            buckets[i] = new Bucket<Number>(Double.MAX_VALUE);
-                        }
-                        data.put("min.buckets", buckets);
-                    }
-
-                    Integer bucketZero = (Integer)data.get("min.bucketZero");
-                    if (bucketZero == null) {
-                        bucketZero = 0;
-                        data.put("min.bucketZero", bucketZero);
+                    SlidingWindow.Extreme window = (SlidingWindow.Extreme)data.get("min.window");
+                    if (window == null || !window.isFor(configuration)) {
+                        window = new SlidingWindow.Extreme(configuration, now, false);
+                        data.put("min.window", window);
                     }
 
-                    final int bucketIndex = (int)((now - windowStartTime) / span);
-                    final int bucket = (bucketZero + bucketIndex) % buckets.length;
-
                     // may throw ClassCastException
-                    Number num = (Number) value;
-                    Number min = buckets[bucket].value;
-
-                    buckets[bucket].value = Double.compare(num.doubleValue(), min.doubleValue()) <= 0 ? num : min;
+                    window.add(now, ((Number)value).doubleValue());
                     return false;
-
                 }
 
                 @Override
-                @SuppressWarnings({"unchecked"})
                 public Object get(DeviceAnalog deviceAnalog,
                                   String attribute,
                                   Map<String, ?> configuration,
                                   Map<String, Object> data) {
 
-                    // See DeviceFunction("mean")#get for explanation of slide and buckets
-                    final Bucket<Number>[] buckets = (Bucket[])data.get("min.buckets");
-                    if (buckets == null) {
+                    final SlidingWindow window = (SlidingWindow)data.get("min.window");
+                    if (window == null) {
                         // must have called get before apply
                         return null;
                     }
-
-                    final Integer bucketZero = (Integer)data.get("min.bucketZero");
-                    assert bucketZero != null;
-                    if (bucketZero == null) {
-                        // if buckets is not null, but bucketZero is,
-                        // something is wrong with our implementation
-                        return null;
-                    }
-
-                    final long window = getWindow(configuration);
-                    final long slide = getSlide(configuration, window);
-                    final long span = gcd(window, slide);
-                    final int bucketsPerWindow = (int)(window / span);
-                    final int bucketsPerSlide = (int)(slide / span);
-
-                    Long windowStartTime = (Long)data.get("min.windowStartTime");
-                    assert windowStartTime != null;
-                    if (windowStartTime == null) {
-                        windowStartTime = System.currentTimeMillis();
-                    }
-                    data.put("min.windowStartTime", windowStartTime + span * bucketsPerSlide);
-                    data.put("min.bucketZero", (bucketZero + bucketsPerSlide) % buckets.length);
-
-                    Number min = Double.MAX_VALUE;
-
-                    for (int i=0; i<bucketsPerWindow; i++) {
-                        final int index = (bucketZero + i) % buckets.length;
-                        Bucket<Number> bucket = buckets[index];
-                        Number num = bucket.value;
-                        min = Double.compare(num.doubleValue(), min.doubleValue()) <= 0 ? num : min;
-                    }
-
-                    for (int i=0; i<bucketsPerSlide; i++) {
-                        Bucket<Number> bucket = buckets[(bucketZero + i) % buckets.length];
-                        bucket.value = Double.MAX_VALUE;
-                    }
-                    return min;
+                    return window.get();
                 }
 
                 @Override
@@ -626,7 +373,6 @@ public abstract class DeviceFunction {
             new DeviceFunction("max") {
 
                 @Override
-                @SuppressWarnings({"unchecked"})
                 public boolean apply(DeviceAnalog deviceAnalog,
                                      String attribute,
                                      Map<String, ?> configuration,
@@ -634,100 +380,34 @@ public abstract class DeviceFunction {
                                      Object value) {
 
                     //
-                    // See DeviceFunction("mean") for details on handling slide
+                    // See SlidingWindow for details on handling slide
                     // and what all this bucket stuff is about
                     //
                     final long now = System.currentTimeMillis();
 
-                    Long windowStartTime = (Long)data.get("max.windowStartTime");
-                    if (windowStartTime == null) {
-                        windowStartTime = now;
-                        data.put("max.windowStartTime", windowStartTime);
-                    }
-
-                    final long window = getWindow(configuration);
-                    final long slide = getSlide(configuration, window);
-                    final long span = gcd(window, slide);
-
-                    Bucket<Number>[] buckets = (Bucket<Number>[])data.get("max.buckets");
-                    if (buckets == null) {
-                        final int numberOfBuckets = (int)(Math.max(slide,window) / span) + 1;
-                        buckets = new Bucket[numberOfBuckets];
-                        for (int i = 0; i<numberOfBuckets; i++) {
-                            buckets[i] = new Bucket<Number>(Double.MIN_VALUE);
-                        }
-                        data.put("max.buckets", buckets);
-                    }
-
-                    Integer bucketZero = (Integer)data.get("max.bucketZero");
-                    if (bucketZero == null) {
-                        bucketZero = 0;
-                        data.put("max.bucketZero", bucketZero);
+                    SlidingWindow.Extreme window = (SlidingWindow.Extreme)data.get("max.window");
+                    if (window == null || !window.isFor(configuration)) {
+                        window = new SlidingWindow.Extreme(configuration, now, true);
+                        data.put("max.window", window);
                     }
 
-                    final int bucketIndex = (int)((now - windowStartTime) / span);
-                    final int bucket = (bucketZero + bucketIndex) % buckets.length;
-
                     // may throw ClassCastException
-                    Number num = (Number) value;
-                    Number max = buckets[bucket].value;
-
-                    buckets[bucket].value = Double.compare(num.doubleValue(), max.doubleValue()) <= 0 ? max : num;
+                    window.add(now, ((Number)value).doubleValue());
                     return false;
-
                 }
 
                 @Override
-                @SuppressWarnings({"unchecked"})
                 public Object get(DeviceAnalog deviceAnalog,
                                   String attribute,
                                   Map<String, ?> configuration,
                                   Map<String, Object> data) {
 
-                    // See DeviceFunction("mean")#get for explanation of slide and buckets
-                    final Bucket<Number>[] buckets = (Bucket[])data.get("max.buckets");
-                    if (buckets == null) {
+                    final SlidingWindow window = (SlidingWindow)data.get("max.window");
+                    if (window == null) {
                         // must have called get before apply
                         return null;
                     }
-
-                    final Integer bucketZero = (Integer)data.get("max.bucketZero");
-                    assert bucketZero != null;
-                    if (bucketZero == null) {
-                        // if buckets is not null, but bucketZero is,
-                        // something is wrong with our implementation
-                        return null;
-                    }
-
-                    final long window = getWindow(configuration);
-                    final long slide = getSlide(configuration, window);
-                    final long span = gcd(window, slide);
-                    final int bucketsPerWindow = (int)(window / span);
-                    final int bucketsPerSlide = (int)(slide / span);
-
-                    Long windowStartTime = (Long)data.get("max.windowStartTime");
-                    assert windowStartTime != null;
-                    if (windowStartTime == null) {
-                        windowStartTime = System.currentTimeMillis();
-                    }
-                    data.put("max.windowStartTime", windowStartTime + span * bucketsPerSlide);
-                    data.put("max.bucketZero", (bucketZero + bucketsPerSlide) % buckets.length);
-
-                    Number max = Double.MIN_VALUE;
-
-                    for (int i=0; i<bucketsPerWindow; i++) {
-                        final int index = (bucketZero + i) % buckets.length;
-                        Bucket<Number> bucket = buckets[index];
-                        Number num = bucket.value;
-                        max = Double.compare(num.doubleValue(), max.doubleValue()) <= 0 ? max : num;
-                    }
-
-                    for (int i=0; i<bucketsPerSlide; i++) {
-                        Bucket<Number> bucket = buckets[(bucketZero + i) % buckets.length];
-                        bucket.value = Double.MIN_VALUE;
-                    }
-
-                    return max;
+                    return window.get();
                 }
 
                 @Override
@@ -757,7 +437,6 @@ public abstract class DeviceFunction {
             new DeviceFunction("standardDeviation") {
 
                 @Override
-                @SuppressWarnings({"unchecked"})
                 public boolean apply(DeviceAnalog deviceAnalog,
                                      String attribute,
                                      Map<String, ?> configuration,
@@ -765,120 +444,34 @@ public abstract class DeviceFunction {
                                      Object value) {
 
                     //
-                    // See DeviceFunction("mean") for details on handling slide
+                    // See SlidingWindow for details on handling slide
                     // and what all this bucket stuff is about
                     //
                     final long now = System.currentTimeMillis();
 
-                    Long windowStartTime = (Long)data.get("standardDeviation.windowStartTime");
-                    if (windowStartTime == null) {
-                        windowStartTime = now;
-                        data.put("standardDeviation.windowStartTime", windowStartTime);
-                    }
-
-                    final long window = getWindow(configuration);
-                    final long slide = getSlide(configuration, window);
-                    final long span = gcd(window, slide);
-
-                    Bucket<List<Number>>[] buckets = (Bucket<List<Number>>[])data.get("standardDeviation.buckets");
-                    if (buckets == null) {
-                        final int numberOfBuckets = (int)(Math.min(slide,window) / span) + 1;
-                        buckets = new Bucket[numberOfBuckets];
-                        for (int i = 0; i<numberOfBuckets; i++) {
-                            buckets[i] = new Bucket<List<Number>>(new ArrayList<Number>());
-                        }
-                        data.put("standardDeviation.buckets", buckets);
-                    }
-
-                    Integer bucketZero = (Integer)data.get("standardDeviation.bucketZero");
-                    if (bucketZero == null) {
-                        bucketZero = 0;
-                        data.put("standardDeviation.bucketZero", bucketZero);
+                    SlidingWindow.StandardDeviation window = (SlidingWindow.StandardDeviation)data.get("standardDeviation.window");
+                    if (window == null || !window.isFor(configuration)) {
+                        window = new SlidingWindow.StandardDeviation(configuration, now);
+                        data.put("standardDeviation.window", window);
                     }
 
-                    final int bucketIndex = (int)((now - windowStartTime) / span);
-                    final int bucket = (bucketZero + bucketIndex) % buckets.length;
-
-
                     // may throw ClassCastException
-                    Number number = (Number) value;
-                    buckets[bucket].value.add(number);
-
+                    window.add(now, ((Number)value).doubleValue());
                     return false;
                 }
 
                 @Override
-                @SuppressWarnings({"unchecked"})
                 public Object get(DeviceAnalog deviceAnalog,
                                   String attribute,
                                   Map<String, ?> configuration,
                                   Map<String, Object> data) {
 
-                    // See DeviceFunction("mean")#get for explanation of slide and buckets
-                    final Bucket<List<Number>>[] buckets = (Bucket[])data.get("standardDeviation.buckets");
-                    if (buckets == null) {
+                    final SlidingWindow window = (SlidingWindow)data.get("standardDeviation.window");
+                    if (window == null) {
                         // must have called get before apply
                         return null;
                     }
-
-                    final Integer bucketZero = (Integer)data.get("standardDeviation.bucketZero");
-                    assert bucketZero != null;
-                    if (bucketZero == null) {
-                        // if buckets is not null, but bucketZero is,
-                        // something is wrong with our implementation
-                        return null;
-                    }
-
-                    final long window = getWindow(configuration);
-                    final long slide = getSlide(configuration, window);
-                    final long span = gcd(window, slide);
-                    final int bucketsPerWindow = (int)(window / span);
-                    final int bucketsPerSlide = (int)(slide / span);
-
-                    Long windowStartTime = (Long)data.get("standardDeviation.windowStartTime");
-                    assert windowStartTime != null;
-                    if (windowStartTime == null) {
-                        windowStartTime = System.currentTimeMillis();
-                    }
-                    data.put("standardDeviation.windowStartTime", windowStartTime + span * bucketsPerSlide);
-                    data.put("standardDeviation.bucketZero", (bucketZero + bucketsPerSlide) % buckets.length);
-
-                    List<Number> terms = new ArrayList<Number>();
-
-                    for (int i=0; i<bucketsPerWindow; i++) {
-                        final int index = (bucketZero + i) % buckets.length;
-                        Bucket<List<Number>> bucket = buckets[index];
-                        List<Number> values = bucket.value;
-                        terms.addAll(values);
-                    }
-
-                    double sum = 0;
-                    for (int n = 0, nMax = terms.size(); n < nMax; n++) {
-                        double d = terms.get(n).doubleValue();
-                        sum += d;
-                    }
-
-                    double mean = sum / terms.size();
-
-                    for (int n = 0, nMax = terms.size(); n < nMax; n++) {
-                        double d = terms.get(n).doubleValue() - mean;
-                        terms.set(n, Math.pow(d, 2));
-                    }
-
-                    sum = 0d;
-                    for (int n = 0, nMax = terms.size(); n < nMax; n++) {
-                        double d = terms.get(n).doubleValue();
-                        sum += d;
-                    }
-                    mean = sum / terms.size();
-
-                    double stdDeviation = Math.sqrt(mean);
-
-                    for (int i=0; i<bucketsPerSlide; i++) {
-                        Bucket<List<Number>> bucket = buckets[(bucketZero + i) % buckets.length];
-                        bucket.value.clear();
-                    }
-                    return stdDeviation;
+                    return window.get();
                 }
 
                 @Override
@@ -916,20 +509,7 @@ public abstract class DeviceFunction {
                                      Map<String, Object> data,
                                      Object value) {
 
-                    final BatchByPersistence batchByPersistence = BatchByPersistence.getInstance();
-                    if (batchByPersistence != null) {
-                        final Message message = ((Pair<Message,StorageObject>)value).getKey();
-                        batchByPersistence.save(message, deviceAnalog.getEndpointId());
-
-                    } else {
-                        List<Object> list = (List<Object>) data.get("batchBySize.value");
-                        if (list == null) {
-                            list = new ArrayList<Object>();
-                            data.put("batchBySize.value", list);
-                        }
-
-                        list.add(value);
-                    }
+                    addToBatch(deviceAnalog, data, "batchBySize.value", (Pair<Message,StorageObject>)value);
 
                     Integer batchCount = (Integer)data.get("batchBySize.batchCount");
                     if (batchCount == null) {
@@ -949,21 +529,12 @@ public abstract class DeviceFunction {
                 }
 
                 @Override
-                @SuppressWarnings({"unchecked"})
                 public Object get(DeviceAnalog deviceAnalog,
                                   String attribute,
                                   Map<String, ?> configuration,
                                   Map<String, Object> data) {
                     data.put("batchBySize.batchCount", 0);
-                    final BatchByPersistence batchByPersistence = BatchByPersistence.getInstance();
-                    if (batchByPersistence != null) {
-                        final List<Pair<Message,StorageObject>> value = getPersistedBatchedData(batchByPersistence, deviceAnalog);
-                        return value;
-
-                    } else {
-                        final Object value = data.remove("batchBySize.value");
-                        return value;
-                    }
+                    return drainBatch(deviceAnalog, data, "batchBySize.value");
                 }
 
                 @Override
@@ -973,9 +544,120 @@ public abstract class DeviceFunction {
 
             };
 
+    // When batch-by persistence is enabled, each message is saved as it is
+    // batched (the default of 1). A larger size saves that many at a time,
+    // with one transaction, but messages that have not been saved yet are
+    // lost if the process exits before the batch is sent.
+    private static final int BATCH_BY_PERSISTENCE_CHUNK_SIZE = Math.max(
+            Integer.getInteger("oracle.iot.client.device.batch_by_persistence_chunk_size", 1), 1);
+
+    // The endpoints whose batch-by persistence rows from an earlier run have
+    // been taken into a batch. Guarded by the lock on RECOVERED_ENDPOINTS.
+    private static final Set<String> RECOVERED_ENDPOINTS = new HashSet<String>();
+
+    // Add the value to the batch of a batchBy function. If batch-by
+    // persistence is enabled, the rows of the batch that have not been
+    // saved are saved when there are enough of them.
+    private static void addToBatch(DeviceAnalog deviceAnalog,
+                                   Map<String, Object> data,
+                                   String key,
+                                   Pair<Message,StorageObject> value) {
+        final BatchByPersistence batchByPersistence = BatchByPersistence.getInstance();
+        final MessageBatch batch = getBatch(batchByPersistence, deviceAnalog, data, key);
+        if (batchByPersistence == null) {
+            batch.add(value);
+            return;
+        }
+
+        // Hold the batch so that a drain does not come between saving
+        // the rows and counting them as saved.
+        synchronized (batch) {
+            batch.add(value);
+            final int unpersisted = batch.size() - batch.getPersisted();
+            if (unpersisted >= BATCH_BY_PERSISTENCE_CHUNK_SIZE) {
+                // The only row not saved is this message, so save it as
+                // it is rather than building it again from the batch.
+                batchByPersistence.save(unpersisted == 1
+                                ? Collections.singletonList(value.getKey())
+                                : batch.getUnpersistedMessages(),
+                        deviceAnalog.getEndpointId());
+                batch.markPersisted();
+            }
+        }
+    }
+
+    // Get the batched messages of a batchBy function, and delete the rows
+    // of the batch that were saved to batch-by persistence, if enabled.
+    // Rows saved by other batches of the endpoint are not touched.
+    private static List<Pair<Message,StorageObject>> drainBatch(DeviceAnalog deviceAnalog,
+                                                                Map<String, Object> data,
+                                                                String key) {
+        final BatchByPersistence batchByPersistence = BatchByPersistence.getInstance();
+        if (batchByPersistence == null) {
+            final MessageBatch batch = (MessageBatch) data.get(key);
+            return batch != null ? batch.drain() : null;
+        }
+
+        final MessageBatch batch = getBatch(batchByPersistence, deviceAnalog, data, key);
+        synchronized (batch) {
+            final int persisted = batch.getPersisted();
+            final List<Pair<Message,StorageObject>> pairs = batch.drain();
+            if (persisted > 0) {
+                // The messages are built with the client ids they were
+                // saved with, which is what delete goes by.
+                final List<Message> messages = new ArrayList<Message>(persisted);
+                for (int n = 0; n < persisted; n++) {
+                    messages.add(pairs.get(n).getKey());
+                }
+                batchByPersistence.delete(messages);
+            }
+            return pairs;
+        }
+    }
+
+    private static MessageBatch getBatch(BatchByPersistence batchByPersistence,
+                                         DeviceAnalog deviceAnalog,
+                                         Map<String, Object> data,
+                                         String key) {
+        MessageBatch batch = (MessageBatch) data.get(key);
+        if (batch == null) {
+            batch = new MessageBatch();
+            data.put(key, batch);
+        }
+        if (batchByPersistence != null) {
+            recoverPersistedBatchedData(batchByPersistence, deviceAnalog, batch);
+        }
+        return batch;
+    }
+
+    // The first time a batch of an endpoint is used, add the rows that an
+    // earlier run saved for the endpoint, and did not send, to the batch.
+    // They stay in persistence until the batch is drained. Nothing of this
+    // run has been saved for the endpoint yet, so every row is from before.
+    private static void recoverPersistedBatchedData(BatchByPersistence batchByPersistence,
+                                                    DeviceAnalog deviceAnalog,
+                                                    MessageBatch batch) {
+        final String endpointId = deviceAnalog.getEndpointId();
+        synchronized (RECOVERED_ENDPOINTS) {
+            if (!RECOVERED_ENDPOINTS.add(endpointId)) {
+                return;
+            }
+            final List<Pair<Message,StorageObject>> pairs =
+                    getPersistedBatchedData(batchByPersistence, deviceAnalog);
+            if (pairs.isEmpty()) {
+                return;
+            }
+            synchronized (batch) {
+                for (Pair<Message,StorageObject> pair : pairs) {
+                    batch.add(pair);
+                }
+                batch.markPersisted();
+            }
+        }
+    }
+
     private static List<Pair<Message,StorageObject>> getPersistedBatchedData(BatchByPersistence batchByPersistence, DeviceAnalog deviceAnalog) {
         final List<Message> messages = batchByPersistence.load(deviceAnalog.getEndpointId());
-        batchByPersistence.delete(messages);
 
 //        final DeviceModelImpl deviceModel = (DeviceModelImpl)deviceAnalog.getDeviceModel();
 //        final Map<String,DeviceModelAttribute> deviceModelAttributes = deviceModel.getDeviceModelAttributes();
@@ -1015,41 +697,19 @@ public abstract class DeviceFunction {
                                      Map<String, Object> data,
                                      Object value) {
 
-                    final BatchByPersistence batchByPersistence = BatchByPersistence.getInstance();
-                    if (batchByPersistence != null) {
-                        final Message message = ((Pair<Message,StorageObject>)value).getKey();
-                        batchByPersistence.save(message, deviceAnalog.getEndpointId());
-
-                    } else {
-                        List<Object> list = (List<Object>) data.get("batchByTime.value");
-                        if (list == null) {
-                            list = new ArrayList<>();
-                            data.put("batchByTime.value", list);
-                        }
-
-                        list.add(value);
-                    }
+                    addToBatch(deviceAnalog, data, "batchByTime.value", (Pair<Message,StorageObject>)value);
 
                     return false;
 
                 }
 
                 @Override
-                @SuppressWarnings({"unchecked"})
                 public Object get(DeviceAnalog deviceAnalog,
                                   String attribute,
                                   Map<String, ?> configuration,
                                   Map<String, Object> data) {
 
-                    final BatchByPersistence batchByPersistence = BatchByPersistence.getInstance();
-                    if (batchByPersistence != null) {
-                        final List<Pair<Message,StorageObject>> value = getPersistedBatchedData(batchByPersistence, deviceAnalog);
-                        return value;
-
-                    } else {
-                        final Object value = data.remove("batchByTime.value");
-                        return value;
-                    }
+                    return drainBatch(deviceAnalog, data, "batchByTime.value");
                 }
 
                 @Override
@@ -1100,20 +760,7 @@ public abstract class DeviceFunction {
                                      Map<String, Object> data,
                                      Object value) {
 
-                    final BatchByPersistence batchByPersistence = BatchByPersistence.getInstance();
-                    if (batchByPersistence != null) {
-                        final Message message = ((Pair<Message,StorageObject>)value).getKey();
-                        batchByPersistence.save(message, deviceAnalog.getEndpointId());
-
-                    } else {
-                        List<Object> list = (List<Object>) data.get("batchByCost.value");
-                        if (list == null) {
-                            list = new ArrayList<>();
-                            data.put("batchByCost.value", list);
-                        }
-
-                        list.add(value);
-                    }
+                    addToBatch(deviceAnalog, data, "batchByCost.value", (Pair<Message,StorageObject>)value);
 
                     final int configuredCost =
                             NetworkCost.getCost(
@@ -1142,20 +789,11 @@ public abstract class DeviceFunction {
                 }
 
                 @Override
-                @SuppressWarnings({"unchecked"})
                 public Object get(DeviceAnalog deviceAnalog,
                                   String attribute,
                                   Map<String, ?> configuration,
                                   Map<String, Object> data) {
-                    final BatchByPersistence batchByPersistence = BatchByPersistence.getInstance();
-                    if (batchByPersistence != null) {
-                        final List<Pair<Message,StorageObject>> value = getPersistedBatchedData(batchByPersistence, deviceAnalog);
-                        return value;
-
-                    } else {
-                        final Object value = data.remove("batchByCost.value");
-                        return value;
-                    }
+                    return drainBatch(deviceAnalog, data, "batchByCost.value");
                 }
 
                 @Override
@@ -1414,19 +1052,16 @@ public abstract class DeviceFunction {
                                      Map<String, Object> data,
                                      Object value) {
 
-                    FormulaParser.Node condition = (FormulaParser.Node) data.get("alertCondition.condition");
+                    CompiledFormula condition = (CompiledFormula) data.get("alertCondition.condition");
                     if (condition == null) {
                         final String str = (String)configuration.get("condition");
-                        List<FormulaParser.Token> tokens = FormulaParser.tokenize(str);
-                        Stack<FormulaParser.Node> stack = new Stack<FormulaParser.Node>();
-                        FormulaParser.parseConditionalOrExpression(stack, tokens, str, 0);
-                        condition = stack.pop();
+                        condition = FormulaCache.getCondition(str);
                         data.put("alertCondition.condition", condition);
                     }
 
-                    final Double computedValue = (Double)compute(condition, deviceAnalog);
-                    if (computedValue.isNaN() || computedValue.isInfinite()
-                            || computedValue.compareTo(0.0) == 0) { // zero is false
+                    final double computedValue = condition.computeDouble(new ValueProviderImpl(deviceAnalog));
+                    if (Double.isNaN(computedValue) || Double.isInfinite(computedValue)
+                            || Double.compare(computedValue, 0.0) == 0) { // zero is false
                         data.put("alertCondition.value", value);
                         return true;
                     }
@@ -1496,16 +1131,15 @@ public abstract class DeviceFunction {
                                      Map<String, Object> data,
                                      Object value) {
 
-                    FormulaParser.Node formula = (FormulaParser.Node) data.get("computedMetric.formula");
+                    CompiledFormula formula = (CompiledFormula) data.get("computedMetric.formula");
                     if (formula == null) {
                         final String str = (String)configuration.get("formula");
-                        List<FormulaParser.Token> tokens = FormulaParser.tokenize(str);
-                        formula = FormulaParser.parseFormula(tokens, str);
+                        formula = FormulaCache.getFormula(str);
                         data.put("computedMetric.formula", formula);
                     }
 
-                    final Double computedValue = (Double)compute(formula, deviceAnalog);
-                    if (computedValue.isNaN() || computedValue.isInfinite()) {
+                    final double computedValue = formula.computeDouble(new ValueProviderImpl(deviceAnalog));
+                    if (Double.isNaN(computedValue) || Double.isInfinite(computedValue)) {
                         return false;
                     }
 
@@ -1539,19 +1173,16 @@ public abstract class DeviceFunction {
                                      Map<String, Object> data,
                                      Object value) {
 
-                    FormulaParser.Node condition = (FormulaParser.Node) data.get("actionCondition.condition");
+                    CompiledFormula condition = (CompiledFormula) data.get("actionCondition.condition");
                     if (condition == null) {
                         final String str = (String)configuration.get("condition");
-                        List<FormulaParser.Token> tokens = FormulaParser.tokenize(str);
-                        Stack<FormulaParser.Node> stack = new Stack<FormulaParser.Node>();
-                        FormulaParser.parseConditionalOrExpression(stack, tokens, str, 0);
-                        condition = stack.pop();
+                        condition = FormulaCache.getCondition(str);
                         data.put("actionCondition.condition", condition);
                     }
 
-                    final Double computedValue = (Double)compute(condition, deviceAnalog);
-                    if (computedValue.isNaN() || computedValue.isInfinite()
-                            || computedValue.compareTo(0.0) == 0) { // zero is false
+                    final double computedValue = condition.computeDouble(new ValueProviderImpl(deviceAnalog));
+                    if (Double.isNaN(computedValue) || Double.isInfinite(computedValue)
+                            || Double.compare(computedValue, 0.0) == 0) { // zero is false
                         data.put("actionCondition.value", value);
                         return true;
                     }
@@ -1727,9 +1358,7 @@ public abstract class DeviceFunction {
 
         // If arg is a String, it should be a FORMULA
         try {
-            final List<FormulaParser.Token> tokens = FormulaParser.tokenize(formula);
-            final FormulaParser.Node node = FormulaParser.parseFormula(tokens, formula);
-            return compute(node, deviceAnalog);
+            return FormulaCache.getFormula(formula).compute(new ValueProviderImpl(deviceAnalog));
         } catch (IllegalArgumentException e) {
             getLogger().log(Level.WARNING, "field in formula not in device model: " + formula);
         }
@@ -1855,10 +1484,6 @@ public abstract class DeviceFunction {
     }
 
 
-    static Object compute(FormulaParser.Node node, DeviceAnalog deviceAnalog) {
-        return Formula.compute(node, new ValueProviderImpl(deviceAnalog));
-    }
-
     // greatest common factor, e.g., gcd(90,60) = 30
     static long gcd(long x, long y){
         return (y == 0) ? x : gcd(y, x % y);
@@ -1900,22 +1525,6 @@ public abstract class DeviceFunction {
         POLICY_MAP = Collections.unmodifiableMap(policyMap);
     }
 
-    // A bucket used for slide (see comments in the 'mean' function)
-    // <T> Is the type of value
-    private static class Bucket<T> {
-        T value;
-        int terms;
-        Bucket(T initialValue) {
-            this.value = initialValue;
-            this.terms = 0;
-        }
-
-        @Override
-        public String toString() {
-            return "{\"value\" : " + value + ", \"terms\" : " + terms + "}";
-        }
-    }
-
     private DeviceFunction(String id) {
         this.id = id;
     }
@@ -1950,7 +1559,6 @@ class ValueProviderImpl implements ValueProvider {
             return null;
         }
 
-        return DeviceFunction.getInProcessValue(deviceAnalog.getEndpointId(),
-            deviceAnalog.getDeviceModel().getURN(), key);
+        return deviceAnalog.getInProcessValues().get(key);
     }
 }
@@ -31,6 +31,7 @@ import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.security.GeneralSecurityException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 
@@ -38,8 +39,11 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
-import java.util.concurrent.locks.Lock;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -69,6 +73,26 @@ public final class DevicePolicyManager {
         LOCAL_STORE = checkLocalStorePath(localStorePathname);
     }
 
+    // The policies of the indirectly connected devices of a device model are
+    // fetched in bulk, instead of one lookup per device, when at least this
+    // many devices of the model are waiting for their first lookup.
+    private static final int PREFETCH_THRESHOLD;
+
+    // The number of items asked for in each page of a bulk query.
+    private static final int PAGE_LIMIT;
+
+    // The most pages read for one bulk query, in case the server
+    // keeps saying it has more.
+    private static final int MAX_PAGES = 1000;
+
+    static {
+        final int threshold = Integer.getInteger("oracle.iot.client.device.policy_prefetch_threshold", 4);
+        PREFETCH_THRESHOLD = threshold > 0 ? threshold : 4;
+
+        final int limit = Integer.getInteger("oracle.iot.client.device.policy_query_page_size", 200);
+        PAGE_LIMIT = limit > 0 ? limit : 200;
+    }
+
     /**
      * An interface for receiving notification of policies being assigned or unassigned.
      */
@@ -117,7 +141,8 @@ public final class DevicePolicyManager {
     }
 
     /**
-     * Invoke {@code policyAssigned} method on change listeners.
+     * Queue a call to the {@code policyAssigned} method of the change listeners.
+     * The call is made when policyChangeLock is released.
      * @param devicePolicy the assigned policy
      * @param assignedDevices the devices to which the policy was assigned.
      */
@@ -127,25 +152,17 @@ public final class DevicePolicyManager {
             return;
         }
 
-        synchronized (changeListeners) {
-            final Iterator<ChangeListener> iterator = changeListeners.iterator();
-            while (iterator.hasNext()) {
-                final ChangeListener changeListener = iterator.next();
-                try {
-                    changeListener.policyAssigned(devicePolicy, assignedDevices);
-                } catch (Exception e) {
-                    // listener may throw exception.
-                    getLogger().log(Level.SEVERE, e.getMessage(), e);
-                }
-            }
-
-        }
+        // The set may be one of the maps' own, which can change before the
+        // listeners are called.
+        pendingNotifications.add(
+                new PolicyNotification(true, devicePolicy, new HashSet<String>(assignedDevices)));
     }
 
     /**
-     * Invoke {@code policyAssigned} method on change listeners.
-     * @param devicePolicy the assigned policy
-     * @param unassignedDevices the devices to which the policy was assigned.
+     * Queue a call to the {@code policyUnassigned} method of the change listeners.
+     * The call is made when policyChangeLock is released.
+     * @param devicePolicy the unassigned policy
+     * @param unassignedDevices the devices from which the policy was unassigned.
      */
     private void notifyPolicyUnassigned(DevicePolicy devicePolicy, Set<String> unassignedDevices) {
 
@@ -153,19 +170,61 @@ public final class DevicePolicyManager {
             return;
         }
 
-        synchronized (changeListeners) {
-            final Iterator<ChangeListener> iterator = changeListeners.iterator();
-            while (iterator.hasNext()) {
-                final ChangeListener changeListener = iterator.next();
-                try {
-                    changeListener.policyUnassigned(devicePolicy, unassignedDevices);
-                } catch (Exception e) {
-                    // listener may throw exception.
-                    getLogger().log(Level.SEVERE, e.getMessage(), e);
+        pendingNotifications.add(
+                new PolicyNotification(false, devicePolicy, new HashSet<String>(unassignedDevices)));
+    }
+
+    /*
+     * Call the change listeners for the queued notifications, in the order
+     * they were queued. One thread at a time delivers, and no lock is held
+     * while a listener is called, since listeners take locks of their own
+     * and may call getPolicy. If another thread is delivering, it delivers
+     * the notifications queued by this one.
+     */
+    private void deliverNotifications() {
+        // Check again after giving up delivery, in case a notification was
+        // queued by a thread that found delivery taken.
+        while (!pendingNotifications.isEmpty() && delivering.compareAndSet(false, true)) {
+            try {
+                PolicyNotification notification;
+                while ((notification = pendingNotifications.poll()) != null) {
+                    final ChangeListener[] listeners;
+                    synchronized (changeListeners) {
+                        listeners = changeListeners.toArray(new ChangeListener[changeListeners.size()]);
+                    }
+                    for (ChangeListener changeListener : listeners) {
+                        try {
+                            if (notification.assigned) {
+                                changeListener.policyAssigned(notification.devicePolicy, notification.deviceIds);
+                            } else {
+                                changeListener.policyUnassigned(notification.devicePolicy, notification.deviceIds);
+                            }
+                        } catch (Exception e) {
+                            // listener may throw exception.
+                            getLogger().log(Level.SEVERE, e.getMessage(), e);
+                        }
+                    }
                 }
+            } finally {
+                delivering.set(false);
             }
+        }
+    }
 
+    /*
+     * Release policyChangeLock, then write the associations and call the
+     * listeners for the changes made while it was held. Neither is done
+     * with the lock held, so other threads are not kept waiting for file
+     * I/O or for listeners.
+     */
+    private void unlockPolicyChange() {
+        policyChangeLock.unlock();
+        if (policyChangeLock.isHeldByCurrentThread()) {
+            // Done when the outermost hold is released.
+            return;
         }
+        flushAssociations();
+        deliverNotifications();
     }
 
     public static DevicePolicyManager getDevicePolicyManager(DirectlyConnectedDevice directlyConnectedDevice) {
@@ -195,37 +254,38 @@ public final class DevicePolicyManager {
         // for the device model urn and device id when this method is called,
         // there will be by the time this method completes.
         //
-        synchronized (policiesByDeviceId) {
+        // The policy index looks like { <device-id> : { <device-model-urn> : DevicePolicy }}
+        final Map<String, DevicePolicy> devicePolicies = policyIndex.policiesByDeviceId.get(deviceId);
 
-            // policiesByDeviceId looks like { <device-id> : { <device-model-urn> : <policy-id> }}
-            final Map<String, String> devicePolicies = policiesByDeviceId.get(deviceId);
-
-            // If devicePolicies is null, we drop through and do the lookup.
-            if (devicePolicies != null) {
-                //
-                // If the deviceModelURN is not found in the map, we drop through and do the lookup.
-                // There may be a mapping for the device model urn, but the value may be null,
-                // which means that there is no policy for the combination of device model and device.
-                //
-                if (devicePolicies.containsKey(deviceModelURN)) {
-                    final String policyId = devicePolicies.get(deviceModelURN);
-                    final DevicePolicy devicePolicy;
-                    if (policyId != null) {
-                        // Very important that the client has gotten
-                        // the policy before we get here!
-                        devicePolicy = policiesByPolicyId.get(policyId);
-                    } else {
-                        devicePolicy =  null;
-                    }
-                    return devicePolicy;
-                }
-            }
+        // If devicePolicies is null, we drop through and do the lookup.
+        //
+        // If the deviceModelURN is not found in the map, we drop through and do the lookup.
+        // There may be a mapping for the device model urn, but the value may be null,
+        // which means that there is no policy for the combination of device model and device.
+        //
+        if (devicePolicies != null && devicePolicies.containsKey(deviceModelURN)) {
+            return devicePolicies.get(deviceModelURN);
         }
 
         // stop policyChanged while doing this lookup.
         policyChangeLock.lock();
         try {
 
+            // Another thread may have done the lookup while this thread waited for the lock.
+            final Map<String, DevicePolicy> currentPolicies = policyIndex.policiesByDeviceId.get(deviceId);
+            if (currentPolicies != null && currentPolicies.containsKey(deviceModelURN)) {
+                return currentPolicies.get(deviceModelURN);
+            }
+
+            // The devices of a gateway that are waiting for their first lookup
+            // are looked up together, which may include this device.
+            if (prefetchPolicies(deviceModelURN)) {
+                final Map<String, DevicePolicy> prefetchedPolicies = policyIndex.policiesByDeviceId.get(deviceId);
+                if (prefetchedPolicies != null && prefetchedPolicies.containsKey(deviceModelURN)) {
+                    return prefetchedPolicies.get(deviceModelURN);
+                }
+            }
+
             // If we get to here, then there was no mapping for the deviceId in policiesByDeviceId,
             // or there was a mapping for the deviceId, but not for the device model. So we need
             // to do a lookup and update policiesByDeviceId
@@ -245,6 +305,7 @@ public final class DevicePolicyManager {
             // Adding null prevents another lookup.
             final String policyId = devicePolicy != null ? devicePolicy.getId() : null;
             polices.put(deviceModelURN, policyId);
+            publishPolicyIndex(deviceId);
 
             if (devicePolicy != null) {
                 final Set<String> assignedDevices = new HashSet<String>();
@@ -254,11 +315,46 @@ public final class DevicePolicyManager {
 
             return devicePolicy;
         } finally {
-            policyChangeLock.unlock();
+            unlockPolicyChange();
         }
 
     }
 
+    /**
+     * Record that a gateway has registered an indirectly connected device.
+     * If the device does not have a policy for a device model yet, the first
+     * {@code getPolicy} for that device model looks up the policies of this
+     * device and the other devices of the gateway that are waiting, in a few
+     * bulk queries, rather than one query per device.
+     * @param gatewayEndpointId the endpoint id of the gateway
+     * @param deviceId the endpoint id of the indirectly connected device
+     * @param deviceModelUrns the device models of the indirectly connected device
+     */
+    public void indirectlyConnectedDeviceRegistered(String gatewayEndpointId,
+                                                    String deviceId,
+                                                    Collection<String> deviceModelUrns) {
+
+        policyChangeLock.lock();
+        try {
+            this.gatewayEndpointId = gatewayEndpointId;
+
+            final Map<String, String> devicePolicies = policiesByDeviceId.get(deviceId);
+            for (String deviceModelUrn : deviceModelUrns) {
+                if (devicePolicies != null && devicePolicies.containsKey(deviceModelUrn)) {
+                    continue;
+                }
+                Set<String> waiting = unresolvedDeviceIds.get(deviceModelUrn);
+                if (waiting == null) {
+                    waiting = new HashSet<String>();
+                    unresolvedDeviceIds.put(deviceModelUrn, waiting);
+                }
+                waiting.add(deviceId);
+            }
+        } finally {
+            policyChangeLock.unlock();
+        }
+    }
+
     /**
      * Handle {@code deviceModels/urn:oracle:iot:dcd:capability:device_policy/policyChanged}
      * @param requestMessage the RequestMessage from the server
@@ -342,12 +438,10 @@ public final class DevicePolicyManager {
                         if (policies != null) {
                             final Set<String> assignedDevices = policies.remove(policyId);
                             if (assignedDevices != null) {
-                                synchronized (policiesByDeviceId) {
-                                    for (String deviceId : assignedDevices) {
-                                        final Map<String, String> devicePolicies = policiesByDeviceId.get(deviceId);
-                                        if (devicePolicies != null) {
-                                            devicePolicies.remove(policyId);
-                                        }
+                                for (String deviceId : assignedDevices) {
+                                    final Map<String, String> devicePolicies = policiesByDeviceId.get(deviceId);
+                                    if (devicePolicies != null) {
+                                        devicePolicies.remove(policyId);
                                     }
                                 }
                             }
@@ -397,7 +491,8 @@ public final class DevicePolicyManager {
                             .build();
             return responseMessage;
         } finally {
-            policyChangeLock.unlock();
+            publishPolicyIndex();
+            unlockPolicyChange();
         }
 
         final ResponseMessage responseMessage =
@@ -430,12 +525,9 @@ public final class DevicePolicyManager {
             }
         }
 
-        // Download the policy
-        // block getPolicy from accessing policiesByDeviceId while the policy is being updated.
-        final DevicePolicy devicePolicy;
-        synchronized (policiesByDeviceId) {
-            devicePolicy = downloadPolicy(deviceModelUrn, policyId);
-        }
+        // Download the policy. getPolicy does not see the new policy
+        // until the policy index is published.
+        final DevicePolicy devicePolicy = downloadPolicy(deviceModelUrn, policyId);
         if (devicePolicy != null && getLogger().isLoggable(Level.FINE))  {
             getLogger().log(Level.FINE,
                     directlyConnectedDevice.getEndpointId() + " : Policy changed : \"" + devicePolicy.toString());
@@ -520,21 +612,18 @@ public final class DevicePolicyManager {
         }
 
 
-        synchronized (policiesByDeviceId) {
+        // Download the policy. The reason we have to download again
+        // on assign is that the policy may have been modified
+        // while it was not assigned to this device or ICDs.
+        final DevicePolicy newPolicy = downloadPolicy(deviceModelUrn, policyId);
+        policiesByPolicyId.put(policyId, newPolicy);
 
-            // Download the policy. The reason we have to download again
-            // on assign is that the policy may have been modified
-            // while it was not assigned to this device or ICDs.
-            final DevicePolicy newPolicy = downloadPolicy(deviceModelUrn, policyId);
-            policiesByPolicyId.put(policyId, newPolicy);
-
-            for (String deviceId : assignedDevices) {
-                assignPolicyToDevice(
-                        deviceModelUrn,
-                        policyId,
-                        deviceId,
-                        lastModified);
-            }
+        for (String deviceId : assignedDevices) {
+            assignPolicyToDevice(
+                    deviceModelUrn,
+                    policyId,
+                    deviceId,
+                    lastModified);
         }
 
         final DevicePolicy devicePolicy =
@@ -714,20 +803,18 @@ public final class DevicePolicyManager {
         assert  devicePolicy != null;
         notifyPolicyUnassigned(devicePolicy, unassignedDevices);
 
-        synchronized (policiesByDeviceId) {
-            // Now unassignedDevices is the set of device ids that
-            // have been unassigned from this policy.
-            for (String deviceId : unassignedDevices) {
+        // Now unassignedDevices is the set of device ids that
+        // have been unassigned from this policy.
+        for (String deviceId : unassignedDevices) {
 
-                unassignPolicyFromDevice(deviceModelUrn, policyId, deviceId, lastModified);
+            unassignPolicyFromDevice(deviceModelUrn, policyId, deviceId, lastModified);
 
-                if (couldNotGetIcds) {
-                    // unassignPolicyFromDevice takes care of the entry in policiesByDeviceModelUrn
-                    // and takes care of unpersisting the device to policy association.
-                    final Map<String, String> devicePolicies = policiesByDeviceId.get(deviceId);
-                    if (devicePolicies != null) {
-                        devicePolicies.remove(deviceModelUrn);
-                    }
+            if (couldNotGetIcds) {
+                // unassignPolicyFromDevice takes care of the entry in policiesByDeviceModelUrn
+                // and takes care of unpersisting the device to policy association.
+                final Map<String, String> devicePolicies = policiesByDeviceId.get(deviceId);
+                if (devicePolicies != null) {
+                    devicePolicies.remove(deviceModelUrn);
                 }
             }
         }
@@ -1072,78 +1159,253 @@ public final class DevicePolicyManager {
     }
 
     /**
-     * Get the ids of indirectly connected devices that are assigned to the policy.
+     * Look up the policies of the indirectly connected devices of the device
+     * model that are waiting for their first lookup, if there are enough of
+     * them. This is one paged query for the policies of the device model,
+     * and one paged query per policy for the devices of the gateway that
+     * have it, however many devices there are. A device that does not have
+     * any of the policies gets no policy. Called with policyChangeLock held.
      * @param deviceModelUrn the device model urn
-     * @param policyId the policy id to query for
-     * @return the set of indirectly connected device ids for this policy
-     * @throws IOException is thrown by SecureConnection if there is a network error or unexpected HTTP response
-     * @throws GeneralSecurityException is thrown by SecureConnection if there is an error from trusted assets
+     * @return {@code true} if the devices were looked up
      */
-    private Set<String> getIndirectlyConnectedDeviceIdsForPolicy(String deviceModelUrn,
-                                                                String policyId,
-                                                                String directlyConnectedOwner)
-        throws IOException, GeneralSecurityException {
+    private boolean prefetchPolicies(String deviceModelUrn) {
 
+        final Set<String> waiting = unresolvedDeviceIds.remove(deviceModelUrn);
+        if (waiting == null || gatewayEndpointId == null) {
+            return false;
+        }
 
-        final String urn;
+        // Devices may have been assigned a policy, or looked up, since they were registered.
+        final Iterator<String> iterator = waiting.iterator();
+        while (iterator.hasNext()) {
+            final Map<String, String> devicePolicies = policiesByDeviceId.get(iterator.next());
+            if (devicePolicies != null && devicePolicies.containsKey(deviceModelUrn)) {
+                iterator.remove();
+            }
+        }
+
+        if (waiting.size() < PREFETCH_THRESHOLD) {
+            // Not worth a bulk query. The devices are looked up one at a time.
+            return false;
+        }
+
+        // { <policy-id> : <policy json> } and { <policy-id> : [ <device-id>... ] }
+        final Map<String, JSONObject> policyItems = new HashMap<String, JSONObject>();
+        final Map<String, Set<String>> policyDevices = new HashMap<String, Set<String>>();
         try {
-            urn = URLEncoder.encode(deviceModelUrn, "UTF-8");
+            final String fields = URLEncoder.encode("id,pipelines,enabled,lastModified", "UTF-8");
+            final String uri = RestApi.V2.getPrivateRoot() + "/deviceModels/"
+                    + URLEncoder.encode(deviceModelUrn, "UTF-8") + "/devicePolicies?fields=" + fields;
+            for (JSONObject item : getAllItems(uri)) {
+                final String policyId = item.getString("id");
+                policyItems.put(policyId, item);
+
+                // Unlike getIndirectlyConnectedDeviceIdsForPolicy, an error
+                // here stops the prefetch, so no device is wrongly left
+                // without a policy.
+                final Set<String> deviceIds = new HashSet<String>();
+                for (JSONObject device :
+                        getAllItems(indirectlyConnectedDevicesUri(deviceModelUrn, policyId, gatewayEndpointId))) {
+                    deviceIds.add(device.getString("id"));
+                }
+                policyDevices.put(policyId, deviceIds);
+            }
+
         } catch (UnsupportedEncodingException cannot_happen) {
             // UTF-8 is a required encoding.
             // Throw an exception here to make the compiler happy
             throw new RuntimeException(cannot_happen);
+        } catch (JSONException e) {
+            getLogger().log(Level.WARNING, "policies of " + deviceModelUrn + " not prefetched: " + e.getMessage());
+            return false;
+        } catch (IOException e) {
+            getLogger().log(Level.WARNING, "policies of " + deviceModelUrn + " not prefetched: " + e.getMessage());
+            return false;
+        } catch (GeneralSecurityException e) {
+            getLogger().log(Level.WARNING, "policies of " + deviceModelUrn + " not prefetched: " + e.getMessage());
+            return false;
         }
 
-        final String query;
+        // { <policy-id> : [ <device-id>... ] } of the devices that got a policy
+        final Map<String, Set<String>> assigned = new HashMap<String, Set<String>>();
+
+        for (String deviceId : waiting) {
+
+            String policyId = null;
+            for (Map.Entry<String, Set<String>> entry : policyDevices.entrySet()) {
+                if (entry.getValue().contains(deviceId)) {
+                    policyId = entry.getKey();
+                    break;
+                }
+            }
+
+            DevicePolicy devicePolicy = null;
+            if (policyId != null) {
+                // As in lookupPolicyForDevice, a policy that is already known
+                // is not replaced. A changed policy comes through policyChanged.
+                devicePolicy = policiesByPolicyId.get(policyId);
+                if (devicePolicy == null) {
+                    final JSONObject item = policyItems.get(policyId);
+                    try {
+                        devicePolicy = devicePolicyFromJSON(deviceModelUrn, item);
+                    } catch (JSONException e) {
+                        getLogger().log(Level.SEVERE, e.getMessage());
+                        continue;
+                    }
+                    persistPolicy(item);
+                    policiesByPolicyId.put(policyId, devicePolicy);
+                }
+
+                Map<String, Set<String>> policies = policiesByDeviceModelUrn.get(deviceModelUrn);
+                if (policies == null) {
+                    policies = new HashMap<String, Set<String>>();
+                    policiesByDeviceModelUrn.put(deviceModelUrn, policies);
+                }
+                Set<String> deviceIds = policies.get(policyId);
+                if (deviceIds == null) {
+                    deviceIds = new HashSet<String>();
+                    policies.put(policyId, deviceIds);
+                }
+                deviceIds.add(deviceId);
+                persistAssociation(deviceModelUrn, policyId, deviceId);
+
+                Set<String> assignedDevices = assigned.get(policyId);
+                if (assignedDevices == null) {
+                    assignedDevices = new HashSet<String>();
+                    assigned.put(policyId, assignedDevices);
+                }
+                assignedDevices.add(deviceId);
+            }
+
+            // As in getPolicy, the mapping is made even if there is no policy,
+            // which prevents another lookup.
+            Map<String, String> devicePolicies = policiesByDeviceId.get(deviceId);
+            if (devicePolicies == null) {
+                devicePolicies = new HashMap<String, String>();
+                policiesByDeviceId.put(deviceId, devicePolicies);
+            }
+            devicePolicies.put(deviceModelUrn, devicePolicy != null ? policyId : null);
+        }
+
+        publishPolicyIndex();
+
+        for (Map.Entry<String, Set<String>> entry : assigned.entrySet()) {
+            notifyPolicyAssigned(policiesByPolicyId.get(entry.getKey()), entry.getValue());
+        }
+
+        return true;
+    }
+
+    /*
+     * GET iot/privateapi/v2/deviceModels/{urn}/devicePolicies/{id}/devices?q={"directlyConnectedOwner" : "GW-endpoint-id"}
+     */
+    private static String indirectlyConnectedDevicesUri(String deviceModelUrn,
+                                                        String policyId,
+                                                        String directlyConnectedOwner) {
         try {
+            final String urn = URLEncoder.encode(deviceModelUrn, "UTF-8");
             final String icdFilter =
                     URLEncoder.encode("{\"directlyConnectedOwner\":\"" + directlyConnectedOwner + "\"}", "UTF-8");
-            query ="?q=" + icdFilter + "&fields=id";
+            return RestApi.V2.getPrivateRoot() + "/deviceModels/" + urn + "/devicePolicies/" + policyId + "/devices"
+                    + "?q=" + icdFilter + "&fields=id";
         } catch (UnsupportedEncodingException cannot_happen) {
             // UTF-8 is a required encoding.
             // Throw an exception here to make the compiler happy
             throw new RuntimeException(cannot_happen);
         }
+    }
 
-        // GET iot/privateapi/v2/deviceModels/{urn}/devicePolicies/{id}/devices?q={"directlyConnectedOwner" : "GW-endpoint-id"}
-        final String uri =
-                RestApi.V2.getPrivateRoot() + "/deviceModels/" + urn + "/devicePolicies/" + policyId + "/devices" + query;
+    /**
+     * GET every page of a query, and return the items of all of the pages.
+     * An item whose id has already been read is skipped. If a page has no new
+     * items, or there are still more after {@code MAX_PAGES} pages, the items
+     * cannot all be read and an {@code IOException} is thrown rather than
+     * returning some of them.
+     * @param uri the query, without offset and limit
+     * @return the items
+     * @throws IOException is thrown by SecureConnection if there is a network error,
+     * or if the response is not OK, or if not every item could be read
+     * @throws GeneralSecurityException is thrown by SecureConnection if there is an error from trusted assets
+     * @throws JSONException if a response cannot be parsed
+     */
+    private List<JSONObject> getAllItems(String uri)
+            throws IOException, GeneralSecurityException, JSONException {
+
+        final List<JSONObject> items = new ArrayList<JSONObject>();
+        final Set<String> ids = new HashSet<String>();
+        final String separator = uri.indexOf('?') < 0 ? "?" : "&";
+        int offset = 0;
+        for (int pages = 0; pages < MAX_PAGES; pages++) {
+            final String pageUri = uri + separator + "offset=" + offset + "&limit=" + PAGE_LIMIT;
+            final HttpResponse res = secureConnection.get(pageUri);
+            final int status = res.getStatus();
+            if (status != StatusCode.OK.getCode()) {
+                throw new TransportException(status, res.getVerboseStatus("GET", pageUri));
+            }
 
-        final HttpResponse res = secureConnection.get(uri);
-        final int status = res.getStatus();
+            final byte[] data = res.getData();
+            // no data, or empty JSON body
+            if (data == null || data.length <= 2) {
+                return items;
+            }
 
-        if (status != StatusCode.OK.getCode()) {
-            getLogger().log(Level.WARNING, res.getVerboseStatus("GET", uri));
+            final JSONObject page = new JSONObject(new String(data, "UTF-8"));
+            final JSONArray pageItems = page.optJSONArray("items");
+            if (pageItems == null || pageItems.length() == 0) {
+                return items;
+            }
+            final int size = items.size();
+            for (int n = 0, nMax = pageItems.length(); n < nMax; n++) {
+                final JSONObject item = pageItems.getJSONObject(n);
+                if (ids.add(item.getString("id"))) {
+                    items.add(item);
+                }
+            }
+            if (!page.optBoolean("hasMore", false)) {
+                return items;
+            }
+            if (items.size() == size) {
+                throw new IOException("GET " + pageUri
+                        + ": page has no new items, but the response says there are more");
+            }
+            offset += pageItems.length();
         }
 
-        byte[] data = res.getData();
+        throw new IOException("GET " + uri + ": more than " + MAX_PAGES + " pages");
+    }
 
-        // no data, or empty JSON body
-        if (data == null || data.length == 2) {
-            return Collections.<String>emptySet();
-        }
+    /**
+     * Get the ids of indirectly connected devices that are assigned to the policy.
+     * @param deviceModelUrn the device model urn
+     * @param policyId the policy id to query for
+     * @return the set of indirectly connected device ids for this policy
+     * @throws IOException is thrown by SecureConnection if there is a network error or unexpected HTTP response
+     * @throws GeneralSecurityException is thrown by SecureConnection if there is an error from trusted assets
+     */
+    private Set<String> getIndirectlyConnectedDeviceIdsForPolicy(String deviceModelUrn,
+                                                                String policyId,
+                                                                String directlyConnectedOwner)
+        throws IOException, GeneralSecurityException {
 
-        final String body;
-        try {
-            body = new String(data, "UTF-8");
-        } catch (UnsupportedEncodingException cannot_happen) {
-            // UTF-8 is a required encoding.
-            // Throw runtime exception to make the compiler happy
-            throw new RuntimeException(cannot_happen);
-        }
+        // A gateway may have more devices than fit in one page, so every page is read.
+        final String uri = indirectlyConnectedDevicesUri(deviceModelUrn, policyId, directlyConnectedOwner);
 
         final Set<String> icdIds = new HashSet<String>();
         try {
-            final JSONObject jsonObject = new JSONObject(body);
-            final JSONArray items = jsonObject.getJSONArray("items");
-            for (int n=0, nMax=items.length(); n<nMax; n++) {
-                final JSONObject item = items.getJSONObject(n);
+            for (JSONObject item : getAllItems(uri)) {
                 final String icdId = item.getString("id");
                 icdIds.add(icdId);
             }
 
+        } catch (TransportException e) {
+            getLogger().log(Level.WARNING, e.getMessage());
+            return Collections.<String>emptySet();
+
         } catch (JSONException e){
+            // Some of the devices may not have been read. Don't let the
+            // caller take the rest as the complete set.
             getLogger().log(Level.SEVERE, e.getMessage());
+            throw new IOException(e.getMessage(), e);
         }
 
         return icdIds;
@@ -1173,8 +1435,8 @@ public final class DevicePolicyManager {
 
         FileOutputStream fileOutputStream = null;
         try {
-            // pass indent level = 4 to JSONObject toString() method to make file easier to read.
-            final byte[] data = policy.toString(4).getBytes("UTF-8");
+            // Written without indentation, since the file is only read back by loadLocalDevicePolicy.
+            final byte[] data = policy.toString().getBytes("UTF-8");
             fileOutputStream = new java.io.FileOutputStream(policyFile);
             fileOutputStream.write(data);
 
@@ -1182,10 +1444,6 @@ public final class DevicePolicyManager {
             // UTF-8 is a required encoding so we should never get here.
             throw new RuntimeException(e);
 
-        } catch (JSONException e) {
-            getLogger().log(Level.WARNING, policyFile.getName() + " could not be written: " + e.getMessage());
-            return;
-
         } catch (FileNotFoundException e) {
             getLogger().log(Level.WARNING, policyFile.getName() + " could not be written: " + e.toString());
 
@@ -1203,274 +1461,42 @@ public final class DevicePolicyManager {
     }
 
     /**
-     * Update device-associations.json by adding an association between the device model urn and the policy,
-     * and also between the policy and device id. A device can only be associated with one policy;
-     * if an association for the device already exists, it is removed and the new association is added.
+     * Record an association between the device model urn and the policy,
+     * and also between the policy and device id. The association is written
+     * by the next {@link #flushAssociations()}.
      *
      * @param deviceModelURN the device model urn
      * @param policyId the policy id
      * @param deviceId the device id
      */
-    private synchronized void persistAssociation(String deviceModelURN, String policyId, String deviceId) {
-
-        //
-        // Add an association between the device model urn and the policy,
-        // and also between the policy and device id to device-associations.json.
-        //
-        JSONObject associations = null;
-
-        final File associationsFile = new File(LOCAL_STORE, "device-associations.json");
-        FileInputStream fileInputStream = null;
-        try {
-            // Have to read byte by byte because Android's JSON API
-            // does not support InputStream directly.
-            fileInputStream = new FileInputStream(associationsFile);
-            StringBuffer buffer = new StringBuffer();
-            int c = -1;
-            while ((c = fileInputStream.read()) != -1) {
-                buffer.append((char) c);
-            }
-            associations = new JSONObject(buffer.toString());
-        } catch (FileNotFoundException e) {
-            // file not created yet, ignore.
-            // TODO: Really need to check. FNFE could be because file is a directory
-        } catch (IOException e) {
-            // error reading file
-            getLogger().log(Level.SEVERE, associationsFile.getName() + " could not be read: " + e.getMessage());
-        } catch (JSONException e) {
-            getLogger().log(Level.SEVERE, associationsFile.getName() + " corrupted: " + e.getMessage());
-            return;
-        } finally {
-            if (fileInputStream != null) {
-                try {
-                    fileInputStream.close();
-                } catch (IOException ignored) {
-                }
-            }
-        }
-
-
-        // Associations should look like this:
-        // {
-        //  "devicePolicyIdsToEndpointIds": {
-        //    "devicePolicyId1": [
-        //      "endpoint1",
-        //      "endpoint2"
-        //    ],
-        //    "devicePolicyId2", [
-        //      "endpointId3",
-        //      "endpointId4"
-        //    ]
-        //  },
-        //  "deviceModelUrnsToDevicePolicies": {[
-        //    "deviceModelUrn1": [
-        //      "devicePolicyId1",
-        //      "devicePolicyId2"
-        //    ],
-        //    "deviceModelUrn2": [
-        //      "devicePolicyId3",
-        //      "devicePolicyId4"
-        //    ]
-        //  }
-        // }
-        if (associations == null) {
-            try {
-                associations = new JSONObject()
-                        .put("devicePolicyIdsToEndpointIds", new JSONObject())
-                        .put("deviceModelUrnsToDevicePolicies", new JSONObject());
-
-            } catch (JSONException e) {
-                getLogger().log(Level.WARNING, associationsFile.getName() + " could not be written: " + e.getMessage());
-                return;
-            }
-        }
-
-        try {
-            // add device id to device policy association
-            final JSONObject policyAssociations = associations.getJSONObject("devicePolicyIdsToEndpointIds");
-            final JSONArray associatedEndpoints = policyAssociations.optJSONArray(policyId);
-            if (associatedEndpoints != null) {
-                // Look for endpoint id in associated endpoints. If not found, add it.
-                boolean found = false;
-                for (int n = 0, nMax = associatedEndpoints.length(); !found && n < nMax; n++) {
-                    found = deviceId.equals(associatedEndpoints.getString(n));
-                }
-                if (!found) {
-                    associatedEndpoints.put(deviceId);
-                }
-            } else {
-                // associated endpoints not found for this policy id, create it
-                policyAssociations.put(policyId, new JSONArray().put(deviceId));
-            }
-
-            // Now do the same thing for associating the device policy with the device model
-            final JSONObject modelAssociations = associations.getJSONObject("deviceModelUrnsToDevicePolicies");
-            final JSONArray associatedPolicies = modelAssociations.optJSONArray(deviceModelURN);
-            if (associatedPolicies != null) {
-                // Look for policy id in associated policies. If not found, add it.
-                boolean found = false;
-                for (int n = 0, nMax = associatedPolicies.length(); !found && n < nMax; n++) {
-                    found = policyId.equals(associatedPolicies.getString(n));
-                }
-                if (!found) {
-                    associatedPolicies.put(policyId);
-                }
-            } else {
-                // associated policies not found for this device model urn, create it
-                modelAssociations.put(deviceModelURN, new JSONArray().put(policyId));
-            }
-
-        } catch (JSONException e) {
-            getLogger().log(Level.SEVERE, associationsFile.getName() + " corrupted: " + e.getMessage());
-            return;
-        }
-
-        // Write the associations back
-        FileOutputStream fileOutputStream = null;
-        try {
-            // pass indent level = 4 to JSONObject toString() method to make file easier to read.
-            final byte[] bytes = associations.toString(4).getBytes("UTF-8");
-            fileOutputStream = new java.io.FileOutputStream(associationsFile);
-            fileOutputStream.write(bytes);
-
-        } catch (UnsupportedEncodingException e) {
-            // UTF-8 is a required encoding so we should never get here.
-            throw new RuntimeException(e);
-
-        } catch (JSONException e) {
-            getLogger().log(Level.WARNING, associationsFile.getName() + " could not be written: " + e.getMessage());
-            return;
-
-        } catch (IOException e) {
-            getLogger().log(Level.SEVERE, e.toString());
-
-        } finally {
-            if (fileOutputStream != null) {
-                try {
-                    fileOutputStream.close();
-                } catch (IOException ignored) {
-                }
-            }
+    private void persistAssociation(String deviceModelURN, String policyId, String deviceId) {
+        if (policyAssociations != null) {
+            policyAssociations.add(deviceModelURN, policyId, deviceId);
         }
     }
 
     /**
-     * Update device-associations.json by removing the association between the policy and device id.
+     * Record the removal of the association between the policy and device id.
+     * The removal is written by the next {@link #flushAssociations()}.
      *
      * @param deviceModelURN the device model urn
      * @param policyId the policy id
      * @param deviceId the device id
      */
-    private synchronized void removePersistedAssociation(String deviceModelURN, String policyId, String deviceId) {
-
-        //
-        // Remove the association between the policy and device id in device-associations.json.
-        //
-        JSONObject associations = null;
-
-        final File associationsFile = new File(LOCAL_STORE, "device-associations.json");
-        FileInputStream fileInputStream = null;
-        try {
-            // Have to read byte by byte because Android's JSON API
-            // does not support InputStream directly.
-            fileInputStream = new FileInputStream(associationsFile);
-            StringBuffer buffer = new StringBuffer();
-            int c = -1;
-            while ((c = fileInputStream.read()) != -1) {
-                buffer.append((char) c);
-            }
-            associations = new JSONObject(buffer.toString());
-        } catch (FileNotFoundException e) {
-            return;
-        } catch (IOException e) {
-            // error reading file
-            getLogger().log(Level.SEVERE, associationsFile.getName() + " could not be read: " + e.getMessage());
-            return;
-        } catch (JSONException e) {
-            getLogger().log(Level.SEVERE, associationsFile.getName() + " corrupted: " + e.getMessage());
-            return;
-        } finally {
-            if (fileInputStream != null) {
-                try {
-                    fileInputStream.close();
-                } catch (IOException ignored) {
-                }
-            }
-        }
-
-        assert associations != null;
-        if (associations == null) {
-            return;
+    private void removePersistedAssociation(String deviceModelURN, String policyId, String deviceId) {
+        if (policyAssociations != null) {
+            policyAssociations.remove(deviceModelURN, policyId, deviceId);
         }
+    }
 
-        // Associations should look like this:
-        // {
-        //  "devicePolicyIdsToEndpointIds": {
-        //    "devicePolicyId1": [
-        //      "endpoint1",
-        //      "endpoint2"
-        //    ],
-        //    "devicePolicyId2", [
-        //      "endpointId3",
-        //      "endpointId4"
-        //    ]
-        //  },
-        //  "deviceModelUrnsToDevicePolicies": {[
-        //    "deviceModelUrn1": [
-        //      "devicePolicyId1",
-        //      "devicePolicyId2"
-        //    ],
-        //    "deviceModelUrn2": [
-        //      "devicePolicyId3",
-        //      "devicePolicyId4"
-        //    ]
-        //  }
-        // }
-
-        try {
-            // remove device id from device policy association
-            final JSONObject policyAssociations = associations.getJSONObject("devicePolicyIdsToEndpointIds");
-            final JSONArray associatedEndpoints = policyAssociations.optJSONArray(policyId);
-            if (associatedEndpoints != null) {
-
-                for (int n = associatedEndpoints.length()-1; 0 <= n; --n) {
-                    if(deviceId.equals(associatedEndpoints.getString(n))) {
-                        associatedEndpoints.remove(n);
-                    }
-                }
-            }
-
-        } catch (JSONException e) {
-            getLogger().log(Level.SEVERE, associationsFile.getName() + " corrupted: " + e.getMessage());
-            return;
-        }
-
-        // Write the associations back
-        FileOutputStream fileOutputStream = null;
-        try {
-            // pass indent level = 4 to JSONObject toString() method to make file easier to read.
-            final byte[] bytes = associations.toString(4).getBytes("UTF-8");
-            fileOutputStream = new java.io.FileOutputStream(associationsFile);
-            fileOutputStream.write(bytes);
-
-        } catch (UnsupportedEncodingException e) {
-            // UTF-8 is a required encoding so we should never get here.
-            throw new RuntimeException(e);
-
-        } catch (JSONException e) {
-            getLogger().log(Level.WARNING, associationsFile.getName() + " could not be written: " + e.getMessage());
-            return;
-
-        } catch (IOException e) {
-            getLogger().log(Level.SEVERE, e.toString());
-
-        } finally {
-            if (fileOutputStream != null) {
-                try {
-                    fileOutputStream.close();
-                } catch (IOException ignored) {
-                }
-            }
+    /**
+     * Write the associations recorded since the last flush. Called once
+     * per policyChanged request and once per lookup in getPolicy, so that
+     * assigning a policy to many devices is one write.
+     */
+    private void flushAssociations() {
+        if (policyAssociations != null) {
+            policyAssociations.flush();
         }
     }
 
@@ -1480,174 +1506,110 @@ public final class DevicePolicyManager {
     private void initializeFromPersistedData() {
 
         // NOTE: This is only called from the constructor and is not synchronized!
-        if (LOCAL_STORE == null) {
-            return;
-        }
-
-        final JSONObject associations;
-
-        final File associationsFile = new File(LOCAL_STORE, "device-associations.json");
-        FileInputStream fileInputStream = null;
-        try {
-            // Have to read byte by byte because Android's JSON API
-            // does not support InputStream directly.
-            fileInputStream = new FileInputStream(associationsFile);
-            StringBuffer buffer = new StringBuffer();
-            int c = -1;
-            while ((c = fileInputStream.read()) != -1) {
-                buffer.append((char)c);
-            }
-            associations = new JSONObject(buffer.toString());
-        } catch (FileNotFoundException e) {
-            // file does not exist, return null.
-            return;
-        } catch (IOException e) {
-            // error reading file
-            getLogger().log(Level.SEVERE, associationsFile.getName() + " could not be read: " + e.getMessage());
+        if (policyAssociations == null) {
             return;
-        } catch (JSONException e) {
-            getLogger().log(Level.SEVERE, associationsFile.getName() + " corrupted: " + e.getMessage());
-            return;
-        } finally {
-            if (fileInputStream != null) {
-                try {
-                    fileInputStream.close();
-                } catch (IOException ignored) {
-                }
-            }
         }
 
-        // Associations should look like this:
-        // {
-        //  "devicePolicyIdsToEndpointIds": {
-        //    "devicePolicyId1": [
-        //      "endpoint1",
-        //      "endpoint2"
-        //    ],
-        //    "devicePolicyId2", [
-        //      "endpointId3",
-        //      "endpointId4"
-        //    ]
-        //  },
-        //  "deviceModelUrnsToDevicePolicies": {[
-        //    "deviceModelUrn1": [
-        //      "devicePolicyId1",
-        //      "devicePolicyId2"
-        //    ],
-        //    "deviceModelUrn2": [
-        //      "devicePolicyId3",
-        //      "devicePolicyId4"
-        //    ]
-        //  }
-        // }
-
-        try {
-            final JSONObject modelAssociations = associations.getJSONObject("deviceModelUrnsToDevicePolicies");
-            final JSONObject policyAssociations = associations.getJSONObject("devicePolicyIdsToEndpointIds");
+        policyAssociations.load();
 
-            // This map is to remember what device model the policy maps to.
-            // This makes it easy to populate policiesByDeviceId, which needs the
-            // device model urn to go along with the policy id.
-            // Map is { <policy id> : <device model urn> }
-            final Map<String,String> policyIdToDeviceModelUrn = new HashMap<String,String>();
+        // modelAssociations is { <device-model-urn> : [ <policy-id> ] } and
+        // deviceAssociations is { <policy-id> : [ <device-id> ] }
+        final Map<String, Set<String>> modelAssociations = policyAssociations.getPolicyIdsByDeviceModelUrn();
+        final Map<String, Set<String>> deviceAssociations = policyAssociations.getDeviceIdsByPolicyId();
 
-            // build up policesByDeviceModelUrn and policiesByPolicyId
-            final Iterator<String> deviceModelUrns = modelAssociations.keys();
-            while (deviceModelUrns.hasNext()) {
-                final String deviceModelUrn = deviceModelUrns.next();
+        // This map is to remember what device model the policy maps to.
+        // This makes it easy to populate policiesByDeviceId, which needs the
+        // device model urn to go along with the policy id.
+        // Map is { <policy id> : <device model urn> }
+        final Map<String,String> policyIdToDeviceModelUrn = new HashMap<String,String>();
 
-                final Map<String, Set<String>> deviceModelPolicies = new HashMap<String,Set<String>>();
-                policiesByDeviceModelUrn.put(deviceModelUrn, deviceModelPolicies);
+        // build up policesByDeviceModelUrn and policiesByPolicyId
+        for (Map.Entry<String, Set<String>> modelAssociation : modelAssociations.entrySet()) {
+            final String deviceModelUrn = modelAssociation.getKey();
 
-                final JSONArray policyIds = modelAssociations.getJSONArray(deviceModelUrn);
-                for (int n=0, nMax=policyIds.length(); n < nMax; n++) {
-                    final String policyId = policyIds.getString(n);
-                    DevicePolicy devicePolicy = loadLocalDevicePolicy(deviceModelUrn, policyId);
-                    if (devicePolicy == null) {
-                        devicePolicy = downloadPolicy(deviceModelUrn, policyId);
-                    }
-                    if (devicePolicy != null) {
+            final Map<String, Set<String>> deviceModelPolicies = new HashMap<String,Set<String>>();
+            policiesByDeviceModelUrn.put(deviceModelUrn, deviceModelPolicies);
 
-                        // add entry for policy-id to device-model-urn in policiesByDeviceModelUrn
-                        // policiesByDeviceModelUrn is { <device-model-urn> : { <policy-id> : <set of device-id> }}
-                        deviceModelPolicies.put(policyId, new HashSet<String>());
+            for (String policyId : modelAssociation.getValue()) {
+                DevicePolicy devicePolicy = loadLocalDevicePolicy(deviceModelUrn, policyId);
+                if (devicePolicy == null) {
+                    devicePolicy = downloadPolicy(deviceModelUrn, policyId);
+                }
+                if (devicePolicy != null) {
 
-                        // remember which device model urn this policy came from
-                        policyIdToDeviceModelUrn.put(policyId, deviceModelUrn);
+                    // add entry for policy-id to device-model-urn in policiesByDeviceModelUrn
+                    // policiesByDeviceModelUrn is { <device-model-urn> : { <policy-id> : <set of device-id> }}
+                    deviceModelPolicies.put(policyId, new HashSet<String>());
 
-                        // policiesByPolicyId is { <policy-id> : DevicePolicy }
-                        policiesByPolicyId.put(policyId, devicePolicy);
+                    // remember which device model urn this policy came from
+                    policyIdToDeviceModelUrn.put(policyId, deviceModelUrn);
 
-                        if (getLogger().isLoggable(Level.FINE)) {
-                            // replaceAll just fills space where device id should be since
-                            // the device id here doesn't matter for debug print, but it would
-                            // be nice to have the printout line up.
-                            getLogger().log(Level.FINE,
-                                    policyId.replaceAll(".", " ") + " : Policy : "
-                                            + devicePolicy.getId() + "\n" + devicePolicy.toString());
-                        }
+                    // policiesByPolicyId is { <policy-id> : DevicePolicy }
+                    policiesByPolicyId.put(policyId, devicePolicy);
 
+                    if (getLogger().isLoggable(Level.FINE)) {
+                        // replaceAll just fills space where device id should be since
+                        // the device id here doesn't matter for debug print, but it would
+                        // be nice to have the printout line up.
+                        getLogger().log(Level.FINE,
+                                policyId.replaceAll(".", " ") + " : Policy : "
+                                        + devicePolicy.getId() + "\n" + devicePolicy.toString());
                     }
+
                 }
             }
+        }
 
-            final Iterator<String> policyIds = policyAssociations.keys();
-            while (policyIds.hasNext()) {
-                final String policyId = policyIds.next();
-                final String deviceModelUrn = policyIdToDeviceModelUrn.get(policyId);
-                if (deviceModelUrn == null) {
-                    // Something is wrong with the associations file.
-                    // Skip the policy associations for this policyId. When
-                    // the device looks for a policy, it won't have an entry
-                    // in policiesByDeviceId, which will force a lookup and
-                    // the associations will self-correct.
-                    continue;
-                }
+        for (Map.Entry<String, Set<String>> deviceAssociation : deviceAssociations.entrySet()) {
+            final String policyId = deviceAssociation.getKey();
+            final String deviceModelUrn = policyIdToDeviceModelUrn.get(policyId);
+            if (deviceModelUrn == null) {
+                // Something is wrong with the persisted associations.
+                // Skip the policy associations for this policyId. When
+                // the device looks for a policy, it won't have an entry
+                // in policiesByDeviceId, which will force a lookup and
+                // the associations will self-correct.
+                continue;
+            }
 
-                // policiesByDeviceModelUrn is { <device-model-urn> : { <policy-id> : <set of device-id> }}
-                final Map<String, Set<String>> deviceModelPolicies =
-                        policiesByDeviceModelUrn.get(deviceModelUrn);
+            // policiesByDeviceModelUrn is { <device-model-urn> : { <policy-id> : <set of device-id> }}
+            final Map<String, Set<String>> deviceModelPolicies =
+                    policiesByDeviceModelUrn.get(deviceModelUrn);
 
-                // deviceModelPolices should not be null since an entry for this
-                // device-model-urn is made in policiesByDeviceModelUrn in the
-                // previous loop.
-                assert deviceModelPolicies != null;
-                if (deviceModelPolicies == null) {
-                    continue;
-                }
+            // deviceModelPolices should not be null since an entry for this
+            // device-model-urn is made in policiesByDeviceModelUrn in the
+            // previous loop.
+            assert deviceModelPolicies != null;
+            if (deviceModelPolicies == null) {
+                continue;
+            }
 
-                final Set<String> assignedDevices = deviceModelPolicies.get(policyId);
-                // If assignedDevices is null, then there was no device policy
-                // locally or on the server (see previous loop where it checks if
-                // devicePolicy is null), otherwise an entry would have been made
-                // for this policy-id in policiesByDeviceModelUrn for this device-model-urn.
-                if (assignedDevices == null) {
-                    continue;
-                }
+            final Set<String> assignedDevices = deviceModelPolicies.get(policyId);
+            // If assignedDevices is null, then there was no device policy
+            // locally or on the server (see previous loop where it checks if
+            // devicePolicy is null), otherwise an entry would have been made
+            // for this policy-id in policiesByDeviceModelUrn for this device-model-urn.
+            if (assignedDevices == null) {
+                continue;
+            }
 
-                final JSONArray deviceIds = policyAssociations.getJSONArray(policyId);
-                for (int n=0, nMax=deviceIds.length(); n < nMax; n++) {
-                    final String deviceId = deviceIds.getString(n);
+            for (String deviceId : deviceAssociation.getValue()) {
 
-                    // Add this device to the set of devices that have this policy
-                    assignedDevices.add(deviceId);
+                // Add this device to the set of devices that have this policy
+                assignedDevices.add(deviceId);
 
-                    // policiesByDeviceId is { <device-id> : { <device-model-urn> : <policy-id> }}
-                    Map<String,String> devicePolicies = policiesByDeviceId.get(deviceId);
-                    if (devicePolicies == null) {
-                        devicePolicies = new HashMap<String,String>();
-                        policiesByDeviceId.put(deviceId, devicePolicies);
-                    }
-                    devicePolicies.put(deviceModelUrn, policyId);
+                // policiesByDeviceId is { <device-id> : { <device-model-urn> : <policy-id> }}
+                Map<String,String> devicePolicies = policiesByDeviceId.get(deviceId);
+                if (devicePolicies == null) {
+                    devicePolicies = new HashMap<String,String>();
+                    policiesByDeviceId.put(deviceId, devicePolicies);
                 }
+                devicePolicies.put(deviceModelUrn, policyId);
             }
-
-            // Note: The locally stored policy files are not read in at this time.
-            // Better to do that lazily as some may not be in use.
-
-        } catch (JSONException e) {
-            getLogger().log(Level.SEVERE, associationsFile.getName() + " corrupted: " + e.getMessage());
         }
+
+        // Note: The locally stored policy files are not read in at this time.
+        // Better to do that lazily as some may not be in use.
     }
 
     /**
@@ -1661,7 +1623,7 @@ public final class DevicePolicyManager {
             return;
         }
 
-        // Need policy id and device model urn to update device-associations.json
+        // Need policy id and device model urn to update the associations
         final String policyId = devicePolicy.getId();
         final String deviceModelUrn = devicePolicy.getDeviceModelURN();
 
@@ -1671,115 +1633,10 @@ public final class DevicePolicyManager {
         }
 
         // remove the associations
-        JSONObject associations = null;
-
-        final File associationsFile = new File(LOCAL_STORE, "device-associations.json");
-        FileInputStream fileInputStream = null;
-        try {
-            // Have to read byte by byte because Android's JSON API
-            // does not support InputStream directly.
-            fileInputStream = new FileInputStream(associationsFile);
-            StringBuffer buffer = new StringBuffer();
-            int c = -1;
-            while ((c = fileInputStream.read()) != -1) {
-                buffer.append((char)c);
-            }
-            associations = new JSONObject(buffer.toString());
-        } catch (FileNotFoundException e) {
-            // file does not exist
-            return;
-        } catch (IOException e) {
-            // error reading file
-            getLogger().log(Level.SEVERE, associationsFile.getName() + " could not be read: " + e.getMessage());
-            return;
-        } catch (JSONException e) {
-            getLogger().log(Level.SEVERE, associationsFile.getName() + " corrupted: " + e.getMessage());
-            return;
-        } finally {
-            if (fileInputStream != null) {
-                try {
-                    fileInputStream.close();
-                } catch (IOException ignored) {
-                }
-            }
-        }
-
-        assert (associations != null);
-
-        // Associations should look like this:
-        // {
-        //  "devicePolicyIdsToEndpointIds": {
-        //    "devicePolicyId1": [
-        //      "endpoint1",
-        //      "endpoint2"
-        //    ],
-        //    "devicePolicyId2", [
-        //      "endpointId3",
-        //      "endpointId4"
-        //    ]
-        //  },
-        //  "deviceModelUrnsToDevicePolicies": {
-        //    "deviceModelUrn1": [
-        //      "devicePolicyId1",
-        //      "devicePolicyId2"
-        //    ],
-        //    "deviceModelUrn2": [
-        //      "devicePolicyId3",
-        //      "devicePolicyId4"
-        //    ]
-        //  }
-        // }
-
-        try {
-            // Find the device model associated with the policy and remove the association.
-            final JSONObject modelAssociations = associations.getJSONObject("deviceModelUrnsToDevicePolicies");
-            final JSONArray associatedPolicies = modelAssociations.optJSONArray(deviceModelUrn);
-            if (associatedPolicies != null) {
-                for (int n = 0, nMax = associatedPolicies.length(); n < nMax; n++) {
-                    final String id = associatedPolicies.getString(n);
-                    if (policyId.equals(id)) {
-                        associatedPolicies.remove(n);
-                        break;
-                    }
-                }
-            }
-
-            // Remove all associations to the endpoint ids for policy that was removed.
-            final JSONObject policyAssociations = associations.getJSONObject("devicePolicyIdsToEndpointIds");
-            policyAssociations.remove(policyId);
-
-        } catch (JSONException e) {
-            getLogger().log(Level.SEVERE, associationsFile.getName() + " corrupted: " + e.getMessage());
+        if (policyAssociations != null) {
+            policyAssociations.removePolicy(deviceModelUrn, policyId);
+            policyAssociations.flush();
         }
-
-        // Write the associations back
-        FileOutputStream fileOutputStream = null;
-        try {
-            // pass indent level = 4 to JSONObject toString() method to make file easier to read.
-            final byte[] bytes = associations.toString(4).getBytes("UTF-8");
-            fileOutputStream = new java.io.FileOutputStream(associationsFile);
-            fileOutputStream.write(bytes);
-
-        } catch (UnsupportedEncodingException e) {
-            // UTF-8 is a required encoding so we should never get here.
-            throw new RuntimeException(e);
-
-        } catch (JSONException e) {
-            getLogger().log(Level.WARNING, associationsFile.getName() + " could not be written: " + e.getMessage());
-            return;
-
-        } catch (IOException e) {
-            getLogger().log(Level.SEVERE, e.toString());
-
-        } finally {
-            if (fileOutputStream != null) {
-                try {
-                    fileOutputStream.close();
-                } catch (IOException ignored) {
-                }
-            }
-        }
-
     }
 
     // returns null if LOCAL_STORE is null, or there is no file for the device policy id
@@ -1988,9 +1845,85 @@ public final class DevicePolicyManager {
 
     public DevicePolicyManager(SecureConnection secureConnection) {
         this.secureConnection = secureConnection;
+        this.policyAssociations = LOCAL_STORE != null ? new PolicyAssociations(LOCAL_STORE) : null;
         initializeFromPersistedData();
+        publishPolicyIndex();
+    }
+
+    /*
+     * Publish a new policy index built from policiesByDeviceId and
+     * policiesByPolicyId. Called with policyChangeLock held, or from
+     * the constructor.
+     */
+    private void publishPolicyIndex() {
+        final ConcurrentHashMap<String, Map<String, DevicePolicy>> index =
+                new ConcurrentHashMap<String, Map<String, DevicePolicy>>(policiesByDeviceId.size() * 2);
+        for (Map.Entry<String, Map<String, String>> entry : policiesByDeviceId.entrySet()) {
+            index.put(entry.getKey(), indexDevicePolicies(entry.getValue()));
+        }
+        policyIndex = new PolicyIndex(index);
     }
 
+    /*
+     * Replace the entry of one device in the current policy index, for a
+     * change to the policies of that device only. Called with
+     * policyChangeLock held.
+     */
+    private void publishPolicyIndex(String deviceId) {
+        final Map<String, String> devicePolicies = policiesByDeviceId.get(deviceId);
+        if (devicePolicies != null) {
+            policyIndex.policiesByDeviceId.put(deviceId, indexDevicePolicies(devicePolicies));
+        } else {
+            policyIndex.policiesByDeviceId.remove(deviceId);
+        }
+    }
+
+    private Map<String, DevicePolicy> indexDevicePolicies(Map<String, String> devicePolicies) {
+        final Map<String, DevicePolicy> policies = new HashMap<String, DevicePolicy>(devicePolicies.size() * 2);
+        for (Map.Entry<String, String> entry : devicePolicies.entrySet()) {
+            final String policyId = entry.getValue();
+            policies.put(entry.getKey(), policyId != null ? policiesByPolicyId.get(policyId) : null);
+        }
+        return Collections.unmodifiableMap(policies);
+    }
+
+    /*
+     * policiesByDeviceId with the policy ids resolved through
+     * policiesByPolicyId. getPolicy reads the current index without
+     * locking. Changes are made to the maps below while holding
+     * policyChangeLock. Then either a new index is published, or, if only
+     * one device has changed, the immutable entry of that device is
+     * replaced. Either way, a lookup never sees a change that is half done.
+     */
+    private static final class PolicyIndex {
+
+        // { <device-id> : { <device-model-urn> : DevicePolicy }}
+        // A null DevicePolicy means the device has no policy for the device model.
+        private final ConcurrentHashMap<String, Map<String, DevicePolicy>> policiesByDeviceId;
+
+        private PolicyIndex(ConcurrentHashMap<String, Map<String, DevicePolicy>> policiesByDeviceId) {
+            this.policiesByDeviceId = policiesByDeviceId;
+        }
+    }
+
+    /*
+     * A call to policyAssigned or policyUnassigned that has not been made.
+     */
+    private static final class PolicyNotification {
+
+        private final boolean assigned;
+        private final DevicePolicy devicePolicy;
+        private final Set<String> deviceIds;
+
+        private PolicyNotification(boolean assigned, DevicePolicy devicePolicy, Set<String> deviceIds) {
+            this.assigned = assigned;
+            this.devicePolicy = devicePolicy;
+            this.deviceIds = deviceIds;
+        }
+    }
+
+    private volatile PolicyIndex policyIndex;
+
     private final SecureConnection secureConnection;
 
     // Map a device id to the policies that are available to it.
@@ -2014,13 +1947,33 @@ public final class DevicePolicyManager {
     private final Map<String, Map<String, Set<String>>> policiesByDeviceModelUrn =
             new HashMap<String, Map<String, Set<String>>>();
 
+    // The indirectly connected devices that have been registered, but not
+    // looked up, for each device model, and the gateway that registered them.
+    // { <device-model-urn> : [ <device-id>... ] }
+    private final Map<String, Set<String>> unresolvedDeviceIds =
+            new HashMap<String, Set<String>>();
+    private String gatewayEndpointId;
+
+    // The persisted associations, or null if LOCAL_STORE is null.
+    private final PolicyAssociations policyAssociations;
 
     private final List<ChangeListener> changeListeners = new ArrayList<ChangeListener>();
 
+    // Listener calls queued while policyChangeLock is held. They are made
+    // when the lock is released.
+    private final Queue<PolicyNotification> pendingNotifications =
+            new ConcurrentLinkedQueue<PolicyNotification>();
+
+    // True while a thread is delivering the pending notifications.
+    private final AtomicBoolean delivering = new AtomicBoolean(false);
+
+    // Guards policiesByDeviceId, policiesByPolicyId, policiesByDeviceModelUrn
+    // and unresolvedDeviceIds.
     // Have to use lock between getPolicy and policyChanged, not synchronized method,
     // because policyChanged will call notifyPolicyAssigned/Unassigned, which will cause
     // the virutual device impl or the messaging policy impl to call getPolicy. If
     // we use syncrhonization at the method level, policyChanged will block getPolicy.
-    private final Lock policyChangeLock = new ReentrantLock();
+    // The listeners are called after the lock is released, see unlockPolicyChange.
+    private final ReentrantLock policyChangeLock = new ReentrantLock();
 
 }
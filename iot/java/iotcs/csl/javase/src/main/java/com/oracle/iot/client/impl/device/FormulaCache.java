@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2018, Oracle and/or its affiliates.  All rights reserved.
+ *
+ * This software is dual-licensed to you under the MIT License (MIT) and
+ * the Universal Permissive License (UPL).  See the LICENSE file in the root
+ * directory for license terms.  You may choose either license, or both.
+ */
+
+package com.oracle.iot.client.impl.device;
+
+import com.oracle.iot.shared.CompiledFormula;
+import com.oracle.iot.shared.FormulaParser;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Stack;
+
+/**
+ * A process-wide cache of the compiled formulas of device policies, keyed
+ * by the text of the formula and whether it is a condition or a formula.
+ * <p>
+ * A policy assigned to many devices has the same conditions and formulas
+ * in the pipeline of each device, so each is parsed and compiled once
+ * rather than once per device and attribute. A {@link CompiledFormula} is
+ * immutable, so pipelines share it.
+ * <p>
+ * The least recently used formulas are dropped when there are more than
+ * {@code oracle.iot.client.device.policy_formula_cache_size} formulas
+ * (default 512). Formulas that don't parse are not cached.
+ */
+final class FormulaCache {
+
+    private static final int DEFAULT_CACHE_SIZE = 512;
+    private static final int CACHE_SIZE = Math.max(
+            Integer.getInteger("oracle.iot.client.device.policy_formula_cache_size", DEFAULT_CACHE_SIZE), 1);
+
+    // Guarded by the lock on CACHE.
+    @SuppressWarnings("serial")
+    private static final Map<Key, CompiledFormula> CACHE =
+            new LinkedHashMap<Key, CompiledFormula>(64, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Key, CompiledFormula> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            };
+
+    private FormulaCache() {
+    }
+
+    /**
+     * Get the compiled form of a condition, such as the condition of a
+     * {@code filterCondition} function.
+     * @param condition the text of the condition
+     * @return the compiled condition
+     * @throws IllegalArgumentException if the condition cannot be parsed
+     */
+    static CompiledFormula getCondition(String condition) {
+        return get(new Key(true, condition));
+    }
+
+    /**
+     * Get the compiled form of a formula, such as the formula of a
+     * {@code computedMetric} function.
+     * @param formula the text of the formula
+     * @return the compiled formula
+     * @throws IllegalArgumentException if the formula cannot be parsed
+     */
+    static CompiledFormula getFormula(String formula) {
+        return get(new Key(false, formula));
+    }
+
+    private static CompiledFormula get(Key key) {
+        synchronized (CACHE) {
+            final CompiledFormula compiled = CACHE.get(key);
+            if (compiled != null) {
+                return compiled;
+            }
+        }
+
+        // Compile without holding the lock. If two threads compile the same
+        // text, the first one cached wins.
+        final CompiledFormula compiled = compile(key);
+        synchronized (CACHE) {
+            final CompiledFormula existing = CACHE.get(key);
+            if (existing != null) {
+                return existing;
+            }
+            CACHE.put(key, compiled);
+            return compiled;
+        }
+    }
+
+    private static CompiledFormula compile(Key key) {
+        final List<FormulaParser.Token> tokens = FormulaParser.tokenize(key.text);
+        if (key.condition) {
+            final Stack<FormulaParser.Node> stack = new Stack<FormulaParser.Node>();
+            FormulaParser.parseConditionalOrExpression(stack, tokens, key.text, 0);
+            return CompiledFormula.compile(stack.pop());
+        }
+        return CompiledFormula.compile(FormulaParser.parseFormula(tokens, key.text));
+    }
+
+    private static final class Key {
+        private final boolean condition;
+        private final String text;
+
+        private Key(boolean condition, String text) {
+            this.condition = condition;
+            this.text = text;
+        }
+
+        @Override
+        public int hashCode() {
+            return text.hashCode() * 31 + (condition ? 1 : 0);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) return true;
+            if (obj == null || obj.getClass() != this.getClass()) return false;
+            final Key other = (Key) obj;
+            return this.condition == other.condition && this.text.equals(other.text);
+        }
+    }
+}
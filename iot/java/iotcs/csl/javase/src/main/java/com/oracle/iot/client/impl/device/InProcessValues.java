@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2018, Oracle and/or its affiliates.  All rights reserved.
+ *
+ * This software is dual-licensed to you under the MIT License (MIT) and
+ * the Universal Permissive License (UPL).  See the LICENSE file in the root
+ * directory for license terms.  You may choose either license, or both.
+ */
+
+package com.oracle.iot.client.impl.device;
+
+import com.oracle.iot.client.impl.DeviceModelImpl;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The in-process values of the attributes of one {@link DeviceAnalog}.
+ * The in-process value of an attribute is the value that is being passed
+ * along its policy pipeline; i.e., $(attribute) in a formula or condition.
+ * <p>
+ * Each attribute of the device model has a slot, assigned once per device
+ * model, so a value is stored and fetched by index with no key to build.
+ * The slots are an {@link AtomicReferenceArray}, so pipelines of different
+ * devices never contend, and pipelines of the same device are safe without
+ * a lock. A name that is not an attribute of the device model is kept in a
+ * separate map.
+ */
+public final class InProcessValues {
+
+    // The slot of each attribute, by device model. The maps are not
+    // modified after they are created.
+    private static final Map<DeviceModelImpl, Map<String, Integer>> SLOTS =
+            Collections.synchronizedMap(new WeakHashMap<DeviceModelImpl, Map<String, Integer>>());
+
+    private final Map<String, Integer> slots;
+    private final AtomicReferenceArray<Object> values;
+
+    // Values for names that are not attributes. Created when first needed.
+    private volatile ConcurrentHashMap<String, Object> others;
+
+    InProcessValues(DeviceModelImpl deviceModel) {
+        this.slots = getSlots(deviceModel);
+        this.values = new AtomicReferenceArray<Object>(slots.size());
+    }
+
+    void put(String attribute, Object value) {
+        final Integer slot = slots.get(attribute);
+        if (slot != null) {
+            values.set(slot, value);
+        } else if (value != null) {
+            getOthers().put(attribute, value);
+        } else {
+            remove(attribute);
+        }
+    }
+
+    Object get(String attribute) {
+        final Integer slot = slots.get(attribute);
+        if (slot != null) {
+            return values.get(slot);
+        }
+        final Map<String, Object> others = this.others;
+        return others != null ? others.get(attribute) : null;
+    }
+
+    Object remove(String attribute) {
+        final Integer slot = slots.get(attribute);
+        if (slot != null) {
+            return values.getAndSet(slot, null);
+        }
+        final Map<String, Object> others = this.others;
+        return others != null ? others.remove(attribute) : null;
+    }
+
+    private Map<String, Object> getOthers() {
+        ConcurrentHashMap<String, Object> others = this.others;
+        if (others == null) {
+            synchronized (this) {
+                others = this.others;
+                if (others == null) {
+                    others = new ConcurrentHashMap<String, Object>();
+                    this.others = others;
+                }
+            }
+        }
+        return others;
+    }
+
+    private static Map<String, Integer> getSlots(DeviceModelImpl deviceModel) {
+        synchronized (SLOTS) {
+            Map<String, Integer> slots = SLOTS.get(deviceModel);
+            if (slots == null) {
+                final Map<String, Integer> map = new HashMap<String, Integer>();
+                for (String attribute : deviceModel.getDeviceModelAttributes().keySet()) {
+                    map.put(attribute, map.size());
+                }
+                slots = Collections.unmodifiableMap(map);
+                SLOTS.put(deviceModel, slots);
+            }
+            return slots;
+        }
+    }
+}
@@ -0,0 +1,325 @@
+/*
+ * Copyright (c) 2018, Oracle and/or its affiliates.  All rights reserved.
+ *
+ * This software is dual-licensed to you under the MIT License (MIT) and
+ * the Universal Permissive License (UPL).  See the LICENSE file in the root
+ * directory for license terms.  You may choose either license, or both.
+ */
+
+package com.oracle.iot.client.impl.device;
+
+import com.oracle.iot.client.StorageObject;
+import com.oracle.iot.client.impl.util.Pair;
+import com.oracle.iot.client.message.DataItem;
+import com.oracle.iot.client.message.DataMessage;
+import com.oracle.iot.client.message.Message;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The messages held by a {@code batchBy} policy function until the batch is
+ * sent.
+ * <p>
+ * A batch is mostly data messages from one device that differ only in their
+ * event time, client id and values. Such messages are not kept. The batch
+ * keeps their event times and client ids in arrays, and the values of each
+ * data item key in a column of primitives (or strings), so a row costs a
+ * few bytes per value instead of a message, a list of data items and boxed
+ * values. The messages are built again, with the same client ids, when the
+ * batch is drained. Any other message, or a message with a storage object,
+ * is kept as it is, in its place in the batch.
+ * <p>
+ * When batch-by persistence is enabled, the rows are also saved there. The
+ * batch counts how many of its rows have been saved, so that only those
+ * rows are deleted from persistence when the batch is drained.
+ * <p>
+ * The methods are synchronized because a batch is filled by the thread
+ * that offers the messages and may be drained by the thread that runs the
+ * timed policies.
+ */
+final class MessageBatch {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    // The fields that every data message in the columns has in common.
+    // Set by the first data message after the batch is empty.
+    private String source;
+    private String destination;
+    private String sender;
+    private String format;
+    private Message.Priority priority;
+    private Message.Reliability reliability;
+    private Message.Direction direction;
+
+    private int size;
+
+    // Rows [0, persisted) have been saved to batch-by persistence.
+    private int persisted;
+
+    private long[] eventTimes = new long[INITIAL_CAPACITY];
+    private String[] clientIds = new String[INITIAL_CAPACITY];
+
+    // The message and storage object of a row that is not in the columns.
+    // The message is null if the row is in the columns.
+    private Message[] messages = new Message[INITIAL_CAPACITY];
+    private StorageObject[] storageObjects = new StorageObject[INITIAL_CAPACITY];
+
+    // The columns by data item key, in the order the keys were first seen.
+    private final Map<String, Column> columns = new LinkedHashMap<String, Column>();
+
+    MessageBatch() {
+    }
+
+    /**
+     * Add a message to the batch.
+     * @param pair the message and its storage object, which may be {@code null}
+     */
+    synchronized void add(Pair<Message, StorageObject> pair) {
+        ensureCapacity(size + 1);
+        final Message message = pair.getKey();
+        if (pair.getValue() == null && message instanceof DataMessage && fits((DataMessage) message)) {
+            final DataMessage dataMessage = (DataMessage) message;
+            final List<DataItem<?>> dataItems = dataMessage.getDataItems();
+            for (int n = 0, nMax = dataItems.size(); n < nMax; n++) {
+                final DataItem<?> dataItem = dataItems.get(n);
+                Column column = columns.get(dataItem.getKey());
+                if (column == null) {
+                    column = new Column(dataItem.getType(), eventTimes.length);
+                    columns.put(dataItem.getKey(), column);
+                }
+                column.set(size, dataItem);
+            }
+            eventTimes[size] = dataMessage.getEventTime();
+            clientIds[size] = dataMessage.getClientId();
+        } else {
+            messages[size] = message;
+            storageObjects[size] = pair.getValue();
+        }
+        size += 1;
+    }
+
+    /**
+     * Get the number of messages in the batch.
+     * @return the number of messages
+     */
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Get the number of rows, from the first, that have been saved to
+     * batch-by persistence.
+     * @return the number of rows saved
+     */
+    synchronized int getPersisted() {
+        return persisted;
+    }
+
+    /**
+     * Count every row in the batch as saved to batch-by persistence.
+     */
+    synchronized void markPersisted() {
+        persisted = size;
+    }
+
+    /**
+     * Get the messages of the rows that have not been saved to batch-by
+     * persistence, without removing them from the batch.
+     * @return the messages, in the order they were added
+     */
+    synchronized List<Message> getUnpersistedMessages() {
+        final List<Message> unpersisted = new ArrayList<Message>(size - persisted);
+        for (int row = persisted; row < size; row++) {
+            unpersisted.add(messages[row] != null ? messages[row] : build(row));
+        }
+        return unpersisted;
+    }
+
+    /**
+     * Remove the messages from the batch.
+     * @return the messages and their storage objects, in the order they were added
+     */
+    synchronized List<Pair<Message, StorageObject>> drain() {
+        final List<Pair<Message, StorageObject>> drained = new ArrayList<Pair<Message, StorageObject>>(size);
+        for (int row = 0; row < size; row++) {
+            drained.add(messages[row] != null
+                    ? new Pair<Message, StorageObject>(messages[row], storageObjects[row])
+                    : new Pair<Message, StorageObject>(build(row), null));
+        }
+        clear();
+        return drained;
+    }
+
+    /*
+     * True if the message can be kept in the columns: it has only the
+     * fields the columns keep, or the fields every message in the columns
+     * has in common, and each of its values has the type of its column.
+     */
+    private boolean fits(DataMessage message) {
+        if (message.getId() != null
+                || message.getEventTime() == null
+                || message.getDiagnostics() != null
+                || message.getReceivedTime() != null
+                || message.getSentTime() != null
+                || !message.getProperties().getAllProperties().isEmpty()) {
+            return false;
+        }
+
+        final List<DataItem<?>> dataItems = message.getDataItems();
+        for (int n = 0, nMax = dataItems.size(); n < nMax; n++) {
+            final DataItem<?> dataItem = dataItems.get(n);
+            final Column column = columns.get(dataItem.getKey());
+            if (column != null && column.type != dataItem.getType()) {
+                return false;
+            }
+            // A column holds one value per row.
+            for (int m = 0; m < n; m++) {
+                if (dataItems.get(m).getKey().equals(dataItem.getKey())) {
+                    return false;
+                }
+            }
+        }
+
+        if (format == null) {
+            source = message.getSource();
+            destination = message.getDestination();
+            sender = message.getSender();
+            format = message.getFormat();
+            priority = message.getPriority();
+            reliability = message.getReliability();
+            direction = message.getDirection();
+            return true;
+        }
+        return source.equals(message.getSource())
+                && destination.equals(message.getDestination())
+                && sender.equals(message.getSender())
+                && format.equals(message.getFormat())
+                && priority == message.getPriority()
+                && reliability == message.getReliability()
+                && direction == message.getDirection();
+    }
+
+    private DataMessage build(int row) {
+        final DataMessage.Builder builder = new DataMessage.Builder()
+                .clientId(clientIds[row])
+                .source(source)
+                .destination(destination)
+                .sender(sender)
+                .format(format)
+                .priority(priority)
+                .reliability(reliability)
+                .direction(direction)
+                .eventTime(eventTimes[row]);
+        for (Map.Entry<String, Column> entry : columns.entrySet()) {
+            entry.getValue().get(row, entry.getKey(), builder);
+        }
+        return builder.build();
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= eventTimes.length) {
+            return;
+        }
+        final int length = Math.max(capacity, eventTimes.length * 2);
+        eventTimes = Arrays.copyOf(eventTimes, length);
+        clientIds = Arrays.copyOf(clientIds, length);
+        messages = Arrays.copyOf(messages, length);
+        storageObjects = Arrays.copyOf(storageObjects, length);
+        for (Column column : columns.values()) {
+            column.grow(length);
+        }
+    }
+
+    private void clear() {
+        // Keep the arrays unless they have grown, since a batch is usually
+        // filled to about the same size again.
+        if (eventTimes.length > INITIAL_CAPACITY * 4) {
+            eventTimes = new long[INITIAL_CAPACITY];
+            clientIds = new String[INITIAL_CAPACITY];
+            messages = new Message[INITIAL_CAPACITY];
+            storageObjects = new StorageObject[INITIAL_CAPACITY];
+        } else {
+            Arrays.fill(clientIds, 0, size, null);
+            Arrays.fill(messages, 0, size, null);
+            Arrays.fill(storageObjects, 0, size, null);
+        }
+        columns.clear();
+        format = null;
+        size = 0;
+        persisted = 0;
+    }
+
+    /*
+     * The values of one data item key. A row may have no value for the key.
+     */
+    private static final class Column {
+
+        private final DataItem.Type type;
+
+        // Rows that have a value.
+        private long[] set;
+
+        // DOUBLE and BOOLEAN values are doubles. BOOLEAN is 1 or 0.
+        private double[] numbers;
+        private String[] strings;
+
+        private Column(DataItem.Type type, int capacity) {
+            this.type = type;
+            this.set = new long[(capacity + 63) >>> 6];
+            if (type == DataItem.Type.STRING) {
+                this.strings = new String[capacity];
+            } else {
+                this.numbers = new double[capacity];
+            }
+        }
+
+        private boolean isSet(int row) {
+            return (set[row >>> 6] & (1L << row)) != 0;
+        }
+
+        private void set(int row, DataItem<?> dataItem) {
+            set[row >>> 6] |= 1L << row;
+            switch (type) {
+                case DOUBLE:
+                    numbers[row] = ((Number) dataItem.getValue()).doubleValue();
+                    break;
+                case BOOLEAN:
+                    numbers[row] = ((Boolean) dataItem.getValue()) ? 1d : 0d;
+                    break;
+                default:
+                    strings[row] = (String) dataItem.getValue();
+                    break;
+            }
+        }
+
+        private void get(int row, String key, DataMessage.Builder builder) {
+            if (!isSet(row)) {
+                return;
+            }
+            switch (type) {
+                case DOUBLE:
+                    builder.dataItem(key, numbers[row]);
+                    break;
+                case BOOLEAN:
+                    builder.dataItem(key, numbers[row] != 0d);
+                    break;
+                default:
+                    builder.dataItem(key, strings[row]);
+                    break;
+            }
+        }
+
+        private void grow(int capacity) {
+            set = Arrays.copyOf(set, (capacity + 63) >>> 6);
+            if (strings != null) {
+                strings = Arrays.copyOf(strings, capacity);
+            } else {
+                numbers = Arrays.copyOf(numbers, capacity);
+            }
+        }
+    }
+}
@@ -40,17 +40,19 @@ import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
-import java.util.PriorityQueue;
 import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -76,6 +78,23 @@ public final class MessageDispatcherImpl extends MessageDispatcher {
     private static final String MAXIMUM_MESSAGES_PER_CONNECTION_PROPERTY = 
         "oracle.iot.client.device.dispatcher_max_messages_per_connection";
 
+    // The number of batches of messages the transmit thread may have in
+    // flight at the same time. When greater than 1, messages are split into
+    // this many lanes by endpoint, and the lanes are sent from a pool of
+    // this many threads. The messages of an endpoint stay in order, and
+    // alerts are sent before other messages. With MQTT, the limit set by
+    // oracle.iot.client.device.mqtt_max_in_flight also applies.
+    private static final int DEFAULT_MAXIMUM_BATCHES_IN_FLIGHT = 1;
+    private static final String MAXIMUM_BATCHES_IN_FLIGHT_PROPERTY =
+        "oracle.iot.client.device.dispatcher_max_batches_in_flight";
+
+    // The largest number of persisted messages the transmit thread loads
+    // and queues at one time when replaying messages that were persisted
+    // before the dispatcher started.
+    private static final int DEFAULT_REPLAY_PAGE_SIZE = 100;
+    private static final String REPLAY_PAGE_SIZE_PROPERTY =
+        "oracle.iot.client.device.dispatcher_replay_page_size";
+
     // Amount of time in milliseconds to backoff in the face of a 503 from the server.
     // This is the starting value for the amount of time to backoff.
     // The backoff time increases exponentially if the server continues to return a 503.
@@ -121,9 +140,10 @@ public final class MessageDispatcherImpl extends MessageDispatcher {
     /*
      * Queue of outgoing messages to be dispatched to server
      * (with thread for servicing the queue).
+     * Producers do not lock the queue; only the transmit thread drains it.
      * Note: it has package access for unit test access.
      */
-    final PriorityQueue<Message> outgoingMessageQueue;
+    final OutgoingMessageQueue outgoingMessageQueue;
 
     // This keeps track of how many elements the outgoingMessageQueue can
     // accept without overflowing the queue size. queueCapacity is decremented
@@ -142,6 +162,22 @@ public final class MessageDispatcherImpl extends MessageDispatcher {
      */
     private final int maximumMessagesPerConnection;
 
+    /*
+     * maximum number of batches of messages in flight at the same time
+     */
+    private final int maximumBatchesInFlight;
+
+    /*
+     * Sends the lanes of messages for the transmit thread when
+     * maximumBatchesInFlight is greater than 1, otherwise null.
+     */
+    private final ExecutorService batchSender;
+
+    /*
+     * maximum number of persisted messages to queue at one time
+     */
+    private final int replayPageSize;
+
 
     // Counter indicating total number of messages that have been delivered
     private int totalMessagesSent;
@@ -167,9 +203,6 @@ public final class MessageDispatcherImpl extends MessageDispatcher {
      */
     private long pollingInterval;
 
-    private final Lock sendLock = new ReentrantLock();
-    private final Condition messageQueued = sendLock.newCondition();
-
     private final Lock contentLock = new ReentrantLock();
 
     private final Lock receiveLock = new ReentrantLock();
@@ -226,6 +259,11 @@ public final class MessageDispatcherImpl extends MessageDispatcher {
         this.pollingInterval = getPollingInterval();
         this.maximumQueueSize = getQueueSize();
         this.maximumMessagesPerConnection = getMaximumMessagesPerConnection();
+        this.maximumBatchesInFlight = getMaximumBatchesInFlight();
+        this.replayPageSize = getReplayPageSize();
+        this.batchSender = maximumBatchesInFlight > 1
+                ? Executors.newFixedThreadPool(maximumBatchesInFlight, threadFactory)
+                : null;
 
         final String endpointId = MessageDispatcherImpl.this.deviceClient.getEndpointId();
 
@@ -234,43 +272,7 @@ public final class MessageDispatcherImpl extends MessageDispatcher {
         this.contentMap = new HashMap<StorageObjectImpl, HashSet<String>>();
         this.failedContentIds = new HashSet<String>();
         
-        this.outgoingMessageQueue = new PriorityQueue<Message>(
-                getQueueSize(),
-                new Comparator<Message>() {
-                    @Override
-                    public int compare(Message o1, Message o2) {
-
-                        // Note this implementation is not consistent with equals. It is possible
-                        // that a.compareTo(b) == 0 is not that same boolean value as a.equals(b)
-
-                        // The natural order of enum is the enum's ordinal, i.e.,
-                        // x.getPriority().compareTo(y.getPriority() will give {x,y}
-                        // if x is a lower priority. What we want is to sort by the
-                        // higher priority.
-                        int c = o2.getPriority().compareTo(o1.getPriority());
-
-                        // If they are the same priority, take the one that was created first
-                        if (c == 0) {
-                            c = o1.getEventTime().compareTo(o2.getEventTime());
-                        }
-
-                        // If they are still the same, take the one with higher reliability.
-                        if (c == 0) {
-                            c = o1.getReliability().compareTo(o2.getReliability());
-                        }
-
-                        // If they are still the same, take the one that was created first.
-                        if (c == 0) {
-                            long lc = o1.getOrdinal() - o2.getOrdinal();
-                            if (lc > 0) c = 1;
-                            else if (lc < 0) c = -1;
-                            else c = 0; // this would mean o1 == o2! This shouldn't happen.
-                        }
-
-                        return c;
-                    }
-                }
-        );
+        this.outgoingMessageQueue = new OutgoingMessageQueue(getQueueSize());
 
         this.totalMessagesSent = this.totalMessagesReceived = 0;
         this.totalMessagesRetried = 0;
@@ -472,26 +474,9 @@ public final class MessageDispatcherImpl extends MessageDispatcher {
             t.printStackTrace();
         }
 
-        // Do this last after everything else is established.
-        // Populate outgoing message queue from persisted messages, but leave the
-        // messages in persistence. The messages are removed from persistence when
-        // they are delivered successfully.
-        // TODO: IOT-49043
-        MessagePersistence messagePersistence = MessagePersistence.getInstance();
-        if (messagePersistence != null) {
-            final List<Message> messages = messagePersistence.load(deviceClient.getEndpointId());
-            if (messages != null && !messages.isEmpty()) {
-                messagePersistence.delete(messages);
-                sendLock.lock();
-                try {
-                    this.outgoingMessageQueue.addAll(messages);
-                    queueCapacity.addAndGet(-(messages.size()));
-                } finally {
-                    sendLock.unlock();
-                }
-            }
-        }
-
+        // Messages that were persisted before the dispatcher started are
+        // queued by the transmit thread as there is room for them. See
+        // Transmitter#replay.
     }
 
     private static int getQueueSize() {
@@ -506,6 +491,18 @@ public final class MessageDispatcherImpl extends MessageDispatcher {
         return (max > 0 ? max : DEFAULT_MAXIMUM_MESSAGES_PER_CONNECTION);
     }
 
+    private static int getMaximumBatchesInFlight() {
+        int max = Integer.getInteger(MAXIMUM_BATCHES_IN_FLIGHT_PROPERTY, DEFAULT_MAXIMUM_BATCHES_IN_FLIGHT);
+        // must be at least 1
+        return (max > 0 ? max : DEFAULT_MAXIMUM_BATCHES_IN_FLIGHT);
+    }
+
+    private static int getReplayPageSize() {
+        int size = Integer.getInteger(REPLAY_PAGE_SIZE_PROPERTY, DEFAULT_REPLAY_PAGE_SIZE);
+        // must be at least 1
+        return (size > 0 ? size : DEFAULT_REPLAY_PAGE_SIZE);
+    }
+
     private static long getPollingInterval() {
         long interval = Long.getLong(POLLING_INTERVAL_PROPERTY, DEFAULT_POLLING_INTERVAL);
         // polling interval may be zero, which means wait forever
@@ -641,19 +638,19 @@ public final class MessageDispatcherImpl extends MessageDispatcher {
             throw new IllegalArgumentException("message is null");
         }
 
-        sendLock.lock();
-        try {
-            if (queueCapacity.get() < messages.length) {
+        // Reserve room for the messages by decrementing the queue capacity
+        // by the number of messages queued. Once the capacity is reserved,
+        // the offer to outgoingMessageQueue cannot fail.
+        int capacity;
+        do {
+            capacity = queueCapacity.get();
+            if (capacity < messages.length) {
                 throw new ArrayStoreException("queue is full");
             }
-            for (Message message : messages) {
-                outgoingMessageQueue.offer(message);
-            }
-            // decrement the queue capacity by the number of messages queued.
-            queueCapacity.addAndGet(-(messages.length));
-            messageQueued.signal();
-        } finally {
-            sendLock.unlock();
+        } while (!queueCapacity.compareAndSet(capacity, capacity - messages.length));
+
+        for (Message message : messages) {
+            outgoingMessageQueue.offer(message);
         }
     }
 
@@ -667,20 +664,22 @@ public final class MessageDispatcherImpl extends MessageDispatcher {
 
         final PersistenceStore persistenceStore =
                 PersistenceStoreManager.getPersistenceStore(deviceClient.getEndpointId());
-        final Object mpiObj = persistenceStore.getOpaque(MessagingPolicyImpl.class.getName(), null);
-        if (mpiObj == null) {
-            messagingPolicy = new MessagingPolicyImpl(deviceClient);
-            persistenceStore
-                    .openTransaction()
-                    .putOpaque(MessagingPolicyImpl.class.getName(), messagingPolicy)
-                    .commit();
-
-            final DevicePolicyManager devicePolicyManager
-                    = DevicePolicyManager.getDevicePolicyManager(deviceClient);
-            devicePolicyManager.addChangeListener(messagingPolicy);
+        synchronized (persistenceStore) {
+            final Object mpiObj = persistenceStore.getOpaque(MessagingPolicyImpl.class.getName(), null);
+            if (mpiObj == null) {
+                messagingPolicy = new MessagingPolicyImpl(deviceClient);
+                persistenceStore
+                        .openTransaction()
+                        .putOpaque(MessagingPolicyImpl.class.getName(), messagingPolicy)
+                        .commit();
+
+                final DevicePolicyManager devicePolicyManager
+                        = DevicePolicyManager.getDevicePolicyManager(deviceClient);
+                devicePolicyManager.addChangeListener(messagingPolicy);
 
-        } else {
-            messagingPolicy = MessagingPolicyImpl.class.cast(mpiObj);
+            } else {
+                messagingPolicy = MessagingPolicyImpl.class.cast(mpiObj);
+            }
         }
 
         final List<Message> messagesToQueue = new ArrayList<Message>();
@@ -733,6 +732,10 @@ public final class MessageDispatcherImpl extends MessageDispatcher {
                 Thread.currentThread().interrupt();
             }
 
+            if (batchSender != null) {
+                batchSender.shutdown();
+            }
+
             closed = true;
         }
     }
@@ -763,6 +766,18 @@ public final class MessageDispatcherImpl extends MessageDispatcher {
         // to send the messages, regardless of the remaining backoff time.
         private long backoff = 0L;
 
+        // Guaranteed delivery messages that were saved to persistence when
+        // a send failed and that are waiting to be sent again. They are
+        // deleted from persistence before they are sent again, whichever
+        // way they are sent. If that send fails, they are saved again.
+        private final Set<Message> persistedForRetry =
+                Collections.newSetFromMap(new IdentityHashMap<Message, Boolean>());
+
+        // Persisted messages that have not been queued yet, or null if
+        // there are none left. Messages are loaded a page at a time.
+        private Iterator<Message> replay;
+        private MessagePersistence replayPersistence;
+
         // Calculate the new value of 'backoff'.
         // If backoff > 0, then we are already backing off and
         // no adjustment is made. Only adjust backoff if backoff
@@ -786,12 +801,21 @@ public final class MessageDispatcherImpl extends MessageDispatcher {
             // are placed into this list.
             final List<Message> pendingMessages = new ArrayList<Message>();
 
+            // Replay messages that are in persistence. Persisted messages are
+            // left in persistence until they are queued.
+            replayPersistence = MessagePersistence.getInstance();
+            if (replayPersistence != null) {
+                replay = replayPersistence.iterator(deviceClient.getEndpointId(), replayPageSize);
+            }
+
             while (true) {
 
                 if (requestClose && outgoingMessageQueue.isEmpty()) {
                     break;
                 }
 
+                replay(pendingMessages);
+
                 // 'newAlert' is set to true if the outgoingMessageQueue
                 // contains an alert message. This knowledge is used by
                 // the send method to know whether or not to force a send
@@ -799,7 +823,6 @@ public final class MessageDispatcherImpl extends MessageDispatcher {
                 // a new alert is queued, retry sending immediately.
                 boolean newAlert = false;
 
-                sendLock.lock();
                 try {
 
                     // measure how long we wait.
@@ -813,11 +836,11 @@ public final class MessageDispatcherImpl extends MessageDispatcher {
                             // then break this loop even if no messages were queued.
                             // This lets the pending messages be retried when there
                             // are no messages being queued.
-                            messageQueued.await(backoff, TimeUnit.MILLISECONDS);
+                            outgoingMessageQueue.await(backoff, TimeUnit.MILLISECONDS);
                             break;
                         } else {
-                        messageQueued.await();
-                    }
+                            outgoingMessageQueue.await(0L, TimeUnit.MILLISECONDS);
+                        }
                     }
 
                     // Adjust backoff by how long we waited for a message to be queued.
@@ -827,27 +850,83 @@ public final class MessageDispatcherImpl extends MessageDispatcher {
                         backoff = Math.max(backoff - waitTime, 0L);
                     }
 
-                    // Add outgoing messages to pendingMessages. Call send
-                    // outside of the sendLock so that the queue method
-                    // is not blocked while sending.
-                    while(!outgoingMessageQueue.isEmpty()) {
-                        final Message message = outgoingMessageQueue.poll();
-                        newAlert |= message.getType() == Type.ALERT;
-                        pendingMessages.add(message);
-                    }
-
                 } catch (InterruptedException e) {
                     // restore interrupt state
                     Thread.currentThread().interrupt();
+                }
 
-                } finally {
-                    sendLock.unlock();
+                // Add outgoing messages to pendingMessages. The queue method
+                // is never blocked by the transmit thread.
+                final int fromIndex = pendingMessages.size();
+                outgoingMessageQueue.drainTo(pendingMessages);
+                for (int index = fromIndex; index < pendingMessages.size(); index++) {
+                    newAlert |= pendingMessages.get(index).getType() == Type.ALERT;
                 }
 
                 send(pendingMessages, newAlert);
             }
         }
 
+        //
+        // Queue the next persisted messages, as many as there is room for in
+        // the queue, up to replayPageSize. Nothing is replayed while backing
+        // off, and messages that were persisted because they are pending
+        // retry are skipped. The messages are removed from persistence
+        // once they are queued.
+        //
+        private void replay(List<Message> pendingMessages) {
+            if (replay == null || backoff > 0L || requestClose) {
+                return;
+            }
+
+            // Reserve room in the queue, as the queue method does.
+            int capacity;
+            int reserved;
+            do {
+                capacity = queueCapacity.get();
+                reserved = Math.min(capacity, replayPageSize);
+                if (reserved <= 0) {
+                    return;
+                }
+            } while (!queueCapacity.compareAndSet(capacity, capacity - reserved));
+
+            final List<Message> queued = new ArrayList<Message>(reserved);
+            try {
+                Set<String> pendingIds = null;
+                while (queued.size() < reserved && replay.hasNext()) {
+                    final Message message = replay.next();
+                    if (!pendingMessages.isEmpty()) {
+                        if (pendingIds == null) {
+                            pendingIds = new HashSet<String>(pendingMessages.size() * 2);
+                            for (Message pending : pendingMessages) {
+                                pendingIds.add(pending.getClientId());
+                            }
+                        }
+                        if (pendingIds.contains(message.getClientId())) {
+                            continue;
+                        }
+                    }
+                    outgoingMessageQueue.offer(message);
+                    queued.add(message);
+                }
+                if (!replay.hasNext()) {
+                    replay = null;
+                }
+            } catch (RuntimeException e) {
+                // Such as a message that cannot be decoded. The rest of the
+                // messages are left in persistence.
+                getLogger().log(Level.WARNING, "Cannot replay persisted messages: " + e.toString());
+                replay = null;
+            } finally {
+                // Give back the room that was not used.
+                queueCapacity.addAndGet(reserved - queued.size());
+            }
+
+            if (!queued.isEmpty()) {
+                replayPersistence.delete(queued);
+            }
+        }
+
         //
         // Get messages to send from the pendingMessages list. After
         // this method returns, there may still be messages in the
@@ -949,6 +1028,18 @@ public final class MessageDispatcherImpl extends MessageDispatcher {
                 return;
             }
 
+            // While backing off, batches are sent one at a time, and each
+            // is bigger than the last. See below.
+            if (batchSender != null && attempt == 0) {
+                sendInLanes(messages, pendingMessages);
+                return;
+            }
+
+            // Messages that were persisted for retry are about to be sent
+            // again, so take them out of persistence. If the send fails,
+            // they'll get persisted again.
+            unpersist(messages);
+
             // Unfortunately, DirectlyConnectedDevice#send takes an array, not a List.
             // If MessageDispatcherImpl was in the same package as DirectlyConnectedDevice,
             // we could avoid this. TODO
@@ -968,25 +1059,6 @@ public final class MessageDispatcherImpl extends MessageDispatcher {
                // period expires.
                final boolean backingOff = attempt > 0;
 
-               // If we are backing off, then we were trying to resend messages.
-               // There may be persisted messages. Clear them out now, before trying to
-               // send again. If the send fails, then they'll get persisted again.
-                if (backingOff) {
-                    final MessagePersistence messagePersistence = MessagePersistence.getInstance();
-                    if (messagePersistence != null) {
-                        final List<Message> guaranteedMessages = new ArrayList<Message>();
-                        for (int index = 0; index < messageArray.length; index++) {
-                            final Message message = messageArray[index];
-                            if (message.getReliability() == Reliability.GUARANTEED_DELIVERY) {
-                                guaranteedMessages.add(message);
-                            }
-                        }
-                        if (!guaranteedMessages.isEmpty()) {
-                            messagePersistence.delete(guaranteedMessages);
-                        }
-                    }
-                }
-
                // 'iter' counts how many iterations of this do loop we've done.
                // It is used as an index into 'fib'. The idea is that, if we are
                // backing off, each iteration of this loop we'll send more messages
@@ -1032,8 +1104,37 @@ public final class MessageDispatcherImpl extends MessageDispatcher {
 
                } while (offset<messageArray.length);
 
+               roundSent();
+
             } catch (IOException e) {
 
+               // 'fromIndex' is set in the code above to the index of the first element
+               // of the sublist that is being passed to DirectlyConnectedDevice#send.
+               // Messages in the 'messages' list with index < fromIndex have been
+               // successfully sent. Messages in the 'messages' list with fromIndex <= index
+               // have not been sent and need to be put back into pendingMessages for
+               // reprocessing.
+               sendFailed(messages.subList(fromIndex, messages.size()), e, pendingMessages);
+
+            } catch (GeneralSecurityException e) {
+
+                // Do not retry messages that failed because of GeneralSecurityException
+                if (MessageDispatcherImpl.this.errorCallback != null) {
+                    MessageDispatcherImpl.this.errorCallback.failed(messages, e);
+                }
+
+            }
+        }
+
+        //
+        // Handle an IOException from sending 'unsent', the messages from the
+        // batch that failed onwards. Messages that have retries left are put
+        // back in pendingMessages, and persisted if we are backing off and
+        // they are guaranteed delivery. The others are passed to the error
+        // callback.
+        //
+        private void sendFailed(List<Message> unsent, IOException e, List<Message> pendingMessages) {
+
                if (e instanceof TransportException) {
                    final int status = ((TransportException)e).getStatusCode();
                    // 503 means "The server is currently unable to handle the
@@ -1072,14 +1173,7 @@ public final class MessageDispatcherImpl extends MessageDispatcher {
                final List<Message> messagesToPersist
                    = messagePersistence != null ? new ArrayList<Message>() : null;
 
-               // 'fromIndex' is set in the code above to the index of the first element
-                // of the sublist that is being passed to DirectlyConnectedDevice#send.
-                // Messages in the 'messages' list with index < fromIndex have been
-                // successfully sent. Messages in the 'messages' list with fromIndex <= index
-                // have not been sent and need to be put back into pendingMessages for
-                // reprocessing.
-               while (fromIndex < messages.size()) {
-                    final Message message = messages.get(fromIndex++);
+               for (Message message : unsent) {
                     final int retries = message.getRemainingRetries();
                     if (retries > 0) {
                         assert pendingMessages.indexOf(message) == -1;
@@ -1108,6 +1202,7 @@ public final class MessageDispatcherImpl extends MessageDispatcher {
                // Persist messages for retry.
                if (messagePersistence != null && !messagesToPersist.isEmpty()) {
                    messagePersistence.save(messagesToPersist, deviceClient.getEndpointId());
+                   persistedForRetry.addAll(messagesToPersist);
                }
 
               // Tell the client that messages failed.
@@ -1115,24 +1210,181 @@ public final class MessageDispatcherImpl extends MessageDispatcher {
                     MessageDispatcherImpl.this.errorCallback.
                         failed(failedMessages, e);
                 }
+        }
 
-            } catch (GeneralSecurityException e) {
+        //
+        // Send the messages in up to maximumBatchesInFlight lanes at the same
+        // time. All of the messages of an endpoint go in the same lane, in the
+        // order they are in 'messages', and a lane sends its batches one after
+        // the other, so the messages of an endpoint still reach the server in
+        // order. Alerts are sent first, and the other messages are sent only
+        // after every alert has been sent.
+        //
+        private void sendInLanes(List<Message> messages, List<Message> pendingMessages) {
 
-                // Do not retry messages that failed because of GeneralSecurityException
-                if (MessageDispatcherImpl.this.errorCallback != null) {
-                    MessageDispatcherImpl.this.errorCallback.failed(messages, e);
+            final List<Message> alerts = new ArrayList<Message>();
+            final List<Message> others = new ArrayList<Message>(messages.size());
+            for (Message message : messages) {
+                if (message.getType() == Type.ALERT) {
+                    alerts.add(message);
+                } else {
+                    others.add(message);
                 }
+            }
 
+            unpersist(alerts);
+            if (!alerts.isEmpty() && !sendLanes(alerts, pendingMessages)) {
+                // Some alerts were not sent. Hold the other messages back,
+                // without using up a retry, so they do not go ahead of alerts.
+                pendingMessages.addAll(others);
+                return;
+            }
+
+            unpersist(others);
+            if (others.isEmpty() || sendLanes(others, pendingMessages)) {
+                roundSent();
             }
         }
 
-        // These messages were successfully delivered to the server.
-        // Update state and notify callbacks.
-        private void messagesSent(Message[] messages) {
+        //
+        // Send the messages in lanes by endpoint. The result of each batch is
+        // handled on the transmit thread as the batch completes, so delivery
+        // and error callbacks are called once per batch, from the same thread
+        // as when batches are sent one at a time. A batch that fails stops its
+        // lane, and the messages from that batch on are retried or failed as
+        // a sequential send would. The other lanes carry on. Returns true if
+        // every message was sent.
+        //
+        private boolean sendLanes(List<Message> messages, List<Message> pendingMessages) {
+
+            final List<List<Message>> lanes = assignLanes(messages);
+            final LinkedBlockingQueue<BatchResult> results = new LinkedBlockingQueue<BatchResult>();
+
+            if (lanes.size() == 1) {
+                // Nothing to send in parallel.
+                new Lane(lanes.get(0), results).run();
+            } else {
+                for (List<Message> lane : lanes) {
+                    batchSender.execute(new Lane(lane, results));
+                }
+            }
+
+            boolean allSent = true;
+            Throwable unexpected = null;
+            boolean interrupted = false;
+            int lanesRunning = lanes.size();
+            while (lanesRunning > 0) {
+                final BatchResult result;
+                try {
+                    result = results.take();
+                } catch (InterruptedException e) {
+                    // close() interrupts the transmit thread, but the
+                    // batches are still in flight, so keep waiting.
+                    interrupted = true;
+                    continue;
+                }
+
+                if (result.laneDone) {
+                    lanesRunning -= 1;
+                }
+
+                if (result.failure == null) {
+                    messagesSent(result.batch);
+                    continue;
+                }
+
+                allSent = false;
+                if (result.failure instanceof IOException) {
+                    sendFailed(result.unsent, (IOException)result.failure, pendingMessages);
+                } else if (result.failure instanceof GeneralSecurityException) {
+                    // Do not retry messages that failed because of GeneralSecurityException
+                    if (MessageDispatcherImpl.this.errorCallback != null) {
+                        MessageDispatcherImpl.this.errorCallback.failed(result.unsent, (GeneralSecurityException)result.failure);
+                    }
+                } else if (unexpected == null) {
+                    unexpected = result.failure;
+                }
+            }
 
-            // Send is successful, so make sure backoff is reset to zero.
+            if (interrupted) {
+                // Restore the interrupted status
+                Thread.currentThread().interrupt();
+            }
+
+            if (unexpected instanceof RuntimeException) {
+                throw (RuntimeException)unexpected;
+            } else if (unexpected instanceof Error) {
+                throw (Error)unexpected;
+            }
+            return allSent;
+        }
+
+        //
+        // Split the messages into at most maximumBatchesInFlight lanes. Each
+        // endpoint is given to the lane that has the fewest messages so far.
+        //
+        private List<List<Message>> assignLanes(List<Message> messages) {
+
+            final List<List<Message>> lanes = new ArrayList<List<Message>>(maximumBatchesInFlight);
+            final HashMap<String, List<Message>> laneByEndpoint = new HashMap<String, List<Message>>();
+            for (Message message : messages) {
+                final String endpointId = message.getSource();
+                List<Message> lane = laneByEndpoint.get(endpointId);
+                if (lane == null) {
+                    if (lanes.size() < maximumBatchesInFlight) {
+                        lane = new ArrayList<Message>();
+                        lanes.add(lane);
+                    } else {
+                        lane = lanes.get(0);
+                        for (int index = 1; index < lanes.size(); index++) {
+                            if (lanes.get(index).size() < lane.size()) {
+                                lane = lanes.get(index);
+                            }
+                        }
+                    }
+                    laneByEndpoint.put(endpointId, lane);
+                }
+                lane.add(message);
+            }
+            return lanes;
+        }
+
+        //
+        // Delete from persistence the messages that were persisted when a
+        // send failed and are about to be sent again.
+        //
+        private void unpersist(List<Message> messages) {
+            if (persistedForRetry.isEmpty()) {
+                return;
+            }
+            List<Message> persisted = null;
+            for (Message message : messages) {
+                if (persistedForRetry.remove(message)) {
+                    if (persisted == null) {
+                        persisted = new ArrayList<Message>();
+                    }
+                    persisted.add(message);
+                }
+            }
+            if (persisted != null) {
+                final MessagePersistence messagePersistence = MessagePersistence.getInstance();
+                if (messagePersistence != null) {
+                    messagePersistence.delete(persisted);
+                }
+            }
+        }
+
+        // Every message of a call to send was delivered, so make sure
+        // backoff is reset to zero. A round in which some batches failed
+        // leaves the backoff as sendFailed set it.
+        private void roundSent() {
             backoff = 0L;
             attempt = 0;
+        }
+
+        // These messages were successfully delivered to the server.
+        // Update state and notify callbacks.
+        private void messagesSent(Message[] messages) {
 
             // Send is successful, increase the queue capacity
             // by the number of messages sent
@@ -1172,6 +1424,68 @@ public final class MessageDispatcherImpl extends MessageDispatcher {
         }
     }
 
+    /*
+     * The messages of one lane, sent in batches of at most
+     * maximumMessagesPerConnection, one batch after the other. The result
+     * of each batch is put on 'results' for the transmit thread. The lane
+     * stops at the first batch that fails.
+     */
+    private class Lane implements Runnable {
+
+        private final List<Message> messages;
+        private final Queue<BatchResult> results;
+
+        private Lane(List<Message> messages, Queue<BatchResult> results) {
+            this.messages = messages;
+            this.results = results;
+        }
+
+        @Override
+        public void run() {
+            int offset = 0;
+            while (offset < messages.size()) {
+                final int numMessagesToSend = Math.min(messages.size() - offset, maximumMessagesPerConnection);
+                final List<Message> batch = messages.subList(offset, offset + numMessagesToSend);
+                final Message[] batchArray = batch.toArray(new Message[numMessagesToSend]);
+                offset += numMessagesToSend;
+                try {
+                    deviceClient.send(batchArray);
+                    results.offer(new BatchResult(batchArray, null, null, offset == messages.size()));
+                } catch (Throwable t) {
+                    // Any throwable is handed to the transmit thread, which
+                    // is otherwise left waiting for this lane.
+                    final List<Message> unsent = messages.subList(offset - numMessagesToSend, messages.size());
+                    results.offer(new BatchResult(batchArray, t, unsent, true));
+                    return;
+                }
+            }
+        }
+    }
+
+    /*
+     * The result of sending one batch of a lane.
+     */
+    private static final class BatchResult {
+
+        private final Message[] batch;
+
+        // null if the batch was sent
+        private final Throwable failure;
+
+        // the messages of the lane from the failed batch on, or null
+        private final List<Message> unsent;
+
+        // true if this is the last result of the lane
+        private final boolean laneDone;
+
+        private BatchResult(Message[] batch, Throwable failure, List<Message> unsent, boolean laneDone) {
+            this.batch = batch;
+            this.failure = failure;
+            this.unsent = unsent;
+            this.laneDone = laneDone;
+        }
+    }
+
     private final Lock pendingQueueLock = new ReentrantLock();
     private final Condition pendingTrigger = pendingQueueLock.newCondition();
 
@@ -0,0 +1,570 @@
+/*
+ * Copyright (c) 2018, Oracle and/or its affiliates.  All rights reserved.
+ *
+ * This software is dual-licensed to you under the MIT License (MIT) and
+ * the Universal Permissive License (UPL).  See the LICENSE file in the root
+ * directory for license terms.  You may choose either license, or both.
+ */
+
+package com.oracle.iot.client.impl.device;
+
+import com.oracle.iot.client.impl.util.Base64;
+import com.oracle.iot.client.message.AlertMessage;
+import com.oracle.iot.client.message.DataItem;
+import com.oracle.iot.client.message.DataMessage;
+import com.oracle.iot.client.message.Message;
+import com.oracle.iot.client.message.MessageProperties;
+import com.oracle.iot.client.message.RequestMessage;
+import com.oracle.iot.client.message.ResponseMessage;
+import com.oracle.iot.client.message.StatusCode;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * MessageJsonWriter writes a batch of messages as a JSON array of UTF-8
+ * bytes, without building {@code org.json} objects or intermediate strings.
+ * The members and values written are the same as those of
+ * {@code Message.toJson(messages)}, encoded as UTF-8.
+ * <p>
+ * The members of each object are written in the order {@code Message.toJson()}
+ * puts them, not in the order of the {@code HashMap} that {@code JSONObject}
+ * writes them from. The order of the members of a JSON object is not
+ * significant, so the server reads the same messages, but the bytes are
+ * not the same as {@code Message.toJson(messages).toString()}.
+ * <p>
+ * {@link DataMessage}, {@link AlertMessage}, {@link RequestMessage} and
+ * {@link ResponseMessage} are written directly. Other messages are written
+ * from {@code Message.toJson()}.
+ * <p>
+ * A MessageJsonWriter is not thread safe. Its buffers are kept between
+ * batches, so an instance should be reused by the thread that owns it.
+ */
+final class MessageJsonWriter {
+
+    // The buffer is not kept between batches if it grows beyond this size.
+    private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+
+    private static final byte[] HEX = {
+        '0', '1', '2', '3', '4', '5', '6', '7',
+        '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'
+    };
+
+    private byte[] buf;
+    private int count;
+    private int messageCount;
+
+    // The keys of the data items of the message being written.
+    private final Set<String> dataKeys = new HashSet<String>();
+
+    MessageJsonWriter() {
+        this.buf = new byte[4096];
+        this.count = 0;
+    }
+
+    /**
+     * Discard anything that has been written and start a new JSON array.
+     */
+    void startArray() {
+        if (buf.length > MAX_RETAINED_CAPACITY) {
+            buf = new byte[4096];
+        }
+        count = 0;
+        messageCount = 0;
+        write('[');
+    }
+
+    /**
+     * Write a message as the next element of the array.
+     * @param message the message to write
+     */
+    void writeMessage(Message message) {
+        if (messageCount++ > 0) {
+            write(',');
+        }
+
+        final int mark = count;
+        if (writeFields(message)) {
+            return;
+        }
+        count = mark;
+
+        writeJsonString(message.toJson().toString());
+    }
+
+    /**
+     * End the JSON array.
+     */
+    void endArray() {
+        write(']');
+    }
+
+    /**
+     * The number of messages written since {@link #startArray()}.
+     */
+    int getMessageCount() {
+        return messageCount;
+    }
+
+    /**
+     * The number of bytes written since {@link #startArray()}.
+     */
+    int size() {
+        return count;
+    }
+
+    /**
+     * Return a copy of the bytes written since {@link #startArray()}.
+     */
+    byte[] toByteArray() {
+        return Arrays.copyOf(buf, count);
+    }
+
+    /**
+     * Write the bytes written since {@link #startArray()} to a stream.
+     * @param out the stream to write to
+     * @throws IOException if thrown by {@code out}
+     */
+    void writeTo(OutputStream out) throws IOException {
+        out.write(buf, 0, count);
+    }
+
+    /*************************************************************************
+     *
+     * Message fields
+     *
+     *************************************************************************/
+
+    /*
+     * Write the message as a JSON object, member by member, in the order
+     * of Message.Utils.commonFieldsToJson, dataToJson and bodyToJson.
+     * Returns false if the message type is not written directly, or if
+     * the message has something that JSONObject would not write the same
+     * way, such as a null key or a repeated data item key. toJson() is
+     * used for those.
+     */
+    private boolean writeFields(Message message) {
+        if (message instanceof DataMessage) {
+            final DataMessage dataMessage = (DataMessage)message;
+            return writeCommonFields(message, message.getType().name())
+                && writeDataPayload(dataMessage.getDataItems(),
+                    dataMessage.getFormat(), null, null)
+                && endObject();
+        } else if (message instanceof AlertMessage) {
+            final AlertMessage alertMessage = (AlertMessage)message;
+            return writeCommonFields(message, Message.Type.ALERT.name())
+                && writeDataPayload(alertMessage.getDataItems(),
+                    alertMessage.getFormat(), alertMessage.getDescription(),
+                    alertMessage.getSeverity().toString())
+                && endObject();
+        } else if (message instanceof ResponseMessage) {
+            final ResponseMessage responseMessage = (ResponseMessage)message;
+            final StatusCode statusCode = responseMessage.getStatusCode();
+            return writeCommonFields(message, Message.Type.RESPONSE.name())
+                && writeBodyPayload(null,
+                    statusCode != null ? Integer.valueOf(statusCode.getCode()) : null,
+                    null, responseMessage.getURL(), responseMessage.getRequestId(),
+                    responseMessage.getHeaders(), responseMessage.getBody())
+                && endObject();
+        } else if (message instanceof RequestMessage) {
+            final RequestMessage requestMessage = (RequestMessage)message;
+            return writeCommonFields(message, message.getType().name())
+                && writeBodyPayload(requestMessage.getParams(), null,
+                    requestMessage.getMethod(), requestMessage.getURL(), null,
+                    requestMessage.getHeaders(), requestMessage.getBody())
+                && endObject();
+        }
+        return false;
+    }
+
+    /*
+     * Start the message object and write the common fields. The type is
+     * passed in because alert and response messages write their own.
+     */
+    private boolean writeCommonFields(Message message, String type) {
+        write('{');
+
+        writeMember("id", message.getId());
+        writeMember("clientId", message.getClientId());
+        writeMember("source", message.getSource());
+        writeMember("destination", message.getDestination());
+        writeMember("priority", message.getPriority().toString());
+        writeMember("reliability", message.getReliability().toString());
+        writeKey("eventTime");
+        writeAscii(Long.toString(message.getEventTime()));
+        writeMember("sender", message.getSender());
+        writeMember("type", type);
+
+        final MessageProperties messageProperties = message.getProperties();
+        if (messageProperties != null &&
+                !messageProperties.getAllProperties().isEmpty()) {
+            writeKey("properties");
+            write('{');
+            for (String key : messageProperties.getKeys()) {
+                if (key == null) {
+                    return false;
+                }
+                final List<String> values = messageProperties.getProperties(key);
+                if (values != null) {
+                    writeKey(key);
+                    if (!writeList(values)) {
+                        return false;
+                    }
+                }
+            }
+            write('}');
+        }
+
+        if (message.getDirection() != null) {
+            writeMember("direction", message.getDirection().name());
+        }
+
+        if (message.getReceivedTime() != null) {
+            writeKey("receivedTime");
+            writeAscii(message.getReceivedTime().toString());
+        }
+
+        if (message.getSentTime() != null) {
+            writeKey("sentTime");
+            writeAscii(message.getSentTime().toString());
+        }
+
+        final Map<String,Object> diagnosticsMap = message.getDiagnostics();
+        if (diagnosticsMap != null) {
+            writeKey("diagnostics");
+            write('{');
+            for (Map.Entry<String,Object> entry : diagnosticsMap.entrySet()) {
+                final Object value = entry.getValue();
+                if (value instanceof Boolean || value instanceof Number ||
+                        value instanceof String) {
+                    if (entry.getKey() == null) {
+                        return false;
+                    }
+                    writeKey(entry.getKey());
+                    if (!writeScalar(value)) {
+                        return false;
+                    }
+                }
+            }
+            write('}');
+        }
+
+        return true;
+    }
+
+    private boolean writeDataPayload(List<DataItem<?>> items,
+            String format, String description, String severity) {
+        writeKey("payload");
+        write('{');
+        writeKey("data");
+        write('{');
+
+        dataKeys.clear();
+        for (int index = 0, size = items.size(); index < size; index++) {
+            final DataItem<?> item = items.get(index);
+            switch (item.getType()) {
+                case STRING:
+                case BOOLEAN:
+                case DOUBLE:
+                    final String key = item.getKey();
+                    final Object value = item.getValue();
+                    // JSONObject keeps the last value of a repeated key,
+                    // and drops a key whose value is null.
+                    if (key == null || value == null || !dataKeys.add(key)) {
+                        return false;
+                    }
+                    writeKey(key);
+                    if (!writeScalar(value)) {
+                        return false;
+                    }
+                    break;
+            }
+        }
+        write('}');
+
+        writeMember("format", format);
+        writeMember("description", description);
+        writeMember("severity", severity);
+
+        return endObject();
+    }
+
+    private boolean writeBodyPayload(Map<String,String> params,
+            Integer statusCode, String method, String url, String requestId,
+            Map<String,List<String>> headerMap, byte[] body) {
+        // Like bodyToJson, a null body is an error.
+        if (body == null) {
+            throw new NullPointerException("body is null");
+        }
+
+        writeKey("payload");
+        write('{');
+
+        if (statusCode != null) {
+            writeKey("statusCode");
+            writeAscii(statusCode.toString());
+        }
+
+        writeMember("method", method);
+        writeMember("url", url);
+        writeMember("requestId", requestId);
+
+        writeKey("headers");
+        write('{');
+        for (Map.Entry<String,List<String>> entry : headerMap.entrySet()) {
+            if (entry.getKey() == null) {
+                return false;
+            }
+            if (entry.getValue() != null) {
+                writeKey(entry.getKey());
+                if (!writeList(entry.getValue())) {
+                    return false;
+                }
+            }
+        }
+        write('}');
+
+        if (params != null) {
+            writeKey("params");
+            write('{');
+            for (Map.Entry<String,String> entry : params.entrySet()) {
+                if (entry.getKey() == null) {
+                    return false;
+                }
+                writeMember(entry.getKey(), entry.getValue());
+            }
+            write('}');
+        }
+
+        writeKey("body");
+        final byte[] encoded = Base64.getEncoder().encode(body);
+        write('"');
+        write(encoded, 0, encoded.length);
+        write('"');
+
+        return endObject();
+    }
+
+    /*************************************************************************
+     *
+     * Writing
+     *
+     *************************************************************************/
+
+    /*
+     * Write the key of the next member of the object being written,
+     * preceded by a comma unless it is the first member.
+     */
+    private void writeKey(String key) {
+        if (buf[count - 1] != '{') {
+            write(',');
+        }
+        writeQuoted(key);
+        write(':');
+    }
+
+    /*
+     * Like JSONObject.put, a null value leaves the member out.
+     */
+    private void writeMember(String key, String value) {
+        if (value != null) {
+            writeKey(key);
+            writeQuoted(value);
+        }
+    }
+
+    private boolean endObject() {
+        write('}');
+        return true;
+    }
+
+    /*
+     * Returns false if the value could not be written the way
+     * JSONObject would write it.
+     */
+    private boolean writeScalar(Object value) {
+        if (value instanceof String) {
+            writeQuoted((String)value);
+        } else if (value instanceof Number) {
+            final Number number = (Number)value;
+            if ((number instanceof Double &&
+                    (((Double)number).isInfinite() || ((Double)number).isNaN())) ||
+                (number instanceof Float &&
+                    (((Float)number).isInfinite() || ((Float)number).isNaN()))) {
+                // JSONObject refuses these. Let toJson() report it.
+                return false;
+            }
+            try {
+                writeAscii(JSONObject.numberToString(number));
+            } catch (JSONException e) {
+                return false;
+            }
+        } else if (value instanceof Boolean) {
+            writeAscii(((Boolean)value).booleanValue() ? "true" : "false");
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    private boolean writeList(List<?> list) {
+        write('[');
+        for (int index = 0, size = list.size(); index < size; index++) {
+            if (index > 0) {
+                write(',');
+            }
+            final Object element = list.get(index);
+            if (element == null) {
+                writeAscii("null");
+            } else if (element instanceof String) {
+                writeQuoted((String)element);
+            } else {
+                return false;
+            }
+        }
+        write(']');
+        return true;
+    }
+
+    /*
+     * Writes a string in the same form as JSONObject.quote, encoded as UTF-8.
+     */
+    private void writeQuoted(String string) {
+        final int length = string.length();
+        ensureCapacity(length + 2);
+        write('"');
+        char b;
+        char c = 0;
+        for (int index = 0; index < length; index++) {
+            b = c;
+            c = string.charAt(index);
+            switch (c) {
+                case '\\':
+                case '"':
+                    write('\\');
+                    write(c);
+                    break;
+                case '/':
+                    if (b == '<') {
+                        write('\\');
+                    }
+                    write(c);
+                    break;
+                case '\b':
+                    write('\\');
+                    write('b');
+                    break;
+                case '\t':
+                    write('\\');
+                    write('t');
+                    break;
+                case '\n':
+                    write('\\');
+                    write('n');
+                    break;
+                case '\f':
+                    write('\\');
+                    write('f');
+                    break;
+                case '\r':
+                    write('\\');
+                    write('r');
+                    break;
+                default:
+                    if (c < ' ' || (c >= '\u0080' && c < '\u00a0') ||
+                            (c >= '\u2000' && c < '\u2100')) {
+                        ensureCapacity(6);
+                        buf[count++] = '\\';
+                        buf[count++] = 'u';
+                        buf[count++] = HEX[(c >> 12) & 0xF];
+                        buf[count++] = HEX[(c >> 8) & 0xF];
+                        buf[count++] = HEX[(c >> 4) & 0xF];
+                        buf[count++] = HEX[c & 0xF];
+                    } else {
+                        index = writeChar(string, index, c);
+                    }
+            }
+        }
+        write('"');
+    }
+
+    /*
+     * Writes a string that is already JSON, encoded as UTF-8.
+     */
+    private void writeJsonString(String string) {
+        final int length = string.length();
+        ensureCapacity(length);
+        for (int index = 0; index < length; index++) {
+            index = writeChar(string, index, string.charAt(index));
+        }
+    }
+
+    private void writeAscii(String string) {
+        final int length = string.length();
+        ensureCapacity(length);
+        for (int index = 0; index < length; index++) {
+            buf[count++] = (byte)string.charAt(index);
+        }
+    }
+
+    /*
+     * Encode the char at index as UTF-8, the same as String.getBytes does.
+     * Returns the index of the last char consumed.
+     */
+    private int writeChar(String string, int index, char c) {
+        if (c < 0x80) {
+            write(c);
+        } else if (c < 0x800) {
+            ensureCapacity(2);
+            buf[count++] = (byte)(0xC0 | (c >> 6));
+            buf[count++] = (byte)(0x80 | (c & 0x3F));
+        } else if (Character.isSurrogate(c)) {
+            final int next = index + 1;
+            if (Character.isHighSurrogate(c) && next < string.length() &&
+                    Character.isLowSurrogate(string.charAt(next))) {
+                final int cp = Character.toCodePoint(c, string.charAt(next));
+                ensureCapacity(4);
+                buf[count++] = (byte)(0xF0 | (cp >> 18));
+                buf[count++] = (byte)(0x80 | ((cp >> 12) & 0x3F));
+                buf[count++] = (byte)(0x80 | ((cp >> 6) & 0x3F));
+                buf[count++] = (byte)(0x80 | (cp & 0x3F));
+                return next;
+            }
+            // Unpaired surrogate. String.getBytes replaces it with '?'
+            write('?');
+        } else {
+            ensureCapacity(3);
+            buf[count++] = (byte)(0xE0 | (c >> 12));
+            buf[count++] = (byte)(0x80 | ((c >> 6) & 0x3F));
+            buf[count++] = (byte)(0x80 | (c & 0x3F));
+        }
+        return index;
+    }
+
+    private void write(int b) {
+        if (count == buf.length) {
+            ensureCapacity(1);
+        }
+        buf[count++] = (byte)b;
+    }
+
+    private void write(byte[] bytes, int offset, int length) {
+        ensureCapacity(length);
+        System.arraycopy(bytes, offset, buf, count, length);
+        count += length;
+    }
+
+    private void ensureCapacity(int additional) {
+        final int required = count + additional;
+        if (required > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(required, buf.length * 2));
+        }
+    }
+}
@@ -28,6 +28,9 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -46,6 +49,14 @@ import java.util.logging.Logger;
  * {@link #applyPolicies(Message)} method and then calls
  * {@link com.oracle.iot.client.device.util.MessageDispatcher#queue(Message...)} with the resulting messages.
  * </p>
+ * <p>
+ * The policy state of each endpoint is kept apart, and the messages of an
+ * endpoint are evaluated while holding the lock on its state. The messages
+ * of one endpoint are therefore evaluated one at a time, in the order they
+ * are offered, while messages of different endpoints, such as the indirectly
+ * connected devices of a gateway, may be offered from different threads and
+ * are evaluated in parallel.
+ * </p>
  */
 public class MessagingPolicyImpl implements DevicePolicyManager.ChangeListener {
 
@@ -84,27 +95,37 @@ public class MessagingPolicyImpl implements DevicePolicyManager.ChangeListener {
         // or intersecting timeout get expired at the same time. This ensures the attributes
         // are grouped.
         final long currentTimeMillis = System.currentTimeMillis();
-        final List<Message> resultingMessages = new ArrayList<Message>();
 
-        if (message.getType() == Message.Type.DATA) {
-            DataMessage dataMessage =
-                    applyAttributePolicies((DataMessage) message, currentTimeMillis);
-            if (dataMessage != null) {
-                resultingMessages.add(dataMessage);
-            }
-        } else {
-            resultingMessages.add(message);
+        final List<Message> messageList = new ArrayList<Message>();
+        Message messageFromExpiredPolicy;
+        while ((messageFromExpiredPolicy = messagesFromExpiredPolicies.poll()) != null) {
+            messageList.add(messageFromExpiredPolicy);
         }
 
-        final List<Message> messageList = new ArrayList<Message>();
-        if (messagesFromExpiredPolicies.size() > 0) {
-            messageList.addAll(messagesFromExpiredPolicies);
-            messagesFromExpiredPolicies.clear();
+        // Only data messages and alerts have policies.
+        if (!(message instanceof DataMessage) && !(message instanceof AlertMessage)) {
+            messageList.add(message);
+            return messageList.toArray(new Message[messageList.size()]);
         }
-        for (int index = 0, maxIndex = resultingMessages.size(); index < maxIndex; index++) {
-            final Message[] messagesFromDevicePolicy =
-                    applyDevicePolicies(resultingMessages.get(index), currentTimeMillis);
-            Collections.addAll(messageList, messagesFromDevicePolicy);
+
+        final EndpointState endpointState = getEndpointState(message.getSource());
+        synchronized (endpointState) {
+            final List<Message> resultingMessages = new ArrayList<Message>();
+            if (message.getType() == Message.Type.DATA) {
+                DataMessage dataMessage =
+                        applyAttributePolicies((DataMessage) message, endpointState, currentTimeMillis);
+                if (dataMessage != null) {
+                    resultingMessages.add(dataMessage);
+                }
+            } else {
+                resultingMessages.add(message);
+            }
+
+            for (int index = 0, maxIndex = resultingMessages.size(); index < maxIndex; index++) {
+                final Message[] messagesFromDevicePolicy =
+                        applyDevicePolicies(resultingMessages.get(index), endpointState, currentTimeMillis);
+                Collections.addAll(messageList, messagesFromDevicePolicy);
+            }
         }
 
         return messageList.toArray(new Message[messageList.size()]);
@@ -120,22 +141,38 @@ public class MessagingPolicyImpl implements DevicePolicyManager.ChangeListener {
     public void policyUnassigned(DevicePolicy devicePolicy, Set<String> assignedDevices) {
 
         final long currentTimeMillis = System.currentTimeMillis();
-        final List<Message> messages = expirePolicy(devicePolicy, currentTimeMillis);
-        if (messages != null && !messages.isEmpty()) {
-            messagesFromExpiredPolicies.addAll(messages);
-        }
+        for (EndpointState endpointState : endpointStates.values()) {
+            synchronized (endpointState) {
+                final List<Message> messages = expirePolicy(devicePolicy, endpointState, currentTimeMillis);
+                if (messages != null && !messages.isEmpty()) {
+                    messagesFromExpiredPolicies.addAll(messages);
+                }
 
-        // TODO:  Need to figure out how to handle accumulated values.
-        //        For now, just clear out the various maps, which
-        //        effectively means "start from scratch"
-        deviceAnalogMap.clear();
-        pipelineDataCache.clear();
+                // TODO:  Need to figure out how to handle accumulated values.
+                //        For now, just clear out the various maps, which
+                //        effectively means "start from scratch"
+                endpointState.clear();
+            }
+        }
         computedMetricTriggers.clear();
-        windowMap.clear();
+    }
+
+    private EndpointState getEndpointState(String endpointId) {
+        EndpointState endpointState = endpointStates.get(endpointId);
+        if (endpointState == null) {
+            endpointState = new EndpointState();
+            final EndpointState existing = endpointStates.putIfAbsent(endpointId, endpointState);
+            if (existing != null) {
+                endpointState = existing;
+            }
+        }
+        return endpointState;
     }
 
     // Apply policies that are targeted to an attribute
-    private DataMessage applyAttributePolicies(DataMessage dataMessage, long currentTimeMillis)
+    private DataMessage applyAttributePolicies(DataMessage dataMessage,
+                                               EndpointState endpointState,
+                                               long currentTimeMillis)
             throws IOException, GeneralSecurityException {
 
         // A data message format cannot be null or empty
@@ -152,18 +189,14 @@ public class MessagingPolicyImpl implements DevicePolicyManager.ChangeListener {
         }
 
         final String endpointId = dataMessage.getSource();
-        final DeviceAnalog deviceAnalog;
-        if (!deviceAnalogMap.containsKey(endpointId)) {
-            deviceAnalog = new DeviceAnalogImpl(directlyConnectedDevice, (DeviceModelImpl) deviceModel, endpointId);
-            deviceAnalogMap.put(endpointId, deviceAnalog);
-        } else {
-            deviceAnalog = deviceAnalogMap.get(endpointId);
+        if (endpointState.deviceAnalog == null) {
+            endpointState.deviceAnalog = new DeviceAnalogImpl(directlyConnectedDevice, deviceModel, endpointId);
         }
+        final DeviceAnalog deviceAnalog = endpointState.deviceAnalog;
 
-        final Map<String, Set<String>> triggerMap;
-        if (!computedMetricTriggers.containsKey(deviceModelUrn)) {
+        Map<String, Set<String>> triggerMap = computedMetricTriggers.get(deviceModelUrn);
+        if (triggerMap == null) {
             triggerMap = new HashMap<String, Set<String>>();
-            computedMetricTriggers.put(deviceModelUrn, triggerMap);
 
             final Map<String, DeviceModelAttribute> deviceModelAttributeMap = deviceModel.getDeviceModelAttributes();
             for (Map.Entry<String, DeviceModelAttribute> entry : deviceModelAttributeMap.entrySet()) {
@@ -211,8 +244,12 @@ public class MessagingPolicyImpl implements DevicePolicyManager.ChangeListener {
                     }
                 }
             }
-        } else {
-            triggerMap = computedMetricTriggers.get(deviceModelUrn);
+
+            // The trigger map is not modified once it is shared.
+            final Map<String, Set<String>> existing = computedMetricTriggers.putIfAbsent(deviceModelUrn, triggerMap);
+            if (existing != null) {
+                triggerMap = existing;
+            }
         }
 
         // getDataItems is returns an unmodifiable list
@@ -266,7 +303,7 @@ public class MessagingPolicyImpl implements DevicePolicyManager.ChangeListener {
             }
 
             DataItem<?> policyDataItem =
-                    applyAttributePolicy(deviceAnalog, dataItem, pipeline,currentTimeMillis );
+                    applyAttributePolicy(endpointState, dataItem, pipeline, currentTimeMillis);
             if (policyDataItem != null) {
                 policyDataItems.add(policyDataItem);
             }
@@ -285,7 +322,7 @@ public class MessagingPolicyImpl implements DevicePolicyManager.ChangeListener {
 
         // This looks like a good place to check for computed metrics, too.
         if (!policyDataItems.isEmpty()) {
-            checkComputedMetrics(policyDataItems, deviceAnalog, triggerMap, currentTimeMillis);
+            checkComputedMetrics(policyDataItems, endpointState, triggerMap, currentTimeMillis);
         }
 
         // Since we can't modify the original data message, we have to create a copy.
@@ -316,24 +353,25 @@ public class MessagingPolicyImpl implements DevicePolicyManager.ChangeListener {
     }
 
     // Return DataItem if it should be included in the Message, null if it should not be.
-    private DataItem<?> applyAttributePolicy(DeviceAnalog deviceAnalog,
+    private DataItem<?> applyAttributePolicy(EndpointState endpointState,
                                              DataItem<?> dataItem,
                                              List<DevicePolicy.Function> pipeline,
                                              long currentTimeMillis) {
 
+        final DeviceAnalog deviceAnalog = endpointState.deviceAnalog;
         final String attribute = dataItem.getKey();
         final DeviceModelImpl deviceModel = (DeviceModelImpl) deviceAnalog.getDeviceModel();
 
         Object policyValue = dataItem.getValue();
 
         // Create the pipeline data for this attribute
-        List<Map<String, Object>> pipelineData = pipelineDataCache.get(attribute);
+        List<Map<String, Object>> pipelineData = endpointState.pipelineDataCache.get(attribute);
         if (pipelineData == null) {
             pipelineData = new ArrayList<Map<String, Object>>();
-            pipelineDataCache.put(attribute, pipelineData);
+            endpointState.pipelineDataCache.put(attribute, pipelineData);
         }
 
-        DeviceFunction.putInProcessValue(deviceAnalog.getEndpointId(), deviceModel.getURN(), attribute, policyValue);
+        deviceAnalog.getInProcessValues().put(attribute, policyValue);
 
         for (int index = 0, maxIndex = pipeline.size(); index < maxIndex; index++) {
 
@@ -362,16 +400,16 @@ public class MessagingPolicyImpl implements DevicePolicyManager.ChangeListener {
                 // This could be more succinct, but it makes the key easy to read in the debugger.
                 final String k =
                         deviceModel.getURN().concat(":".concat(attribute.concat(":".concat(deviceFunction.getId().concat(".expiry")))));
-                Long expiry = windowMap.get(k);
+                Long expiry = endpointState.windowMap.get(k);
                 if (expiry == null) {
                     expiry = currentTimeMillis + window;
-                    windowMap.put(k, expiry);
+                    endpointState.windowMap.put(k, expiry);
                 }
 
                 windowExpired = expiry <= currentTimeMillis;
 
                 if (windowExpired) {
-                    windowMap.put(k, expiry + slide);
+                    endpointState.windowMap.put(k, expiry + slide);
                 }
             } else {
                 windowExpired = false;
@@ -389,7 +427,7 @@ public class MessagingPolicyImpl implements DevicePolicyManager.ChangeListener {
 
                 if (valueFromPolicy != null) {
                     policyValue = valueFromPolicy;
-                    DeviceFunction.putInProcessValue(deviceAnalog.getEndpointId(), deviceModel.getURN(), attribute, policyValue);
+                    deviceAnalog.getInProcessValues().put(attribute, policyValue);
                 } else {
                     getLogger().log(Level.WARNING, attribute +
                             " got null value from policy" + deviceFunction.getDetails(parameters));
@@ -418,14 +456,14 @@ public class MessagingPolicyImpl implements DevicePolicyManager.ChangeListener {
             policyDataItem = null;
         }
 
-        DeviceFunction.removeInProcessValue(deviceAnalog.getEndpointId(), deviceModel.getURN(), attribute);
+        deviceAnalog.getInProcessValues().remove(attribute);
         return policyDataItem;
 
     }
 
     private void checkComputedMetrics(
             List<DataItem<?>> dataItems,
-            DeviceAnalog deviceAnalog,
+            EndpointState endpointState,
             Map<String, Set<String>> triggerMap,
             long currentTimeMillis)
             throws IOException, GeneralSecurityException {
@@ -439,6 +477,7 @@ public class MessagingPolicyImpl implements DevicePolicyManager.ChangeListener {
             updatedAttributes.add(dataItem.getKey());
         }
 
+        final DeviceAnalog deviceAnalog = endpointState.deviceAnalog;
         final String endpointId = deviceAnalog.getEndpointId();
         final DeviceModelImpl deviceModel = (DeviceModelImpl) deviceAnalog.getDeviceModel();
         final Map<String, DeviceModelAttribute> deviceModelAttributes = deviceModel.getDeviceModelAttributes();
@@ -512,7 +551,7 @@ public class MessagingPolicyImpl implements DevicePolicyManager.ChangeListener {
                 }
 
                 final DataItem<?> policyDataItem =
-                        applyAttributePolicy(deviceAnalog, dataItem, pipeline, currentTimeMillis);
+                        applyAttributePolicy(endpointState, dataItem, pipeline, currentTimeMillis);
 
                 if (policyDataItem != null) {
                     dataItems.add(policyDataItem);
@@ -523,7 +562,9 @@ public class MessagingPolicyImpl implements DevicePolicyManager.ChangeListener {
     }
 
     // Apply policies that are targeted to a device model
-    private Message[] applyDevicePolicies(Message message, long currentTimeMillis)
+    private Message[] applyDevicePolicies(Message message,
+                                          EndpointState endpointState,
+                                          long currentTimeMillis)
             throws IOException, GeneralSecurityException {
 
         // A data message or alert format cannot be null or empty
@@ -541,12 +582,12 @@ public class MessagingPolicyImpl implements DevicePolicyManager.ChangeListener {
             return new Message[]{message};
         }
 
-        DeviceAnalog deviceAnalog = deviceAnalogMap.get(endpointId);
+        DeviceAnalog deviceAnalog = endpointState.deviceAnalog;
         if (deviceAnalog == null) {
             final DeviceModel deviceModel = directlyConnectedDevice.getDeviceModel(deviceModelUrn);
             if (deviceModel instanceof DeviceModelImpl) {
                 deviceAnalog = new DeviceAnalogImpl(directlyConnectedDevice, (DeviceModelImpl) deviceModel, endpointId);
-                deviceAnalogMap.put(endpointId, deviceAnalog);
+                endpointState.deviceAnalog = deviceAnalog;
             }
 
             // TODO: what to do if deviceAnalog is null?
@@ -593,10 +634,10 @@ public class MessagingPolicyImpl implements DevicePolicyManager.ChangeListener {
         }
 
         // Create the pipeline data for this device model
-        List<Map<String, Object>> pipelineData = pipelineDataCache.get(null);
+        List<Map<String, Object>> pipelineData = endpointState.pipelineDataCache.get(null);
         if (pipelineData == null) {
             pipelineData = new ArrayList<Map<String, Object>>();
-            pipelineDataCache.put(null, pipelineData);
+            endpointState.pipelineDataCache.put(null, pipelineData);
         }
 
         // Handle pipleline for device policy
@@ -629,16 +670,16 @@ public class MessagingPolicyImpl implements DevicePolicyManager.ChangeListener {
             if (window > 0) {
 
                 final String k = deviceModelUrn.concat("::".concat(deviceFunction.getId().concat(".expiry")));
-                Long expiry = windowMap.get(k);
+                Long expiry = endpointState.windowMap.get(k);
                 if (expiry == null) {
                     expiry = currentTimeMillis + window;
-                    windowMap.put(k, expiry);
+                    endpointState.windowMap.put(k, expiry);
                 }
 
                 windowExpired = expiry <= currentTimeMillis;
 
                 if (windowExpired) {
-                    windowMap.put(k, expiry + slide);
+                    endpointState.windowMap.put(k, expiry + slide);
                 }
 
             } else {
@@ -701,36 +742,31 @@ public class MessagingPolicyImpl implements DevicePolicyManager.ChangeListener {
     }
 
 
-    private List<Message> expirePolicy(final DevicePolicy devicePolicy, long currentTimeMillis) {
+    private List<Message> expirePolicy(final DevicePolicy devicePolicy,
+                                       final EndpointState endpointState,
+                                       long currentTimeMillis) {
+
+        final DeviceAnalog deviceAnalog = endpointState.deviceAnalog;
+        if (deviceAnalog == null) {
+            return null;
+        }
 
-        final List<Message> messageList = expirePolicy(devicePolicy);
+        final List<Message> messageList = expirePolicy(devicePolicy, endpointState);
 
         final List<Message> consolidatedMessageList = new ArrayList<Message>();
         if (!messageList.isEmpty()) {
 
             // consolidate messages
-            final Map<String,List<DataItem<?>>> dataItemMap = new HashMap<String,List<DataItem<?>>>();
+            final List<DataItem<?>> dataItems = new ArrayList<DataItem<?>>();
             for (Message message : messageList) {
                 if (message instanceof DataMessage) {
-                    final String endpointId = message.getSource();
-                    List<DataItem<?>> dataItems = dataItemMap.get(endpointId);
-                    if (dataItems == null) {
-                        dataItems = new ArrayList<DataItem<?>>();
-                        dataItemMap.put(endpointId, dataItems);
-                    }
                     dataItems.addAll(((DataMessage) message).getDataItems());
                 } else {
                     consolidatedMessageList.add(message);
                 }
             }
 
-            for (Map.Entry<String, List<DataItem<?>>> entry : dataItemMap.entrySet()) {
-                final DeviceAnalog deviceAnalog = deviceAnalogMap.get(entry.getKey());
-                if (deviceAnalog == null) {
-                    continue;
-                }
-                final List<DataItem<?>> dataItems = entry.getValue();
-
+            if (!dataItems.isEmpty()) {
                 final String format = deviceAnalog.getDeviceModel().getURN();
 
                 if (!computedMetricTriggers.isEmpty()) {
@@ -738,7 +774,7 @@ public class MessagingPolicyImpl implements DevicePolicyManager.ChangeListener {
                     Map<String,Set<String>> triggerMap = computedMetricTriggers.get(format);
                     if (triggerMap != null && !triggerMap.isEmpty()) {
                         try {
-                            checkComputedMetrics(dataItems, deviceAnalog, triggerMap, currentTimeMillis);
+                            checkComputedMetrics(dataItems, endpointState, triggerMap, currentTimeMillis);
                         } catch (IOException e) {
                             getLogger().log(Level.WARNING, e.getMessage());
                         } catch (GeneralSecurityException e) {
@@ -760,26 +796,12 @@ public class MessagingPolicyImpl implements DevicePolicyManager.ChangeListener {
 
     }
 
-    private List<Message> expirePolicy(DevicePolicy devicePolicy) {
-
-        final List<Message> messageList = new ArrayList<Message>();
-
-        for (DeviceAnalog deviceAnalog : deviceAnalogMap.values()) {
-            final List<Message> messages = expirePolicy(devicePolicy, deviceAnalog);
-            if (messages != null && !messages.isEmpty()) {
-                messageList.addAll(messages);
-            }
-        }
-
-        return messageList;
-    }
-
-    private List<Message> expirePolicy(final DevicePolicy devicePolicy, final DeviceAnalog deviceAnalog) {
+    private List<Message> expirePolicy(final DevicePolicy devicePolicy, final EndpointState endpointState) {
 
         final Set<Map.Entry<String, List<DevicePolicy.Function>>> entries = devicePolicy.getPipelines().entrySet();
         final List<Message> messageList = new ArrayList<Message>();
         for (Map.Entry<String, List<DevicePolicy.Function>> entry : entries) {
-            final List<Message> messages = expirePolicy(entry.getKey(), entry.getValue(), deviceAnalog);
+            final List<Message> messages = expirePolicy(entry.getKey(), entry.getValue(), endpointState);
             if (messages != null) {
                 messageList.addAll(messages);
             }
@@ -789,15 +811,17 @@ public class MessagingPolicyImpl implements DevicePolicyManager.ChangeListener {
 
     private List<Message> expirePolicy(final String attributeName,
                                        final List<DevicePolicy.Function> pipeline,
-                                       final DeviceAnalog deviceAnalog) {
+                                       final EndpointState endpointState) {
 
         if (pipeline == null || pipeline.isEmpty()) {
             return null;
         }
 
+        final DeviceAnalog deviceAnalog = endpointState.deviceAnalog;
+
         // attributeName may be null.
         // Note that we are _removing_ the pipeline data cache for this attribute (which may be null)
-        final List<Map<String, Object>> pipelineData = pipelineDataCache.remove(attributeName);
+        final List<Map<String, Object>> pipelineData = endpointState.pipelineDataCache.remove(attributeName);
         if (pipelineData == null) {
             return null;
         }
@@ -973,37 +997,50 @@ public class MessagingPolicyImpl implements DevicePolicyManager.ChangeListener {
 
     private final DirectlyConnectedDevice directlyConnectedDevice;
 
-    // Data pertaining to this virtual device and its attributes for computing policies.
-    // The key is attribute name (or null for the device model policies), value is a
-    // list. Each element in the list corresponds to a function in the pipeline for
-    // the attribute, and the map is used by the function to hold data between calls.
-    // Note that there is a 1:1 correspondence between the pipeline configuration
-    // data for the attribute, and the pipeline data for the attribute.
-    private final Map<String, List<Map<String, Object>>> pipelineDataCache =
-            new HashMap<String, List<Map<String, Object>>>();
-
-    // deviceModelUrn -> DeviceAnalog
-    // We need more than one DeviceAnalog because the DCD can have more than one device model.
-    private final Map<String, DeviceAnalog> deviceAnalogMap =
-            new HashMap<String, DeviceAnalog>();
-
-    // deviceModelUrn:attribute:deviceFunctionId -> start time of last window
-    // For a window policy, this maps the policy target plus the function to
-    // when the window started. When the attribute for a timed function is in
-    // the message, we can compare this start time to the elapsed time to
-    // determine if the window has expired. If the window has expired, the value
-    // computed by the function is passed to the remaining functions in the pipeline.
-    //
-    private final Map<String, Long> windowMap =
-            new HashMap<String, Long>();
+    // endpointId -> the policy state of the endpoint.
+    private final ConcurrentMap<String, EndpointState> endpointStates =
+            new ConcurrentHashMap<String, EndpointState>();
 
     // Key is device model urn, value is attribute -> trigger attributes
     // (a trigger attribute is a referenced attribute in a computedMetric formula).
-    private final Map<String, Map<String, Set<String>>> computedMetricTriggers =
-            new HashMap<String, Map<String, Set<String>>>();
-
-    private final List<Message> messagesFromExpiredPolicies =
-            new ArrayList<Message>();
+    private final ConcurrentMap<String, Map<String, Set<String>>> computedMetricTriggers =
+            new ConcurrentHashMap<String, Map<String, Set<String>>>();
+
+    private final ConcurrentLinkedQueue<Message> messagesFromExpiredPolicies =
+            new ConcurrentLinkedQueue<Message>();
+
+    // The policy state of one endpoint. Guarded by the lock on the EndpointState.
+    private static final class EndpointState {
+
+        // The DeviceAnalog of the endpoint, created when the device model
+        // of the endpoint is first needed.
+        private DeviceAnalog deviceAnalog;
+
+        // Data pertaining to this endpoint and its attributes for computing policies.
+        // The key is attribute name (or null for the device model policies), value is a
+        // list. Each element in the list corresponds to a function in the pipeline for
+        // the attribute, and the map is used by the function to hold data between calls.
+        // Note that there is a 1:1 correspondence between the pipeline configuration
+        // data for the attribute, and the pipeline data for the attribute.
+        private final Map<String, List<Map<String, Object>>> pipelineDataCache =
+                new HashMap<String, List<Map<String, Object>>>();
+
+        // deviceModelUrn:attribute:deviceFunctionId -> start time of last window
+        // For a window policy, this maps the policy target plus the function to
+        // when the window started. When the attribute for a timed function is in
+        // the message, we can compare this start time to the elapsed time to
+        // determine if the window has expired. If the window has expired, the value
+        // computed by the function is passed to the remaining functions in the pipeline.
+        //
+        private final Map<String, Long> windowMap =
+                new HashMap<String, Long>();
+
+        private void clear() {
+            deviceAnalog = null;
+            pipelineDataCache.clear();
+            windowMap.clear();
+        }
+    }
 
     private static final Logger LOGGER = Logger.getLogger("oracle.iot.client");
     private static Logger getLogger() { return LOGGER; }
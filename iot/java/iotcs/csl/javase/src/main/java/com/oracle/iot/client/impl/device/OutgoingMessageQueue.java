@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) 2018, Oracle and/or its affiliates.  All rights reserved.
+ *
+ * This software is dual-licensed to you under the MIT License (MIT) and
+ * the Universal Permissive License (UPL).  See the LICENSE file in the root
+ * directory for license terms.  You may choose either license, or both.
+ */
+
+package com.oracle.iot.client.impl.device;
+
+import com.oracle.iot.client.message.Message;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * OutgoingMessageQueue is the queue of messages waiting to be sent by the
+ * MessageDispatcher. Messages may be offered from any number of threads
+ * without locking. Messages are drained by a single consumer thread, the
+ * MessageDispatcher transmit thread.
+ * <p>
+ * There is one bounded ring per {@link Message.Priority}. Producers claim a
+ * slot in the ring for the message's priority with a CAS on the ring's tail.
+ * The consumer drains the rings from highest to lowest priority and sorts
+ * what it drained with the same comparator the dispatcher has always used,
+ * so the order in which messages are handed to the transmitter does not
+ * change.
+ */
+final class OutgoingMessageQueue {
+
+    /*
+     * The order in which messages are sent. Highest priority first, then
+     * oldest event time, then reliability, then the order in which the
+     * messages were created.
+     */
+    static final Comparator<Message> MESSAGE_ORDER = new Comparator<Message>() {
+        @Override
+        public int compare(Message o1, Message o2) {
+
+            // Note this implementation is not consistent with equals. It is possible
+            // that a.compareTo(b) == 0 is not that same boolean value as a.equals(b)
+
+            // The natural order of enum is the enum's ordinal, i.e.,
+            // x.getPriority().compareTo(y.getPriority() will give {x,y}
+            // if x is a lower priority. What we want is to sort by the
+            // higher priority.
+            int c = o2.getPriority().compareTo(o1.getPriority());
+
+            // If they are the same priority, take the one that was created first
+            if (c == 0) {
+                c = o1.getEventTime().compareTo(o2.getEventTime());
+            }
+
+            // If they are still the same, take the one with higher reliability.
+            if (c == 0) {
+                c = o1.getReliability().compareTo(o2.getReliability());
+            }
+
+            // If they are still the same, take the one that was created first.
+            if (c == 0) {
+                long lc = o1.getOrdinal() - o2.getOrdinal();
+                if (lc > 0) c = 1;
+                else if (lc < 0) c = -1;
+                else c = 0; // this would mean o1 == o2! This shouldn't happen.
+            }
+
+            return c;
+        }
+    };
+
+    private static final Message.Priority[] PRIORITIES = Message.Priority.values();
+
+    // Indexed by Priority ordinal.
+    private final Ring[] rings;
+
+    // The thread parked in await, if any.
+    private volatile Thread consumer;
+
+    /**
+     * Create an OutgoingMessageQueue.
+     * @param capacity the maximum number of messages of any one priority
+     *                 that may be in the queue at the same time.
+     */
+    OutgoingMessageQueue(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be greater than zero");
+        }
+        rings = new Ring[PRIORITIES.length];
+        for (int index = 0; index < rings.length; index++) {
+            rings[index] = new Ring(capacity);
+        }
+    }
+
+    /**
+     * Add a message to the queue. This method does not block and may be
+     * called from any thread.
+     * @param message the message to add
+     * @return {@code false} if the ring for the message's priority is full
+     */
+    boolean offer(Message message) {
+        if (message == null) {
+            throw new NullPointerException("message is null");
+        }
+        if (!rings[message.getPriority().ordinal()].offer(message)) {
+            return false;
+        }
+        // Ring.offer publishes with a volatile write, so a consumer that
+        // parks after this read will see the message in its re-check.
+        final Thread waiter = consumer;
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+        return true;
+    }
+
+    /**
+     * Move all of the messages in the queue to the end of {@code list}, in
+     * send order. This method must only be called from the consumer thread.
+     * @param list the list to add messages to
+     * @return the number of messages added
+     */
+    int drainTo(List<Message> list) {
+        final int start = list.size();
+        for (int index = rings.length - 1; index >= 0; index--) {
+            rings[index].drainTo(list);
+        }
+        final int count = list.size() - start;
+        if (count > 1) {
+            Collections.sort(list.subList(start, list.size()), MESSAGE_ORDER);
+        }
+        return count;
+    }
+
+    /**
+     * Return {@code true} if there are no messages in the queue that can
+     * be drained.
+     */
+    boolean isEmpty() {
+        for (int index = 0; index < rings.length; index++) {
+            if (!rings[index].isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Block until a message is offered, the thread is interrupted,
+     * or the timeout expires. A {@code timeout} of zero means wait forever.
+     * As with {@link java.util.concurrent.locks.Condition#await}, this
+     * method may return spuriously. This method must only be called from
+     * the consumer thread.
+     */
+    void await(long timeout, TimeUnit unit) throws InterruptedException {
+        consumer = Thread.currentThread();
+        try {
+            if (isEmpty()) {
+                if (timeout > 0L) {
+                    LockSupport.parkNanos(this, unit.toNanos(timeout));
+                } else {
+                    LockSupport.park(this);
+                }
+            }
+        } finally {
+            consumer = null;
+        }
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+    }
+
+    /*
+     * A bounded, multi-producer single-consumer array queue. A producer
+     * claims a slot by advancing tail, then publishes the message into the
+     * slot. The consumer treats an empty slot at head as the end of the
+     * queue, even if a producer has claimed it but not yet published.
+     */
+    private static final class Ring {
+
+        private final AtomicReferenceArray<Message> slots;
+        private final int mask;
+        private final int capacity;
+        private final AtomicLong tail = new AtomicLong(0L);
+
+        // Only written by the consumer. Producers read it to check for a full ring.
+        private volatile long head = 0L;
+
+        private Ring(int capacity) {
+            int size = 1;
+            while (size < capacity) {
+                size <<= 1;
+            }
+            this.slots = new AtomicReferenceArray<Message>(size);
+            this.mask = size - 1;
+            this.capacity = capacity;
+        }
+
+        private boolean offer(Message message) {
+            long t;
+            do {
+                t = tail.get();
+                if (t - head >= capacity) {
+                    return false;
+                }
+            } while (!tail.compareAndSet(t, t + 1));
+            slots.set((int) t & mask, message);
+            return true;
+        }
+
+        private void drainTo(List<Message> list) {
+            long h = head;
+            Message message;
+            while ((message = slots.get((int) h & mask)) != null) {
+                slots.lazySet((int) h & mask, null);
+                list.add(message);
+                head = ++h;
+            }
+        }
+
+        private boolean isEmpty() {
+            return slots.get((int) head & mask) == null;
+        }
+    }
+}
@@ -8,11 +8,18 @@
 
 package com.oracle.iot.client.impl.device;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * PersistenceManager
+ * <p>
+ * The stores, and the methods of a store, may be used from any thread.
+ * A transaction is meant to be used by one thread, and is committed
+ * atomically.
  */
 public class PersistenceStoreManager {
 
@@ -21,12 +28,16 @@ public class PersistenceStoreManager {
         PersistenceStore persistenceStore = map.get(name);
         if (persistenceStore == null) {
             persistenceStore = new InMemoryPersistenceStore(name);
-            map.put(name, persistenceStore);
+            final PersistenceStore existing = map.putIfAbsent(name, persistenceStore);
+            if (existing != null) {
+                persistenceStore = existing;
+            }
         }
         return persistenceStore;
     }
 
-    private static Map<String, PersistenceStore> map = new HashMap<String,PersistenceStore>();
+    private static final ConcurrentMap<String, PersistenceStore> map =
+            new ConcurrentHashMap<String,PersistenceStore>();
 
     private static class InMemoryPersistenceStore implements PersistenceStore {
 
@@ -47,7 +58,9 @@ public class PersistenceStoreManager {
 
         @Override
         public Map<String, ?> getAll() {
-            return new HashMap<String,Object>(map);
+            synchronized (map) {
+                return new HashMap<String,Object>(map);
+            }
         }
 
         @Override
@@ -94,7 +107,7 @@ public class PersistenceStoreManager {
 
         private InMemoryPersistenceStore(String name) {
             this.name = name;
-            this.map = new HashMap<String, Object>();
+            this.map = Collections.synchronizedMap(new HashMap<String, Object>());
         }
 
         private final String name;
@@ -0,0 +1,605 @@
+/*
+ * Copyright (c) 2018, Oracle and/or its affiliates.  All rights reserved.
+ *
+ * This software is dual-licensed to you under the MIT License (MIT) and
+ * the Universal Permissive License (UPL).  See the LICENSE file in the root
+ * directory for license terms.  You may choose either license, or both.
+ */
+
+package com.oracle.iot.client.impl.device;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * The persisted associations between device models and device policies,
+ * and between device policies and devices.
+ * <p>
+ * The associations are kept in memory. A change is appended to a journal,
+ * {@code device-associations.journal}, and the changes made since the last
+ * {@link #flush()} are written with one append. When the journal has more
+ * records than the compaction threshold, the associations are written to
+ * a snapshot, {@code device-associations.dat}, and the journal is removed.
+ * The snapshot is written to a temporary file that is then renamed, so a
+ * crash leaves either the old snapshot and the journal, or the new snapshot.
+ * <p>
+ * The snapshot is
+ * <pre>
+ *     int   magic number
+ *     int   version
+ *     long  generation
+ *     int   number of device models
+ *           for each: str urn, int number of policies, str policy id...
+ *     int   number of policies
+ *           for each: str policy id, int number of devices, str device id...
+ *     long  CRC-32 of the bytes that come before it
+ * </pre>
+ * where a str is written by {@link DataOutputStream#writeUTF(String)}. The
+ * journal starts with the magic number and the generation of the snapshot
+ * it follows, and is ignored if the generation is not that of the snapshot,
+ * which is the case if compaction stopped before the journal was removed.
+ * Each record of the journal is an int length and an int CRC-32 of the body,
+ * followed by the body: a byte {@code ADD} or {@code REMOVE} and the device
+ * model urn, policy id and device id, or a byte {@code REMOVE_POLICY} and
+ * the device model urn and policy id. Replay stops at the first record that
+ * is incomplete or fails its CRC.
+ * <p>
+ * The {@code device-associations.json} file written by earlier releases is
+ * read if there is no snapshot, and is replaced by a snapshot.
+ * <p>
+ * The methods of this class are synchronized.
+ */
+final class PolicyAssociations {
+
+    private static final Logger LOGGER = Logger.getLogger("oracle.iot.client");
+    private static Logger getLogger() { return LOGGER; }
+
+    private static final String SNAPSHOT_NAME = "device-associations.dat";
+    private static final String JOURNAL_NAME = "device-associations.journal";
+    private static final String LEGACY_NAME = "device-associations.json";
+
+    private static final int MAGIC = 0x494F5441; // "IOTA"
+    private static final int VERSION = 1;
+
+    private static final byte ADD = 1;
+    private static final byte REMOVE = 2;
+    private static final byte REMOVE_POLICY = 3;
+
+    // An op, and three strings of at most 65535 bytes and their lengths.
+    private static final int MAX_RECORD_LENGTH = 1 + 3 * (2 + 65535);
+
+    // The number of journal records after which the journal is compacted
+    // into the snapshot.
+    private static final int COMPACT_THRESHOLD;
+    static {
+        final int threshold = Integer.getInteger(
+                "oracle.iot.client.device.policy_associations_compact_threshold", 1024);
+        COMPACT_THRESHOLD = threshold > 0 ? threshold : 1024;
+    }
+
+    private final File snapshotFile;
+    private final File journalFile;
+    private final File legacyFile;
+
+    // { <device-model-urn> : [ <policy-id> ] }
+    private final Map<String, Set<String>> policyIdsByDeviceModelUrn =
+            new LinkedHashMap<String, Set<String>>();
+
+    // { <policy-id> : [ <device-id> ] }
+    private final Map<String, Set<String>> deviceIdsByPolicyId =
+            new LinkedHashMap<String, Set<String>>();
+
+    // The records that have not been flushed to the journal.
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private int pendingRecords;
+
+    // The generation of the snapshot, which is incremented by each compaction.
+    private long generation;
+
+    // True if the journal file has a header for this generation and
+    // records can be appended to it.
+    private boolean journalCurrent;
+
+    // The number of records in the journal file.
+    private int journalRecords;
+
+    // True if a write to the journal failed. The journal may end with part
+    // of a record, so the next flush compacts rather than appends.
+    private boolean journalFailed;
+
+    // Scratch space for one record body.
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream(128);
+    private final DataOutputStream bodyOut = new DataOutputStream(body);
+    private final CRC32 crc = new CRC32();
+
+    PolicyAssociations(String localStore) {
+        this.snapshotFile = new File(localStore, SNAPSHOT_NAME);
+        this.journalFile = new File(localStore, JOURNAL_NAME);
+        this.legacyFile = new File(localStore, LEGACY_NAME);
+    }
+
+    /**
+     * Read the associations from the snapshot and the journal, or from
+     * {@code device-associations.json} if there is no snapshot.
+     */
+    synchronized void load() {
+        policyIdsByDeviceModelUrn.clear();
+        deviceIdsByPolicyId.clear();
+        generation = 0;
+        journalCurrent = false;
+        journalRecords = 0;
+        journalFailed = false;
+
+        boolean compact = false;
+        if (snapshotFile.exists()) {
+            compact = !readSnapshot();
+        } else if (legacyFile.exists()) {
+            compact = readLegacy();
+        }
+
+        if (journalFile.exists()) {
+            // A journal that does not replay to its end would hide
+            // any record appended after the bad one.
+            compact |= !replayJournal();
+        }
+
+        if (compact) {
+            try {
+                compact();
+                if (legacyFile.exists() && !legacyFile.delete()) {
+                    getLogger().log(Level.WARNING, legacyFile.getName() + " could not be deleted");
+                }
+            } catch (IOException e) {
+                getLogger().log(Level.SEVERE, snapshotFile.getName() + " could not be written: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Get the policies associated with each device model.
+     * @return an unmodifiable view of { device-model-urn : [ policy-id ] }
+     */
+    synchronized Map<String, Set<String>> getPolicyIdsByDeviceModelUrn() {
+        return Collections.unmodifiableMap(policyIdsByDeviceModelUrn);
+    }
+
+    /**
+     * Get the devices associated with each policy.
+     * @return an unmodifiable view of { policy-id : [ device-id ] }
+     */
+    synchronized Map<String, Set<String>> getDeviceIdsByPolicyId() {
+        return Collections.unmodifiableMap(deviceIdsByPolicyId);
+    }
+
+    /**
+     * Associate the policy with the device model, and the device with the
+     * policy. Nothing is written until {@link #flush()}.
+     * @param deviceModelUrn the device model urn
+     * @param policyId the policy id
+     * @param deviceId the device id
+     */
+    synchronized void add(String deviceModelUrn, String policyId, String deviceId) {
+        if (applyAdd(deviceModelUrn, policyId, deviceId)) {
+            record(ADD, deviceModelUrn, policyId, deviceId);
+        }
+    }
+
+    /**
+     * Remove the association between the policy and the device. The policy
+     * stays associated with the device model. Nothing is written until
+     * {@link #flush()}.
+     * @param deviceModelUrn the device model urn
+     * @param policyId the policy id
+     * @param deviceId the device id
+     */
+    synchronized void remove(String deviceModelUrn, String policyId, String deviceId) {
+        if (applyRemove(policyId, deviceId)) {
+            record(REMOVE, deviceModelUrn, policyId, deviceId);
+        }
+    }
+
+    /**
+     * Remove the association between the policy and the device model, and
+     * between the policy and all of its devices. Nothing is written until
+     * {@link #flush()}.
+     * @param deviceModelUrn the device model urn
+     * @param policyId the policy id
+     */
+    synchronized void removePolicy(String deviceModelUrn, String policyId) {
+        if (applyRemovePolicy(deviceModelUrn, policyId)) {
+            record(REMOVE_POLICY, deviceModelUrn, policyId, null);
+        }
+    }
+
+    /**
+     * Write the changes made since the last flush, with one append to the
+     * journal, or by compacting the journal into the snapshot if the journal
+     * has grown past the threshold or the last write to it failed.
+     */
+    synchronized void flush() {
+        if (pendingRecords == 0) {
+            return;
+        }
+
+        try {
+            if (journalFailed || journalRecords + pendingRecords > COMPACT_THRESHOLD) {
+                compact();
+            } else {
+                FileOutputStream out = null;
+                try {
+                    if (journalCurrent) {
+                        out = new FileOutputStream(journalFile, true);
+                    } else {
+                        out = new FileOutputStream(journalFile, false);
+                        final DataOutputStream header = new DataOutputStream(out);
+                        header.writeInt(MAGIC);
+                        header.writeLong(generation);
+                        header.flush();
+                        journalCurrent = true;
+                        journalRecords = 0;
+                    }
+                    pending.writeTo(out);
+                } finally {
+                    if (out != null) {
+                        try {
+                            out.close();
+                        } catch (IOException ignored) {
+                        }
+                    }
+                }
+                journalRecords += pendingRecords;
+            }
+            pending.reset();
+            pendingRecords = 0;
+
+        } catch (IOException e) {
+            // The associations in memory are complete, so the next flush
+            // writes them all to a new snapshot. Truncating the journal
+            // here would lose the records that were already written.
+            journalFailed = true;
+            getLogger().log(Level.SEVERE, journalFile.getName() + " could not be written: " + e.getMessage());
+        }
+    }
+
+    /*
+     * Write all the associations to the snapshot of the next generation,
+     * and remove the journal.
+     */
+    private void compact() throws IOException {
+        final File tmpFile = new File(snapshotFile.getParentFile(), SNAPSHOT_NAME + ".tmp");
+        final CheckedOutputStream checked =
+                new CheckedOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)), new CRC32());
+        final DataOutputStream out = new DataOutputStream(checked);
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(generation + 1);
+            writeMap(out, policyIdsByDeviceModelUrn);
+            writeMap(out, deviceIdsByPolicyId);
+            out.flush();
+            out.writeLong(checked.getChecksum().getValue());
+        } finally {
+            out.close();
+        }
+
+        // File#renameTo does not replace an existing file on every platform.
+        if (!tmpFile.renameTo(snapshotFile)) {
+            if (!snapshotFile.delete() || !tmpFile.renameTo(snapshotFile)) {
+                throw new IOException("could not rename " + tmpFile.getName() + " to " + snapshotFile.getName());
+            }
+        }
+        generation += 1;
+        journalCurrent = false;
+        journalRecords = 0;
+        journalFailed = false;
+
+        // A journal that is left behind is of an older generation, and is
+        // ignored by load and replaced by the next flush.
+        if (journalFile.exists() && !journalFile.delete()) {
+            getLogger().log(Level.WARNING, journalFile.getName() + " could not be deleted");
+        }
+    }
+
+    /*
+     * Read the snapshot. Returns false if the snapshot could not be read.
+     */
+    private boolean readSnapshot() {
+        InputStream inputStream = null;
+        try {
+            final CheckedInputStream checked =
+                    new CheckedInputStream(new BufferedInputStream(new FileInputStream(snapshotFile)), new CRC32());
+            inputStream = checked;
+            final DataInputStream in = new DataInputStream(checked);
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("not a device associations snapshot");
+            }
+            final long snapshotGeneration = in.readLong();
+            final Map<String, Set<String>> policies = readMap(in);
+            final Map<String, Set<String>> devices = readMap(in);
+            final long expected = checked.getChecksum().getValue();
+            if (in.readLong() != expected) {
+                throw new IOException("CRC mismatch");
+            }
+            policyIdsByDeviceModelUrn.putAll(policies);
+            deviceIdsByPolicyId.putAll(devices);
+            generation = snapshotGeneration;
+            return true;
+
+        } catch (IOException e) {
+            // Without the associations, a device looks up its policy
+            // and the associations self-correct.
+            getLogger().log(Level.SEVERE, snapshotFile.getName() + " could not be read: " + e.getMessage());
+            return false;
+        } finally {
+            if (inputStream != null) {
+                try {
+                    inputStream.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /*
+     * Replay the journal. Returns false if the journal did not replay to
+     * the end.
+     */
+    private boolean replayJournal() {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)));
+            final long journalGeneration;
+            try {
+                if (in.readInt() != MAGIC) {
+                    throw new IOException("not a device associations journal");
+                }
+                journalGeneration = in.readLong();
+            } catch (EOFException e) {
+                // The header was not written. There are no records.
+                return true;
+            }
+            if (journalGeneration != generation) {
+                getLogger().log(Level.FINE, journalFile.getName() + " is of generation " + journalGeneration
+                        + ", not " + generation + ", and is ignored");
+                return true;
+            }
+            journalCurrent = true;
+
+            byte[] bytes = new byte[128];
+            while (true) {
+                final int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    return true;
+                }
+                final int expected = in.readInt();
+                if (length <= 0 || length > MAX_RECORD_LENGTH) {
+                    throw new IOException("bad record length " + length);
+                }
+                if (bytes.length < length) {
+                    bytes = new byte[length];
+                }
+                in.readFully(bytes, 0, length);
+                crc.reset();
+                crc.update(bytes, 0, length);
+                if ((int) crc.getValue() != expected) {
+                    throw new IOException("CRC mismatch");
+                }
+                replay(new DataInputStream(new ByteArrayInputStream(bytes, 0, length)));
+                journalRecords += 1;
+            }
+
+        } catch (IOException e) {
+            getLogger().log(Level.WARNING, journalFile.getName() + " replayed " + journalRecords
+                    + " records: " + e.toString());
+            return false;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private void replay(DataInputStream in) throws IOException {
+        final byte op = in.readByte();
+        final String deviceModelUrn = in.readUTF();
+        final String policyId = in.readUTF();
+        switch (op) {
+            case ADD:
+                applyAdd(deviceModelUrn, policyId, in.readUTF());
+                break;
+            case REMOVE:
+                applyRemove(policyId, in.readUTF());
+                break;
+            case REMOVE_POLICY:
+                applyRemovePolicy(deviceModelUrn, policyId);
+                break;
+            default:
+                throw new IOException("bad record type " + op);
+        }
+    }
+
+    /*
+     * Read device-associations.json, which looks like
+     * {
+     *   "devicePolicyIdsToEndpointIds": { <policy-id> : [ <device-id> ] },
+     *   "deviceModelUrnsToDevicePolicies": { <device-model-urn> : [ <policy-id> ] }
+     * }
+     * Returns true if the file was read.
+     */
+    private boolean readLegacy() {
+        FileInputStream fileInputStream = null;
+        try {
+            // Android's JSON API does not support InputStream directly.
+            fileInputStream = new FileInputStream(legacyFile);
+            final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            final byte[] bytes = new byte[4096];
+            int n;
+            while ((n = fileInputStream.read(bytes)) != -1) {
+                buffer.write(bytes, 0, n);
+            }
+            final JSONObject associations = new JSONObject(buffer.toString("UTF-8"));
+
+            final Map<String, Set<String>> policies =
+                    fromJSON(associations.getJSONObject("deviceModelUrnsToDevicePolicies"));
+            final Map<String, Set<String>> devices =
+                    fromJSON(associations.getJSONObject("devicePolicyIdsToEndpointIds"));
+            policyIdsByDeviceModelUrn.putAll(policies);
+            deviceIdsByPolicyId.putAll(devices);
+            return true;
+
+        } catch (IOException e) {
+            getLogger().log(Level.SEVERE, legacyFile.getName() + " could not be read: " + e.getMessage());
+        } catch (JSONException e) {
+            getLogger().log(Level.SEVERE, legacyFile.getName() + " corrupted: " + e.getMessage());
+        } finally {
+            if (fileInputStream != null) {
+                try {
+                    fileInputStream.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        return false;
+    }
+
+    private static Map<String, Set<String>> fromJSON(JSONObject jsonObject) throws JSONException {
+        final Map<String, Set<String>> map = new LinkedHashMap<String, Set<String>>();
+        final Iterator<String> keys = jsonObject.keys();
+        while (keys.hasNext()) {
+            final String key = keys.next();
+            final JSONArray values = jsonObject.getJSONArray(key);
+            final Set<String> set = new LinkedHashSet<String>();
+            for (int n = 0, nMax = values.length(); n < nMax; n++) {
+                set.add(values.getString(n));
+            }
+            map.put(key, set);
+        }
+        return map;
+    }
+
+    private boolean applyAdd(String deviceModelUrn, String policyId, String deviceId) {
+        boolean changed = false;
+
+        Set<String> deviceIds = deviceIdsByPolicyId.get(policyId);
+        if (deviceIds == null) {
+            deviceIds = new LinkedHashSet<String>();
+            deviceIdsByPolicyId.put(policyId, deviceIds);
+        }
+        changed |= deviceIds.add(deviceId);
+
+        Set<String> policyIds = policyIdsByDeviceModelUrn.get(deviceModelUrn);
+        if (policyIds == null) {
+            policyIds = new LinkedHashSet<String>();
+            policyIdsByDeviceModelUrn.put(deviceModelUrn, policyIds);
+        }
+        changed |= policyIds.add(policyId);
+
+        return changed;
+    }
+
+    private boolean applyRemove(String policyId, String deviceId) {
+        final Set<String> deviceIds = deviceIdsByPolicyId.get(policyId);
+        return deviceIds != null && deviceIds.remove(deviceId);
+    }
+
+    private boolean applyRemovePolicy(String deviceModelUrn, String policyId) {
+        boolean changed = deviceIdsByPolicyId.remove(policyId) != null;
+        final Set<String> policyIds = policyIdsByDeviceModelUrn.get(deviceModelUrn);
+        if (policyIds != null) {
+            changed |= policyIds.remove(policyId);
+        }
+        return changed;
+    }
+
+    private void record(byte op, String deviceModelUrn, String policyId, String deviceId) {
+        try {
+            body.reset();
+            bodyOut.writeByte(op);
+            bodyOut.writeUTF(deviceModelUrn);
+            bodyOut.writeUTF(policyId);
+            if (deviceId != null) {
+                bodyOut.writeUTF(deviceId);
+            }
+            bodyOut.flush();
+
+            crc.reset();
+            final byte[] bytes = body.toByteArray();
+            crc.update(bytes, 0, bytes.length);
+
+            final DataOutputStream out = new DataOutputStream(pending);
+            out.writeInt(bytes.length);
+            out.writeInt((int) crc.getValue());
+            out.write(bytes);
+            out.flush();
+            pendingRecords += 1;
+
+        } catch (IOException e) {
+            // A ByteArrayOutputStream does not throw, but an id that is
+            // too long for writeUTF does.
+            getLogger().log(Level.SEVERE, journalFile.getName() + " record not written: " + e.getMessage());
+        }
+    }
+
+    private static void writeMap(DataOutputStream out, Map<String, Set<String>> map) throws IOException {
+        out.writeInt(map.size());
+        for (Map.Entry<String, Set<String>> entry : map.entrySet()) {
+            out.writeUTF(entry.getKey());
+            final Set<String> values = entry.getValue();
+            out.writeInt(values.size());
+            for (String value : values) {
+                out.writeUTF(value);
+            }
+        }
+    }
+
+    private static Map<String, Set<String>> readMap(DataInputStream in) throws IOException {
+        final int size = in.readInt();
+        if (size < 0) {
+            throw new IOException("bad map size " + size);
+        }
+        final Map<String, Set<String>> map = new LinkedHashMap<String, Set<String>>();
+        for (int n = 0; n < size; n++) {
+            final String key = in.readUTF();
+            final int count = in.readInt();
+            if (count < 0) {
+                throw new IOException("bad set size " + count);
+            }
+            final Set<String> values = new LinkedHashSet<String>();
+            for (int m = 0; m < count; m++) {
+                values.add(in.readUTF());
+            }
+            map.put(key, values);
+        }
+        return map;
+    }
+}
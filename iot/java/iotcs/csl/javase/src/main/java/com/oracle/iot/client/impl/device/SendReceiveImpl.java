@@ -13,17 +13,18 @@ import com.oracle.iot.client.message.Message;
 import com.oracle.iot.client.message.RequestMessage;
 
 import com.oracle.iot.client.message.ResponseMessage;
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.JSONTokener;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.StringReader;
+import java.io.Reader;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
 import java.security.GeneralSecurityException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -82,43 +83,87 @@ public abstract class SendReceiveImpl {
         return (max > 0 ? max : defaultValue);
     }
 
-    private final byte[] requestBuffer;
+    private final ByteBuffer requestBuffer;
     private int head;
     private int tail;
 
+    /*
+     * Used to decode a request in place in requestBuffer. A request that
+     * wraps around the end of requestBuffer is decoded in two pieces, and
+     * the bytes of a char that is split between them are put together in
+     * requestCarry. These are guarded by the lock on this object, the same
+     * as head and tail.
+     */
+    private final ByteBuffer requestView;
+    private final ByteBuffer requestCarry;
+    private final CharsetDecoder requestDecoder;
+    private final CharBuffer requestChars;
+
     protected final boolean useLongPolling;
 
     private final short  sendReceiveTimeLimit;
 
     private long sendCallTime ;
 
-    private static class CircularBufferInputStream extends InputStream {
-
-        private final byte[] buffer;
-        private int pos;
-        private final int eos;
-
-        private CircularBufferInputStream(byte[] buffer, int head, int nBytes) {
-            this.buffer = buffer;
-            this.pos = head;
-            this.eos = this.pos + nBytes;
-            if (nBytes > buffer.length) {
-                throw new IllegalArgumentException(
-                        nBytes
-                        + " bytes requested but buffer only has "
-                        + buffer.length + " bytes"
-                );
+    /*
+     * Outgoing batches are written straight to UTF-8 bytes. The writer keeps
+     * its buffers between calls, so there is one for each thread that sends.
+     */
+    private static final ThreadLocal<MessageJsonWriter> JSON_WRITER =
+        new ThreadLocal<MessageJsonWriter>() {
+            @Override
+            protected MessageJsonWriter initialValue() {
+                return new MessageJsonWriter();
+            }
+        };
+
+    /*
+     * A Reader over the chars of a decoded request. Unlike StringReader and
+     * CharArrayReader, it does not synchronize on each read.
+     */
+    private static final class RequestReader extends Reader {
+
+        private final CharBuffer chars;
+
+        private RequestReader(CharBuffer chars) {
+            this.chars = chars;
+        }
+
+        @Override
+        public int read() {
+            return chars.hasRemaining() ? chars.get() : -1;
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) {
+            if (len == 0) {
+                return 0;
             }
+            if (!chars.hasRemaining()) {
+                return -1;
+            }
+            final int n = Math.min(len, chars.remaining());
+            chars.get(cbuf, off, n);
+            return n;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
         }
 
         @Override
-        public synchronized int read() throws IOException {
-            return (pos < eos) ? buffer[(pos++ % buffer.length)] : -1;
+        public void mark(int readAheadLimit) {
+            chars.mark();
         }
 
         @Override
-        public void close() throws IOException {
+        public void reset() {
+            chars.reset();
+        }
 
+        @Override
+        public void close() {
         }
     }
 
@@ -138,7 +183,15 @@ public abstract class SendReceiveImpl {
 
         // TODO: configurable.
         //requestBuffer = new byte[getRequestBufferSize()];
-        requestBuffer = new byte[requestBufferSize];
+        requestBuffer = ByteBuffer.allocate(requestBufferSize);
+        requestView = requestBuffer.duplicate();
+        // A UTF-8 char is at most 4 bytes.
+        requestCarry = ByteBuffer.allocate(4);
+        // Malformed input is replaced, as InputStreamReader does.
+        requestDecoder = Charset.forName("UTF-8").newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        requestChars = CharBuffer.allocate(requestBufferSize);
         head = tail = 0;
         this.sendCallTime = -1;
         final String disableLongPollingPropertyValue = System.getProperty(DISABLE_LONG_POLLING_PROPERTY);
@@ -156,7 +209,8 @@ public abstract class SendReceiveImpl {
         byte[] payload = null;
 
         if (messages != null && messages.length > 0) {
-            JSONArray jsonArray = new JSONArray();
+            final MessageJsonWriter writer = JSON_WRITER.get();
+            writer.startArray();
             for (Message message : messages) {
 
                 // Special handling for LL actionCondition
@@ -182,10 +236,13 @@ public abstract class SendReceiveImpl {
                         continue;
                     }
                 }
-                jsonArray.put(message.toJson());
+                writer.writeMessage(message);
             }
+            writer.endArray();
 
-            payload = jsonArray.toString().getBytes(Charset.forName("UTF-8"));
+            if (writer.getMessageCount() > 0) {
+                payload = writer.toByteArray();
+            }
         }
 
         if (payload != null && payload.length > 2) {
@@ -233,41 +290,22 @@ public abstract class SendReceiveImpl {
 
         if (head != tail) {
 
+            final int capacity = requestBuffer.capacity();
             int nBytes = 0;
-            nBytes += ((requestBuffer[(head++) % requestBuffer.length] ) & 0xFF) << 8;
-            nBytes += ((requestBuffer[(head++) % requestBuffer.length] ) & 0xFF);
+            nBytes += (requestBuffer.get((head++) % capacity) & 0xFF) << 8;
+            nBytes += (requestBuffer.get((head++) % capacity) & 0xFF);
 
-            int offset = head;
+            int offset = head % capacity;
 
-            // keep head < requestBuffer.length to avoid overflow of head.
-            head = (head + nBytes) % requestBuffer.length;
+            // keep head < capacity to avoid overflow of head.
+            head = (head + nBytes) % capacity;
 
             JSONObject jsonObject = null;
-            final InputStreamReader reader;
-            try {
-                reader = new InputStreamReader(
-                                new CircularBufferInputStream(requestBuffer, offset, nBytes),
-                                "UTF-8");
-            } catch (UnsupportedEncodingException ignored) {
-                // UTF-8 is a required encoding, so this can't happen
-                return null;
-            }
-
             try {
-                final StringBuilder stringBuilder = new StringBuilder(nBytes);
-                int c;
-                while ((c = reader.read()) != -1) {
-                    stringBuilder.append((char)c);
-                }
-                final String json = stringBuilder.toString();
-                jsonObject = new JSONObject(json);
+                jsonObject = new JSONObject(
+                    new JSONTokener(new RequestReader(decodeRequest(offset, nBytes))));
             } catch (JSONException e) {
                 throw new IOException(e);
-            } finally {
-                try {
-                    reader.close();
-                } catch (IOException ingored) {
-                }
             }
 
             if (getLogger().isLoggable(Level.FINER)) {
@@ -312,11 +350,82 @@ public abstract class SendReceiveImpl {
     final synchronized protected int getUsedBytes() {
         return tail >= head
                 ? tail - head
-                : (tail + requestBuffer.length) - head;
+                : (tail + requestBuffer.capacity()) - head;
     }
 
     final protected int getRequestBufferSize() {
-        return requestBuffer.length;
+        return requestBuffer.capacity();
+    }
+
+    /*
+     * Decode the UTF-8 bytes of the request at offset in requestBuffer.
+     * The chars returned are only valid until the next call.
+     */
+    private CharBuffer decodeRequest(int offset, int nBytes) {
+        final int capacity = requestBuffer.capacity();
+        if (nBytes > capacity) {
+            throw new IllegalArgumentException(
+                    nBytes
+                    + " bytes requested but buffer only has "
+                    + capacity + " bytes"
+            );
+        }
+
+        // UTF-8 never decodes to more chars than there are bytes,
+        // so requestChars is always large enough.
+        requestDecoder.reset();
+        requestChars.clear();
+
+        requestView.clear();
+        requestView.position(offset);
+        if (offset + nBytes <= capacity) {
+            requestView.limit(offset + nBytes);
+        } else {
+            // The request wraps around the end of the buffer. Decode up to
+            // the end, which leaves the first bytes of a char that is split
+            // by the wrap, if there is one.
+            final int first = capacity - offset;
+            requestDecoder.decode(requestView, requestChars, false);
+            requestCarry.clear();
+            requestCarry.put(requestView);
+
+            requestView.clear();
+            requestView.limit(nBytes - first);
+
+            // Add the bytes from the start of the buffer one at a time
+            // until the split char is decoded.
+            while (requestCarry.position() > 0) {
+                final boolean endOfInput = !requestView.hasRemaining();
+                if (!endOfInput) {
+                    requestCarry.put(requestView.get());
+                }
+                requestCarry.flip();
+                requestDecoder.decode(requestCarry, requestChars, endOfInput);
+                requestCarry.compact();
+                if (endOfInput) {
+                    break;
+                }
+            }
+        }
+
+        requestDecoder.decode(requestView, requestChars, true);
+        requestDecoder.flush(requestChars);
+        requestChars.flip();
+        return requestChars;
+    }
+
+    /*
+     * Copy bytes into requestBuffer starting at index, wrapping around the
+     * end of the buffer if necessary.
+     */
+    private void putRequestBytes(int index, byte[] src, int offset, int length) {
+        final int capacity = requestBuffer.capacity();
+        final int start = index % capacity;
+        final int first = Math.min(length, capacity - start);
+        System.arraycopy(src, offset, requestBuffer.array(), start, first);
+        if (first < length) {
+            System.arraycopy(src, offset + first, requestBuffer.array(), 0, length - first);
+        }
     }
 
     final synchronized protected void bufferRequest(final byte[] data) {
@@ -324,27 +433,27 @@ public abstract class SendReceiveImpl {
         // if data.length == 2, then it is an empty json array and there are
         // no values in the message.
         if (data != null && data.length > 2) {
+            final int capacity = requestBuffer.capacity();
             int pos = 1;
-            while (data[pos] == '{') {
+            while (pos < data.length && data[pos] == '{') {
                 final int start = pos;
-                int lengthIndex0 = tail;
-                // first two bytes is for length, start buffering json bytes at tail + 2
-                tail += 2;
                 // json objects start with '{', end with '}'
                 // count braces to pair '{' with matching '}'
                 int braceCount = 0;
                 while (pos < data.length) {
                     final byte b = data[pos++];
-                    requestBuffer[tail++ % requestBuffer.length] = b;
                     if (b == '{') braceCount++;
                     else if (b == '}' && --braceCount == 0) break;
                 }
 
+                // first two bytes is for length, buffer json bytes at tail + 2
                 final int nbytes = pos - start;
-                requestBuffer[lengthIndex0++ % requestBuffer.length] =
-                        (byte)((0xff00 & nbytes) >> 8);
-                requestBuffer[lengthIndex0 % requestBuffer.length] =
-                        (byte)((0x00ff & nbytes));
+                requestBuffer.put(tail % capacity,
+                        (byte)((0xff00 & nbytes) >> 8));
+                requestBuffer.put((tail + 1) % capacity,
+                        (byte)((0x00ff & nbytes)));
+                putRequestBytes(tail + 2, data, start, nbytes);
+                tail += 2 + nbytes;
 
                 // get past the end of the json object
                 // json objects end with '}' and json objects are separated by ','
@@ -352,48 +461,24 @@ public abstract class SendReceiveImpl {
                 if(pos < data.length && data[pos] == ',') pos++;
 
                 if (getLogger().isLoggable(Level.FINEST)) {
-                    final JSONObject jsonObject;
-                    final InputStreamReader reader;
-                    try {
-                        reader = new InputStreamReader(
-                                        new CircularBufferInputStream(requestBuffer, start, nbytes),
-                                        "UTF-8");
-                    } catch (UnsupportedEncodingException ignored) {
-                        // UTF-8 is a required encoding, so this can't happen
-                        return;
-                    }
-
                     try {
-                        final StringBuilder stringBuilder = new StringBuilder(nbytes);
-                        int c;
-                        while ((c = reader.read()) != -1) {
-                            stringBuilder.append((char)c);
-                        }
-                        final String json = stringBuilder.toString();
-                        jsonObject = new JSONObject(json);
-
+                        final JSONObject jsonObject = new JSONObject(
+                            new String(data, start, nbytes, "UTF-8"));
                         getLogger().log(Level.FINEST, "buffered: " + Message.prettyPrintJson(jsonObject));
                     } catch (JSONException ignored) {
                         // The JSONException will be thrown as the cause of
                         // a IOException when the message is read (by calling
                         // receive).
-                    } catch (IOException ignored) {
-                        // CircularBufferInputStream doesn't throw IOException;
-                        // therefore, the InputStreamReader won't throw it either.
-                        // But it is a checked exception so we have to catch it.
-                    } finally {
-                        try {
-                            reader.close();
-                        } catch (IOException ignored) {
-                        }
+                    } catch (UnsupportedEncodingException ignored) {
+                        // UTF-8 is a required encoding, so this can't happen
                     }
                 }
 
             }
         }
         
-        // adjust tail to keep it < requestBuffer.length to avoid overflow.
-        tail = tail % requestBuffer.length;
+        // adjust tail to keep it < capacity to avoid overflow.
+        tail = tail % requestBuffer.capacity();
 
         // Logging done here since we need the adjusted tail to get the
         // correct available bytes remaining in the buffer.
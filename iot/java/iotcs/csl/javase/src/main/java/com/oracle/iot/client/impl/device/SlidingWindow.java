@@ -0,0 +1,364 @@
+/*
+ * Copyright (c) 2018, Oracle and/or its affiliates.  All rights reserved.
+ *
+ * This software is dual-licensed to you under the MIT License (MIT) and
+ * the Universal Permissive License (UPL).  See the LICENSE file in the root
+ * directory for license terms.  You may choose either license, or both.
+ */
+
+package com.oracle.iot.client.impl.device;
+
+import java.util.Map;
+
+/**
+ * The state of a windowed {@link DeviceFunction} such as {@code mean},
+ * kept between calls in the function's data map.
+ * <p>
+ * Handling slide:
+ * <p>
+ * Slide is how much the window moves after the window expires. If there
+ * is a window of 5 seconds with a slide of 2 seconds, then at the end of
+ * 5 seconds, the window slides over by two seconds. That means that the
+ * next window's worth of data includes 3 seconds of data from the previous
+ * window, and 2 seconds of new data.
+ * <p>
+ * To handle this, the window is divided into buckets. Each bucket spans
+ * the greatest common factor of the window and the slide. If the window is
+ * 60 seconds and the slide is 90 seconds, a bucket spans 30 seconds. There
+ * are enough buckets for the window or the slide, whichever is greater,
+ * plus one for values that arrive for the next window before the window
+ * has been moved. The buckets are a ring of primitive arrays, indexed by
+ * the bucket's sequence number modulo the number of buckets, so nothing
+ * is allocated or boxed when a value is added.
+ * <p>
+ * When the window expires, {@link #get()} computes the value over the
+ * buckets of the window, then empties the buckets that don't contribute to
+ * the next window and moves the window by the slide.
+ */
+abstract class SlidingWindow {
+
+    // The configuration this window was created from. A policy keeps the
+    // same configuration object, so checking the reference is enough.
+    private Map<String, ?> configuration;
+    private final long window;
+    private final long slide;
+
+    // Each bucket spans this amount of time.
+    private final long span;
+    private final int bucketsPerWindow;
+    private final int bucketsPerSlide;
+
+    // The number of terms in each bucket.
+    final long[] counts;
+
+    // The time at which the current window started, and the sequence
+    // number of its first bucket.
+    private long windowStartTime;
+    private long firstBucket;
+
+    SlidingWindow(Map<String, ?> configuration, long now) {
+        this.configuration = configuration;
+        this.window = DeviceFunction.getWindow(configuration);
+        this.slide = DeviceFunction.getSlide(configuration, window);
+        this.span = DeviceFunction.gcd(window, slide);
+        this.bucketsPerWindow = (int)(window / span);
+        this.bucketsPerSlide = (int)(slide / span);
+        this.counts = new long[(int)(Math.max(slide, window) / span) + 1];
+        this.windowStartTime = now;
+        this.firstBucket = 0L;
+    }
+
+    /**
+     * Return {@code true} if this window has the window and slide of the
+     * configuration.
+     * @param configuration the parameters of the function
+     * @return {@code true} if the window can be used for the configuration
+     */
+    final boolean isFor(Map<String, ?> configuration) {
+        if (this.configuration == configuration) {
+            return true;
+        }
+        final long window = DeviceFunction.getWindow(configuration);
+        if (this.window == window && this.slide == DeviceFunction.getSlide(configuration, window)) {
+            this.configuration = configuration;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Add a value to the bucket for the time.
+     * @param now the current time in milliseconds
+     * @param value the value
+     */
+    final void add(long now, double value) {
+        // Which bucket to use is the amount of time into the window divided
+        // by the time one bucket spans. A value that arrives late enough to
+        // be past the last bucket goes in the last bucket.
+        long offset = (now - windowStartTime) / span;
+        if (offset < 0) {
+            offset = 0;
+        } else if (offset >= counts.length) {
+            offset = counts.length - 1;
+        }
+        final long bucket = firstBucket + offset;
+        final int index = (int)(bucket % counts.length);
+        counts[index] += 1;
+        add(bucket, index, value);
+    }
+
+    /**
+     * Compute the value of the window, then slide the window.
+     * @return the value, or {@code null} if there were no terms in the window
+     */
+    final Double get() {
+        final Double value = compute(firstBucket, bucketsPerWindow);
+        for (int n = 0; n < bucketsPerSlide; n++) {
+            final int index = index(firstBucket + n);
+            counts[index] = 0;
+            clear(index);
+        }
+        firstBucket += bucketsPerSlide;
+        windowStartTime += span * bucketsPerSlide;
+        slid(firstBucket);
+        return value;
+    }
+
+    final int index(long bucket) {
+        return (int)(bucket % counts.length);
+    }
+
+    /**
+     * Add the value to a bucket. {@code counts[index]} has already been
+     * incremented.
+     * @param bucket the sequence number of the bucket
+     * @param index the index of the bucket in the arrays
+     * @param value the value
+     */
+    abstract void add(long bucket, int index, double value);
+
+    /**
+     * Compute the value over buckets.
+     * @param firstBucket the sequence number of the first bucket
+     * @param bucketCount the number of buckets
+     * @return the value, or {@code null} if there are no terms
+     */
+    abstract Double compute(long firstBucket, int bucketCount);
+
+    /**
+     * Empty a bucket.
+     * @param index the index of the bucket in the arrays
+     */
+    abstract void clear(int index);
+
+    /**
+     * Called after the window has slid.
+     * @param firstBucket the sequence number of the new first bucket
+     */
+    void slid(long firstBucket) {
+    }
+
+    /**
+     * The arithmetic mean of the window.
+     */
+    static final class Mean extends SlidingWindow {
+
+        private final double[] sums;
+
+        Mean(Map<String, ?> configuration, long now) {
+            super(configuration, now);
+            this.sums = new double[counts.length];
+        }
+
+        @Override
+        void add(long bucket, int index, double value) {
+            sums[index] += value;
+        }
+
+        @Override
+        Double compute(long firstBucket, int bucketCount) {
+            double sum = 0d;
+            long terms = 0L;
+            for (int n = 0; n < bucketCount; n++) {
+                final int index = index(firstBucket + n);
+                sum += sums[index];
+                terms += counts[index];
+            }
+            return terms != 0L ? sum / terms : null;
+        }
+
+        @Override
+        void clear(int index) {
+            sums[index] = 0d;
+        }
+    }
+
+    /**
+     * The minimum or maximum of the window.
+     * <p>
+     * Besides the extreme of each bucket, a monotonic deque of bucket
+     * sequence numbers is kept. From front to back, the buckets in the deque
+     * are newer and their extremes are worse, so the front is the extreme of
+     * every bucket from the first bucket on. That is the extreme of the
+     * window unless the front is past the end of the window, which can only
+     * happen if a value arrived for the next window before the window was
+     * moved; the window's buckets are scanned then.
+     */
+    static final class Extreme extends SlidingWindow {
+
+        private final boolean max;
+        private final double[] extremes;
+
+        // A ring of bucket sequence numbers.
+        private final long[] deque;
+        private int head;
+        private int size;
+
+        // Set when a value is added to a bucket older than the back of the
+        // deque, which means the clock went back. The deque is rebuilt then.
+        private boolean stale;
+
+        Extreme(Map<String, ?> configuration, long now, boolean max) {
+            super(configuration, now);
+            this.max = max;
+            this.extremes = new double[counts.length];
+            this.deque = new long[counts.length];
+        }
+
+        @Override
+        void add(long bucket, int index, double value) {
+            if (counts[index] > 1 && !better(value, extremes[index])) {
+                return;
+            }
+            extremes[index] = value;
+
+            if (stale) {
+                return;
+            }
+            if (size > 0) {
+                final long back = deque[(head + size - 1) % deque.length];
+                if (bucket < back) {
+                    stale = true;
+                    return;
+                }
+                if (bucket == back) {
+                    size -= 1;
+                }
+            }
+            while (size > 0
+                    && !better(extremes[index(deque[(head + size - 1) % deque.length])], value)) {
+                size -= 1;
+            }
+            deque[(head + size) % deque.length] = bucket;
+            size += 1;
+        }
+
+        @Override
+        Double compute(long firstBucket, int bucketCount) {
+            if (!stale && size > 0) {
+                final long front = deque[head];
+                if (front < firstBucket + bucketCount) {
+                    return extremes[index(front)];
+                }
+            }
+
+            boolean found = false;
+            double extreme = 0d;
+            for (int n = 0; n < bucketCount; n++) {
+                final int index = index(firstBucket + n);
+                if (counts[index] != 0 && (!found || better(extremes[index], extreme))) {
+                    extreme = extremes[index];
+                    found = true;
+                }
+            }
+            return found ? extreme : null;
+        }
+
+        @Override
+        void clear(int index) {
+        }
+
+        @Override
+        void slid(long firstBucket) {
+            if (stale) {
+                stale = false;
+                size = 0;
+                head = 0;
+                for (int n = 0; n < counts.length; n++) {
+                    final long bucket = firstBucket + n;
+                    final int index = index(bucket);
+                    if (counts[index] != 0) {
+                        while (size > 0
+                                && !better(extremes[index(deque[(head + size - 1) % deque.length])],
+                                           extremes[index])) {
+                            size -= 1;
+                        }
+                        deque[(head + size) % deque.length] = bucket;
+                        size += 1;
+                    }
+                }
+                return;
+            }
+            while (size > 0 && deque[head] < firstBucket) {
+                head = (head + 1) % deque.length;
+                size -= 1;
+            }
+        }
+
+        private boolean better(double value, double than) {
+            return max ? Double.compare(value, than) > 0 : Double.compare(value, than) < 0;
+        }
+    }
+
+    /**
+     * The population standard deviation of the window.
+     * <p>
+     * Each bucket keeps its count, mean and sum of squared differences from
+     * the mean, updated with Welford's method. The buckets of a window are
+     * combined pairwise, so the values themselves are never kept.
+     */
+    static final class StandardDeviation extends SlidingWindow {
+
+        private final double[] means;
+        private final double[] m2s;
+
+        StandardDeviation(Map<String, ?> configuration, long now) {
+            super(configuration, now);
+            this.means = new double[counts.length];
+            this.m2s = new double[counts.length];
+        }
+
+        @Override
+        void add(long bucket, int index, double value) {
+            final double delta = value - means[index];
+            means[index] += delta / counts[index];
+            m2s[index] += delta * (value - means[index]);
+        }
+
+        @Override
+        Double compute(long firstBucket, int bucketCount) {
+            long count = 0L;
+            double mean = 0d;
+            double m2 = 0d;
+            for (int n = 0; n < bucketCount; n++) {
+                final int index = index(firstBucket + n);
+                final long terms = counts[index];
+                if (terms == 0L) {
+                    continue;
+                }
+                final long total = count + terms;
+                final double delta = means[index] - mean;
+                mean += delta * terms / total;
+                m2 += m2s[index] + delta * delta * ((double)count * terms / total);
+                count = total;
+            }
+            return count != 0L ? Math.sqrt(m2 / count) : null;
+        }
+
+        @Override
+        void clear(int index) {
+            means[index] = 0d;
+            m2s[index] = 0d;
+        }
+    }
+}
@@ -0,0 +1,410 @@
+/*
+ * Copyright (c) 2018, Oracle and/or its affiliates.  All rights reserved.
+ *
+ * This software is dual-licensed to you under the MIT License (MIT) and
+ * the Universal Permissive License (UPL).  See the LICENSE file in the root
+ * directory for license terms.  You may choose either license, or both.
+ */
+
+package com.oracle.iot.client.impl.device;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * TimedPolicyScheduler runs the window based policies of every virtual
+ * device in the process. One daemon thread keeps the timeouts, and the
+ * targets are called on a small pool of daemon threads, so that a target
+ * that blocks, for example on a policy lookup, does not hold up the
+ * timeouts of the others. The size of the pool is set by
+ * {@code oracle.iot.client.device.timed_policy_pool_size} (default 2).
+ * <p>
+ * Timeouts are kept in a hierarchical timing wheel with a 10 millisecond
+ * tick, which is the resolution that policy expiry times are rounded to.
+ * The first level has 256 slots of one tick each. Each of the three levels
+ * above it has 64 slots, each as long as a full turn of the level below.
+ * When the first level wraps, the due slot of the next level is cascaded
+ * down. Timeouts beyond the last level are parked in its furthest slot and
+ * cascaded again. Scheduling, rescheduling and cancelling are O(1).
+ * <p>
+ * All of the timeouts that expire on the same tick are collected first,
+ * then each {@link Target} is called once with all of its expired timeouts,
+ * so that a virtual device with several slides that expire together sends
+ * one message. The calls for one target are run one at a time, in order.
+ */
+final class TimedPolicyScheduler {
+
+    /**
+     * Receives the timeouts that expired.
+     */
+    interface Target {
+        /**
+         * Called from a thread of the scheduler's pool with the timeouts of
+         * this target that expired. The timeouts are no longer scheduled.
+         * Calls for the same target are never run at the same time.
+         * @param timeouts the expired timeouts, in no particular order
+         * @param now the current time in milliseconds
+         */
+        void expired(List<Timeout> timeouts, long now);
+    }
+
+    /**
+     * Something that can be scheduled. A timeout is in at most one slot
+     * of the wheel at a time.
+     */
+    static class Timeout {
+        private final Target target;
+
+        // Guarded by the scheduler's lock.
+        private long deadlineTick;
+        private Timeout prev;
+        private Timeout next;
+        private Slot slot;
+        private boolean cancelled;
+
+        Timeout(Target target) {
+            this.target = target;
+        }
+    }
+
+    // The resolution of the wheel, in milliseconds.
+    private static final long TICK = 10L;
+
+    private static final int ROOT_BITS = 8;
+    private static final int LEVEL_BITS = 6;
+    private static final int ROOT_SIZE = 1 << ROOT_BITS;
+    private static final int LEVEL_SIZE = 1 << LEVEL_BITS;
+    private static final int LEVELS = 3;
+
+    // The furthest a timeout can be placed from the current tick.
+    private static final long MAX_SPAN = 1L << (ROOT_BITS + LEVELS * LEVEL_BITS);
+
+    private static final int POOL_SIZE = Math.max(
+            Integer.getInteger("oracle.iot.client.device.timed_policy_pool_size", 2), 1);
+
+    private static final TimedPolicyScheduler INSTANCE = new TimedPolicyScheduler();
+
+    static TimedPolicyScheduler getInstance() {
+        return INSTANCE;
+    }
+
+    private final Object lock = new Object();
+
+    // Guarded by lock.
+    private final Slot[] root;
+    private final Slot[][] levels;
+    private long currentTick;
+    private int size;
+    private Thread thread;
+
+    // Runs the expired() calls.
+    private final ThreadPoolExecutor pool;
+
+    // The timeouts of each target that are waiting for its expired() call,
+    // for a target with a call queued or running. Guarded by the lock on
+    // pending.
+    private final Map<Target, Expiry> pending = new HashMap<Target, Expiry>();
+
+    private TimedPolicyScheduler() {
+        root = newSlots(ROOT_SIZE);
+        levels = new Slot[LEVELS][];
+        for (int level = 0; level < LEVELS; level++) {
+            levels[level] = newSlots(LEVEL_SIZE);
+        }
+        currentTick = System.currentTimeMillis() / TICK;
+
+        pool = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE,
+                60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        final Thread t = new Thread(r, "timed-policy-expiry");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        // Let the threads go when no policy is expiring
+        pool.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Schedule the timeout to expire at the deadline, replacing any deadline
+     * it already has. A timeout that has been cancelled is not scheduled.
+     * @param timeout the timeout
+     * @param deadline the time at which the timeout expires, in milliseconds
+     */
+    void schedule(Timeout timeout, long deadline) {
+        synchronized (lock) {
+            if (timeout.cancelled) {
+                return;
+            }
+            if (timeout.slot != null) {
+                unlink(timeout);
+            }
+            if (size == 0) {
+                // The wheel may not have advanced while it was empty.
+                currentTick = Math.max(currentTick, System.currentTimeMillis() / TICK);
+            }
+            // Round up so that a timeout never fires early.
+            timeout.deadlineTick = (deadline + TICK - 1) / TICK;
+            place(timeout);
+            size += 1;
+
+            if (thread == null) {
+                thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        runWheel();
+                    }
+                }, "timed-policy-scheduler");
+                thread.setDaemon(true);
+                thread.start();
+            } else {
+                lock.notify();
+            }
+        }
+    }
+
+    /**
+     * Remove the timeout from the schedule for good. Calls to
+     * {@link #schedule} for the timeout are ignored after this.
+     * @param timeout the timeout
+     */
+    void cancel(Timeout timeout) {
+        synchronized (lock) {
+            timeout.cancelled = true;
+            if (timeout.slot != null) {
+                unlink(timeout);
+            }
+        }
+    }
+
+    private void runWheel() {
+        final List<Timeout> expired = new ArrayList<Timeout>();
+        while (true) {
+            synchronized (lock) {
+                while (expired.isEmpty()) {
+                    final long now = System.currentTimeMillis();
+                    final long nowTick = now / TICK;
+                    if (size == 0) {
+                        // Nothing to advance over.
+                        currentTick = Math.max(currentTick, nowTick);
+                    }
+                    while (currentTick <= nowTick) {
+                        advance(expired);
+                    }
+                    if (!expired.isEmpty()) {
+                        break;
+                    }
+                    try {
+                        if (size == 0) {
+                            lock.wait();
+                        } else {
+                            lock.wait(Math.max(nextTick() * TICK - now, 1L));
+                        }
+                    } catch (InterruptedException e) {
+                        // The thread is a daemon, and is not interrupted.
+                    }
+                }
+            }
+
+            fire(expired);
+            expired.clear();
+        }
+    }
+
+    /*
+     * Hand the expired timeouts of each target to the pool. If the target
+     * already has a call queued or running, the timeouts are added to the
+     * ones for its next call.
+     */
+    private void fire(List<Timeout> expired) {
+        final Map<Target, List<Timeout>> byTarget = new LinkedHashMap<Target, List<Timeout>>();
+        for (Timeout timeout : expired) {
+            List<Timeout> list = byTarget.get(timeout.target);
+            if (list == null) {
+                list = new ArrayList<Timeout>(2);
+                byTarget.put(timeout.target, list);
+            }
+            list.add(timeout);
+        }
+        synchronized (pending) {
+            for (Map.Entry<Target, List<Timeout>> entry : byTarget.entrySet()) {
+                final Target target = entry.getKey();
+                Expiry expiry = pending.get(target);
+                if (expiry == null) {
+                    expiry = new Expiry(target);
+                    pending.put(target, expiry);
+                    expiry.timeouts.addAll(entry.getValue());
+                    pool.execute(expiry);
+                } else {
+                    expiry.timeouts.addAll(entry.getValue());
+                }
+            }
+        }
+    }
+
+    /*
+     * Calls one target with its expired timeouts, until it has none left.
+     */
+    private final class Expiry implements Runnable {
+
+        private final Target target;
+
+        // Guarded by the lock on pending.
+        private final List<Timeout> timeouts = new ArrayList<Timeout>(2);
+
+        private Expiry(Target target) {
+            this.target = target;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                final List<Timeout> expired;
+                synchronized (pending) {
+                    if (timeouts.isEmpty()) {
+                        pending.remove(target);
+                        return;
+                    }
+                    expired = new ArrayList<Timeout>(timeouts);
+                    timeouts.clear();
+                }
+                try {
+                    target.expired(expired, System.currentTimeMillis());
+                } catch (RuntimeException e) {
+                    // Don't let one device stop the policies of the others.
+                    getLogger().log(Level.SEVERE, "Timed policy failed", e);
+                }
+            }
+        }
+    }
+
+    /*
+     * Process currentTick: cascade the upper levels if the root wheel is
+     * starting a new turn, then move the due root slot to expired.
+     */
+    private void advance(List<Timeout> expired) {
+        final int index = (int) (currentTick & (ROOT_SIZE - 1));
+        if (index == 0) {
+            for (int level = 0; level < LEVELS; level++) {
+                final int shift = ROOT_BITS + level * LEVEL_BITS;
+                final int levelIndex = (int) ((currentTick >>> shift) & (LEVEL_SIZE - 1));
+                cascade(levels[level][levelIndex]);
+                if (levelIndex != 0) {
+                    break;
+                }
+            }
+        }
+
+        final Slot slot = root[index];
+        Timeout timeout = slot.head;
+        while (timeout != null) {
+            final Timeout next = timeout.next;
+            unlink(timeout);
+            expired.add(timeout);
+            timeout = next;
+        }
+        currentTick += 1;
+    }
+
+    private void cascade(Slot slot) {
+        Timeout timeout = slot.head;
+        slot.head = null;
+        while (timeout != null) {
+            final Timeout next = timeout.next;
+            timeout.prev = timeout.next = null;
+            timeout.slot = null;
+            place(timeout);
+            timeout = next;
+        }
+    }
+
+    private void place(Timeout timeout) {
+        long tick = timeout.deadlineTick;
+        long delta = tick - currentTick;
+        final Slot slot;
+        if (delta < ROOT_SIZE) {
+            // A deadline that has passed fires on the next tick processed.
+            slot = root[(int) ((delta < 0 ? currentTick : tick) & (ROOT_SIZE - 1))];
+        } else {
+            if (delta >= MAX_SPAN) {
+                tick = currentTick + MAX_SPAN - 1;
+                delta = MAX_SPAN - 1;
+            }
+            int level = 0;
+            while (delta >= 1L << (ROOT_BITS + (level + 1) * LEVEL_BITS)) {
+                level += 1;
+            }
+            final int shift = ROOT_BITS + level * LEVEL_BITS;
+            slot = levels[level][(int) ((tick >>> shift) & (LEVEL_SIZE - 1))];
+        }
+        timeout.slot = slot;
+        timeout.prev = null;
+        timeout.next = slot.head;
+        if (slot.head != null) {
+            slot.head.prev = timeout;
+        }
+        slot.head = timeout;
+    }
+
+    private void unlink(Timeout timeout) {
+        final Slot slot = timeout.slot;
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            slot.head = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = timeout.next = null;
+        timeout.slot = null;
+        size -= 1;
+    }
+
+    /*
+     * The next tick that needs processing: the start of a turn, the first
+     * occupied root slot in this turn of the root wheel, or the start of
+     * the next turn.
+     */
+    private long nextTick() {
+        if ((currentTick & (ROOT_SIZE - 1)) == 0) {
+            // The upper levels have not been cascaded for this turn yet.
+            return currentTick;
+        }
+        final long turnEnd = (currentTick | (ROOT_SIZE - 1)) + 1;
+        for (long tick = currentTick; tick < turnEnd; tick++) {
+            if (root[(int) (tick & (ROOT_SIZE - 1))].head != null) {
+                return tick;
+            }
+        }
+        return turnEnd;
+    }
+
+    private static Slot[] newSlots(int count) {
+        final Slot[] slots = new Slot[count];
+        for (int index = 0; index < count; index++) {
+            slots[index] = new Slot();
+        }
+        return slots;
+    }
+
+    // The head of a doubly linked list of timeouts.
+    private static final class Slot {
+        private Timeout head;
+    }
+
+    private static final Logger LOGGER = Logger.getLogger("oracle.iot.client");
+    private static Logger getLogger() { return LOGGER; }
+}
@@ -47,7 +47,6 @@ import java.io.UnsupportedEncodingException;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -87,6 +86,9 @@ public final class VirtualDeviceImpl
     // data for the attribute, and the pipeline data for the attribute.
     private final Map<String,List<Map<String,Object>>> pipelineDataCache;
 
+    // The values being passed along the policy pipelines of the attributes.
+    private final InProcessValues inProcessValues;
+
     private final Object UPDATE_LOCK = new int[]{};
 
     private static final ErrorCallbackBridge ERROR_CALLBACK_BRIDGE =
@@ -114,6 +116,7 @@ public final class VirtualDeviceImpl
 
         // device policy related stuff
         this.pipelineDataCache = new HashMap<String,List<Map<String,Object>>>();
+        this.inProcessValues = new InProcessValues(deviceModel);
         this.devicePolicyManager = DevicePolicyManager.getDevicePolicyManager(directlyConnectedDevice);
 
 //        // set up device model policies
@@ -239,7 +242,7 @@ public final class VirtualDeviceImpl
                 } catch (Exception e) {
                     e.printStackTrace();
                 } finally {
-                    DeviceFunction.removeInProcessValue(getEndpointId(), getDeviceModel().getURN(), attributeName);
+                    inProcessValues.remove(attributeName);
                 }
             }
 
@@ -400,7 +403,7 @@ public final class VirtualDeviceImpl
            synchronized (UPDATE_LOCK) {
 
                // InProcessValue helps resolve $(<attribute-name>) in formulas and conditions
-               DeviceFunction.putInProcessValue(getEndpointId(), getDeviceModel().getURN(), attributeName, policyValue);
+               inProcessValues.put(attributeName, policyValue);
 
                for (int index = 0, maxIndex = pipeline.size(); index < maxIndex; index++) {
 
@@ -430,7 +433,7 @@ public final class VirtualDeviceImpl
                        );
                        if (valueFromPolicy != null) {
                            policyValue = cast(attribute.getType(), valueFromPolicy);
-                           DeviceFunction.putInProcessValue(getEndpointId(), getDeviceModel().getURN(), attributeName, policyValue);
+                           inProcessValues.put(attributeName, policyValue);
                        } else {
                            if (getLogger().isLoggable(Level.FINEST)) {
                                getLogger().log(Level.FINEST, attributeName +
@@ -1618,19 +1621,36 @@ public final class VirtualDeviceImpl
     private final Map<ScheduledPolicyData.Key, ScheduledPolicyData> scheduledPolicies =
             new HashMap<ScheduledPolicyData.Key, ScheduledPolicyData>();
 
-    private final TimedPolicyThread timedPolicyThread = new TimedPolicyThread();
+    // The scheduled policies of this virtual device expire here. The
+    // scheduler is shared by all virtual devices.
+    private final TimedPolicyScheduler.Target timedPolicyTarget = new TimedPolicyScheduler.Target() {
+        @Override
+        public void expired(List<TimedPolicyScheduler.Timeout> timeouts, long now) {
+            final List<Pair<VirtualDeviceAttributeBase<VirtualDevice, Object>, Object>> updatedAttributes
+                    = new ArrayList<Pair<VirtualDeviceAttributeBase<VirtualDevice, Object>, Object>>();
+
+            for (TimedPolicyScheduler.Timeout timeout : timeouts) {
+                // Run through all the timed function data
+                ((ScheduledPolicyData) timeout).processExpiredFunction(VirtualDeviceImpl.this, updatedAttributes, now);
+            }
+            if (!updatedAttributes.isEmpty()) {
+                //
+                // Call updateFields to ensure the computed metrics get run,
+                // and will put all attributes into one data message.
+                //
+                updateFields(updatedAttributes);
+            }
+        }
+    };
 
     private void addScheduledPolicy(long window, long slide, long timeZero, String attributeName, int pipelineIndex) {
         synchronized (scheduledPolicies) {
             final ScheduledPolicyData.Key key = new ScheduledPolicyData.Key(window, slide);
             ScheduledPolicyData scheduledPolicyData = scheduledPolicies.get(key);
             if (scheduledPolicyData == null) {
-                scheduledPolicyData = new ScheduledPolicyData(window, slide, timeZero);
+                scheduledPolicyData = new ScheduledPolicyData(timedPolicyTarget, window, slide, timeZero);
                 scheduledPolicies.put(key, scheduledPolicyData);
-                timedPolicyThread.addTimedPolicyData(scheduledPolicyData);
-                if (!timedPolicyThread.isAlive() && !timedPolicyThread.isCancelled()) {
-                    timedPolicyThread.start();
-                }
+                scheduledPolicyData.schedule();
             }
             scheduledPolicyData.addAttribute(attributeName, pipelineIndex);
         }
@@ -1644,13 +1664,13 @@ public final class VirtualDeviceImpl
                 scheduledPolicyData.removeAttribute(attributeName, pipelineIndex);
                 if (scheduledPolicyData.isEmpty()) {
                     scheduledPolicies.remove(key);
-                    timedPolicyThread.removeTimedPolicyData(scheduledPolicyData);
+                    TimedPolicyScheduler.getInstance().cancel(scheduledPolicyData);
                 }
             }
         }
     }
 
-    private static class ScheduledPolicyData {
+    private static class ScheduledPolicyData extends TimedPolicyScheduler.Timeout {
 
         private static class Key {
             private final long window;
@@ -1685,7 +1705,8 @@ public final class VirtualDeviceImpl
         // { attributeName : pipelineIndex }
         private final Map<String, Integer> pipelineIndices;
 
-        private ScheduledPolicyData(long window, long slide, long timeZero) {
+        private ScheduledPolicyData(TimedPolicyScheduler.Target target, long window, long slide, long timeZero) {
+            super(target);
 
             this.slide = slide;
             this.pipelineIndices = new HashMap<String, Integer>();
@@ -1713,9 +1734,8 @@ public final class VirtualDeviceImpl
             return pipelineIndices.isEmpty();
         }
 
-        private long getDelay(long now) {
-            final long delay = expiry - now;
-            return (delay > 0) ? delay : 0;
+        private void schedule() {
+            TimedPolicyScheduler.getInstance().schedule(this, expiry);
         }
 
         private void processExpiredFunction(
@@ -1729,6 +1749,7 @@ public final class VirtualDeviceImpl
                 // ensure expiry is reset
                 // tenth of a millisecond resolution
                 this.expiry = ((slide + timeZero) / 10) * 10;
+                schedule();
             }
         }
 
@@ -1839,111 +1860,6 @@ public final class VirtualDeviceImpl
         }
     }
 
-    private static int timed_policy_thread_count = 0;
-
-    // TODO: can we have only one of these threads for all virtual devices?
-    private class TimedPolicyThread extends Thread {
-
-        private final List<ScheduledPolicyData> scheduledPolicyData =
-                new ArrayList<ScheduledPolicyData>();
-
-        private transient boolean cancelled = false;
-
-        private TimedPolicyThread() {
-            super("timed-policy-thread"+timed_policy_thread_count++);
-            setDaemon(true);
-        }
-
-        private void addTimedPolicyData(ScheduledPolicyData data) {
-            synchronized (scheduledPolicyData) {
-                int index = scheduledPolicyData.indexOf(data);
-                if (index == -1) {
-                    scheduledPolicyData.add(data);
-                } else {
-                    scheduledPolicyData.set(index, data);
-                }
-                scheduledPolicyData.notify();
-            }
-        }
-
-        private void removeTimedPolicyData(ScheduledPolicyData data) {
-            synchronized (scheduledPolicyData) {
-                scheduledPolicyData.remove(data);
-                scheduledPolicyData.notify();
-            }
-        }
-
-        private boolean isCancelled() { return cancelled; }
-
-        // TODO: never used. Do we need cancelled and cancel()?
-        private void cancel() { cancelled = true; this.interrupt(); }
-
-        @Override
-        public void run() {
-
-            while (!cancelled) {
-
-                long delay = -1;
-
-                synchronized (scheduledPolicyData) {
-                    // Wait for a timed function to be added
-                    while (!cancelled && scheduledPolicyData.isEmpty()) {
-                        try {
-                            scheduledPolicyData.wait();
-                        } catch (InterruptedException e) {
-                            // Restore interrupt status
-                            Thread.currentThread().interrupt();
-                        }
-                    }
-
-                    final long now = System.currentTimeMillis();
-                    Collections.sort(scheduledPolicyData, new Comparator<ScheduledPolicyData>() {
-                        @Override
-                        public int compare(ScheduledPolicyData o1, ScheduledPolicyData o2) {
-                            final long x = o1.getDelay(now);
-                            final long y = o2.getDelay(now);
-                            return (x < y) ? -1 : ((x == y) ? 0 : 1);
-                        }
-                    });
-
-                    delay = scheduledPolicyData.get(0).getDelay(now);
-
-                    // May have been cancelled while waiting for data to be
-                    // added to scheduledPolicyData
-                    if (!cancelled && delay > 0) {
-                        try {
-                            scheduledPolicyData.wait(delay);
-                        } catch (InterruptedException e) {
-                            // Restore the interrupted status
-                            Thread.currentThread().interrupt();
-                        } catch (IllegalArgumentException e) {
-                            getLogger().log(Level.SEVERE, "wait(" + delay + ")", e);
-                        }
-                    }
-
-                    final long currentTimeMillis = System.currentTimeMillis();
-
-                    final List<Pair<VirtualDeviceAttributeBase<VirtualDevice, Object>, Object>> updatedAttributes
-                            = new ArrayList<Pair<VirtualDeviceAttributeBase<VirtualDevice, Object>, Object>>();
-
-                    for (ScheduledPolicyData policyData : scheduledPolicyData) {
-                        // Run through all the timed function data
-                        if (policyData.getDelay(currentTimeMillis) <= 0) {
-                            policyData.processExpiredFunction(VirtualDeviceImpl.this, updatedAttributes, currentTimeMillis);
-                        }
-                    }
-                    if (!updatedAttributes.isEmpty()) {
-                        //
-                        // Call updateFields to ensure the computed metrics get run,
-                        // and will put all attributes into one data message.
-                        //
-                        updateFields(updatedAttributes);
-                    }
-                }
-            }
-        }
-    }
-
     // DevicePolicyManager.ChangeListener interface
     @Override
     public void policyAssigned(DevicePolicy policy, Set<String> assignedDevices) {
@@ -2501,6 +2417,11 @@ public final class VirtualDeviceImpl
         this.queueMessage(message, null);
     }
 
+    @Override
+    public InProcessValues getInProcessValues() {
+        return inProcessValues;
+    }
+
     private static final Logger LOGGER = Logger.getLogger("oracle.iot.client");
     private static Logger getLogger() { return LOGGER; }
 }
@@ -13,9 +13,11 @@ import com.oracle.iot.client.message.Message;
 import com.oracle.iot.client.message.StatusCode;
 import com.oracle.iot.client.trust.TrustedAssetsManager;
 import com.oracle.iot.client.trust.TrustException;
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
 import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
 import org.eclipse.paho.client.mqttv3.MqttCallback;
-import org.eclipse.paho.client.mqttv3.MqttClient;
 import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
 import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
@@ -31,6 +33,7 @@ import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.charset.Charset;
 import java.security.AccessController;
 import java.security.GeneralSecurityException;
@@ -42,11 +45,22 @@ import java.security.cert.CertificateFactory;
 import java.security.cert.PKIXParameters;
 import java.security.cert.TrustAnchor;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
@@ -91,6 +105,16 @@ public class MqttSecureConnectionImpl extends MqttSecureConnection implements Mq
 
     private final static int TIME_TO_WAIT;
 
+    // The maximum number of publishes that may be waiting for a response
+    // from the server at the same time. The default of 1 means a publish
+    // is not sent until the response to the previous publish has arrived.
+    private final static String MAX_IN_FLIGHT_PROPERTY =
+            "oracle.iot.client.device.mqtt_max_in_flight";
+
+    private final static int MAX_IN_FLIGHT_DEFAULT = 1;
+
+    private final static int MAX_IN_FLIGHT;
+
     // PAHO disconnect timeouts
     private final static int PAHO_QUIECENSE_TIMEOUT = 0;
     private final static int PAHO_DISCONNECT_TIMEOUT = 10000;
@@ -120,6 +144,9 @@ public class MqttSecureConnectionImpl extends MqttSecureConnection implements Mq
         val = Integer.getInteger(TIME_TO_WAIT_PROPERTY, TIME_TO_WAIT_DEFAULT);
         TIME_TO_WAIT = (0 <= val) ? val : 0;
 
+        val = Integer.getInteger(MAX_IN_FLIGHT_PROPERTY, MAX_IN_FLIGHT_DEFAULT);
+        MAX_IN_FLIGHT = (0 < val) ? val : MAX_IN_FLIGHT_DEFAULT;
+
     }
 
     /**
@@ -131,22 +158,31 @@ public class MqttSecureConnectionImpl extends MqttSecureConnection implements Mq
 
     private final static Charset UTF_8 = Charset.forName("UTF-8");
 
-    private MqttClient mqttClient;
+    private MqttAsyncClient mqttClient;
 
     // MqttSendReceiveImpl gets first shot at handling the callback
     private final AtomicReference<MqttSendReceiveImpl> mqttSendReceiveImpl
             = new AtomicReference<MqttSendReceiveImpl>();
 
-    // The topic we are waiting on
-    private final AtomicReference<String> expectedTopic =
-            new AtomicReference<String>();
+    // Publishes waiting for a response, oldest first. The server responds
+    // to the publishes on a topic in the order they were published, so a
+    // response completes the oldest pending publish that expects it.
+    // Guarded by LOCK.
+    private final LinkedList<PublishFuture> pendingPublishes =
+            new LinkedList<PublishFuture>();
 
-    // The response to a publish
-    private HttpResponse publishResponse;
+    // Limits the number of publishes waiting for a response.
+    private final Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
 
-    // For synchronization while waiting for a response
+    // For synchronization of pendingPublishes
     private final Object LOCK = new int[0];
 
+    // The number of publishes waiting on each response topic that is only
+    // subscribed to while waiting. A topic is unsubscribed from when the
+    // last of them is done. Guarded by the lock on this.
+    private final Map<String, Integer> responseSubscriptions =
+            new HashMap<String, Integer>();
+
     // For debugging purposes only. TODO: remove this variable
     private final AtomicBoolean connectionWasLost = new AtomicBoolean(false);
 
@@ -171,12 +207,12 @@ public class MqttSecureConnectionImpl extends MqttSecureConnection implements Mq
                         if (mqttSendReceive != null) {
                             try {
                                 final String[] topicFilters = mqttSendReceive.getSubscribeTo();
-                                mqttClient.unsubscribe(topicFilters);
+                                mqttClient.unsubscribe(topicFilters).waitForCompletion();
                             } catch (MqttException ignored) {
                                 MqttSecureConnection.getLogger().log(Level.FINEST,ignored.getMessage());
                             }
                         }
-                        mqttClient.disconnect();
+                        mqttClient.disconnect().waitForCompletion();
                     }
                         
                 } catch (MqttException e) {
@@ -192,6 +228,7 @@ public class MqttSecureConnectionImpl extends MqttSecureConnection implements Mq
                 }
             }
         }
+        failPendingPublishes(new IOException("disconnected"));
     }
 
     void setMqttSendReceiveImpl(MqttSendReceiveImpl mqttSendReceiveImpl) {
@@ -200,7 +237,7 @@ public class MqttSecureConnectionImpl extends MqttSecureConnection implements Mq
             try {
                 final String[] topicFilters = mqttSendReceiveImpl.getSubscribeTo();
                 final int[] qos = mqttSendReceiveImpl.getSubscribeQos();
-                mqttClient.subscribe(topicFilters, qos);
+                mqttClient.subscribe(topicFilters, qos).waitForCompletion();
             } catch (MqttException ignored) {
                 MqttSecureConnection.getLogger().log(Level.FINEST,ignored.getMessage());
             }
@@ -209,71 +246,204 @@ public class MqttSecureConnectionImpl extends MqttSecureConnection implements Mq
     }
 
     @Override
-    protected synchronized HttpResponse publish(String topic,
-                                                byte[] payload,
-                                                String expect)
+    protected HttpResponse publish(String topic,
+                                   byte[] payload,
+                                   String expect)
             throws IOException, GeneralSecurityException {
 
         final boolean waitForResponse = expect != null;
-        final int qos = waitForResponse ? QOS_AT_LEAST_ONCE : SEND_MESSAGE_QOS;
 
-        // MqttClient#publish(String,Byte[],int,boolean) throws NPE if
-        // payload is null, so make the message here
-        final MqttMessage message = new MqttMessage();
-        if (payload != null) message.setPayload(payload);
-        message.setQos(qos);
-        message.setRetained(false);
+        // The messages response topics are subscribed to for as long as the
+        // client is connected. Other response topics are only subscribed to
+        // while waiting for the response.
+        final String[] topicFilters = waitForResponse && !topic.endsWith("messages")
+                ? new String[] { expect, expect.concat("/error") }
+                : null;
 
+        boolean subscribed = false;
+        final HttpResponse publishResponse;
         try {
-            checkConnection();
+            if (topicFilters != null) {
+                synchronized (this) {
+                    checkConnection();
+                    subscribeResponseTopics(topicFilters);
+                    subscribed = true;
+                }
+            }
 
-            if (MqttSecureConnection.getLogger().isLoggable(Level.FINEST)) {
-                MqttSecureConnection.getLogger().log(Level.FINEST, "publish: " + topic + ", expect: " + expect);
+            publishResponse = waitForResponse(publishAsync(topic, payload, expect));
+
+        } catch (MqttException e) {
+            disconnectForcibly();
+            MqttSecureConnection.getLogger().log(Level.SEVERE, e.getMessage());
+            throw new IOException(e.getMessage(), e);
+
+        } finally {
+            if (subscribed) {
+                synchronized (this) {
+                    unsubscribeResponseTopics(topicFilters);
+                }
             }
+        }
+
+        if (publishResponse != null) {
 
             if (MqttSecureConnection.getLogger().isLoggable(Level.FINEST)) {
-                MqttSecureConnection.getLogger().log(Level.FINEST, "data: " + Message.prettyPrintJson(payload));
+                MqttSecureConnection.getLogger().log(Level.FINEST, "publishResponse: " + publishResponse.getVerboseStatus("publish", topic));
+            }
+
+            int status = publishResponse.getStatus();
+            // 401 means the credentials have expired. 403 means we're
+            // probably using client-secret where we need
+            // client-credentials. In either case, force a disconnect so
+            // the client will reconnect with new credentials.
+            // Note that the MqttSendReceiveImpl#post method is counting on
+            // the MqttClient disconnect in the case of a 401 or 403.
+            if (status == 401 || status == 403) {
+                disconnectForcibly();
             }
+            return publishResponse;
 
-            if (waitForResponse) {
+        } else {
+            MqttSecureConnection.getLogger().log(Level.SEVERE,"publishResponse == null! " + topic + ", expect " + expect);
+            return new HttpResponse(StatusCode.OTHER.getCode(), "publishResponse == null!".getBytes(UTF_8), null);
+        }
+    }
 
-                waitForResponse(topic, message, expect);
+    // Subscribe to the response topics that no other publish is waiting
+    // on, then count this publish as waiting on all of them. Call with
+    // the lock on this.
+    private void subscribeResponseTopics(String[] topicFilters) throws MqttException {
+        final List<String> subscribe = new ArrayList<String>(topicFilters.length);
+        for (String topicFilter : topicFilters) {
+            if (!responseSubscriptions.containsKey(topicFilter)) {
+                subscribe.add(topicFilter);
+            }
+        }
+        if (!subscribe.isEmpty()) {
+            final int[] qos = new int[subscribe.size()];
+            Arrays.fill(qos, QOS_AT_LEAST_ONCE);
+            mqttClient.subscribe(subscribe.toArray(new String[subscribe.size()]), qos).waitForCompletion();
+        }
+        for (String topicFilter : topicFilters) {
+            final Integer count = responseSubscriptions.get(topicFilter);
+            responseSubscriptions.put(topicFilter,
+                    Integer.valueOf(count != null ? count.intValue() + 1 : 1));
+        }
+    }
 
+    // Count this publish as no longer waiting on the response topics, and
+    // unsubscribe from the topics that no other publish is waiting on.
+    // Call with the lock on this.
+    private void unsubscribeResponseTopics(String[] topicFilters) {
+        final List<String> unsubscribe = new ArrayList<String>(topicFilters.length);
+        for (String topicFilter : topicFilters) {
+            final Integer count = responseSubscriptions.get(topicFilter);
+            if (count == null) {
+                continue;
+            }
+            if (count.intValue() > 1) {
+                responseSubscriptions.put(topicFilter, Integer.valueOf(count.intValue() - 1));
             } else {
+                responseSubscriptions.remove(topicFilter);
+                unsubscribe.add(topicFilter);
+            }
+        }
+        if (!unsubscribe.isEmpty() && mqttClient != null && mqttClient.isConnected()) {
+            try {
+                mqttClient.unsubscribe(unsubscribe.toArray(new String[unsubscribe.size()])).waitForCompletion();
+            } catch (MqttException ignored) {
+                MqttSecureConnection.getLogger().log(Level.FINEST,ignored.getMessage());
+            }
+        }
+    }
 
-                mqttClient.publish(topic, message);
-                publishResponse = MqttSendReceiveImpl.ACCEPTED;
+    /**
+     * Publish the payload without waiting for the response. If {@code expect}
+     * is not {@code null}, the returned future completes when a message
+     * arrives on the {@code expect} topic. The caller must already be
+     * subscribed to that topic. Otherwise, the future completes when the
+     * publish has been delivered.
+     * <p>
+     * At most {@code oracle.iot.client.device.mqtt_max_in_flight} publishes
+     * may be waiting for a response. This method blocks until the number
+     * of publishes waiting for a response is below that limit.
+     *
+     * @param topic the topic to publish to
+     * @param payload the message payload, may be {@code null}
+     * @param expect the topic of the response, or {@code null}
+     * @return the response to the publish
+     * @throws IOException if the message could not be published
+     * @throws GeneralSecurityException if there is an error connecting to the server
+     */
+    Future<HttpResponse> publishAsync(String topic,
+                                      byte[] payload,
+                                      String expect)
+            throws IOException, GeneralSecurityException {
+
+        final boolean waitForResponse = expect != null;
+        final int qos = waitForResponse ? QOS_AT_LEAST_ONCE : SEND_MESSAGE_QOS;
+
+        // MqttAsyncClient#publish(String,Byte[],int,boolean) throws NPE if
+        // payload is null, so make the message here
+        final MqttMessage message = new MqttMessage();
+        if (payload != null) message.setPayload(payload);
+        message.setQos(qos);
+        message.setRetained(false);
+
+        if (waitForResponse) {
+            try {
+                inFlight.acquire();
+            } catch (InterruptedException e) {
+                // restore the thread's interrupt state
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting to publish to " + topic);
             }
+        }
 
-            if (publishResponse != null) {
+        final PublishFuture future = new PublishFuture(expect);
+
+        try {
+            synchronized (this) {
+
+                checkConnection();
 
                 if (MqttSecureConnection.getLogger().isLoggable(Level.FINEST)) {
-                    MqttSecureConnection.getLogger().log(Level.FINEST, "publishResponse: " + publishResponse.getVerboseStatus("publish", topic));
+                    MqttSecureConnection.getLogger().log(Level.FINEST, "publish: " + topic + ", expect: " + expect);
                 }
 
-                int status = publishResponse.getStatus();
-                // 401 means the credentials have expired. 403 means we're
-                // probably using client-secret where we need
-                // client-credentials. In either case, force a disconnect so
-                // the client will reconnect with new credentials.
-                // Note that the MqttSendReceiveImpl#post method is counting on
-                // the MqttClient disconnect in the case of a 401 or 403.
-                if (status == 401 || status == 403) {
-                    disconnectForcibly();
+                if (MqttSecureConnection.getLogger().isLoggable(Level.FINEST)) {
+                    MqttSecureConnection.getLogger().log(Level.FINEST, "data: " + Message.prettyPrintJson(payload));
                 }
-                return publishResponse;
 
-            } else {
-                MqttSecureConnection.getLogger().log(Level.SEVERE,"publishResponse == null! " + topic + ", expect " + expect);
-                return new HttpResponse(StatusCode.OTHER.getCode(), "publishResponse == null!".getBytes(UTF_8), null);
+                if (waitForResponse) {
+                    // Add to pendingPublishes before publishing since the
+                    // response may arrive before publish returns.
+                    synchronized (LOCK) {
+                        pendingPublishes.add(future);
+                    }
+                    mqttClient.publish(topic, message);
+                } else {
+                    mqttClient.publish(topic, message, null, future);
+                }
             }
 
         } catch (MqttException e) {
+            future.fail(new IOException(e.getMessage(), e));
             disconnectForcibly();
             MqttSecureConnection.getLogger().log(Level.SEVERE, e.getMessage());
             throw new IOException(e.getMessage(), e);
 
+        } catch (GeneralSecurityException e) {
+            future.fail(new IOException(e.getMessage(), e));
+            throw e;
+
+        } catch (RuntimeException e) {
+            future.fail(new IOException(e.getMessage(), e));
+            throw e;
         }
+
+        return future;
     }
 
     // HACK: Try to connect a second time to the Mqtt broker.
@@ -315,7 +485,7 @@ public class MqttSecureConnectionImpl extends MqttSecureConnection implements Mq
         char[] password = MqttCredentials.getClientAssertionCredentials(
             trustedAssetsManager, mqttConnectOptions.getUserName(), false);
         mqttConnectOptions.setPassword(password);
-        mqttClient.connect(mqttConnectOptions);
+        mqttClient.connect(mqttConnectOptions).waitForCompletion();
         // If we connected assume the initial failure was due to partial
         // activation failure and set the endpoint id with the activationId.
         // As of now both the activationId and enpointId are the same but this
@@ -325,7 +495,8 @@ public class MqttSecureConnectionImpl extends MqttSecureConnection implements Mq
             trustedAssetsManager.getEndpointCertificate());
     }
 
-    // Must only be called from constructor or from publish!
+    // Must only be called from constructor or from publish while holding
+    // the lock on this!
     private void checkConnection()
             throws MqttException, GeneralSecurityException {
 
@@ -358,7 +529,7 @@ public class MqttSecureConnectionImpl extends MqttSecureConnection implements Mq
                     ? trustedAssetsManager.getEndpointId()
                     : trustedAssetsManager.getClientId();
 
-            mqttClient = new MqttClient(
+            mqttClient = new MqttAsyncClient(
                     mqttBrokerUrl,
                     deviceId,
                     mqttClientPersistence
@@ -381,6 +552,10 @@ public class MqttSecureConnectionImpl extends MqttSecureConnection implements Mq
             mqttConnectOptions.setCleanSession(true);
             mqttConnectOptions.setConnectionTimeout(MQTT_CONNECTION_TIMEOUT);
             mqttConnectOptions.setKeepAliveInterval(MQTT_KEEP_ALIVE_INTERVAL);
+            // Allow for the publishes waiting for a response, plus the
+            // acceptBytes publish that may precede each one.
+            mqttConnectOptions.setMaxInflight(
+                    Math.max(MqttConnectOptions.MAX_INFLIGHT_DEFAULT, 2 * MAX_IN_FLIGHT));
 
             final String scheme = trustedAssetsManager.getServerScheme().toLowerCase(Locale.ROOT);
             if (MQTT_SSL.equals(scheme) || MQTT_WSS.equals(scheme)) {
@@ -414,7 +589,7 @@ public class MqttSecureConnectionImpl extends MqttSecureConnection implements Mq
             // It looks like MqttSecurityException is thrown.
             // This can be caught with just MqttException.
             try {
-                mqttClient.connect(mqttConnectOptions);
+                mqttClient.connect(mqttConnectOptions).waitForCompletion();
             } catch (MqttSecurityException se) {
                 if (se.getCause() instanceof GeneralSecurityException) {
                     throw (GeneralSecurityException) se.getCause();
@@ -429,7 +604,21 @@ public class MqttSecureConnectionImpl extends MqttSecureConnection implements Mq
                 final String[] topicFilters = mqttSendReceive.getSubscribeTo();
                 final int[] qos = mqttSendReceive.getSubscribeQos();
                 try {
-                    mqttClient.subscribe(topicFilters, qos);
+                    mqttClient.subscribe(topicFilters, qos).waitForCompletion();
+                } catch (MqttException ignored) {
+                    MqttSecureConnection.getLogger().log(Level.FINEST, ignored.getMessage());
+                }
+            }
+
+            // The session is clean, so subscribe again to the response
+            // topics that publishes are still waiting on.
+            if (!responseSubscriptions.isEmpty()) {
+                final String[] topicFilters = responseSubscriptions.keySet()
+                        .toArray(new String[responseSubscriptions.size()]);
+                final int[] qos = new int[topicFilters.length];
+                Arrays.fill(qos, QOS_AT_LEAST_ONCE);
+                try {
+                    mqttClient.subscribe(topicFilters, qos).waitForCompletion();
                 } catch (MqttException ignored) {
                     MqttSecureConnection.getLogger().log(Level.FINEST, ignored.getMessage());
                 }
@@ -437,83 +626,77 @@ public class MqttSecureConnectionImpl extends MqttSecureConnection implements Mq
         }
     }
 
-    private void waitForResponse(String topic, MqttMessage message, String expect)
-            throws IOException, MqttException {
-
-        final String[] topicFilters = new String[] {
-                    expect,
-                    expect.concat("/error")
-            };
-
-        publishResponse = null;
-        assert expectedTopic.get() == null;
-        expectedTopic.set(expect);
+    private HttpResponse waitForResponse(Future<HttpResponse> future)
+            throws IOException {
 
         try {
-
-            if (!topic.endsWith("messages")) {
-                mqttClient.subscribe(topicFilters, new int[]{QOS_AT_LEAST_ONCE, QOS_AT_LEAST_ONCE});
+            // A publish that does not expect a response waits for delivery
+            // without a timeout.
+            if (TIME_TO_WAIT > 0 && ((PublishFuture)future).expect != null) {
+                return future.get(TIME_TO_WAIT, TimeUnit.MILLISECONDS);
+            } else {
+                return future.get();
             }
 
-            mqttClient.publish(topic, message);
-
-            synchronized (LOCK) {
-                if (publishResponse == null) {
-                    LOCK.wait(TIME_TO_WAIT);
-                }
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException)cause;
             }
+            throw new IOException(cause);
+
+        } catch (TimeoutException e) {
+            // fall through
 
         } catch (InterruptedException e) {
             // TODO: handle spurious interrupt. spurious interrupt is possible, but not likely
             // restore the thread's interrupt state
             Thread.currentThread().interrupt();
-        } finally {
-            expectedTopic.set(null);
-            if (mqttClient.isConnected() && !topic.endsWith("messages")) {
-                try {
-                    mqttClient.unsubscribe(topicFilters);
-                } catch (MqttException ignored) {
-                    MqttSecureConnection.getLogger().log(Level.FINEST,ignored.getMessage());
-                }
-            }
-        }
-
-        if (publishResponse == null) {
-
-            // If publishResponse is null, then we timed out.
-            // Force a disconnect so that the next time publish is called,
-            // the MqttClient will reconnect. Since we are reconnecting with
-            // clean state, this should clear out any pending messages that
-            // haven't been ack'd yet.
-            if (mqttClient.isConnected()) {
-                disconnectForcibly();
-            }
-            connectionWasLost.set(true);
-            throw new IOException("Timed out waiting for a response from the server");
         }
 
+        // We timed out. Force a disconnect so that the next time publish is
+        // called, the MqttClient will reconnect. Since we are reconnecting
+        // with clean state, this should clear out any pending messages that
+        // haven't been ack'd yet.
+        final IOException timedOut =
+                new IOException("Timed out waiting for a response from the server");
+        disconnectForcibly();
+        ((PublishFuture)future).fail(timedOut);
+        throw timedOut;
     }
 
     @Override
     public void connectionLost(Throwable throwable) {
         MqttSecureConnection.getLogger().log(Level.INFO, throwable.getMessage());
         connectionWasLost.set(true);
+        failPendingPublishes(new IOException("Connection lost", throwable));
     }
 
     @Override
     public void messageArrived(String topic, MqttMessage mqttMessage) throws Exception {
 
-        final String expected = expectedTopic.get();
-        final boolean isExpected = expected != null && topic.startsWith(expected);
+        // The oldest publish waiting for a response on this topic.
+        PublishFuture future = null;
+        synchronized (LOCK) {
+            final Iterator<PublishFuture> iterator = pendingPublishes.iterator();
+            while (iterator.hasNext()) {
+                final PublishFuture pending = iterator.next();
+                if (topic.startsWith(pending.expect)) {
+                    iterator.remove();
+                    future = pending;
+                    break;
+                }
+            }
+        }
 
         if (MqttSecureConnection.getLogger().isLoggable(Level.FINEST)) {
-            MqttSecureConnection.getLogger().log(Level.FINEST, "messageArrived for topic: " + topic + ", expected: " + expected);
+            MqttSecureConnection.getLogger().log(Level.FINEST, "messageArrived for topic: " + topic + ", expected: " +
+                    (future != null ? future.expect : null));
         }
 
-        if (!isExpected) {
+        if (future == null) {
             MqttSecureConnection.getLogger().log(Level.SEVERE,
-                    "Message for '" + topic + "' not expected. " +
-                            "Expected '" + expectedTopic.get() + "'");
+                    "Message for '" + topic + "' not expected.");
             throw new MqttException(MqttException.REASON_CODE_CLIENT_EXCEPTION);
         }
 
@@ -534,11 +717,7 @@ public class MqttSecureConnectionImpl extends MqttSecureConnection implements Mq
                     : getErrorResponse(payload);
         }
 
-        synchronized (LOCK) {
-            publishResponse = httpResponse;
-            LOCK.notifyAll();
-            return;
-        }
+        future.complete(httpResponse);
     }
 
     @Override
@@ -624,7 +803,11 @@ public class MqttSecureConnectionImpl extends MqttSecureConnection implements Mq
         return sslContext.getSocketFactory();
     }
 
-    private void disconnectForcibly() {
+    private synchronized void disconnectForcibly() {
+        if (mqttClient == null) {
+            connectionWasLost.set(true);
+            return;
+        }
         try {
             // attempt to disconnect, close and remove reference to this client
             try {
@@ -640,6 +823,124 @@ public class MqttSecureConnectionImpl extends MqttSecureConnection implements Mq
         } finally {
             mqttClient = null;
             connectionWasLost.set(true);
+            failPendingPublishes(new IOException("disconnected"));
+        }
+    }
+
+    // Fail all publishes waiting for a response. Responses to these
+    // publishes will never arrive.
+    private void failPendingPublishes(IOException e) {
+        final PublishFuture[] failed;
+        synchronized (LOCK) {
+            failed = pendingPublishes.toArray(new PublishFuture[pendingPublishes.size()]);
+            pendingPublishes.clear();
+        }
+        for (PublishFuture future : failed) {
+            future.fail(e);
+        }
+    }
+
+    /*
+     * The result of publishAsync. Completed by messageArrived when the
+     * response arrives, or by the Paho action callback when the publish is
+     * delivered if no response is expected.
+     */
+    private final class PublishFuture implements Future<HttpResponse>, IMqttActionListener {
+
+        // The topic of the response, or null if no response is expected
+        private final String expect;
+
+        private HttpResponse response;
+        private IOException exception;
+        private boolean done;
+
+        private PublishFuture(String expect) {
+            this.expect = expect;
+        }
+
+        void complete(HttpResponse response) {
+            synchronized (this) {
+                if (done) return;
+                this.response = response;
+                this.done = true;
+                notifyAll();
+            }
+            settled();
+        }
+
+        void fail(IOException exception) {
+            synchronized (LOCK) {
+                pendingPublishes.remove(this);
+            }
+            synchronized (this) {
+                if (done) return;
+                this.exception = exception;
+                this.done = true;
+                notifyAll();
+            }
+            settled();
+        }
+
+        // Called once, when the future is done.
+        private void settled() {
+            if (expect != null) {
+                inFlight.release();
+            }
+        }
+
+        @Override
+        public void onSuccess(IMqttToken asyncActionToken) {
+            complete(MqttSendReceiveImpl.ACCEPTED);
+        }
+
+        @Override
+        public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+            fail(new IOException(exception.getMessage(), exception));
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            // A published message cannot be recalled.
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public synchronized boolean isDone() {
+            return done;
+        }
+
+        @Override
+        public synchronized HttpResponse get() throws InterruptedException, ExecutionException {
+            while (!done) {
+                wait();
+            }
+            return result();
+        }
+
+        @Override
+        public synchronized HttpResponse get(long timeout, TimeUnit unit)
+                throws InterruptedException, ExecutionException, TimeoutException {
+            final long deadline = System.nanoTime() + unit.toNanos(timeout);
+            while (!done) {
+                final long remaining = deadline - System.nanoTime();
+                if (remaining <= 0L) {
+                    throw new TimeoutException();
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            return result();
+        }
+
+        private HttpResponse result() throws ExecutionException {
+            if (exception != null) {
+                throw new ExecutionException(exception);
+            }
+            return response;
         }
     }
 }
@@ -26,7 +26,9 @@ import java.util.logging.Logger;
 /**
  * MqttSendReceiveImpl is an implementation of the send(Message...) method of
  * {@link DirectlyConnectedDevice}. The send is
- * synchronous. Receive should be considered as a synchronous call. The
+ * synchronous, but sends from different threads may be in flight at the
+ * same time (see {@code oracle.iot.client.device.mqtt_max_in_flight}).
+ * Receive should be considered as a synchronous call. The
  * implementation has a buffer for receiving request messages. If there are
  * no messages in the buffer, the receive implementation will send a message
  * to the server to receive any pending requests the server may have.
@@ -85,12 +87,24 @@ public final class MqttSendReceiveImpl extends SendReceiveImpl {
 
     @Override
     // timeout is only needed the HTTP long polling.
-    protected synchronized void post(byte[] payload, int timeout) throws IOException, GeneralSecurityException {
+    protected void post(byte[] payload, int timeout) throws IOException, GeneralSecurityException {
         post(payload);
     }
 
     @Override
-    protected synchronized void post(byte[] payload) throws IOException, GeneralSecurityException {
+    protected void post(byte[] payload) throws IOException, GeneralSecurityException {
+
+        postAcceptBytes();
+
+        // Not synchronized so that concurrent sends can be in flight at the
+        // same time, up to the limit set by MqttSecureConnectionImpl.
+        post(this.publishMessagesTopic, payload, this.subscribeMessagesTopic);
+
+    }
+
+    // Tell the server how many bytes are available in the request buffer,
+    // if that has changed since the last post.
+    private synchronized void postAcceptBytes() throws IOException, GeneralSecurityException {
 
         final int requestBufferSize = getRequestBufferSize();
         final int usedBytes = getUsedBytes();
@@ -100,8 +114,6 @@ public final class MqttSendReceiveImpl extends SendReceiveImpl {
             final byte[] acceptBytes = toBytes(avaliableBytes);
             post(this.publishMessagesAcceptBytesTopic, acceptBytes, null);
         }
-        post(this.publishMessagesTopic, payload, this.subscribeMessagesTopic);
-
     }
 
     private boolean post(String topic, byte[] payload, String expect)
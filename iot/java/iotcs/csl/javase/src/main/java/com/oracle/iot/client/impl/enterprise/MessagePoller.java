@@ -1,5 +1,5 @@
 /*
- * Copyright (c) 2015, 2016, Oracle and/or its affiliates.  All rights reserved.
+ * Copyright (c) 2015, 2018, Oracle and/or its affiliates.  All rights reserved.
  *
  * This software is dual-licensed to you under the MIT License (MIT) and 
  * the Universal Permissive License (UPL).  See the LICENSE file in the root
@@ -18,8 +18,14 @@ import java.io.IOException;
 import java.security.GeneralSecurityException;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -36,10 +42,23 @@ import java.util.logging.Logger;
  *     This can be configured with the
  *     {@code com.oracle.iot.client.enterprise.message_polling_limit} property.
  *     The value for this property is clamped between 10 and 200, inclusive.
+ * </p><p>
+ *     Each listener is polled on its own schedule, by a pool of
+ *     {@code com.oracle.iot.client.enterprise.message_polling_threads}
+ *     threads (default 4), and its listener is notified on another thread.
+ *     While a listener processes a page of messages, the next
+ *     {@code com.oracle.iot.client.enterprise.message_prefetch_pages}
+ *     pages (default 1) are fetched, so a slow listener holds back only
+ *     its own messages.
+ * </p><p>
+ *     The ids of the messages given to a listener are kept for
+ *     {@code com.oracle.iot.client.enterprise.message_dedupe_window}
+ *     milliseconds (default 60000) of received time, so that a message
+ *     the server returns again is not given to the listener twice.
  *</p>
  *
  */
-public final class MessagePoller implements Runnable {
+public final class MessagePoller {
     private static final int DEFAULT_POLL_INTERVAL = 3000;
     private static final int MIN_PAGE_SIZE = 10;
     private static final int MAX_PAGE_SIZE = 200;
@@ -54,6 +73,21 @@ public final class MessagePoller implements Runnable {
      */
     private static final int limit;
 
+    /**
+     * number of threads polling for messages, and notifying listeners
+     */
+    private static final int pollingThreads;
+
+    /**
+     * pages fetched ahead of the listener
+     */
+    private static final int prefetchPages;
+
+    /**
+     * how long, in received time, ids are kept to detect duplicates
+     */
+    private static final long dedupeWindow;
+
     static {
         Integer val = Integer.getInteger(
             "com.oracle.iot.client.enterprise.message_polling_interval");
@@ -65,12 +99,26 @@ public final class MessagePoller implements Runnable {
         limit = (val != null)
                 ? Math.min(MAX_PAGE_SIZE, Math.max(MIN_PAGE_SIZE, val))
                 : MIN_PAGE_SIZE;
+
+        val = Integer.getInteger(
+                "com.oracle.iot.client.enterprise.message_polling_threads");
+        pollingThreads = ((val != null) && (val > 0))? val : 4;
+
+        val = Integer.getInteger(
+                "com.oracle.iot.client.enterprise.message_prefetch_pages");
+        prefetchPages = ((val != null) && (val >= 0))? val : 1;
+
+        Long window = Long.getLong(
+                "com.oracle.iot.client.enterprise.message_dedupe_window");
+        dedupeWindow = ((window != null) && (window >= 0))? window : 60000L;
     }
 
     private static final HashMap<String, RestParameters> listeners =
         new HashMap<String, RestParameters>(10);
 
-    private static boolean running = false;
+    // Created with the first listener. Guarded by listeners.
+    private static ScheduledThreadPoolExecutor scheduler;
+    private static NotifierExecutor notifier;
 
     /**
      * Allows to set an listener that gets notified when a message is received
@@ -126,19 +174,29 @@ public final class MessagePoller implements Runnable {
         rp.since = getStartTime(rp);
 
         synchronized (listeners) {
-            if (!running) {
-
-                running = true;
-                Thread t = new Thread(new MessagePoller());
+            if (listeners.containsKey(deviceId)) {
+                throw new IllegalStateException(
+                    "Already listening for device " + deviceId);
+            }
 
-                // Allow the VM to exit if this thread is still running
-                t.setDaemon(true);
-                t.start();
+            if (scheduler == null) {
+                scheduler = new ScheduledThreadPoolExecutor(pollingThreads,
+                        new Monitor.NotifierThreadFactory("message-poller"));
+                // Let the threads go when there are no listeners
+                scheduler.setKeepAliveTime(60L, TimeUnit.SECONDS);
+                scheduler.allowCoreThreadTimeOut(true);
+                // There are never more pages queued for a listener than
+                // prefetchPages, so the queue does not overflow.
+                notifier = new NotifierExecutor(pollingThreads,
+                        prefetchPages + 1,
+                        NotifierExecutor.OverflowPolicy.BLOCK,
+                        "message-listener");
             }
-        }
 
-        synchronized (listeners) {
+            rp.scheduler = scheduler;
+            rp.notifier = notifier;
             listeners.put(deviceId, rp);
+            rp.schedule(0);
         }
     }
 
@@ -149,7 +207,10 @@ public final class MessagePoller implements Runnable {
      */
     private static void removeListener(String deviceId) {
         synchronized (listeners) {
-            listeners.remove(deviceId);
+            final RestParameters rp = listeners.remove(deviceId);
+            if (rp != null) {
+                rp.cancel();
+            }
         }
     }
 
@@ -214,119 +275,63 @@ public final class MessagePoller implements Runnable {
     private MessagePoller() {
     }
 
-    public void run() {
-        poll();
-    }
+    /**
+     * Get the next page of messages for a listener and hand the new
+     * messages to the listener's notifier.
+     *
+     * @param rp REST parameters
+     * @return the delay before polling again, in milliseconds
+     *
+     * @throws IOException if request for messages failed
+     * @throws GeneralSecurityException when key or signature algorithm class
+     *                                  cannot be loaded, or the key is not in
+     *                                  the trusted assets store, or the
+     *                                  private key is invalid
+     */
+    private static long poll(final RestParameters rp, NotifierExecutor notifier)
+            throws IOException, GeneralSecurityException {
+
+        // get a page on messages matching with parameters
+        Pageable<Message> messages = poll(rp);
+        if (!messages.hasMore()) {
+            return pollInterval;
+        }
 
-    private static void poll() {
-        boolean sleep;
+        // get next messages available (REST call)
+        messages = messages.next();
 
-        while (running) {
-            ArrayList<RestParameters> list = null;
-            synchronized (listeners) {
-                sleep = true;
-                list = new ArrayList<RestParameters>(listeners.values());
-            }
+        /*
+         * There should be at least one duplicate message because we used
+         * the since from the last message received and it is inclusive.
+         */
+        final List<Message> elements = rp.removeDuplicates(messages.elements());
+
+        if (elements.isEmpty()) {
             /*
-             * loop on all REST request parameters to poll for all
-             * messages expected by listeners
+             * There are no more messages for the time of last message
+             * given to the listener, so next time we can just use
+             * since + 1 and not process the message list.
              */
-            for (RestParameters rp: list) {
-                try {
-                        // get a page on messages matching with parameters
-                        Pageable<Message> messages = poll(rp);
-
-                        if (messages.hasMore()) {
-                            // get next messages available (REST call)
-                            messages = messages.next();
-                            List<Message> elements =
-                                (List<Message>)messages.elements();
-                            int size = elements.size();
-                            if (size > 0 && rp.lastMsgId != null) {
-                                /*
-                                 * There should be at least one duplicate
-                                 * message because we used the since from
-                                 * the last message received and it is
-                                 * inclusive.
-                                 *
-                                 * Find the message we last gave the listener,
-                                 * and remove that message and the ones
-                                 * before it. If for some reason we don't
-                                 * find the message, do not remove any messages.
-                                 */
-                                int i = 0;
-                                for (; i < size; i++) {
-                                    Message m = elements.get(i);
-                                    if (m.getId().equals(rp.lastMsgId)) {
-                                        break;
-                                    }
-
-                                    if (m.getReceivedTime() > rp.since) {
-                                        i = size;
-                                        break;
-                                    }
-                                }
-
-                                if (i < size) {
-                                    for (; i >= 0; i--) {
-                                        elements.remove(0);
-                                    }
-                                }
-
-                                size = elements.size();
-                            }
-
-                            if (size == 0) {
-                                /*
-                                 * There are no more messages for the time
-                                 * of last message given to the
-                                 * listener, so next time we can just use
-                                 * since + 1 and not process the message list.
-                                 */
-                                rp.lastMsgId = null;
-                                rp.since += 1;
-                                continue;
-                            }
-
-                            // notify listeners with messages received
-                            rp.listener.notify(elements);
-
-                            /*
-                             * get time of last message received and use it as
-                             * basis for next REST call
-                             */
-                            Message last = elements.get(elements.size() - 1);
-                            rp.lastMsgId = last.getId();
-                            rp.since = last.getReceivedTime();
-
-                            /*
-                             * if at least one page has more elements,
-                             * no need to sleep
-                             */
-                            if (messages.hasMore()) {
-                                sleep = false;
-                            }
-                        }
-                    } catch (Exception ignored) {
-                        getLogger().log(Level.SEVERE, ignored.toString(), ignored);
-                    }
-            }
+            rp.since += 1;
+        } else {
+            /*
+             * get time of last message received and use it as
+             * basis for next REST call
+             */
+            Message last = elements.get(elements.size() - 1);
+            rp.since = last.getReceivedTime();
 
-            try {
-                if (sleep) {
-                    synchronized (listeners) {
-                        listeners.wait(pollInterval);
-                    }
-                }
-            } catch (InterruptedException e) {
-                synchronized (listeners) {
-                    running = false;
-                }
-            }
+            // notify listeners with messages received
+            rp.deliver(notifier, elements);
         }
+
+        /*
+         * if the page has more elements, no need to wait
+         */
+        return messages.hasMore() ? 0 : pollInterval;
     }
 
-    private static class RestParameters {
+    private static class RestParameters implements Runnable {
 
         // REST request immutable parameters
         final String appID;
@@ -337,11 +342,28 @@ public final class MessagePoller implements Runnable {
 
         // Used to iterate over messages: starting time for next messages to to receive
         long since;
-        String lastMsgId;
+
+        // The ids of the messages given to the listener, with their
+        // received time, oldest first.
+        private final LinkedHashMap<String, Long> recentIds =
+                new LinkedHashMap<String, Long>();
 
         // Last set of messages received (null if no messages received yet)
         Pageable<Message> messages;
 
+        // Set before the first poll is scheduled.
+        ScheduledThreadPoolExecutor scheduler;
+        NotifierExecutor notifier;
+
+        // The polls of a listener never overlap. These are guarded by this.
+        private ScheduledFuture<?> future;
+        private boolean cancelled;
+        // The pages given to the notifier and not yet done.
+        private int pendingPages;
+        // The delay of a poll that waits for the listener to catch up,
+        // or -1 if no poll is waiting.
+        private long deferredDelay = -1;
+
         RestParameters(String appID,
                        HttpSecureConnection secureConnection,
                        String deviceID,
@@ -355,6 +377,103 @@ public final class MessagePoller implements Runnable {
 
             // start with no messages
         }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                if (cancelled) {
+                    return;
+                }
+                future = null;
+            }
+
+            long delay;
+            try {
+                delay = poll(this, notifier);
+            } catch (Exception e) {
+                getLogger().log(Level.SEVERE, e.toString(), e);
+                delay = pollInterval;
+            }
+
+            synchronized (this) {
+                if (pendingPages > prefetchPages) {
+                    // Wait for the listener to catch up
+                    deferredDelay = delay;
+                } else {
+                    schedule(delay);
+                }
+            }
+        }
+
+        synchronized void schedule(long delay) {
+            if (!cancelled) {
+                future = scheduler.schedule(this, delay, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        synchronized void cancel() {
+            cancelled = true;
+            if (future != null) {
+                future.cancel(false);
+                future = null;
+            }
+        }
+
+        /*
+         * Return the messages the listener has not been given, and
+         * remember their ids. Forget the ids that are too old to come back.
+         */
+        List<Message> removeDuplicates(Collection<Message> elements) {
+            final List<Message> fresh = new ArrayList<Message>(elements.size());
+            for (Message message : elements) {
+                final String id = message.getId();
+                if (id != null) {
+                    if (recentIds.containsKey(id)) {
+                        continue;
+                    }
+                    recentIds.put(id, message.getReceivedTime());
+                }
+                fresh.add(message);
+            }
+
+            final long horizon = since - dedupeWindow;
+            final Iterator<Long> receivedTimes = recentIds.values().iterator();
+            while (receivedTimes.hasNext()) {
+                final Long receivedTime = receivedTimes.next();
+                if (receivedTime != null && receivedTime >= horizon) {
+                    break;
+                }
+                receivedTimes.remove();
+            }
+            return fresh;
+        }
+
+        void deliver(NotifierExecutor notifier, final List<Message> elements) {
+            synchronized (this) {
+                pendingPages += 1;
+            }
+            notifier.execute(this, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        listener.notify(elements);
+                    } catch (RuntimeException e) {
+                        getLogger().log(Level.SEVERE, e.toString(), e);
+                    } finally {
+                        delivered();
+                    }
+                }
+            });
+        }
+
+        private synchronized void delivered() {
+            pendingPages -= 1;
+            if (deferredDelay >= 0 && pendingPages <= prefetchPages) {
+                final long delay = deferredDelay;
+                deferredDelay = -1;
+                schedule(delay);
+            }
+        }
     }
 
     private static final Logger LOGGER = Logger.getLogger("oracle.iot.client");
@@ -1,5 +1,5 @@
 /*
- * Copyright (c) 2015, 2017, Oracle and/or its affiliates.  All rights reserved.
+ * Copyright (c) 2015, 2018, Oracle and/or its affiliates.  All rights reserved.
  *
  * This software is dual-licensed to you under the MIT License (MIT) and 
  * the Universal Permissive License (UPL).  See the LICENSE file in the root
@@ -31,12 +31,15 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
@@ -45,8 +48,14 @@ import java.util.logging.Logger;
 /**
  * Monitor monitors data messages for started devices and processes
  * messages by calling the virtualDevice notify handlers.
+ * <p>
+ * The devices of each application are polled with one bulk data request,
+ * on a schedule of their own, by a small pool of threads. So a slow or
+ * busy application does not delay the others. The time between polls of
+ * an application is halved, down to a minimum, when a poll returns data,
+ * and doubled, up to a maximum, when it does not.
  */
-class Monitor implements Runnable {
+class Monitor {
 
     interface NotifyHandler {
         void notifyOnChange(VirtualDeviceImpl virtualDevice,
@@ -83,21 +92,39 @@ class Monitor implements Runnable {
 
     private static Monitor monitor;
     private volatile boolean running;
-    private AtomicLong lastUntil = new AtomicLong();
-    // Devices can have more than one model per endpoint. Add 
-    // device to the list as a MonitoredDevice, which associates
-    // a device and a handler.
-    private final List<MonitoredDevice> monitoredDeviceList;
 
-    // Map devices by appid.
+    // Map devices by appid. Devices can have more than one model per
+    // endpoint. Add device to the list as a MonitoredDevice, which
+    // associates a device and a handler.
     private final Map<String, List<MonitoredDevice>> appDeviceMap;
 
+    // The poller of each application. Guarded by MONITOR_LOCK.
+    private final Map<String, AppPoller> appPollers;
+
     private static final String MONITOR_POLLING_INTERVAL =
             "oracle.iot.client.enterprise.monitor_polling_interval";
 
     // Delay polling for messages in milliseconds, default 3 seconds
     private final int pollingInterval;
 
+    private static final String MONITOR_MIN_POLLING_INTERVAL =
+            "oracle.iot.client.enterprise.monitor_min_polling_interval";
+
+    // The shortest delay, while data is flowing; default pollingInterval / 4
+    private final int minPollingInterval;
+
+    private static final String MONITOR_MAX_POLLING_INTERVAL =
+            "oracle.iot.client.enterprise.monitor_max_polling_interval";
+
+    // The longest delay, while there is no data; default pollingInterval * 4
+    private final int maxPollingInterval;
+
+    private static final String MONITOR_POOL_SIZE =
+            "oracle.iot.client.enterprise.monitor_pool_size";
+
+    // The threads that poll the applications, default 4
+    private final ScheduledExecutorService scheduler;
+
     private static final String MONITOR_MAX_FORMATS =
             "oracle.iot.client.enterprise.monitor_max_formats";
 
@@ -106,14 +133,26 @@ class Monitor implements Runnable {
 
     private Monitor() {
         this.appDeviceMap = new HashMap<String, List<MonitoredDevice>>();
-        this.monitoredDeviceList = new ArrayList<MonitoredDevice>();
+        this.appPollers = new HashMap<String, AppPoller>();
         // this is deliberate to avoid autoboxing
         Integer val = Integer.getInteger(MONITOR_POLLING_INTERVAL);
         this.pollingInterval = (val != null && val.intValue() > 0 ?
                 val.intValue() : 3000);
+        val = Integer.getInteger(MONITOR_MIN_POLLING_INTERVAL);
+        this.minPollingInterval = (val != null && val.intValue() > 0 ?
+                Math.min(val.intValue(), pollingInterval) :
+                Math.max(pollingInterval / 4, 1));
+        val = Integer.getInteger(MONITOR_MAX_POLLING_INTERVAL);
+        this.maxPollingInterval = (val != null && val.intValue() > 0 ?
+                Math.max(val.intValue(), pollingInterval) :
+                pollingInterval * 4);
         val = Integer.getInteger(MONITOR_MAX_FORMATS);
         this.maxFormats = (val != null && val.intValue() > 0 ?
                 val.intValue() : 10);
+        val = Integer.getInteger(MONITOR_POOL_SIZE);
+        this.scheduler = Executors.newScheduledThreadPool(
+                (val != null && val.intValue() > 0 ? val.intValue() : 4),
+                new NotifierThreadFactory("monitor"));
     }
 
     /**
@@ -141,20 +180,22 @@ class Monitor implements Runnable {
                 "The handler argument cannot be null");
         }
 
+        final String appid = virtualDevice.getEnterpriseClient()
+            .getApplication().getId();
+        final MonitoredDevice monitoredDevice =
+                new MonitoredDevice(virtualDevice, handler);
+        final Monitor instance;
+        final AppPoller poller;
         synchronized(MONITOR_LOCK) {
             if (monitor == null) {
                 monitor = new Monitor();
                 monitor.running = true;
-
-                Thread monitorThread = new Thread(monitor);
-                // Allow the VM to exit if this thread is still running
-                monitorThread.setDaemon(true);
-                monitorThread.start();
+                getLogger().log(Level.FINEST, "Starting Monitor");
             }
+            instance = monitor;
+            poller = instance.getPoller(appid);
         }
 
-        final String appid = virtualDevice.getEnterpriseClient()
-            .getApplication().getId();
         try {
             // Get all the last known values for the device before putting
             // it in the polling queue.
@@ -162,7 +203,7 @@ class Monitor implements Runnable {
                 virtualDevice.getEndpointId() + " model " +
                 virtualDevice.getDeviceModel().getURN());
 
-            monitor.processInitialBulkData(appid, virtualDevice, handler);
+            instance.processInitialBulkData(poller, monitoredDevice);
 
         } catch (IOException ioe) {
             getLogger().log(Level.SEVERE, "Cannot get attributes for virtual " +
@@ -182,21 +223,39 @@ class Monitor implements Runnable {
 
 
         synchronized(MONITOR_LOCK) {
+            if (!instance.running) {
+                // The monitor was stopped while getting the initial values
+                return;
+            }
+
             List<MonitoredDevice> appdevices =
-                monitor.appDeviceMap.get(appid);
+                instance.appDeviceMap.get(appid);
             if (appdevices == null) {
                 appdevices = new ArrayList<MonitoredDevice>();
-                monitor.appDeviceMap.put(appid, appdevices);
+                instance.appDeviceMap.put(appid, appdevices);
             }
 
-            MonitoredDevice monitoredDevice =
-                    new MonitoredDevice(virtualDevice, handler);
-
             appdevices.add(monitoredDevice);
-            monitor.monitoredDeviceList.add(monitoredDevice);
+
+            // The poller may have been removed while getting the initial
+            // values, in which case a new poller starts from 'since' zero.
+            final AppPoller appPoller = instance.getPoller(appid);
+            appPoller.devicesChanged();
+            appPoller.start();
         }
     }
 
+    // Get the poller for an application, creating it if need be. The
+    // poller is not scheduled until it is started. Call with MONITOR_LOCK.
+    private AppPoller getPoller(String appid) {
+        AppPoller poller = appPollers.get(appid);
+        if (poller == null) {
+            poller = new AppPoller(appid);
+            appPollers.put(appid, poller);
+        }
+        return poller;
+    }
+
     /**
      * Stop servicing the devices of a given enterprise client. If this
      * is the last client then stop the monitor.
@@ -209,18 +268,17 @@ class Monitor implements Runnable {
                 return;
             }
 
+            final AppPoller poller = monitor.appPollers.remove(appId);
+            if (poller != null) {
+                poller.cancel();
+            }
+
             List<MonitoredDevice> appdevices =
-                monitor.appDeviceMap.get(appId);
+                monitor.appDeviceMap.remove(appId);
             if (appdevices == null) {
                 return;
             }
 
-            for (MonitoredDevice device: appdevices) {
-                monitor.monitoredDeviceList.remove(device);
-            }
-
-            monitor.appDeviceMap.remove(appId);
-
             if (monitor.appDeviceMap.isEmpty()) {
                 stop();
             }
@@ -232,6 +290,8 @@ class Monitor implements Runnable {
             if (monitor != null) {
                 getLogger().log(Level.FINEST, "Stopping Monitor");
                 monitor.running = false;
+                monitor.appPollers.clear();
+                monitor.scheduler.shutdownNow();
                 monitor = null;
             }
         }
@@ -284,118 +344,199 @@ class Monitor implements Runnable {
     }
 
     /**
-     * The polling message loop.
-     * For each device make one request to get messages.
-     * This will return at most 10 messages.
-     * Messages are received in descending order.
+     * Polls the devices of one application. A poller schedules itself
+     * again after each poll, so the polls of an application never overlap.
      */
-    public void run() {
-        getLogger().log(Level.FINEST, "Starting Monitor");
-        while(running) {
+    private final class AppPoller implements Runnable {
 
-            Map<String,VirtualDeviceImpl[]> monitorMap =
-                    new HashMap<String, VirtualDeviceImpl[]>(appDeviceMap.size());
+        private final String appid;
 
-            synchronized(MONITOR_LOCK) {
+        // The "until" of the last bulk data response for this application.
+        private final AtomicLong lastUntil = new AtomicLong();
 
-                Set<Map.Entry<String,List<MonitoredDevice>>> entrySet = appDeviceMap.entrySet();
-                for (Map.Entry<String,List<MonitoredDevice>> entry : entrySet) {
+        // Only used by the thread that runs the poll.
+        private long interval = pollingInterval;
 
-                    final String appid = entry.getKey();
-                    final List<MonitoredDevice> monitoredDevices = entry.getValue();
+        // Incremented when a device is added or removed. Guarded by
+        // MONITOR_LOCK.
+        private int devicesVersion;
 
-                    if (monitoredDevices == null || monitoredDevices.isEmpty()) {
-                        continue;
-                    }
+        // The request payload, the connection, and the devices by
+        // endpoint id, for the devices as of payloadVersion. Only used by
+        // the thread that runs the poll.
+        private int payloadVersion = -1;
+        private byte[] payload;
+        private HttpSecureConnection secureConnection;
+        private Map<String, List<MonitoredDevice>> devicesByEndpoint;
 
-                    final List<VirtualDeviceImpl> virtualDevices =
-                            new ArrayList<VirtualDeviceImpl>(monitoredDevices.size());
-
-                    Iterator<MonitoredDevice> iterator = monitoredDevices.iterator();
-                    while (iterator.hasNext()) {
-                        MonitoredDevice md = iterator.next();
-                        WeakReference<VirtualDeviceImpl> ref = md.deviceRef;
-                        VirtualDeviceImpl vd = ref.get();
-                        if (vd == null) {
-                            iterator.remove();
-                            continue;
-                        }
-                        virtualDevices.add(vd);
-                    }
+        // Guarded by MONITOR_LOCK. Null until the poller is started,
+        // and after it is cancelled.
+        private ScheduledFuture<?> future;
+        private boolean cancelled;
 
-                    if (!virtualDevices.isEmpty()) {
-                        monitorMap.put(
-                                appid,
-                                virtualDevices.toArray(new VirtualDeviceImpl[virtualDevices.size()])
-                        );
-                    }
+        private AppPoller(String appid) {
+            this.appid = appid;
+        }
+
+        // Call with MONITOR_LOCK.
+        private void start() {
+            if (future == null && !cancelled) {
+                schedule(interval);
+            }
+        }
+
+        // Call with MONITOR_LOCK.
+        private void devicesChanged() {
+            devicesVersion += 1;
+        }
+
+        // Call with MONITOR_LOCK.
+        private void cancel() {
+            cancelled = true;
+            if (future != null) {
+                future.cancel(false);
+                future = null;
+            }
+        }
+
+        // Call with MONITOR_LOCK.
+        private void schedule(long delay) {
+            if (running && !cancelled) {
+                future = scheduler.schedule(this, delay, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        @Override
+        public void run() {
+            boolean dataReceived = false;
+            try {
+                dataReceived = poll(this);
+            } catch (RuntimeException e) {
+                getLogger().log(Level.WARNING,
+                        "Exception polling application " + appid, e);
+            }
+
+            interval = dataReceived
+                    ? Math.max(minPollingInterval, interval / 2)
+                    : Math.min(maxPollingInterval, interval * 2);
+
+            synchronized (MONITOR_LOCK) {
+                schedule(interval);
+            }
+        }
+    }
+
+    /**
+     * Make one bulk data request for the devices of an application.
+     * This will return at most maxFormats messages per format.
+     * @return true if the response had data for any of the devices
+     */
+    private boolean poll(AppPoller poller) {
+
+        final String appid = poller.appid;
+        List<MonitoredDevice> changedDevices = null;
+        int version;
+
+        synchronized(MONITOR_LOCK) {
+
+            final List<MonitoredDevice> monitoredDevices =
+                    appDeviceMap.get(appid);
+            if (monitoredDevices == null || monitoredDevices.isEmpty()) {
+                return false;
+            }
+
+            Iterator<MonitoredDevice> iterator = monitoredDevices.iterator();
+            while (iterator.hasNext()) {
+                MonitoredDevice md = iterator.next();
+                if (md.deviceRef.get() == null) {
+                    iterator.remove();
+                    poller.devicesChanged();
                 }
             }
 
-            // This loop is outside of MONITOR_LOCK!
-            Set<Map.Entry<String,VirtualDeviceImpl[]>> entrySet = monitorMap.entrySet();
-            for (Map.Entry<String,VirtualDeviceImpl[]> entry : entrySet) {
+            version = poller.devicesVersion;
+            if (version != poller.payloadVersion) {
+                changedDevices = new ArrayList<MonitoredDevice>(monitoredDevices);
+            }
+        }
 
-                String appid = entry.getKey();
-                VirtualDeviceImpl[] devices = entry.getValue();
-                VirtualDeviceImpl virtualDevice = devices[0];
+        // This is outside of MONITOR_LOCK!
 
-                // Get the necessary information from the first device in the
-                // list. It will be "good" for all devices in this list.
-                final HttpSecureConnection secureConnection =
-                        virtualDevice.getSecureConnection();
-                if (secureConnection.isClosed()) {
-                    ecClosed(appid);
+        if (changedDevices != null) {
+            // The set of devices has changed, so build the payload again.
+            final List<VirtualDeviceImpl> virtualDevices =
+                    new ArrayList<VirtualDeviceImpl>(changedDevices.size());
+            final Map<String, List<MonitoredDevice>> devicesByEndpoint =
+                    new HashMap<String, List<MonitoredDevice>>();
+            for (MonitoredDevice md : changedDevices) {
+                final VirtualDeviceImpl vd = md.deviceRef.get();
+                if (vd == null) {
                     continue;
                 }
+                virtualDevices.add(vd);
+                List<MonitoredDevice> devices =
+                        devicesByEndpoint.get(vd.getEndpointId());
+                if (devices == null) {
+                    devices = new ArrayList<MonitoredDevice>(1);
+                    devicesByEndpoint.put(vd.getEndpointId(), devices);
+                }
+                devices.add(md);
+            }
 
-                final byte[] payload = bulkDataPayload(devices);
-                if (payload != null) {
-                    String resource = String.format(BULKDATA_RESOURCE_FORMAT,
-                                                    appid, maxFormats);
+            if (virtualDevices.isEmpty()) {
+                return false;
+            }
 
-                    final long since = lastUntil.get();
-                    if (since != 0) {
-                        // Need '&' because always sending '?formatLimit'
-                        resource = resource.concat("&since=")
-                            .concat(Long.toString(since));
-                    }
-                    try {
-                        final JSONObject jsonAttributes = request(
-                            secureConnection, "POST", resource,
-                            payload);
-                        // If jsonAttributes is null the request most
-                        // likely failed and logged a message.
-                        if (jsonAttributes != null) {
-                            processBulkData(jsonAttributes);
-                        }
-                    }catch (UserAuthenticationException ue){
-                        getLogger().log(Level.FINEST,
-                            "Session Expired, User Authentication Exception thrown", ue);
-                        entrySet.remove(entry);
-                        throw new RuntimeException(ue);
-                    } catch (Exception e) {
-                        // exception may be because EC closed
-                        if (secureConnection.isClosed()) {
-                            ecClosed(appid);
-                        } else {
-                            getLogger().log(Level.WARNING,
-                                    "Exception processing bulk json data", e);
-                        }
-                    }
-                }
+            poller.payload = bulkDataPayload(virtualDevices.toArray());
+            if (poller.payload == null) {
+                return false;
+            }
+            // Get the necessary information from the first device in the
+            // list. It will be "good" for all devices in this list.
+            poller.secureConnection = virtualDevices.get(0).getSecureConnection();
+            poller.devicesByEndpoint = devicesByEndpoint;
+            poller.payloadVersion = version;
+        }
 
-                try {
-                    Thread.sleep(pollingInterval);
-                } catch (InterruptedException e) {
-                    getLogger().log(Level.SEVERE,
-                        "Stopping monitor due to exception.", e);
-                    running = false;
-                    Thread.currentThread().interrupt();
-                }
+        final HttpSecureConnection secureConnection = poller.secureConnection;
+        if (secureConnection.isClosed()) {
+            ecClosed(appid);
+            return false;
+        }
+
+        String resource = String.format(BULKDATA_RESOURCE_FORMAT,
+                                        appid, maxFormats);
+
+        final long since = poller.lastUntil.get();
+        if (since != 0) {
+            // Need '&' because always sending '?formatLimit'
+            resource = resource.concat("&since=")
+                .concat(Long.toString(since));
+        }
+        try {
+            final JSONObject jsonAttributes = request(
+                secureConnection, "POST", resource,
+                poller.payload);
+            // If jsonAttributes is null the request most
+            // likely failed and logged a message.
+            if (jsonAttributes != null) {
+                return processBulkData(poller, jsonAttributes);
+            }
+        } catch (UserAuthenticationException ue) {
+            getLogger().log(Level.FINEST,
+                "Session Expired, User Authentication Exception thrown", ue);
+            // Stop polling this application until a device is monitored again
+            ecClosed(appid);
+        } catch (Exception e) {
+            // exception may be because EC closed
+            if (secureConnection.isClosed()) {
+                ecClosed(appid);
+            } else {
+                getLogger().log(Level.WARNING,
+                        "Exception processing bulk json data", e);
             }
         }
-        getLogger().log(Level.FINEST, "Monitor ending");
+        return false;
     }
 
     /**
@@ -481,75 +622,61 @@ class Monitor implements Runnable {
      * </pre>
      * @param jsonData the json formatted bulk data
      */
-    // Iterate over the list of known devices and pull data from
-    // the response.
-    private void processBulkData(JSONObject jsonData) {
+    // Iterate over the devices in the response and pull data for the
+    // devices that were polled.
+    private boolean processBulkData(AppPoller poller, JSONObject jsonData) {
         Object until = jsonData.opt("until");
         if (until == null) {
             getLogger().log(Level.FINEST, "Monitor: until data in response");
         } else {
-            lastUntil.set(((Number)until).longValue());
+            poller.lastUntil.set(((Number)until).longValue());
         }
 
         JSONObject jsonDevices = jsonData.optJSONObject("data");
-        if (jsonDevices == null) {
+        if (jsonDevices == null || jsonDevices.length() == 0) {
             getLogger().log(Level.FINEST, "Monitor: no bulk data in response");
-            return;
+            return false;
         }
 
-        // Create separate list of MonitoredDevices so we don't hold
-        // MONITOR_LOCK while processing model data.
-        List<MonitoredDevice> monitoredDevices =
-                new ArrayList<MonitoredDevice>(monitoredDeviceList.size());
+        Iterator<String> endpoints = jsonDevices.keys();
+        while (endpoints.hasNext()) {
 
-        synchronized(MONITOR_LOCK) {
+            String endpoint = endpoints.next();
+            List<MonitoredDevice> devices =
+                    poller.devicesByEndpoint.get(endpoint);
+            JSONObject jsonDevice = jsonDevices.optJSONObject(endpoint);
+            if (devices == null || jsonDevice == null) {
+                // no device for this data
+                continue;
+            }
 
-            Iterator<MonitoredDevice> iterator = monitoredDeviceList.iterator();
-            while (iterator.hasNext()) {
-                MonitoredDevice md = iterator.next();
+            for (int n = 0, nMax = devices.size(); n < nMax; n++) {
+
+                MonitoredDevice md = devices.get(n);
 
-                WeakReference<VirtualDeviceImpl> ref = md.deviceRef;
-                VirtualDeviceImpl vd = ref.get();
+                // it is possible the VirtualDeviceImpl has been GC'd
+                VirtualDeviceImpl vd = md.deviceRef.get();
                 if (vd == null) {
-                    iterator.remove();
                     continue;
                 }
 
-                monitoredDevices.add(md);
-            }
-        }
-
-        for (MonitoredDevice md : monitoredDevices) {
-
-            // it is possible the VirtualDeviceImpl has been GC'd
-            WeakReference<VirtualDeviceImpl> ref = md.deviceRef;
-            VirtualDeviceImpl vd = ref.get();
-            if (vd == null) {
-                continue;
-            }
-
-            NotifyHandler handler = md.handler;
-            if (handler == null) {
-                // do nothing, no handler for this device.
-                continue;
-            }
+                if (md.handler == null) {
+                    // do nothing, no handler for this device.
+                    continue;
+                }
 
-            String endpoint = vd.getEndpointId();
-            JSONObject jsonDevice = jsonDevices.optJSONObject(endpoint);
-            if (jsonDevice == null) {
-                // no data for this device
-                continue;
-            }
-            String model = vd.getDeviceModel().getURN();
-            JSONObject jsonModel = jsonDevice.optJSONObject(model);
-            if (jsonModel != null) {
-                processModelData(vd, jsonModel, handler);
-            } else {
-                getLogger().log(Level.WARNING, "Monitor: virtual device " + endpoint +
-                            " does not implement model " + model);
+                String model = vd.getDeviceModel().getURN();
+                JSONObject jsonModel = jsonDevice.optJSONObject(model);
+                if (jsonModel != null) {
+                    processModelData(vd, jsonModel, md);
+                } else {
+                    getLogger().log(Level.WARNING, "Monitor: virtual device " + endpoint +
+                                " does not implement model " + model);
+                }
             }
         }
 
+        return true;
     }
 
     // TODO: Remove when each alert is dispatched when discovered
@@ -676,8 +803,9 @@ class Monitor implements Runnable {
             new CustomMessage[customMessages.size()]);
     }
 
-    private final Executor executor =
-            Executors.newCachedThreadPool(new NotifierThreadFactory());
+    // Runs the notifications of each device in order, on a bounded
+    // number of threads.
+    private final NotifierExecutor executor = new NotifierExecutor();
 
     static class NotifierThreadFactory implements ThreadFactory {
         private static final AtomicInteger poolNumber = new AtomicInteger(1);
@@ -686,10 +814,14 @@ class Monitor implements Runnable {
         private final String namePrefix;
 
         NotifierThreadFactory() {
+            this("notifier");
+        }
+
+        NotifierThreadFactory(String name) {
             SecurityManager s = System.getSecurityManager();
             group = (s != null) ? s.getThreadGroup() :
                     Thread.currentThread().getThreadGroup();
-            namePrefix = "notifier-" +
+            namePrefix = name + "-" +
                     poolNumber.getAndIncrement() +
                     "-thread-";
         }
@@ -706,14 +838,16 @@ class Monitor implements Runnable {
             return t;
         }
     }
-    private static class OnChangeNotifier implements Runnable {
+    private static class OnChangeNotifier
+            implements Runnable, NotifierExecutor.Mergeable {
         private final NotifyHandler handler;
         private final VirtualDeviceImpl virtualDevice;
-        private final VirtualDeviceAttributeImpl[] attributes;
+        // Replaced by merge, which is only called before the notifier runs.
+        private VirtualDeviceAttributeImpl<?>[] attributes;
 
         private OnChangeNotifier(NotifyHandler handler,
                                  VirtualDeviceImpl virtualDevice,
-                                 VirtualDeviceAttributeImpl[] attributes) {
+                                 VirtualDeviceAttributeImpl<?>[] attributes) {
             this.handler = handler;
             this.virtualDevice = virtualDevice;
             this.attributes = attributes;
@@ -724,6 +858,29 @@ class Monitor implements Runnable {
                 handler.notifyOnChange(virtualDevice, attributes);
             }
         }
+
+        @Override
+        public boolean merge(Runnable later) {
+            if (!(later instanceof OnChangeNotifier)) {
+                return false;
+            }
+            final OnChangeNotifier other = (OnChangeNotifier) later;
+            if (other.handler != handler || other.virtualDevice != virtualDevice) {
+                return false;
+            }
+            // Keep the latest value of each attribute
+            final Map<String, VirtualDeviceAttributeImpl<?>> merged =
+                    new LinkedHashMap<String, VirtualDeviceAttributeImpl<?>>();
+            for (VirtualDeviceAttributeImpl<?> attribute : attributes) {
+                merged.put(attribute.getDeviceModelAttribute().getName(), attribute);
+            }
+            for (VirtualDeviceAttributeImpl<?> attribute : other.attributes) {
+                merged.put(attribute.getDeviceModelAttribute().getName(), attribute);
+            }
+            attributes = merged.values().toArray(
+                    new VirtualDeviceAttributeImpl<?>[merged.size()]);
+            return true;
+        }
     }
 
     private static class OnAlertNotifier implements Runnable {
@@ -781,7 +938,7 @@ class Monitor implements Runnable {
     }
 
     // May return null!
-    private VirtualDeviceAttributeImpl[] deviceAttributesFromJson(
+    private VirtualDeviceAttributeImpl<?>[] deviceAttributesFromJson(
             VirtualDeviceImpl virtualDevice, JSONObject jsonAttributes) {
 
         Iterator<String> keys =
@@ -793,11 +950,11 @@ class Monitor implements Runnable {
 
         final DeviceModelImpl dm =
             (DeviceModelImpl)virtualDevice.getDeviceModel();
-        final ArrayList<VirtualDeviceAttributeImpl> attributes =
-            new ArrayList<VirtualDeviceAttributeImpl>();
+        final ArrayList<VirtualDeviceAttributeImpl<?>> attributes =
+            new ArrayList<VirtualDeviceAttributeImpl<?>>();
         while (keys.hasNext()) {
             String attribute = keys.next();
-            DeviceModelAttribute dma =
+            DeviceModelAttribute<?> dma =
                 dm.getDeviceModelAttributes().get(attribute);
             if (dma == null) {
                 getLogger().log(Level.WARNING, "Remote attribute " + attribute +
@@ -816,7 +973,7 @@ class Monitor implements Runnable {
         }
 
         return attributes.toArray(
-            new VirtualDeviceAttributeImpl[attributes.size()]);
+            new VirtualDeviceAttributeImpl<?>[attributes.size()]);
     }
 
     /**
@@ -826,14 +983,14 @@ class Monitor implements Runnable {
      * json cannot be converted.
      */
     private VirtualDeviceAttributeImpl<?> deviceAttributeFromJson(
-            VirtualDeviceImpl virtualDevice, DeviceModelAttribute dma,
+            VirtualDeviceImpl virtualDevice, DeviceModelAttribute<?> dma,
             JSONObject jsonAttributes) {
         if (dma == null)
             return null;
         try {
             Object value = jsonValueToDMAType(dma.getName(), jsonAttributes,
                 dma.getType(), virtualDevice);
-            return new VirtualDeviceAttributeImpl(virtualDevice, dma, value);
+            return new VirtualDeviceAttributeImpl<Object>(virtualDevice, dma, value);
         } catch (Exception e) {
             getLogger().log(Level.SEVERE,
                     "Cannot create VirtualDeviceAttribute " +
@@ -963,10 +1120,17 @@ class Monitor implements Runnable {
     }
 
 
-    private void processInitialBulkData(String appid,
-            VirtualDeviceImpl virtualDevice, NotifyHandler handler)
+    private void processInitialBulkData(AppPoller poller,
+            MonitoredDevice monitoredDevice)
             throws IOException, GeneralSecurityException {
 
+        final String appid = poller.appid;
+        final VirtualDeviceImpl virtualDevice = monitoredDevice.deviceRef.get();
+        if (virtualDevice == null) {
+            // Cannot happen, the caller holds a reference to the device
+            return;
+        }
+
         // Get the necessary information from the first device in the
         // list. It will be "good" for all devices in this list.
         final HttpSecureConnection secureConnection =
@@ -979,7 +1143,7 @@ class Monitor implements Runnable {
             String resource =
                 String.format(BULKDATA_RESOURCE_FORMAT, appid, 0);
 
-            long since = lastUntil.get();
+            long since = poller.lastUntil.get();
             if (since == 0) {
                 since = TimeManager.currentTimeMillis() - pollingInterval;
             }
@@ -993,7 +1157,8 @@ class Monitor implements Runnable {
             // If jsonAttributes is null the request most
             // likely failed and logged a message.
             if (jsonBulkData != null) {
-                processInitialBulkData(virtualDevice, jsonBulkData, handler);
+                processInitialBulkData(poller.lastUntil, virtualDevice,
+                    jsonBulkData, monitoredDevice);
             } else {
                 throw new IOException("POST " + resource + ": No data for " +
                     virtualDevice.getEndpointId() + " model " +
@@ -1003,15 +1168,21 @@ class Monitor implements Runnable {
     }
 
     private void processModelData(VirtualDeviceImpl vd,
-            JSONObject jsonModel, NotifyHandler handler) {
+            JSONObject jsonModel, MonitoredDevice md) {
+        final NotifyHandler handler = md.handler;
         JSONObject jsonAttributes =
            jsonModel.optJSONObject("attributes");
         // deviceAttributesFromJson may return null!
-        VirtualDeviceAttributeImpl[] attributes =
+        VirtualDeviceAttributeImpl<?>[] attributes =
            deviceAttributesFromJson(vd, jsonAttributes);
-        // TODO: notifier should only be called once for all attributes.
+        // One notification for all of the attributes. The server sends every
+        // attribute of a device that has new data, but notifyOnChange only
+        // updates, and calls back for, the ones that differ from the current
+        // value of the virtual device. It runs on the device's notification
+        // thread, so it compares against the value the previous notification
+        // left, whatever local set() calls happened in between.
         if (attributes != null && attributes.length > 0) {
-            executor.execute(new OnChangeNotifier(handler, vd, attributes));
+            executor.execute(vd, new OnChangeNotifier(handler, vd, attributes));
         }
 
         JSONObject jsonCustomMessages =
@@ -1030,7 +1201,7 @@ class Monitor implements Runnable {
         if (customMessages != null) {
             for (CustomMessage cm : customMessages) {
                 if (cm.type == DeviceModelFormat.Type.ALERT) {
-                    executor.execute(
+                    executor.execute(vd,
                         new OnAlertNotifier(
                                 handler,
                                 vd,
@@ -1038,7 +1209,7 @@ class Monitor implements Runnable {
                                 cm.eventTime,
                                 cm.namedValues));
                 } else {
-                    executor.execute(
+                    executor.execute(vd,
                         new OnDataNotifier(
                                 handler,
                                 vd,
@@ -1050,9 +1221,10 @@ class Monitor implements Runnable {
         }
     }
 
-    private void processInitialBulkData(VirtualDeviceImpl vd,
+    private void processInitialBulkData(AtomicLong lastUntil,
+                                        VirtualDeviceImpl vd,
                                         JSONObject jsonData,
-                                        NotifyHandler handler) {
+                                        MonitoredDevice md) {
 
         JSONObject jsonDevices;
         try {
@@ -1063,11 +1235,9 @@ class Monitor implements Runnable {
 
         JSONObject jsonDevice = jsonDevices.optJSONObject(vd.getEndpointId());
 
-        if (lastUntil.get() == 0) {
-            Number until = (Number)jsonData.opt("until");
-            if (until != null) {
-                lastUntil.set(until.longValue());
-            }
+        Number until = (Number)jsonData.opt("until");
+        if (until != null) {
+            lastUntil.compareAndSet(0, until.longValue());
         }
 
         if (jsonDevice == null) {
@@ -1086,7 +1256,7 @@ class Monitor implements Runnable {
         String model = vd.getDeviceModel().getURN();
         JSONObject jsonModel = jsonDevice.optJSONObject(model);
         if (jsonModel != null) {
-            processModelData(vd, jsonModel, handler);
+            processModelData(vd, jsonModel, md);
         } else {
             throw new IllegalArgumentException(
                 vd.getEndpointId() + " does not implement " + model);
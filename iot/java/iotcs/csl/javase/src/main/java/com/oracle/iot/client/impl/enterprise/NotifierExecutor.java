@@ -0,0 +1,244 @@
+/*
+ * Copyright (c) 2018, Oracle and/or its affiliates.  All rights reserved.
+ *
+ * This software is dual-licensed to you under the MIT License (MIT) and
+ * the Universal Permissive License (UPL).  See the LICENSE file in the root
+ * directory for license terms.  You may choose either license, or both.
+ */
+
+package com.oracle.iot.client.impl.enterprise;
+
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the notifications of the {@link Monitor}, or the pages of the
+ * {@link MessagePoller}, on a fixed number of threads. The notifications
+ * for one key, such as a virtual device, are run one at a time in the
+ * order they are given, and each key has a bounded queue.
+ * <p>
+ * When the queue of a key is full, the overflow policy decides what
+ * happens to a new notification:
+ * <ul>
+ *     <li>{@code block}: the caller waits until there is room (the default)</li>
+ *     <li>{@code drop_oldest}: the oldest notification in the queue is dropped</li>
+ *     <li>{@code coalesce}: the notification is merged into the last
+ *     queued notification if that is of the same kind, keeping the
+ *     latest values; if it cannot be merged, the oldest notification
+ *     is dropped</li>
+ * </ul>
+ * For the Monitor, the number of threads, the capacity of a queue and the
+ * overflow policy are set by {@code oracle.iot.client.enterprise.notifier_pool_size},
+ * {@code oracle.iot.client.enterprise.notifier_queue_capacity} and
+ * {@code oracle.iot.client.enterprise.notifier_overflow_policy}.
+ */
+final class NotifierExecutor {
+
+    /**
+     * A notification that can take the values of a later notification.
+     */
+    interface Mergeable {
+        /**
+         * Merge a later notification into this one, which has not run.
+         * @param later the later notification
+         * @return {@code true} if the later notification was merged
+         */
+        boolean merge(Runnable later);
+    }
+
+    enum OverflowPolicy {
+        BLOCK,
+        DROP_OLDEST,
+        COALESCE
+    }
+
+    private static final String NOTIFIER_POOL_SIZE =
+            "oracle.iot.client.enterprise.notifier_pool_size";
+    private static final String NOTIFIER_QUEUE_CAPACITY =
+            "oracle.iot.client.enterprise.notifier_queue_capacity";
+    private static final String NOTIFIER_OVERFLOW_POLICY =
+            "oracle.iot.client.enterprise.notifier_overflow_policy";
+
+    // The most notifications of one key to run before letting
+    // other keys have the thread.
+    private static final int MAX_RUN = 16;
+
+    private final ThreadPoolExecutor pool;
+    private final int capacity;
+    private final OverflowPolicy overflowPolicy;
+
+    // The queue of each key that has notifications queued or running.
+    // The queues and the counts, which are logged at FINE when a queue
+    // overflows, are guarded by the lock on queues.
+    private final Map<Object, KeyQueue> queues = new IdentityHashMap<Object, KeyQueue>();
+    private int queueDepth;
+    private long droppedCount;
+    private long coalescedCount;
+
+    NotifierExecutor() {
+        this(getPoolSize(), getCapacity(), getOverflowPolicy(), "notifier");
+    }
+
+    /**
+     * Create an executor that does not use the notifier properties.
+     * @param poolSize the number of threads
+     * @param capacity the most notifications queued for one key
+     * @param overflowPolicy what to do when the queue of a key is full
+     * @param name the prefix of the thread names
+     */
+    NotifierExecutor(int poolSize, int capacity,
+                     OverflowPolicy overflowPolicy, String name) {
+        this.capacity = capacity;
+        this.overflowPolicy = overflowPolicy;
+
+        this.pool = new ThreadPoolExecutor(poolSize, poolSize,
+                60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new Monitor.NotifierThreadFactory(name));
+        // Let the threads go when there is nothing to notify
+        this.pool.allowCoreThreadTimeOut(true);
+    }
+
+    private static int getPoolSize() {
+        // this is deliberate to avoid autoboxing
+        final Integer val = Integer.getInteger(NOTIFIER_POOL_SIZE);
+        return (val != null && val.intValue() > 0 ?
+                val.intValue() : Math.max(2, Runtime.getRuntime().availableProcessors()));
+    }
+
+    private static int getCapacity() {
+        final Integer val = Integer.getInteger(NOTIFIER_QUEUE_CAPACITY);
+        return (val != null && val.intValue() > 0 ? val.intValue() : 1024);
+    }
+
+    private static OverflowPolicy getOverflowPolicy() {
+        final String value = System.getProperty(NOTIFIER_OVERFLOW_POLICY);
+        if (value == null || value.isEmpty()) {
+            return OverflowPolicy.BLOCK;
+        }
+        try {
+            return OverflowPolicy.valueOf(value.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            getLogger().log(Level.WARNING, NOTIFIER_OVERFLOW_POLICY + ": '" + value +
+                    "' is not one of block, drop_oldest or coalesce; using block");
+            return OverflowPolicy.BLOCK;
+        }
+    }
+
+    /**
+     * Run a notification after the notifications already given for the key.
+     * @param key the key, compared by identity
+     * @param notification the notification
+     */
+    void execute(Object key, Runnable notification) {
+        synchronized (queues) {
+            KeyQueue queue = queues.get(key);
+            if (queue != null && queue.pending.size() >= capacity) {
+                if (overflowPolicy == OverflowPolicy.BLOCK) {
+                    boolean interrupted = false;
+                    while (queue != null && queue.pending.size() >= capacity) {
+                        try {
+                            queues.wait();
+                        } catch (InterruptedException e) {
+                            // Queue the notification anyway, rather than lose it
+                            interrupted = true;
+                            break;
+                        }
+                        queue = queues.get(key);
+                    }
+                    if (interrupted) {
+                        // Restore the interrupted status
+                        Thread.currentThread().interrupt();
+                    }
+                } else if (overflowPolicy == OverflowPolicy.COALESCE
+                        && queue.merge(notification)) {
+                    coalescedCount += 1;
+                    if (getLogger().isLoggable(Level.FINE)) {
+                        getLogger().log(Level.FINE, "Notification coalesced, " +
+                                coalescedCount + " coalesced, queue depth " + queueDepth);
+                    }
+                    return;
+                } else {
+                    queue.pending.poll();
+                    queueDepth -= 1;
+                    droppedCount += 1;
+                    if (getLogger().isLoggable(Level.FINE)) {
+                        getLogger().log(Level.FINE, "Notification dropped, " +
+                                droppedCount + " dropped, queue depth " + queueDepth);
+                    }
+                }
+            }
+
+            if (queue == null) {
+                queue = new KeyQueue(key);
+                queues.put(key, queue);
+            }
+            queue.pending.add(notification);
+            queueDepth += 1;
+            if (!queue.scheduled) {
+                queue.scheduled = true;
+                pool.execute(queue);
+            }
+        }
+    }
+
+    /*
+     * The notifications of one key. At most one thread runs them at a time.
+     */
+    private final class KeyQueue implements Runnable {
+
+        private final Object key;
+        private final ArrayDeque<Runnable> pending = new ArrayDeque<Runnable>();
+        private boolean scheduled;
+
+        private KeyQueue(Object key) {
+            this.key = key;
+        }
+
+        // Merge into the last notification in the queue, if it takes it.
+        // Merging into an earlier one would run the later values before
+        // the notifications queued after it. Call with the lock.
+        private boolean merge(Runnable notification) {
+            final Runnable last = pending.peekLast();
+            return last instanceof Mergeable
+                    && ((Mergeable) last).merge(notification);
+        }
+
+        @Override
+        public void run() {
+            for (int n = 0; n < MAX_RUN; n++) {
+                final Runnable notification;
+                synchronized (queues) {
+                    notification = pending.poll();
+                    if (notification == null) {
+                        scheduled = false;
+                        queues.remove(key);
+                        return;
+                    }
+                    queueDepth -= 1;
+                    // Wake a caller waiting for room
+                    queues.notifyAll();
+                }
+
+                try {
+                    notification.run();
+                } catch (RuntimeException e) {
+                    getLogger().log(Level.SEVERE, e.getMessage(), e);
+                }
+            }
+
+            // Still scheduled. Go to the back of the line.
+            pool.execute(this);
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger("oracle.iot.client");
+    private static Logger getLogger() { return LOGGER; }
+}
@@ -0,0 +1,547 @@
+/*
+ * Copyright (c) 2018, Oracle and/or its affiliates.  All rights reserved.
+ *
+ * This software is dual-licensed to you under the MIT License (MIT) and
+ * the Universal Permissive License (UPL).  See the LICENSE file in the root
+ * directory for license terms.  You may choose either license, or both.
+ */
+package com.oracle.iot.shared;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A formula that has been compiled from a {@link FormulaParser.Node} tree
+ * into a tree of evaluators. The result is the same as from
+ * {@link Formula#compute(FormulaParser.Node, ValueProvider)}, but:
+ * <ul>
+ *     <li>numbers are parsed once, when the formula is compiled</li>
+ *     <li>numeric operations work on {@code double} and don't box
+ *     intermediate results</li>
+ *     <li>each attribute reference is given a slot when the formula is
+ *     compiled, and each attribute is looked up at most once per
+ *     evaluation, no matter how many times the formula refers to it</li>
+ * </ul>
+ * A CompiledFormula is immutable and may be shared between threads.
+ */
+public final class CompiledFormula {
+
+    private final Evaluator root;
+
+    // The attribute name of each slot, and whether the slot is for
+    // the in-process value $(attr) or the current value $$(attr).
+    private final String[] slotNames;
+    private final boolean[] slotInProcess;
+
+    private CompiledFormula(Evaluator root, List<String> slotNames, List<Boolean> slotInProcess) {
+        this.root = root;
+        this.slotNames = slotNames.toArray(new String[slotNames.size()]);
+        this.slotInProcess = new boolean[slotInProcess.size()];
+        for (int slot = 0; slot < this.slotInProcess.length; slot++) {
+            this.slotInProcess[slot] = slotInProcess.get(slot);
+        }
+    }
+
+    /**
+     * Compile the formula.
+     * @param node the root of the parsed formula
+     * @return the compiled formula
+     */
+    public static CompiledFormula compile(FormulaParser.Node node) {
+        final Compiler compiler = new Compiler();
+        final Evaluator root = compiler.compile(node);
+        return new CompiledFormula(root, compiler.slotNames, compiler.slotInProcess);
+    }
+
+    /**
+     * Compute the value of the formula.
+     * @param vp provides the values of the attributes in the formula
+     * @return a {@code Double} or a {@code String}
+     */
+    public Object compute(ValueProvider vp) {
+        return root.value(new Frame(this, vp));
+    }
+
+    /**
+     * Compute the value of a formula whose value is a number.
+     * @param vp provides the values of the attributes in the formula
+     * @return the value of the formula
+     * @throws ClassCastException if the value of the formula is not a number
+     */
+    public double computeDouble(ValueProvider vp) {
+        return root.number(new Frame(this, vp));
+    }
+
+    /*
+     * The values of the attributes for one evaluation, looked up the
+     * first time each slot is used.
+     */
+    private static final class Frame {
+        private static final Object UNSET = new Object();
+
+        private final CompiledFormula formula;
+        private final ValueProvider vp;
+        private final Object[] values;
+
+        private Frame(CompiledFormula formula, ValueProvider vp) {
+            this.formula = formula;
+            this.vp = vp;
+            final int slots = formula.slotNames.length;
+            this.values = slots > 0 ? new Object[slots] : null;
+            for (int slot = 0; slot < slots; slot++) {
+                values[slot] = UNSET;
+            }
+        }
+
+        /*
+         * Returns a Number, Boolean or String, or null if the attribute has
+         * no value or a value of some other type.
+         */
+        private Object get(int slot) {
+            Object value = values[slot];
+            if (value == UNSET) {
+                value = lookup(slot);
+                values[slot] = value;
+            }
+            return value;
+        }
+
+        private Object lookup(int slot) {
+            final String attr = formula.slotNames[slot];
+            try {
+                Object value = null;
+                if (formula.slotInProcess[slot]) {
+                    value = vp.getInProcessValue(attr);
+                }
+                if (value == null) {
+                    value = vp.getCurrentValue(attr);
+                }
+                if (value instanceof Number || value instanceof Boolean || value instanceof String) {
+                    return value;
+                }
+            } catch (ClassCastException e) {
+                getLogger().log(Level.WARNING, e.getMessage());
+            }
+            return null;
+        }
+    }
+
+    /*
+     * A node of the compiled formula. A node whose value is always a number
+     * overrides number(), and other nodes override value().
+     */
+    private abstract static class Evaluator {
+
+        // True if value() always returns a Double.
+        boolean isNumeric() {
+            return false;
+        }
+
+        Object value(Frame frame) {
+            return number(frame);
+        }
+
+        double number(Frame frame) {
+            // Same as the cast in Formula.compute
+            return (Double) value(frame);
+        }
+    }
+
+    private abstract static class NumericEvaluator extends Evaluator {
+        @Override
+        final boolean isNumeric() {
+            return true;
+        }
+
+        @Override
+        final Object value(Frame frame) {
+            return number(frame);
+        }
+
+        @Override
+        abstract double number(Frame frame);
+    }
+
+    private static final class NumberConstant extends NumericEvaluator {
+        private final double value;
+
+        private NumberConstant(double value) {
+            this.value = value;
+        }
+
+        @Override
+        double number(Frame frame) {
+            return value;
+        }
+    }
+
+    private static final class StringConstant extends Evaluator {
+        private final String value;
+
+        private StringConstant(String value) {
+            this.value = value;
+        }
+
+        @Override
+        Object value(Frame frame) {
+            return value;
+        }
+    }
+
+    private static final class Attribute extends Evaluator {
+        private final int slot;
+
+        private Attribute(int slot) {
+            this.slot = slot;
+        }
+
+        @Override
+        Object value(Frame frame) {
+            final Object value = frame.get(slot);
+            if (value instanceof Double || value instanceof String) {
+                return value;
+            } else if (value instanceof Number) {
+                return ((Number) value).doubleValue();
+            } else if (value instanceof Boolean) {
+                return ((Boolean) value).booleanValue() ? 1d : 0d;
+            }
+            return Double.NaN;
+        }
+
+        @Override
+        double number(Frame frame) {
+            final Object value = frame.get(slot);
+            if (value instanceof Number) {
+                return ((Number) value).doubleValue();
+            } else if (value instanceof Boolean) {
+                return ((Boolean) value).booleanValue() ? 1d : 0d;
+            } else if (value instanceof String) {
+                throw new ClassCastException("Cannot cast java.lang.String to java.lang.Double");
+            }
+            return Double.NaN;
+        }
+    }
+
+    private static final class Ternary extends Evaluator {
+        private final Evaluator condition;
+        private final Evaluator whenTrue;
+        private final Evaluator whenFalse;
+
+        private Ternary(Evaluator condition, Evaluator whenTrue, Evaluator whenFalse) {
+            this.condition = condition;
+            this.whenTrue = whenTrue;
+            this.whenFalse = whenFalse;
+        }
+
+        @Override
+        boolean isNumeric() {
+            return whenTrue.isNumeric() && whenFalse.isNumeric();
+        }
+
+        @Override
+        Object value(Frame frame) {
+            return Double.compare(condition.number(frame), 1.0) == 0
+                    ? whenTrue.value(frame)
+                    : whenFalse.value(frame);
+        }
+
+        @Override
+        double number(Frame frame) {
+            return Double.compare(condition.number(frame), 1.0) == 0
+                    ? whenTrue.number(frame)
+                    : whenFalse.number(frame);
+        }
+    }
+
+    /*
+     * An operation on two numbers. Unary operations ignore rhs, which is
+     * still evaluated, as it is by Formula.compute.
+     */
+    private static final class Arithmetic extends NumericEvaluator {
+        private final FormulaParser.Node.Operation operation;
+        private final Evaluator lhs;
+        private final Evaluator rhs;
+
+        private Arithmetic(FormulaParser.Node.Operation operation, Evaluator lhs, Evaluator rhs) {
+            this.operation = operation;
+            this.lhs = lhs;
+            this.rhs = rhs;
+        }
+
+        @Override
+        double number(Frame frame) {
+            final double l = lhs.number(frame);
+            final double r = rhs.number(frame);
+            switch (operation) {
+                case UNARY_MINUS:
+                    return -l;
+                case UNARY_PLUS:
+                    return l;
+                case DIV:
+                    return l / r;
+                case MUL:
+                    return l * r;
+                case PLUS:
+                    return l + r;
+                case MINUS:
+                    return l - r;
+                case MOD:
+                    return l % r;
+                case OR:
+                    // Let NaN or NaN be false
+                    if (Double.isNaN(l)) return Double.isNaN(r) ? 0.0 : 1.0;
+                    return Double.compare(l, 0.0) != 0 || Double.compare(r, 0.0) != 0 ? 1.0 : 0.0;
+                case AND:
+                    // If lhs or rhs is NaN, return false
+                    if (Double.isNaN(l) || Double.isNaN(r)) return 0.0;
+                    return Double.compare(l, 0.0) != 0 && Double.compare(r, 0.0) != 0 ? 1.0 : 0.0;
+                case GT:
+                    // Let NaN > 42 return false, and 42 > NaN return true
+                    if (Double.isNaN(l)) return 0.0;
+                    if (Double.isNaN(r)) return 1.0;
+                    return Double.compare(l, r) > 0 ? 1.0 : 0.0;
+                case GTE:
+                    // Let NaN >= 42 return false, and 42 >= NaN return true
+                    if (Double.isNaN(l)) return Double.isNaN(r) ? 1.0 : 0.0;
+                    if (Double.isNaN(r)) return 1.0;
+                    return Double.compare(l, r) >= 0 ? 1.0 : 0.0;
+                case LT:
+                    // Let NaN < 42 return false, and 42 < NaN return true
+                    if (Double.isNaN(l)) return 0.0;
+                    if (Double.isNaN(r)) return 1.0;
+                    return Double.compare(l, r) < 0 ? 1.0 : 0.0;
+                case LTE:
+                    // Let NaN <= 42 return false, and 42 <= NaN return true
+                    if (Double.isNaN(l)) return Double.isNaN(r) ? 1.0 : 0.0;
+                    if (Double.isNaN(r)) return 1.0;
+                    return Double.compare(l, r) <= 0 ? 1.0 : 0.0;
+                case NOT:
+                    return Double.compare(l, 1.0) == 0 ? 0.0 : 1.0;
+                default:
+                    return Double.NaN;
+            }
+        }
+    }
+
+    /*
+     * EQ and NEQ. Values of different types are not equal.
+     */
+    private static final class Equality extends NumericEvaluator {
+        private final boolean equal;
+        private final Evaluator lhs;
+        private final Evaluator rhs;
+
+        private Equality(boolean equal, Evaluator lhs, Evaluator rhs) {
+            this.equal = equal;
+            this.lhs = lhs;
+            this.rhs = rhs;
+        }
+
+        @Override
+        double number(Frame frame) {
+            final boolean same;
+            if (lhs.isNumeric() && rhs.isNumeric()) {
+                same = Double.compare(lhs.number(frame), rhs.number(frame)) == 0;
+            } else {
+                final Object l = lhs.value(frame);
+                final Object r = rhs.value(frame);
+                if (l instanceof Double && r instanceof Double) {
+                    same = ((Double) l).compareTo((Double) r) == 0;
+                } else if (l instanceof String && r instanceof String) {
+                    same = ((String) l).compareTo((String) r) == 0;
+                } else {
+                    same = false;
+                }
+            }
+            return same == equal ? 1.0 : 0.0;
+        }
+    }
+
+    /*
+     * PLUS where either side may be a string.
+     */
+    private static final class Concatenation extends Evaluator {
+        private final Evaluator lhs;
+        private final Evaluator rhs;
+
+        private Concatenation(Evaluator lhs, Evaluator rhs) {
+            this.lhs = lhs;
+            this.rhs = rhs;
+        }
+
+        @Override
+        Object value(Frame frame) {
+            final Object l = lhs.value(frame);
+            final Object r = rhs.value(frame);
+            if (l instanceof String && r instanceof String) {
+                return ((String) l).concat((String) r);
+            }
+            return (Double) l + (Double) r;
+        }
+    }
+
+    private static final class Like extends NumericEvaluator {
+        private final Evaluator lhs;
+        private final Evaluator rhs;
+
+        // The compiled pattern, if the pattern is a string constant. If not,
+        // the last pattern used, which is usually the same next time.
+        private final LikePattern constant;
+        private volatile LikePattern last;
+
+        private Like(Evaluator lhs, Evaluator rhs) {
+            this.lhs = lhs;
+            this.rhs = rhs;
+            this.constant = rhs instanceof StringConstant
+                    ? LikePattern.compile(((StringConstant) rhs).value)
+                    : null;
+        }
+
+        @Override
+        double number(Frame frame) {
+            final Object l = lhs.value(frame);
+            final Object r = rhs.value(frame);
+            if (l instanceof String && r instanceof String) {
+                return pattern((String) r).matches((String) l) ? 1.0 : 0.0;
+            }
+            return 0.0;
+        }
+
+        private LikePattern pattern(String pattern) {
+            if (constant != null) {
+                return constant;
+            }
+            LikePattern likePattern = last;
+            if (likePattern == null || !likePattern.toString().equals(pattern)) {
+                likePattern = LikePattern.compile(pattern);
+                last = likePattern;
+            }
+            return likePattern;
+        }
+    }
+
+    /*
+     * LOWER and UPPER, either as operations or as functions.
+     */
+    private static final class ChangeCase extends Evaluator {
+        private final boolean upper;
+        private final boolean function;
+        private final Evaluator operand;
+
+        private ChangeCase(boolean upper, boolean function, Evaluator operand) {
+            this.upper = upper;
+            this.function = function;
+            this.operand = operand;
+        }
+
+        @Override
+        Object value(Frame frame) {
+            final Object value = operand.value(frame);
+            final String str = function ? String.class.cast(value) : (String) value;
+            if (str == null) {
+                return "";
+            }
+            return upper ? str.toUpperCase(Locale.ROOT) : str.toLowerCase(Locale.ROOT);
+        }
+    }
+
+    private static final class Compiler {
+        private final List<String> slotNames = new ArrayList<String>();
+        private final List<Boolean> slotInProcess = new ArrayList<Boolean>();
+
+        private Evaluator compile(FormulaParser.Node node) {
+
+            if (node == null) {
+                return new NumberConstant(Double.NaN);
+            }
+
+            if (node instanceof FormulaParser.Terminal) {
+                final FormulaParser.Terminal terminal = (FormulaParser.Terminal) node;
+                final String attr = terminal.getValue();
+                switch (terminal.type) {
+                    case CURRENT_ATTRIBUTE:
+                        return new Attribute(slot(attr, false));
+                    case IN_PROCESS_ATTRIBUTE:
+                        return new Attribute(slot(attr, true));
+                    case NUMBER:
+                        try {
+                            return new NumberConstant(Double.parseDouble(attr));
+                        } catch (NumberFormatException e) {
+                            getLogger().log(Level.WARNING, e.getMessage());
+                            // Formula.compute returns the text
+                            return new StringConstant(attr);
+                        }
+                    case STRING:
+                    case IDENT:
+                        return new StringConstant(attr);
+                }
+                return new NumberConstant(Double.NaN);
+            }
+
+            final FormulaParser.Node.Operation operation = node.getOperation();
+            switch (operation) {
+                case TERNARY:
+                    return new Ternary(
+                            compile(node.getLeftHandSide()),
+                            compile(node.getRightHandSide().getLeftHandSide()),
+                            compile(node.getRightHandSide().getRightHandSide()));
+                case GROUP:
+                    return compile(node.getLeftHandSide());
+            }
+
+            final Evaluator lhs = compile(node.getLeftHandSide());
+            final Evaluator rhs = compile(node.getRightHandSide());
+
+            switch (operation) {
+                case FUNCTION: {
+                    final String fn = ((FormulaParser.Terminal) node.getLeftHandSide()).getValue();
+                    if ("LOWER".equalsIgnoreCase(fn)) {
+                        return new ChangeCase(false, true, rhs);
+                    } else if ("UPPER".equalsIgnoreCase(fn)) {
+                        return new ChangeCase(true, true, rhs);
+                    }
+                    getLogger().log(Level.WARNING, "unknown function '" + fn + "'");
+                    // Formula.compute falls through to LOWER
+                    return new ChangeCase(false, false, lhs);
+                }
+                case LOWER:
+                    return new ChangeCase(false, false, lhs);
+                case UPPER:
+                    return new ChangeCase(true, false, lhs);
+                case EQ:
+                    return new Equality(true, lhs, rhs);
+                case NEQ:
+                    return new Equality(false, lhs, rhs);
+                case PLUS:
+                    if (lhs.isNumeric() || rhs.isNumeric()) {
+                        return new Arithmetic(operation, lhs, rhs);
+                    }
+                    return new Concatenation(lhs, rhs);
+                case LIKE:
+                    return new Like(lhs, rhs);
+                default:
+                    return new Arithmetic(operation, lhs, rhs);
+            }
+        }
+
+        private int slot(String attr, boolean inProcess) {
+            for (int slot = 0; slot < slotNames.size(); slot++) {
+                if (slotInProcess.get(slot) == inProcess && slotNames.get(slot).equals(attr)) {
+                    return slot;
+                }
+            }
+            slotNames.add(attr);
+            slotInProcess.add(inProcess);
+            return slotNames.size() - 1;
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger("com.oracle.iot.shared");
+
+    private static Logger getLogger() {
+        return LOGGER;
+    }
+}
@@ -17,14 +17,16 @@ import java.util.logging.Logger;
 
 public class Formula {
     FormulaParser.Node tree;
+    private final CompiledFormula compiled;
 
     public Formula(String formula) {
         List<FormulaParser.Token> tokens = tokenize(formula);
         tree = FormulaParser.parseFormula(tokens, formula);
+        compiled = CompiledFormula.compile(tree);
     }
     
     public Object compute(ValueProvider vp) {
-        return compute(tree, vp);
+        return compiled.compute(vp);
     }
     
     public String dump() {
@@ -221,33 +223,8 @@ public class Formula {
         return Double.NaN;
     }
 
-    private static boolean sqlMatches(String s, String regEx) {
-        StringBuilder sb = new StringBuilder();
-        char prev = 0;
-        for (int i = 0, len = regEx.length(); i < len; i++) {
-            char next = regEx.charAt(i);
-            if (next == '_') {
-                if (prev == '\\') {
-                    sb.deleteCharAt(i - 1);
-                } else {
-                    // Covert _ to .
-                    next = '.';
-                }
-            } else if (next == '%') {
-                if (prev == '\\') {
-                    sb.deleteCharAt(i - 1);
-                } else {
-                    // Convert % to .*
-                    sb.append('.');
-                    next = '*';                    
-                }
-            }
-
-            sb.append(next);
-            prev = next;
-        }
-
-        return s.matches(sb.toString());
+    static boolean sqlMatches(String s, String regEx) {
+        return LikePattern.compile(regEx).matches(s);
     }
     
     private static final Logger LOGGER = Logger.getLogger("com.oracle.iot.shared");
@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2018, Oracle and/or its affiliates.  All rights reserved.
+ *
+ * This software is dual-licensed to you under the MIT License (MIT) and
+ * the Universal Permissive License (UPL).  See the LICENSE file in the root
+ * directory for license terms.  You may choose either license, or both.
+ */
+package com.oracle.iot.shared;
+
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * The right hand side of a {@code LIKE}, compiled once.
+ * <p>
+ * {@code %} matches any run of characters and {@code _} matches any one
+ * character. The pattern is translated to a regular expression, and the
+ * other characters are used as they are. A pattern that is only plain
+ * characters, optionally with a {@code %} at the start or end, is matched
+ * with {@code equals}, {@code startsWith}, {@code endsWith} or
+ * {@code indexOf} instead. Like {@code .} in a regular expression,
+ * {@code %} does not match line terminators.
+ * <p>
+ * A LikePattern is immutable and may be shared between threads.
+ */
+final class LikePattern {
+
+    private enum Kind {
+        REGEX,
+        EQUALS,     // abc
+        PREFIX,     // abc%
+        SUFFIX,     // %abc
+        CONTAINS,   // %abc%
+        ANY         // %
+    }
+
+    private final String pattern;
+    private final Kind kind;
+    private final String literal;
+    private final Pattern regex;
+    private final PatternSyntaxException error;
+
+    private LikePattern(String pattern, Kind kind, String literal, Pattern regex, PatternSyntaxException error) {
+        this.pattern = pattern;
+        this.kind = kind;
+        this.literal = literal;
+        this.regex = regex;
+        this.error = error;
+    }
+
+    /**
+     * Compile a {@code LIKE} pattern. A pattern whose regular expression is
+     * not valid throws from {@link #matches(String)}.
+     * @param pattern the pattern
+     * @return the compiled pattern
+     */
+    static LikePattern compile(String pattern) {
+        final int length = pattern.length();
+        if (length == 1 && pattern.charAt(0) == '%') {
+            return new LikePattern(pattern, Kind.ANY, null, null, null);
+        }
+
+        final boolean leading = length > 0 && pattern.charAt(0) == '%';
+        final boolean trailing = length > 1 && pattern.charAt(length - 1) == '%';
+        final String literal = pattern.substring(leading ? 1 : 0, trailing ? length - 1 : length);
+        if (isPlain(literal)) {
+            final Kind kind = leading
+                    ? (trailing ? Kind.CONTAINS : Kind.SUFFIX)
+                    : (trailing ? Kind.PREFIX : Kind.EQUALS);
+            return new LikePattern(pattern, kind, literal, null, null);
+        }
+
+        try {
+            return new LikePattern(pattern, Kind.REGEX, null, Pattern.compile(toRegex(pattern)), null);
+        } catch (PatternSyntaxException e) {
+            return new LikePattern(pattern, Kind.REGEX, null, null, e);
+        }
+    }
+
+    /**
+     * Match the whole string against the pattern.
+     * @param s the string
+     * @return {@code true} if the string matches
+     * @throws PatternSyntaxException if the pattern is not valid
+     */
+    boolean matches(String s) {
+        switch (kind) {
+            case EQUALS:
+                return s.equals(literal);
+            case PREFIX:
+                return s.startsWith(literal) && !hasLineTerminator(s, literal.length(), s.length());
+            case SUFFIX:
+                return s.endsWith(literal) && !hasLineTerminator(s, 0, s.length() - literal.length());
+            case CONTAINS:
+                return s.indexOf(literal) >= 0 && !hasLineTerminator(s, 0, s.length());
+            case ANY:
+                return !hasLineTerminator(s, 0, s.length());
+            default:
+                if (error != null) {
+                    throw new PatternSyntaxException(error.getDescription(), error.getPattern(), error.getIndex());
+                }
+                return regex.matcher(s).matches();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return pattern;
+    }
+
+    /*
+     * Translate the pattern to a regular expression, the same way
+     * Formula.compute always has.
+     */
+    static String toRegex(String regEx) {
+        StringBuilder sb = new StringBuilder();
+        char prev = 0;
+        for (int i = 0, len = regEx.length(); i < len; i++) {
+            char next = regEx.charAt(i);
+            if (next == '_') {
+                if (prev == '\\') {
+                    sb.deleteCharAt(i - 1);
+                } else {
+                    // Covert _ to .
+                    next = '.';
+                }
+            } else if (next == '%') {
+                if (prev == '\\') {
+                    sb.deleteCharAt(i - 1);
+                } else {
+                    // Convert % to .*
+                    sb.append('.');
+                    next = '*';
+                }
+            }
+
+            sb.append(next);
+            prev = next;
+        }
+        return sb.toString();
+    }
+
+    /*
+     * True if the text has no characters that mean something in a pattern
+     * or a regular expression, and no line terminators.
+     */
+    private static boolean isPlain(String text) {
+        for (int i = 0, len = text.length(); i < len; i++) {
+            final char ch = text.charAt(i);
+            if ("\\^$.|?*+()[]{}_%".indexOf(ch) >= 0 || isLineTerminator(ch)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean hasLineTerminator(String s, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (isLineTerminator(s.charAt(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // The characters that '.' does not match.
+    private static boolean isLineTerminator(char ch) {
+        return ch == '\n' || ch == '\r' || ch == '\u0085' || ch == '\u2028' || ch == '\u2029';
+    }
+}